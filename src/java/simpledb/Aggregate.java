@@ -112,9 +112,9 @@ public class Aggregate extends Operator {
                     operator
             );
         }
-        while (childOp.hasNext()) {
-            myAgg.mergeTupleIntoGroup(childOp.next());
-        }
+        TupleBatch batch = new TupleBatch(childOp.getTupleDesc());
+        while (childOp.nextBatch(batch))
+            myAgg.mergeBatch(batch);
         tupleAggregation = myAgg.iterator();
         tupleAggregation.open();
 
@@ -136,6 +136,14 @@ public class Aggregate extends Operator {
         return null;
     }
 
+    /**
+     * Returns the next batch of the aggregate results.
+     */
+    @Override
+    protected boolean fetchNextBatch(TupleBatch batch) throws TransactionAbortedException, DbException {
+        return tupleAggregation.nextBatch(batch);
+    }
+
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
         tupleAggregation.rewind();
@@ -76,6 +76,18 @@ public interface Aggregator extends Serializable {
      */
     public void mergeTupleIntoGroup(Tuple tup);
 
+    /**
+     * Merge the live tuples of a batch into the aggregate, as
+     * mergeTupleIntoGroup() merges each of them.
+     *
+     * @param batch a batch of tuples containing an aggregate field and a
+     *              group-by field
+     */
+    public default void mergeBatch(TupleBatch batch) {
+        for (int i = 0; i < batch.size(); i++)
+            mergeTupleIntoGroup(batch.get(i));
+    }
+
     /**
      * Create a OpIterator over group aggregate results.
      * @see simpledb.TupleIterator for a possible helper
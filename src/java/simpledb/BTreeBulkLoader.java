@@ -0,0 +1,469 @@
+package simpledb;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.*;
+
+/**
+ * BTreeBulkLoader builds a B+ tree file from the tuples of an operator, such
+ * as a scan of an existing table ("CREATE INDEX").
+ * <p>
+ * The tuples are sorted on the key field with an external merge sort: runs
+ * that fit in the memory budget are sorted in memory and spilled to
+ * temporary files, which are then merged, several passes if necessary.
+ * The tree is built bottom up from the sorted stream: since the number of
+ * tuples is known once they are sorted, the shape of the tree is computed
+ * in advance, and every page is written exactly once, in page number order,
+ * with its parent and sibling pointers already set.  The leaves come first,
+ * followed by each level of internal pages and finally the root.  The keys
+ * separating the pages of a level are also spilled to a temporary file, so
+ * the memory needed does not grow with the size of the table.
+ * <p>
+ * Pages are filled to the configured fill factor, leaving room for later
+ * inserts before pages must split; pages other than the root are always at
+ * least half full.
+ * <p>
+ * The file is written directly, bypassing the buffer pool and the log, so
+ * it must be new and empty.  The source is read through its transaction,
+ * like any other query.
+ */
+public class BTreeBulkLoader {
+
+	public static final double DEFAULT_FILL_FACTOR = 0.9;
+	public static final int DEFAULT_MEMORY_PAGES = BufferPool.DEFAULT_PAGES;
+
+	private final double fillFactor;
+	private final int memoryPages;
+
+	/**
+	 * Create a loader with the default fill factor and memory budget.
+	 */
+	public BTreeBulkLoader() {
+		this(DEFAULT_FILL_FACTOR, DEFAULT_MEMORY_PAGES);
+	}
+
+	/**
+	 * Create a loader.
+	 * @param fillFactor - the fraction of each page to fill, between 0.5 and 1
+	 * @param memoryPages - the number of pages of tuples to sort in memory at
+	 * a time; also the number of runs merged at a time
+	 */
+	public BTreeBulkLoader(double fillFactor, int memoryPages) {
+		if (fillFactor < 0.5 || fillFactor > 1.0)
+			throw new IllegalArgumentException("fill factor must be between 0.5 and 1: " + fillFactor);
+		if (memoryPages < 2)
+			throw new IllegalArgumentException("at least 2 pages of memory are needed to sort");
+		this.fillFactor = fillFactor;
+		this.memoryPages = memoryPages;
+	}
+
+	/**
+	 * Create a B+ tree index over a table: scan the table, build a B+ tree
+	 * file holding its tuples keyed on keyField, and add it to the catalog.
+	 * If the load fails, the index is taken out of the catalog again and
+	 * its file is left empty.
+	 *
+	 * @param tid - the transaction reading the table
+	 * @param tableid - the table to index
+	 * @param keyField - the field to key the index on
+	 * @param f - the file to store the index in; it is overwritten
+	 * @param name - the name of the index in the catalog
+	 * @return the index
+	 */
+	public BTreeFile createIndex(TransactionId tid, int tableid, int keyField, File f, String name)
+			throws DbException, TransactionAbortedException, IOException {
+		TupleDesc td = Database.getCatalog().getTupleDesc(tableid);
+		new FileOutputStream(f).close(); // truncate
+		BTreeFile bf = new BTreeFile(f, keyField, td);
+		// the pages are made through the catalog, so the index is added
+		// before it is loaded
+		Database.getCatalog().addTable(bf, name);
+		boolean loaded = false;
+		try {
+			load(new SeqScan(tid, tableid), bf);
+			loaded = true;
+		} finally {
+			if (!loaded) {
+				Database.getCatalog().removeTable(bf.getId());
+				new FileOutputStream(f).close();
+			}
+		}
+		return bf;
+	}
+
+	/**
+	 * Load the tuples of source into an empty B+ tree file.
+	 *
+	 * @param source - the tuples to load; opened and closed by this method
+	 * @param bf - the file to load, which must be empty and in the catalog
+	 * @throws DbException if the file is not empty, or is keyed on several
+	 *         fields
+	 */
+	public void load(OpIterator source, BTreeFile bf)
+			throws DbException, TransactionAbortedException, IOException {
+		if (bf.getFile().length() != 0)
+			throw new DbException("bulk load requires an empty B+ tree file");
+		if (bf.keyFields().length != 1)
+			throw new DbException("bulk load requires a B+ tree keyed on one field");
+		TupleDesc td = bf.getTupleDesc();
+		int keyField = bf.keyField();
+		int tableid = bf.getId();
+		Comparator<Tuple> cmp = new BTreeFileEncoder.TupleComparator(keyField);
+
+		// sort
+		int runTuples = memoryPages * (BufferPool.getPageSize() * 8 / (td.getSize() * 8 + 1));
+		ArrayList<File> runs = new ArrayList<File>();
+		ArrayList<Tuple> run = new ArrayList<Tuple>();
+		int numTuples = 0;
+		source.open();
+		try {
+			while (source.hasNext()) {
+				run.add(copy(source.next(), td));
+				numTuples++;
+				if (run.size() == runTuples) {
+					runs.add(writeRun(run, cmp));
+					run.clear();
+				}
+			}
+		} finally {
+			source.close();
+		}
+		TupleSource sorted;
+		try {
+			if (runs.isEmpty()) {
+				Collections.sort(run, cmp);
+				sorted = new ListSource(run);
+			} else {
+				if (!run.isEmpty())
+					runs.add(writeRun(run, cmp));
+				run = null;
+				while (runs.size() > memoryPages) {
+					ArrayList<File> merged = new ArrayList<File>();
+					for (int i = 0; i < runs.size(); i += memoryPages) {
+						List<File> group = runs.subList(i, Math.min(i + memoryPages, runs.size()));
+						merged.add(writeRun(new MergeSource(group, td, cmp)));
+						for (File r : group)
+							r.delete();
+					}
+					runs = merged;
+				}
+				sorted = new MergeSource(runs, td, cmp);
+			}
+
+			// build
+			ArrayList<Level> levels = layout(numTuples, bf);
+			Level top = levels.get(levels.size() - 1);
+			BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+			BTreeRootPtrPage rootPtr = new BTreeRootPtrPage(rootPtrId, BTreeRootPtrPage.createEmptyPageData());
+			rootPtr.setRootId(top.id(tableid, 0));
+
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(bf.getFile()));
+			try {
+				out.write(rootPtr.getPageData());
+				File keys = writeLeaves(out, sorted, levels, bf, rootPtrId);
+				for (int h = 1; h < levels.size(); h++)
+					keys = writeInternalLevel(out, keys, levels, h, bf, rootPtrId);
+			} finally {
+				out.close();
+			}
+		} finally {
+			for (File r : runs)
+				r.delete();
+		}
+	}
+
+	// the number of pages for a level of items, with at most max, at least
+	// min (unless there is a single page) and about fillFactor * max items
+	// per page
+	private int numPages(int items, int max, int min) {
+		int target = Math.max(2, (int) (max * fillFactor));
+		int pages = (items + target - 1) / target;
+		pages = Math.min(pages, Math.max(1, items / min));
+		return Math.max(pages, (items + max - 1) / max);
+	}
+
+	// compute the shape of the tree, bottom up
+	private ArrayList<Level> layout(int numTuples, BTreeFile bf) throws IOException {
+		byte[] empty = BTreePage.createEmptyPageData();
+		int tableid = bf.getId();
+		int maxTuples = new BTreeLeafPage(new BTreePageId(tableid, 1, BTreePageId.LEAF),
+				empty, bf.keyField()).getMaxTuples();
+		int maxEntries = new BTreeInternalPage(new BTreePageId(tableid, 1, BTreePageId.INTERNAL),
+				empty, bf.keyField()).getMaxEntries();
+
+		ArrayList<Level> levels = new ArrayList<Level>();
+		// an empty tree still has a root leaf
+		Level level = new Level(numTuples, Math.max(1, numPages(numTuples, maxTuples, maxTuples - maxTuples / 2)),
+				1, BTreePageId.LEAF);
+		levels.add(level);
+		while (level.pages > 1) {
+			int children = level.pages;
+			level = new Level(children, numPages(children, maxEntries + 1, maxEntries / 2 + 1),
+					level.start + level.pages, BTreePageId.INTERNAL);
+			levels.add(level);
+		}
+		return levels;
+	}
+
+	// the id of the parent of page j of level h
+	private static BTreePageId parentId(ArrayList<Level> levels, int h, int j, BTreePageId rootPtrId) {
+		if (h + 1 == levels.size())
+			return rootPtrId;
+		Level parent = levels.get(h + 1);
+		return parent.id(rootPtrId.getTableId(), parent.pageOf(j));
+	}
+
+	/**
+	 * Write the leaf pages.
+	 * @return a temporary file holding the first key of each leaf
+	 */
+	private File writeLeaves(OutputStream out, TupleSource sorted, ArrayList<Level> levels,
+			BTreeFile bf, BTreePageId rootPtrId) throws DbException, IOException {
+		Level leaves = levels.get(0);
+		int tableid = bf.getId();
+		File keys = tempFile("keys");
+		DataOutputStream keysOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(keys)));
+		try {
+			for (int j = 0; j < leaves.pages; j++) {
+				BTreeLeafPage page = new BTreeLeafPage(leaves.id(tableid, j),
+						BTreePage.createEmptyPageData(), bf.keyField());
+				page.setParentId(parentId(levels, 0, j, rootPtrId));
+				if (j > 0)
+					page.setLeftSiblingId(leaves.id(tableid, j - 1));
+				if (j < leaves.pages - 1)
+					page.setRightSiblingId(leaves.id(tableid, j + 1));
+				for (int i = 0; i < leaves.count(j); i++) {
+					Tuple t = sorted.next();
+					if (i == 0)
+						t.getField(bf.keyField()).serialize(keysOut);
+					page.insertTuple(t);
+				}
+				out.write(page.getPageData());
+			}
+		} finally {
+			keysOut.close();
+			sorted.close();
+		}
+		return keys;
+	}
+
+	/**
+	 * Write the internal pages of level h, given the first keys of the pages
+	 * of the level below.
+	 * @return a temporary file holding the first key of each page written
+	 */
+	private File writeInternalLevel(OutputStream out, File childKeys, ArrayList<Level> levels, int h,
+			BTreeFile bf, BTreePageId rootPtrId) throws DbException, IOException {
+		Level level = levels.get(h);
+		Level children = levels.get(h - 1);
+		int tableid = bf.getId();
+		Type keyType = bf.getTupleDesc().getFieldType(bf.keyField());
+		File keys = tempFile("keys");
+		DataInputStream keysIn = new DataInputStream(new BufferedInputStream(new FileInputStream(childKeys)));
+		DataOutputStream keysOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(keys)));
+		try {
+			int child = 0;
+			for (int j = 0; j < level.pages; j++) {
+				BTreeInternalPage page = new BTreeInternalPage(level.id(tableid, j),
+						BTreePage.createEmptyPageData(), bf.keyField());
+				page.setParentId(parentId(levels, h, j, rootPtrId));
+				// the first key of the first child separates this page from
+				// its left sibling, so it moves up a level
+				parseKey(keyType, keysIn).serialize(keysOut);
+				BTreePageId left = children.id(tableid, child++);
+				for (int i = 1; i < level.count(j); i++) {
+					BTreePageId right = children.id(tableid, child++);
+					page.insertEntry(new BTreeEntry(parseKey(keyType, keysIn), left, right));
+					left = right;
+				}
+				out.write(page.getPageData());
+			}
+		} finally {
+			keysIn.close();
+			keysOut.close();
+			childKeys.delete();
+		}
+		if (h == levels.size() - 1)
+			keys.delete();
+		return keys;
+	}
+
+	private static Field parseKey(Type keyType, DataInputStream in) throws IOException {
+		try {
+			return keyType.parse(in);
+		} catch (ParseException e) {
+			throw new IOException(e);
+		}
+	}
+
+	// copy a tuple, so that the load does not change the record ids of the
+	// source's tuples
+	private static Tuple copy(Tuple t, TupleDesc td) {
+		Tuple c = new Tuple(td);
+		for (int i = 0; i < td.numFields(); i++)
+			c.setField(i, t.getField(i));
+		return c;
+	}
+
+	private static File tempFile(String prefix) throws IOException {
+		File f = File.createTempFile(prefix, ".tmp");
+		f.deleteOnExit();
+		return f;
+	}
+
+	// sort the tuples and write them to a new run file
+	private static File writeRun(ArrayList<Tuple> run, Comparator<Tuple> cmp) throws IOException {
+		Collections.sort(run, cmp);
+		return writeRun(new ListSource(run));
+	}
+
+	// write the tuples of a sorted source to a new run file
+	private static File writeRun(TupleSource src) throws IOException {
+		File f = tempFile("run");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)));
+		try {
+			Tuple t;
+			while ((t = src.next()) != null) {
+				for (int i = 0; i < t.getTupleDesc().numFields(); i++)
+					t.getField(i).serialize(out);
+			}
+		} finally {
+			out.close();
+			src.close();
+		}
+		return f;
+	}
+
+	/**
+	 * The number of items on each page of one level of the tree, spread as
+	 * evenly as possible.
+	 */
+	private static class Level {
+		final int items;
+		final int pages;
+		final int start; // the page number of the first page
+		final int categ;
+
+		Level(int items, int pages, int start, int categ) {
+			this.items = items;
+			this.pages = pages;
+			this.start = start;
+			this.categ = categ;
+		}
+
+		// the number of items on page j
+		int count(int j) {
+			return items / pages + (j < items % pages ? 1 : 0);
+		}
+
+		// the page holding item i
+		int pageOf(int i) {
+			int base = items / pages;
+			int big = (items % pages) * (base + 1); // items on pages holding base + 1
+			return i < big ? i / (base + 1) : items % pages + (i - big) / base;
+		}
+
+		BTreePageId id(int tableid, int j) {
+			return new BTreePageId(tableid, start + j, categ);
+		}
+	}
+
+	/** A sorted stream of tuples. */
+	private interface TupleSource extends Closeable {
+		/** @return the next tuple, or null if there are no more */
+		Tuple next() throws IOException;
+	}
+
+	private static class ListSource implements TupleSource {
+		private final Iterator<Tuple> it;
+
+		ListSource(List<Tuple> tuples) {
+			it = tuples.iterator();
+		}
+
+		public Tuple next() {
+			return it.hasNext() ? it.next() : null;
+		}
+
+		public void close() {
+		}
+	}
+
+	private static class RunSource implements TupleSource {
+		private final DataInputStream in;
+		private final TupleDesc td;
+
+		RunSource(File f, TupleDesc td) throws IOException {
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+			this.td = td;
+		}
+
+		public Tuple next() throws IOException {
+			Tuple t = new Tuple(td);
+			for (int i = 0; i < td.numFields(); i++) {
+				if (i == 0) {
+					in.mark(1);
+					if (in.read() < 0)
+						return null;
+					in.reset();
+				}
+				t.setField(i, parseKey(td.getFieldType(i), in));
+			}
+			return t;
+		}
+
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+	// merges sorted runs; ties go to the earlier run, which keeps the sort stable
+	private static class MergeSource implements TupleSource {
+		private final RunSource[] runs;
+		private final PriorityQueue<Head> heads;
+
+		// the next tuple of a run
+		private static class Head {
+			final Tuple t;
+			final int run;
+
+			Head(Tuple t, int run) {
+				this.t = t;
+				this.run = run;
+			}
+		}
+
+		MergeSource(List<File> files, TupleDesc td, final Comparator<Tuple> cmp) throws IOException {
+			runs = new RunSource[files.size()];
+			heads = new PriorityQueue<Head>(Math.max(1, files.size()), new Comparator<Head>() {
+				public int compare(Head a, Head b) {
+					int c = cmp.compare(a.t, b.t);
+					return c != 0 ? c : Integer.compare(a.run, b.run);
+				}
+			});
+			for (int i = 0; i < runs.length; i++) {
+				runs[i] = new RunSource(files.get(i), td);
+				advance(i);
+			}
+		}
+
+		private void advance(int i) throws IOException {
+			Tuple t = runs[i].next();
+			if (t != null)
+				heads.add(new Head(t, i));
+		}
+
+		public Tuple next() throws IOException {
+			Head head = heads.poll();
+			if (head == null)
+				return null;
+			advance(head.run);
+			return head.t;
+		}
+
+		public void close() throws IOException {
+			for (RunSource r : runs)
+				r.close();
+		}
+	}
+}
@@ -19,12 +19,43 @@ import simpledb.Predicate.Op;
  * @see simpledb.BTreeHeaderPage#BTreeHeaderPage
  * @see simpledb.BTreeRootPtrPage#BTreeRootPtrPage
  */
-public class BTreeFile implements DbFile {
+public class BTreeFile implements DbFile, TransactionListener {
 
     private final File f;
     private final TupleDesc td;
     private final int tableid;
     private int keyField;
+    private final int[] keyFields;
+
+    // the file grows by this many pages at a time, filled with EXTENT_FILL
+    // until they are used
+    static final int EXTENT_PAGES = 16;
+    private static final byte EXTENT_FILL = (byte) 0xff;
+
+    // the number of leaf pages a scan reads ahead of the page it is on
+    static final int PREFETCH_LEAVES = 8;
+
+    // page allocation state, guarded by this: the number of pages in use,
+    // or -1 until it is first needed, the free pages, or null until the first
+    // allocation, those of them that still hold EXTENT_FILL on disk, which
+    // the header pages may not record as free, the pages allocated by each
+    // transaction that has not completed, and the file the empty pages are
+    // written through
+    private int usedPages = -1;
+    private BitSet freePages = null;
+    private BitSet unusedPages = null;
+    private final HashMap<TransactionId, ArrayList<Integer>> allocatedPages =
+            new HashMap<TransactionId, ArrayList<Integer>>();
+    private RandomAccessFile allocFile = null;
+
+    // the occupancy below which a page is rebalanced as soon as a deletion leaves it
+    // there, as a fraction of its capacity, and the pages left between it and half full,
+    // whose rebalancing is deferred to rebalance(), and the deferred pages rebalanced or
+    // freed by each transaction that has not completed, guarded by this
+    private double minOccupancy = 0.5;
+    private final LinkedHashSet<BTreePageId> deferredPages = new LinkedHashSet<BTreePageId>();
+    private final HashMap<TransactionId, ArrayList<BTreePageId>> undeferredPages =
+            new HashMap<TransactionId, ArrayList<BTreePageId>>();
 
     /**
      * Constructs a B+ tree file backed by the specified file.
@@ -35,9 +66,28 @@ public class BTreeFile implements DbFile {
      * @param td  - the tuple descriptor of tuples in the file
      */
     public BTreeFile(File f, int key, TupleDesc td) {
+        this(f, new int[] { key }, td);
+    }
+
+    /**
+     * Constructs a B+ tree file keyed on several fields.  Its keys are
+     * {@link CompositeField}s, ordered lexicographically: by the first key
+     * field, then by the second, and so on.  It can be searched by a
+     * composite key, or by a prefix of one: a CompositeField holding the
+     * first few key fields, or a single Field standing for the first.
+     *
+     * @param f    - the file that stores the on-disk backing store for this B+ tree
+     *             file.
+     * @param keys - the fields which index is keyed on, in order
+     * @param td   - the tuple descriptor of tuples in the file
+     */
+    public BTreeFile(File f, int[] keys, TupleDesc td) {
+        if (keys.length == 0)
+            throw new IllegalArgumentException("a B+ tree needs a key field");
         this.f = f;
         this.tableid = f.getAbsoluteFile().hashCode();
-        this.keyField = key;
+        this.keyField = keys[0];
+        this.keyFields = keys.clone();
         this.td = td;
     }
 
@@ -70,6 +120,41 @@ public class BTreeFile implements DbFile {
         return td;
     }
 
+    /**
+     * Set the occupancy below which a deletion rebalances a page right away.  The default,
+     * one half, rebalances every page that drops below half full.  A lower occupancy
+     * leaves the pages between it and half full as they are, so that a page emptied and
+     * refilled by alternating deletions and insertions is not merged and split over and
+     * over; they are recorded, and rebalanced in a batch by {@link #rebalance(TransactionId)}.
+     *
+     * @param minOccupancy - the minimum occupancy, as a fraction of the capacity of a page,
+     *                     greater than 0 and at most one half
+     */
+    public void setMinOccupancy(double minOccupancy) {
+        if (!(minOccupancy > 0 && minOccupancy <= 0.5))
+            throw new IllegalArgumentException("the minimum occupancy must be greater than 0 and at most 0.5");
+        synchronized (this) {
+            this.minOccupancy = minOccupancy;
+        }
+    }
+
+    /**
+     * @return the occupancy below which a deletion rebalances a page right away, as a
+     * fraction of the capacity of a page
+     * @see #setMinOccupancy(double)
+     */
+    public synchronized double getMinOccupancy() {
+        return minOccupancy;
+    }
+
+    /**
+     * @return the number of pages whose rebalancing is deferred until the next
+     * {@link #rebalance(TransactionId)}
+     */
+    public synchronized int numDeferredPages() {
+        return deferredPages.size();
+    }
+
     /**
      * Read a page from the file on disk. This should not be called directly
      * but should be called from the BufferPool via getPage()
@@ -112,11 +197,15 @@ public class BTreeFile implements DbFile {
                             + BufferPool.getPageSize() + " bytes from BTreeFile");
                 }
                 Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
+                // a page allocated by a transaction that has not committed is
+                // still unused on disk
+                if (Arrays.equals(pageBuf, unusedPageData()))
+                    pageBuf = BTreePage.createEmptyPageData();
                 if (id.pgcateg() == BTreePageId.INTERNAL) {
-                    BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyField);
+                    BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyFields);
                     return p;
                 } else if (id.pgcateg() == BTreePageId.LEAF) {
-                    BTreeLeafPage p = new BTreeLeafPage(id, pageBuf, keyField);
+                    BTreeLeafPage p = new BTreeLeafPage(id, pageBuf, keyFields);
                     return p;
                 } else { // id.pgcateg() == BTreePageId.HEADER
                     BTreeHeaderPage p = new BTreeHeaderPage(id, pageBuf);
@@ -154,85 +243,274 @@ public class BTreeFile implements DbFile {
             rf.seek(BTreeRootPtrPage.getPageSize() + (page.getId().getPageNumber() - 1) * BufferPool.getPageSize());
             rf.write(data);
             rf.close();
+            synchronized (this) {
+                // pages written past the end, as by BTreeFileEncoder, are in use
+                if (usedPages >= 0 && id.getPageNumber() > usedPages)
+                    usedPages = id.getPageNumber();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of pages in this BTreeFile.  The file grows by whole
+     * extents, so the unused pages at its end are not counted.
+     */
+    public synchronized int numPages() {
+        if (usedPages < 0) {
+            if (f.length() == 0)
+                return 0;
+            try {
+                usedPages = countUsedPages();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
         }
+        return usedPages;
     }
 
     /**
-     * Returns the number of pages in this BTreeFile.
+     * @return the number of pages the file holds on disk, not counting the
+     * root pointer page
      */
-    public int numPages() {
+    private int filePages() {
         // we only ever write full pages
         return (int) ((f.length() - BTreeRootPtrPage.getPageSize()) / BufferPool.getPageSize());
     }
 
     /**
-     * Returns the index of the field that this B+ tree is keyed on
+     * Count the pages in use when the file is opened: the pages of the last
+     * extent the file grew by that were never used are still filled with
+     * EXTENT_FILL, which no page written by this class consists of.  A page
+     * keeps EXTENT_FILL until a transaction that allocated it commits.
+     */
+    private int countUsedPages() throws IOException {
+        RandomAccessFile rf = allocFile();
+        int pages = filePages();
+        byte[] data = new byte[BufferPool.getPageSize()];
+        byte[] unused = unusedPageData();
+        while (pages > 0) {
+            rf.seek(BTreeRootPtrPage.getPageSize() + (long) (pages - 1) * BufferPool.getPageSize());
+            rf.readFully(data);
+            if (!Arrays.equals(data, unused))
+                break;
+            pages--;
+        }
+        return pages;
+    }
+
+    /**
+     * @return the contents of a page of an extent that is not used yet
+     */
+    private static byte[] unusedPageData() {
+        byte[] data = new byte[BufferPool.getPageSize()];
+        Arrays.fill(data, EXTENT_FILL);
+        return data;
+    }
+
+    /**
+     * @return the file that empty pages are written through, opened once
+     */
+    private synchronized RandomAccessFile allocFile() throws IOException {
+        if (allocFile == null)
+            allocFile = new RandomAccessFile(f, "rw");
+        return allocFile;
+    }
+
+    /**
+     * Returns the index of the field that this B+ tree is keyed on, or of the first key
+     * field if it is keyed on several
      */
     public int keyField() {
         return keyField;
     }
 
-    private Permissions init = null;
+    /**
+     * Returns the indexes of the fields that this B+ tree is keyed on, in order
+     */
+    public int[] keyFields() {
+        return keyFields.clone();
+    }
+
+    /**
+     * Returns the key of a tuple of this B+ tree: its key field, or the CompositeField of
+     * its key fields if the B+ tree is keyed on several
+     *
+     * @param t - a tuple with the TupleDesc of this file
+     * @return the key of t
+     */
+    public Field getKey(Tuple t) {
+        if (keyFields.length == 1)
+            return t.getField(keyField);
+        return CompositeField.of(t, keyFields);
+    }
 
     /**
      * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
-     * the left-most page possibly containing the key field f. It locks all internal
-     * nodes along the path to the leaf node with READ_ONLY permission, and locks the
-     * leaf node with permission perm.
+     * the left-most page possibly containing the key field f. It locks the leaf node with
+     * permission perm.
+     * <p>
+     * The internal nodes along the path are only latched: they are locked with READ_ONLY
+     * permission long enough to read the pointer to the next node, and the lock is released
+     * as soon as that node is locked ("latch crabbing"). Pages the transaction had already
+     * locked before the descent stay locked. Holding no locks on internal nodes until commit
+     * lets other transactions split them; a transaction that has to split a page here locks
+     * the ancestors it modifies with READ_WRITE permission, from the bottom up, following the
+     * parent pointers, which cannot change while it holds the lock on the child.
      * <p>
      * If f is null, it finds the left-most leaf page -- used for the iterator
+     * <p>
+     * If last is set, it finds the right-most page possibly containing f instead, or the
+     * right-most leaf page if f is null -- used by the reverse iterators
      *
      * @param tid        - the transaction id
      * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
      * @param pid        - the current page being searched
      * @param perm       - the permissions with which to lock the leaf page
      * @param f          - the field to search for
+     * @param latched    - the page that points to pid, if it is only latched, or null. Its
+     *                   latch is released once pid is locked
+     * @param last       - whether to find the right-most page instead of the left-most one
      * @return the left-most leaf page possibly containing the key field f
      */
     private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
-                                       Field f)
+                                       Field f, PageId latched, boolean last)
             throws DbException, TransactionAbortedException {
-        // some code goes here
-        if (init == null) {
-            init = perm;
-        }
-        if (pid.pgcateg() == BTreePageId.LEAF) {
+        return findLeafPage(tid, dirtypages, pid, perm, f, latched, last, null);
+    }
 
-            BTreeLeafPage tmp = (BTreeLeafPage) getPage(tid, dirtypages, pid, init);
-            init = null;
-            return tmp;
+    /**
+     * As findLeafPage above, searching for the left-most leaf page, and also
+     * finding the separator that bounds the keys of that leaf from above
+     *
+     * @param bound - if not null, its element 0 is set to the key of the entry
+     *              right of the path to the leaf page, the largest key the leaf
+     *              page may hold, and left unchanged if the path is the
+     *              right-most one, which bounds no key
+     */
+    private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
+                                       Field f, PageId latched, boolean last, Field[] bound)
+            throws DbException, TransactionAbortedException {
+        if (pid.pgcateg() == BTreePageId.LEAF) {
+            BTreeLeafPage leaf = (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
+            unlatch(tid, dirtypages, latched);
+            return leaf;
         }
-        BTreeInternalPageIterator iterator = new BTreeInternalPageIterator((BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY));
-        while (iterator.hasNext()) {
-            BTreeEntry bte = iterator.next();
-            if (f == null) {
-                return findLeafPage(tid, dirtypages, bte.getLeftChild(), Permissions.READ_ONLY, null);
-            } else {
-                if (f.compare(Op.LESS_THAN_OR_EQ, bte.getKey())) {
-                    return findLeafPage(tid, dirtypages, bte.getLeftChild(), Permissions.READ_ONLY, f);
-                } else if (!iterator.hasNext()) {
-                    return findLeafPage(tid, dirtypages, bte.getRightChild(), Permissions.READ_ONLY, f);
-                }
-            }
+        boolean latch = canLatch(tid, dirtypages, pid);
+        BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+        unlatch(tid, dirtypages, latched);
+        BTreePageId child = last ? page.findLastChild(f) : page.findChild(f);
+        if (child == null) {
+            unlatch(tid, dirtypages, latch ? pid : null);
+            return null;
         }
-        return null;
+        if (bound != null && page.findChildBound(f) != null)
+            bound[0] = page.findChildBound(f);
+        return findLeafPage(tid, dirtypages, child, perm, f, latch ? pid : null, last, bound);
     }
 
     /**
      * Convenience method to find a leaf page when there is no dirtypages HashMap.
+     * Starts at the root pointer page, which is latched like the internal pages.
      * Used by the BTreeFile iterator.
      *
      * @param tid  - the transaction id
-     * @param pid  - the current page being searched
      * @param perm - the permissions with which to lock the leaf page
      * @param f    - the field to search for
      * @return the left-most leaf page possibly containing the key field f
-     * @see #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field)
+     * @see #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field, PageId, boolean)
+     */
+    BTreeLeafPage findLeafPage(TransactionId tid, Permissions perm, Field f)
+            throws DbException, TransactionAbortedException {
+        return findLeafPage(tid, perm, f, false);
+    }
+
+    /**
+     * Convenience method to find the left-most or the right-most leaf page possibly containing
+     * a key when there is no dirtypages HashMap.
+     *
+     * @param tid  - the transaction id
+     * @param perm - the permissions with which to lock the leaf page
+     * @param f    - the field to search for
+     * @param last - whether to find the right-most page instead of the left-most one
+     * @return the left-most or right-most leaf page possibly containing the key field f
+     * @see #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field, PageId, boolean)
+     */
+    BTreeLeafPage findLeafPage(TransactionId tid, Permissions perm, Field f, boolean last)
+            throws DbException, TransactionAbortedException {
+        HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+        BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+        boolean latch = canLatch(tid, dirtypages, rootPtrId);
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_ONLY);
+        return findLeafPage(tid, dirtypages, rootPtr.getRootId(), perm, f, latch ? rootPtrId : null, last);
+    }
+
+    /**
+     * Estimate the fraction of the tuples of this file whose key is less than a given
+     * key, or at most the key if inclusive is set, from the structure of the tree alone.
+     * The estimate descends from the root to the leaf page where the key falls, as
+     * findLeafPage does, taking each child of an internal page to hold an equal share of
+     * the tuples below the page, and counts the tuples before the key on the leaf page.
+     * It reads one page per level, and holds no lock on them once it returns.
+     *
+     * @param tid       - the transaction id
+     * @param key       - the key to place
+     * @param inclusive - whether to count the tuples equal to the key as well
+     * @return the estimated fraction of the tuples that come before the key, from 0 to 1
      */
-    BTreeLeafPage findLeafPage(TransactionId tid, BTreePageId pid, Permissions perm,
-                               Field f)
+    public double estimateKeyPosition(TransactionId tid, Field key, boolean inclusive)
             throws DbException, TransactionAbortedException {
-        return findLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f);
+        HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+        BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+        boolean latch = canLatch(tid, dirtypages, rootPtrId);
+        BTreePageId pid = ((BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_ONLY)).getRootId();
+        unlatch(tid, dirtypages, latch ? rootPtrId : null);
+
+        double position = 0.0;
+        double share = 1.0;
+        while (pid != null && pid.pgcateg() == BTreePageId.INTERNAL) {
+            // the page is read in full before its latch is released, so that
+            // no writer changes it in the meantime
+            BTreePageId current = pid;
+            latch = canLatch(tid, dirtypages, current);
+            BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, current, Permissions.READ_ONLY);
+            int children = page.getNumEntries() + 1;
+            position += share * page.findChildIndex(key, inclusive) / children;
+            share /= children;
+            pid = inclusive ? page.findLastChild(key) : page.findChild(key);
+            unlatch(tid, dirtypages, latch ? current : null);
+        }
+        if (pid != null) {
+            latch = canLatch(tid, dirtypages, pid);
+            BTreeLeafPage leaf = (BTreeLeafPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+            int before = 0, tuples = 0;
+            Iterator<Tuple> it = leaf.iterator();
+            while (it.hasNext()) {
+                tuples++;
+                if (getKey(it.next()).compare(inclusive ? Op.LESS_THAN_OR_EQ : Op.LESS_THAN, key))
+                    before++;
+            }
+            unlatch(tid, dirtypages, latch ? pid : null);
+            if (tuples > 0)
+                position += share * before / tuples;
+        }
+        return Math.min(1.0, position);
+    }
+
+    /**
+     * @return true if the transaction holds no lock on the page yet, so that the lock taken
+     * to pass through it may be released again
+     */
+    private boolean canLatch(TransactionId tid, HashMap<PageId, Page> dirtypages, PageId pid) {
+        return !dirtypages.containsKey(pid) && !Database.getBufferPool().holdsLock(tid, pid);
+    }
+
+    /**
+     * Release the latch on a page, unless the page has been locked for writing since.
+     */
+    private void unlatch(TransactionId tid, HashMap<PageId, Page> dirtypages, PageId pid) {
+        if (pid != null && !dirtypages.containsKey(pid)) {
+            Database.getBufferPool().releasePage(tid, pid);
+        }
     }
 
     /**
@@ -290,14 +568,18 @@ public class BTreeFile implements DbFile {
 
         BTreeLeafPageReverseIterator iterator2 = new BTreeLeafPageReverseIterator(newPage);
         first = iterator2.next();
-        if (first.getField(keyField).compare(Op.GREATER_THAN_OR_EQ, field)) {
+        Field separator = separator(getKey(first), getKey(page.iterator().next()));
+        if (separator.compare(Op.GREATER_THAN_OR_EQ, field)) {
             out = newPage;
         } else {
             out = page;
         }
 
-        BTreeInternalPage parePage = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), first.getField(keyField));
-        BTreeEntry entry = new BTreeEntry(first.getField(keyField), newPage.getId(), page.getId());
+        getParentWithEmptySlots(tid, dirtypages, page.getParentId(), separator);
+        // the separators on either side of the parent's split may equal the new one, so
+        // follow the parent pointer to find the half that now holds the page
+        BTreeInternalPage parePage = (BTreeInternalPage) getPage(tid, dirtypages, page.getParentId(), Permissions.READ_WRITE);
+        BTreeEntry entry = new BTreeEntry(separator, newPage.getId(), page.getId());
         parePage.insertEntry(entry);
         dirtypages.put(parePage.getId(), parePage);
         dirtypages.put(newPage.getId(), newPage);
@@ -307,6 +589,29 @@ public class BTreeFile implements DbFile {
         return out;
     }
 
+    /**
+     * Choose the key that separates two leaf pages after a split.  For string keys this is the
+     * shortest prefix of the first key on the right page that is still greater than or equal to
+     * the last key on the left page ("suffix truncation"), which internal pages then store in at
+     * most {@link BTreeInternalPage#SEPARATOR_LEN} characters.  Other keys, including composite
+     * keys, are separated by the last key on the left page.
+     *
+     * @param maxLeft  - the largest key on the left page
+     * @param minRight - the smallest key on the right page
+     * @return the separator key
+     */
+    private static Field separator(Field maxLeft, Field minRight) {
+        if (!(minRight instanceof StringField))
+            return maxLeft;
+        String right = ((StringField) minRight).getValue();
+        for (int len = 0; len < right.length(); len++) {
+            Field prefix = new StringField(right.substring(0, len), Type.STRING_LEN);
+            if (prefix.compare(Op.GREATER_THAN_OR_EQ, maxLeft))
+                return prefix;
+        }
+        return minRight;
+    }
+
     /**
      * Split an internal page to make room for new entries and recursively split its parent page
      * as needed to accommodate a new entry. The new entry for the parent should have a key matching
@@ -358,7 +663,8 @@ public class BTreeFile implements DbFile {
 
         BTreeInternalPageReverseIterator iterator2 = new BTreeInternalPageReverseIterator(newPage);
         BTreeEntry first = iterator2.next();
-        BTreeInternalPage parePage = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), first.getKey());
+        getParentWithEmptySlots(tid, dirtypages, page.getParentId(), first.getKey());
+        BTreeInternalPage parePage = (BTreeInternalPage) getPage(tid, dirtypages, page.getParentId(), Permissions.READ_WRITE);
         dirtypages.put(parePage.getId(), parePage);
         dirtypages.put(newPage.getId(), newPage);
         dirtypages.put(page.getId(), page);
@@ -476,6 +782,18 @@ public class BTreeFile implements DbFile {
         }
     }
 
+    /**
+     * Find the right-most child of an internal page.  The first child is always in slot 0;
+     * a page whose entries a range deletion removed keeps its only child there.
+     *
+     * @param page - the internal page
+     * @return the id of the right-most child of the page
+     */
+    private static BTreePageId lastChild(BTreeInternalPage page) {
+        Iterator<BTreeEntry> it = page.reverseIterator();
+        return it.hasNext() ? it.next().getRightChild() : page.getChildId(0);
+    }
+
     /**
      * Method to encapsulate the process of locking/fetching a page.  First the method checks the local
      * cache ("dirtypages"), and if it can't find the requested page there, it fetches it from the buffer pool.
@@ -522,21 +840,12 @@ public class BTreeFile implements DbFile {
             throws DbException, IOException, TransactionAbortedException {
         HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
 
-        // get a read lock on the root pointer page and use it to locate the root page
-        BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-        BTreePageId rootId = rootPtr.getRootId();
-
-        if (rootId == null) { // the root has just been created, so set the root pointer to point to it
-            rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-            rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-            rootPtr.setRootId(rootId);
-        }
-
         // find and lock the left-most leaf page corresponding to the key field,
         // and split the leaf page if there are no more slots available
-        BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+        Field key = getKey(t);
+        BTreeLeafPage leafPage = findInsertLeafPage(tid, dirtypages, key, null);
         if (leafPage.getNumEmptySlots() == 0) {
-            leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));
+            leafPage = splitLeafPage(tid, dirtypages, leafPage, key);
         }
 
         // insert the tuple into the leaf page
@@ -547,6 +856,107 @@ public class BTreeFile implements DbFile {
         return dirtyPagesArr;
     }
 
+    /**
+     * Insert a batch of tuples into this BTreeFile.  The tuples are sorted by key
+     * and inserted leaf by leaf: after a descent from the root to the leaf page
+     * of a tuple, the tuples after it that belong in the same leaf page are
+     * inserted too, as long as it has empty slots.  A full leaf page is split once,
+     * and the descent repeated for the tuples that did not fit.
+     *
+     * @param tid    - the transaction id
+     * @param tuples - the tuples to insert
+     * @return a list of all pages that were dirtied by this operation
+     * @see #insertTuple(TransactionId, Tuple)
+     */
+    public ArrayList<Page> insertTuples(TransactionId tid, List<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException {
+        HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+        ArrayList<Tuple> sorted = new ArrayList<Tuple>(tuples);
+        Collections.sort(sorted, new Comparator<Tuple>() {
+            public int compare(Tuple t1, Tuple t2) {
+                Field k1 = getKey(t1), k2 = getKey(t2);
+                if (k1.compare(Op.LESS_THAN, k2))
+                    return -1;
+                return k1.compare(Op.GREATER_THAN, k2) ? 1 : 0;
+            }
+        });
+
+        int i = 0;
+        while (i < sorted.size()) {
+            Field key = getKey(sorted.get(i));
+            Field[] bound = new Field[1];
+            BTreeLeafPage leafPage = findInsertLeafPage(tid, dirtypages, key, bound);
+            if (leafPage.getNumEmptySlots() == 0) {
+                splitLeafPage(tid, dirtypages, leafPage, key);
+                continue;
+            }
+            // a long string key may have been placed right of the page its
+            // separators lead to, so the bound does not apply to it
+            boolean sameLeaf = !isLongKey(key);
+            do {
+                leafPage.insertTuple(sorted.get(i++));
+            } while (sameLeaf && i < sorted.size() && leafPage.getNumEmptySlots() > 0
+                    && !isLongKey(getKey(sorted.get(i)))
+                    && (bound[0] == null || getKey(sorted.get(i)).compare(Op.LESS_THAN_OR_EQ, bound[0])));
+        }
+
+        ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
+        dirtyPagesArr.addAll(dirtypages.values());
+        return dirtyPagesArr;
+    }
+
+    /**
+     * @return true if the key is a string longer than the separators of internal
+     * pages, which route it by a prefix
+     */
+    private static boolean isLongKey(Field key) {
+        return key instanceof StringField
+                && ((StringField) key).getValue().length() > BTreeInternalPage.SEPARATOR_LEN;
+    }
+
+    /**
+     * Find and lock the leaf page a tuple with the given key is inserted into,
+     * creating the root page of an empty tree.
+     *
+     * @param tid        - the transaction id
+     * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+     * @param key        - the key of the tuple to insert
+     * @param bound      - if not null, its element 0 is set to the largest key the
+     *                   leaf page may hold, or null if it has no upper bound
+     * @return the leaf page, locked with READ_WRITE permission
+     */
+    private BTreeLeafPage findInsertLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, Field key,
+                                             Field[] bound)
+            throws DbException, IOException, TransactionAbortedException {
+        // latch the root pointer page and use it to locate the root page
+        BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+        boolean latch = canLatch(tid, dirtypages, rootPtrId);
+        BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
+        BTreePageId rootId = rootPtr.getRootId();
+
+        if (rootId == null) { // the root has just been created, so set the root pointer to point to it
+            rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
+            rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+            rootPtr.setRootId(rootId);
+        }
+
+        BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, key,
+                latch ? rootPtrId : null, false, bound);
+        // internal pages route long string keys by a prefix, so the tuple may belong in a
+        // page to the right of the one the separators lead to
+        if (isLongKey(key)) {
+            while (leafPage.getRightSiblingId() != null) {
+                BTreeLeafPage right = (BTreeLeafPage) getPage(tid, dirtypages, leafPage.getRightSiblingId(),
+                        Permissions.READ_WRITE);
+                Iterator<Tuple> it = right.iterator();
+                if (!it.hasNext() || !getKey(it.next()).compare(Op.LESS_THAN, key))
+                    break;
+                leafPage = right;
+            }
+        }
+        return leafPage;
+    }
+
     /**
      * Handle the case when a B+ tree page becomes less than half full due to deletions.
      * If one of its siblings has extra tuples/entries, redistribute those tuples/entries.
@@ -678,7 +1088,8 @@ public class BTreeFile implements DbFile {
             sibling.deleteTuple(tuple);
             page.insertTuple(tuple);
         }
-        entry.setKey(list.get(list.size() - 1).getField(keyField));
+        entry.setKey(getKey(list.get(list.size() - 1)));
+        parent.updateEntry(entry);
     }
 
     /**
@@ -759,9 +1170,7 @@ public class BTreeFile implements DbFile {
         for (int i = 0; i < need_move; i++) {
             BTreeInternalPageReverseIterator iterator = new BTreeInternalPageReverseIterator(leftSibling);
             BTreeEntry now = iterator.next();
-            BTreeInternalPageIterator iterator2 = new BTreeInternalPageIterator(page);
-            BTreeEntry right = iterator2.next();
-            BTreeEntry need_insert = new BTreeEntry(parentEntry.getKey(), now.getRightChild(), right.getLeftChild());
+            BTreeEntry need_insert = new BTreeEntry(parentEntry.getKey(), now.getRightChild(), page.getChildId(0));
             page.insertEntry(need_insert);
             parentEntry.setKey(now.getKey());
             parent.updateEntry(parentEntry);
@@ -803,9 +1212,7 @@ public class BTreeFile implements DbFile {
         for (int i = 0; i < need_move; i++) {
             BTreeInternalPageIterator iterator = new BTreeInternalPageIterator(rightSibling);
             BTreeEntry now = iterator.next();
-            BTreeInternalPageReverseIterator iterator2 = new BTreeInternalPageReverseIterator(page);
-            BTreeEntry left = iterator2.next();
-            BTreeEntry need_insert = new BTreeEntry(parentEntry.getKey(), left.getRightChild(), now.getLeftChild());
+            BTreeEntry need_insert = new BTreeEntry(parentEntry.getKey(), lastChild(page), now.getLeftChild());
             parentEntry.setKey(now.getKey());
             page.insertEntry(need_insert);
             parent.updateEntry(parentEntry);
@@ -942,7 +1349,6 @@ public class BTreeFile implements DbFile {
         // the parent is below minimum occupancy, get some tuples from its siblings
         // or merge with one of the siblings
         parent.deleteKeyAndRightChild(parentEntry);
-        int maxEmptySlots = parent.getMaxEntries() - parent.getMaxEntries() / 2; // ceiling
         if (parent.getNumEmptySlots() == parent.getMaxEntries()) {
             // This was the last entry in the parent.
             // In this case, the parent (root node) should be deleted, and the merged
@@ -957,11 +1363,118 @@ public class BTreeFile implements DbFile {
 
             // release the parent page for reuse
             setEmptyPage(tid, dirtypages, parent.getId().getPageNumber());
-        } else if (parent.getNumEmptySlots() > maxEmptySlots) {
+        } else if (isBelowMinOccupancy(parent)) {
             handleMinOccupancyPage(tid, dirtypages, parent);
         }
     }
 
+    /**
+     * Decide whether a page that a deletion left less than half full must be rebalanced
+     * right away, because it is below the minimum occupancy.  A non-root page between the
+     * minimum occupancy and half full is recorded for {@link #rebalance(TransactionId)}
+     * instead.  A page is never left empty, or internal and without entries.
+     *
+     * @param page - the page a tuple or entry was deleted from
+     * @return whether the page is below the minimum occupancy
+     * @see #setMinOccupancy(double)
+     */
+    private boolean isBelowMinOccupancy(BTreePage page) {
+        int max = page instanceof BTreeLeafPage ? ((BTreeLeafPage) page).getMaxTuples()
+                : ((BTreeInternalPage) page).getMaxEntries();
+        int used = max - page.getNumEmptySlots();
+        if (used >= max / 2)
+            return false;
+        synchronized (this) {
+            if (used < Math.max(1, (int) (max * minOccupancy)))
+                return true;
+            if (page.getParentId().pgcateg() != BTreePageId.ROOT_PTR)
+                deferredPages.add(page.getId());
+        }
+        return false;
+    }
+
+    /**
+     * Rebalance the pages that deletions left less than half full but not below the
+     * minimum occupancy, merging them with a sibling or stealing from one as a deletion
+     * below the minimum occupancy does.  Pages since refilled, freed, or made the root are
+     * skipped.  Merges may leave parents less than half full, and they are rebalanced too,
+     * so that afterwards every page is at least half full.  If the rebalance fails, because
+     * the transaction is aborted or otherwise, or the transaction aborts later, the pages
+     * are recorded again, for the next rebalance.
+     *
+     * @param tid - the transaction id
+     * @return a list of all pages that were dirtied by this operation
+     * @throws DbException
+     * @throws IOException
+     * @throws TransactionAbortedException
+     * @see #setMinOccupancy(double)
+     */
+    public ArrayList<Page> rebalance(TransactionId tid)
+            throws DbException, IOException, TransactionAbortedException {
+        HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+        ArrayList<BTreePageId> done = new ArrayList<BTreePageId>();
+        boolean rebalanced = false;
+        try {
+            while (true) {
+                BTreePageId pid;
+                synchronized (this) {
+                    Iterator<BTreePageId> it = deferredPages.iterator();
+                    if (!it.hasNext())
+                        break;
+                    pid = it.next();
+                    it.remove();
+                }
+                done.add(pid);
+                if (!isPageInUse(tid, dirtypages, pid.getPageNumber()))
+                    continue;
+                BTreePage page = (BTreePage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+                int max = page instanceof BTreeLeafPage ? ((BTreeLeafPage) page).getMaxTuples()
+                        : ((BTreeInternalPage) page).getMaxEntries();
+                if (page.getParentId().pgcateg() == BTreePageId.ROOT_PTR
+                        || max - page.getNumEmptySlots() >= max / 2)
+                    continue;
+                page = (BTreePage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+                handleMinOccupancyPage(tid, dirtypages, page);
+            }
+            rebalanced = true;
+        } finally {
+            synchronized (this) {
+                if (!rebalanced)
+                    deferredPages.addAll(done);
+                else
+                    for (BTreePageId pid : done)
+                        undeferred(tid, pid);
+            }
+        }
+
+        ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
+        dirtyPagesArr.addAll(dirtypages.values());
+        return dirtyPagesArr;
+    }
+
+    /**
+     * @param tid        - the transaction id
+     * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+     * @param pageNo     - the number of a page
+     * @return whether the page is in use by the tree, according to the header pages
+     * @throws DbException
+     * @throws IOException
+     * @throws TransactionAbortedException
+     */
+    private boolean isPageInUse(TransactionId tid, HashMap<PageId, Page> dirtypages, int pageNo)
+            throws DbException, IOException, TransactionAbortedException {
+        if (pageNo > numPages())
+            return false;
+        BTreePageId headerId = getRootPtrPage(tid, dirtypages).getHeaderId();
+        for (int i = 0; i < pageNo / BTreeHeaderPage.getNumSlots() && headerId != null; i++) {
+            headerId = ((BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY)).getNextPageId();
+        }
+        if (headerId == null)
+            return true;
+        BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
+        return headerPage.isSlotUsed(pageNo % BTreeHeaderPage.getNumSlots());
+    }
+
     /**
      * Delete a tuple from this BTreeFile.
      * May cause pages to merge or redistribute entries/tuples if the pages
@@ -984,8 +1497,7 @@ public class BTreeFile implements DbFile {
 
         // if the page is below minimum occupancy, get some tuples from its siblings
         // or merge with one of the siblings
-        int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples() / 2; // ceiling
-        if (page.getNumEmptySlots() > maxEmptySlots) {
+        if (isBelowMinOccupancy(page)) {
             handleMinOccupancyPage(tid, dirtypages, page);
         }
 
@@ -995,96 +1507,682 @@ public class BTreeFile implements DbFile {
     }
 
     /**
-     * Get a read lock on the root pointer page. Create the root pointer page and root page
-     * if necessary.
+     * Delete every tuple whose key satisfies a predicate from this BTreeFile.
      *
-     * @param tid        - the transaction id
-     * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
-     * @return the root pointer page
-     * @throws DbException
-     * @throws IOException
-     * @throws TransactionAbortedException
+     * @param tid   - the transaction id
+     * @param ipred - the predicate on the key: EQUALS, or one of the range comparisons
+     * @return a list of all pages that were dirtied by this operation
+     * @see #deleteRange(TransactionId, IndexPredicate, IndexPredicate)
      */
-    BTreeRootPtrPage getRootPtrPage(TransactionId tid, HashMap<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
-        synchronized (this) {
-            if (f.length() == 0) {
-                // create the root pointer page and the root page
-                BufferedOutputStream bw = new BufferedOutputStream(
-                        new FileOutputStream(f, true));
-                byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
-                byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-                bw.write(emptyRootPtrData);
-                bw.write(emptyLeafData);
-                bw.close();
-            }
+    public ArrayList<Page> deleteRange(TransactionId tid, IndexPredicate ipred)
+            throws DbException, IOException, TransactionAbortedException {
+        switch (ipred.getOp()) {
+        case EQUALS:
+        case GREATER_THAN:
+        case GREATER_THAN_OR_EQ:
+            return deleteRange(tid, ipred, null);
+        case LESS_THAN:
+        case LESS_THAN_OR_EQ:
+            return deleteRange(tid, null, ipred);
+        default:
+            throw new IllegalArgumentException("a range deletion cannot answer " + ipred.getOp());
         }
-
-        // get a read lock on the root pointer page
-        return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
     }
 
     /**
-     * Get the page number of the first empty page in this BTreeFile.
-     * Creates a new page if none of the existing pages are empty.
+     * Delete the tuples whose keys lie in a range from this BTreeFile.  Instead of deleting the
+     * tuples one at a time, this descends once through the pages that hold keys both inside
+     * and outside the range.  Subtrees that lie entirely inside the range are unlinked from
+     * their parents as a whole and their pages are freed together at the end; subtrees that
+     * lie outside it are not read.  Only the pages left along the two edges of the range are
+     * rebalanced, each with one of its siblings.  The bounds are interpreted as by
+     * {@link #indexIterator(TransactionId, IndexPredicate, IndexPredicate)}.
      *
-     * @param tid        - the transaction id
-     * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
-     * @return the page number of the first empty page
-     * @throws DbException
-     * @throws IOException
-     * @throws TransactionAbortedException
+     * @param tid   - the transaction id
+     * @param lower - the lower bound: an EQUALS, GREATER_THAN or GREATER_THAN_OR_EQ predicate, or
+     *              null if the range has no lower bound
+     * @param upper - the upper bound: a LESS_THAN or LESS_THAN_OR_EQ predicate, or null if the
+     *              range has no upper bound
+     * @return a list of all pages that were dirtied by this operation. The pages that were freed
+     * are left out, since their contents no longer matter
+     * @see #pruneRange(TransactionId, HashMap, RangeDeletion, BTreePageId, Field, Field)
+     * @see #rebalanceRangeEdge(TransactionId, HashMap, RangeDeletion, BTreePageId)
      */
-    protected int getEmptyPageNo(TransactionId tid, HashMap<PageId, Page> dirtypages)
+    public ArrayList<Page> deleteRange(TransactionId tid, IndexPredicate lower, IndexPredicate upper)
             throws DbException, IOException, TransactionAbortedException {
-        // get a read lock on the root pointer page and use it to locate the first header page
-        BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-        BTreePageId headerId = rootPtr.getHeaderId();
-        int emptyPageNo = 0;
+        if (upper != null && upper.getOp() != Op.LESS_THAN && upper.getOp() != Op.LESS_THAN_OR_EQ)
+            throw new IllegalArgumentException("the upper bound of a range must be LESS_THAN or LESS_THAN_OR_EQ");
+        if (lower != null && lower.getOp() != Op.EQUALS && lower.getOp() != Op.GREATER_THAN
+                && lower.getOp() != Op.GREATER_THAN_OR_EQ)
+            throw new IllegalArgumentException("the lower bound of a range must be EQUALS, GREATER_THAN or GREATER_THAN_OR_EQ");
+        HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+        RangeDeletion range = new RangeDeletion(lower, upper);
+        BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+        BTreePageId rootId = getRootPtrPage(tid, dirtypages).getRootId();
+
+        // remove the range, then link the leaves on either side of the removed ones
+        int remaining = pruneRange(tid, dirtypages, range, rootId, null, null);
+        if (range.lastLeaf != null) {
+            if (range.leftLeaf != null)
+                ((BTreeLeafPage) getPage(tid, dirtypages, range.leftLeaf, Permissions.READ_WRITE)).setRightSiblingId(range.rightLeaf);
+            if (range.rightLeaf != null)
+                ((BTreeLeafPage) getPage(tid, dirtypages, range.rightLeaf, Permissions.READ_WRITE)).setLeftSiblingId(range.leftLeaf);
+        }
 
-        if (headerId != null) {
-            BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
-            int headerPageCount = 0;
-            // try to find a header page with an empty slot
-            while (headerPage != null && headerPage.getEmptySlot() == -1) {
-                headerId = headerPage.getNextPageId();
-                if (headerId != null) {
-                    headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
-                    headerPageCount++;
-                } else {
-                    headerPage = null;
+        // rebalance the pages along the edges of the range, from the leaves up
+        for (BTreePageId pid : range.edges) {
+            rebalanceRangeEdge(tid, dirtypages, range, pid);
+        }
+
+        // an internal root left with a single child hands its place to the child, and a tree
+        // left without children gets an empty leaf page for its root
+        if (rootId.pgcateg() == BTreePageId.INTERNAL) {
+            BTreePage root;
+            if (remaining == 0) {
+                range.freed.add(rootId.getPageNumber());
+                root = (BTreePage) getEmptyPage(tid, dirtypages, BTreePageId.LEAF);
+            } else {
+                root = (BTreePage) getPage(tid, dirtypages, rootId, Permissions.READ_ONLY);
+                while (root instanceof BTreeInternalPage && ((BTreeInternalPage) root).getNumEntries() == 0) {
+                    range.freed.add(root.getId().getPageNumber());
+                    root = (BTreePage) getPage(tid, dirtypages, ((BTreeInternalPage) root).getChildId(0),
+                            Permissions.READ_WRITE);
                 }
             }
-
-            // if headerPage is not null, it must have an empty slot
-            if (headerPage != null) {
-                headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
-                int emptySlot = headerPage.getEmptySlot();
-                headerPage.markSlotUsed(emptySlot, true);
-                emptyPageNo = headerPageCount * BTreeHeaderPage.getNumSlots() + emptySlot;
+            if (!root.getId().equals(rootId)) {
+                BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_WRITE);
+                rootPtr.setRootId(root.getId());
+                root.setParentId(rootPtrId);
             }
         }
 
-        // at this point if headerId is null, either there are no header pages
-        // or there are no free slots
-        if (headerId == null) {
-            synchronized (this) {
-                // create the new page
-                BufferedOutputStream bw = new BufferedOutputStream(
-                        new FileOutputStream(f, true));
-                byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-                bw.write(emptyData);
-                bw.close();
-                emptyPageNo = numPages();
-            }
+        for (int pageNo : range.freed) {
+            setEmptyPage(tid, dirtypages, pageNo);
         }
 
-        return emptyPageNo;
+        ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
+        for (Page p : dirtypages.values()) {
+            BTreePageId pid = (BTreePageId) p.getId();
+            if (pid.pgcateg() == BTreePageId.ROOT_PTR || pid.pgcateg() == BTreePageId.HEADER
+                    || !range.freed.contains(pid.getPageNumber()))
+                dirtyPagesArr.add(p);
+        }
+        return dirtyPagesArr;
     }
 
     /**
-     * Method to encapsulate the process of creating a new page.  It reuses old pages if possible,
-     * and creates a new page if none are available.  It wipes the page on disk and in the cache and
-     * returns a clean copy locked with read-write permission
+     * Remove the tuples of a range deletion from a subtree.  The children that lie entirely
+     * inside the range are removed as a whole, the children that overlap it are pruned
+     * recursively, and the children that lie outside it are not read.  Nothing is rebalanced
+     * here: the children that were pruned and kept are recorded, so that they can be
+     * rebalanced once the whole range is gone, and a page may be left with a single child and
+     * no entries.
+     *
+     * @param tid        - the transaction id
+     * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+     * @param range      - the range deletion
+     * @param pid        - the root of the subtree
+     * @param lowKey     - a key less than or equal to every key in the subtree, or null
+     * @param highKey    - the separator of a key greater than or equal to every key in the
+     *                   subtree, or null
+     * @return the number of tuples left on a leaf page, or of children left on an internal
+     * page. The caller frees the page if none are left; only a root leaf page is emptied in place
+     * @throws DbException
+     * @throws IOException
+     * @throws TransactionAbortedException
+     */
+    private int pruneRange(TransactionId tid, HashMap<PageId, Page> dirtypages, RangeDeletion range,
+                           BTreePageId pid, Field lowKey, Field highKey)
+            throws DbException, IOException, TransactionAbortedException {
+        if (pid.pgcateg() == BTreePageId.LEAF) {
+            BTreeLeafPage leaf = (BTreeLeafPage) lockPage(tid, dirtypages, pid);
+            ArrayList<Tuple> doomed = new ArrayList<Tuple>();
+            Iterator<Tuple> it = leaf.iterator();
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                if (range.matches(getKey(t)))
+                    doomed.add(t);
+            }
+            if (doomed.size() == leaf.getNumTuples() && leaf.getParentId().pgcateg() != BTreePageId.ROOT_PTR)
+                return 0;
+            if (!doomed.isEmpty())
+                dirtypages.put(pid, leaf);
+            for (Tuple t : doomed) {
+                leaf.deleteTuple(t);
+            }
+            return leaf.getNumTuples();
+        }
+
+        BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+        ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+        Iterator<BTreeEntry> it = page.iterator();
+        while (it.hasNext()) {
+            entries.add(it.next());
+        }
+        int n = entries.size();
+        boolean[] removed = new boolean[n + 1];
+        int kept = n + 1;
+        ArrayList<BTreePageId> pruned = new ArrayList<BTreePageId>();
+        for (int i = 0; i <= n; i++) {
+            BTreePageId child = i == 0 ? page.getChildId(0) : entries.get(i - 1).getRightChild();
+            Field low = i == 0 ? lowKey : entries.get(i - 1).getKey();
+            Field high = i == n ? highKey : entries.get(i).getKey();
+            if (range.excludes(low, high))
+                continue;
+            if (range.includes(low, high)) {
+                removeSubtree(tid, dirtypages, range, child);
+            } else if (pruneRange(tid, dirtypages, range, child, low, high) == 0) {
+                if (child.pgcateg() == BTreePageId.LEAF)
+                    removeSubtree(tid, dirtypages, range, child);
+                else
+                    range.freed.add(child.getPageNumber());
+            } else {
+                pruned.add(child);
+                continue;
+            }
+            removed[i] = true;
+            kept--;
+        }
+
+        if (kept > 0 && kept <= n) {
+            // delete the removed children, keeping every remaining key between its neighbors
+            page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+            boolean keptBefore = false;
+            for (int i = 0; i <= n; i++) {
+                if (!removed[i])
+                    keptBefore = true;
+                else if (keptBefore)
+                    page.deleteKeyAndRightChild(entries.get(i - 1));
+                else
+                    page.deleteKeyAndLeftChild(entries.get(i));
+            }
+        }
+        range.edges.addAll(pruned);
+        return kept;
+    }
+
+    /**
+     * Remove a subtree that lies entirely inside the range of a range deletion.  Its pages are
+     * locked so that no other transaction can still be reading them, but they are not changed;
+     * they are freed when the deletion is over.  The removed leaf pages are recorded so that
+     * the leaf pages on either side of them can be linked to each other.
+     *
+     * @param tid        - the transaction id
+     * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+     * @param range      - the range deletion
+     * @param pid        - the root of the subtree
+     * @throws DbException
+     * @throws TransactionAbortedException
+     */
+    private void removeSubtree(TransactionId tid, HashMap<PageId, Page> dirtypages, RangeDeletion range,
+                               BTreePageId pid)
+            throws DbException, TransactionAbortedException {
+        Page page = lockPage(tid, dirtypages, pid);
+        range.freed.add(pid.getPageNumber());
+        if (page instanceof BTreeLeafPage) {
+            range.removeLeaf((BTreeLeafPage) page);
+            return;
+        }
+        Iterator<BTreeEntry> it = ((BTreeInternalPage) page).iterator();
+        BTreeEntry e = null;
+        while (it.hasNext()) {
+            e = it.next();
+            removeSubtree(tid, dirtypages, range, e.getLeftChild());
+        }
+        if (e != null) {
+            removeSubtree(tid, dirtypages, range, e.getRightChild());
+        }
+    }
+
+    /**
+     * Rebalance a page along an edge of a range deletion if it is less than half full, or is
+     * an internal page without entries.  The page is merged with a sibling if their tuples or
+     * entries fit on one page, and otherwise takes some from the sibling.  Unlike
+     * {@link #handleMinOccupancyPage(TransactionId, HashMap, BTreePage)}, this does not go on
+     * to the parent, which is rebalanced in turn if it lies along the edge too.  The only child
+     * of a page without entries could not be rebalanced before, and is rebalanced in its new
+     * place.
+     *
+     * @param tid        - the transaction id
+     * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+     * @param range      - the range deletion
+     * @param pid        - the page along the edge of the range
+     * @throws DbException
+     * @throws IOException
+     * @throws TransactionAbortedException
+     */
+    private void rebalanceRangeEdge(TransactionId tid, HashMap<PageId, Page> dirtypages, RangeDeletion range,
+                                    BTreePageId pid)
+            throws DbException, IOException, TransactionAbortedException {
+        if (range.freed.contains(pid.getPageNumber()))
+            return;
+        BTreePage page = (BTreePage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+        int max = page instanceof BTreeLeafPage ? ((BTreeLeafPage) page).getMaxTuples()
+                : ((BTreeInternalPage) page).getMaxEntries();
+        int maxEmptySlots = max - max / 2; // ceiling
+        if (page.getParentId().pgcateg() == BTreePageId.ROOT_PTR || page.getNumEmptySlots() <= maxEmptySlots)
+            return;
+
+        // prefer the left sibling, as handleMinOccupancyPage does
+        BTreeInternalPage parent = (BTreeInternalPage) getPage(tid, dirtypages, page.getParentId(), Permissions.READ_WRITE);
+        BTreeEntry entry = null;
+        Iterator<BTreeEntry> it = parent.iterator();
+        while (entry == null && it.hasNext()) {
+            BTreeEntry e = it.next();
+            if (e.getLeftChild().equals(pid) || e.getRightChild().equals(pid))
+                entry = e;
+        }
+        if (entry == null)
+            return; // the only child of its parent, which is rebalanced first
+        boolean isLeft = entry.getLeftChild().equals(pid);
+
+        if (pid.pgcateg() == BTreePageId.LEAF) {
+            BTreeLeafPage left = (BTreeLeafPage) getPage(tid, dirtypages, entry.getLeftChild(), Permissions.READ_WRITE);
+            BTreeLeafPage right = (BTreeLeafPage) getPage(tid, dirtypages, entry.getRightChild(), Permissions.READ_WRITE);
+            if (left.getNumTuples() + right.getNumTuples() <= max) {
+                ArrayList<Tuple> moved = new ArrayList<Tuple>();
+                Iterator<Tuple> tuples = right.iterator();
+                while (tuples.hasNext()) {
+                    moved.add(tuples.next());
+                }
+                for (Tuple t : moved) {
+                    right.deleteTuple(t);
+                    left.insertTuple(t);
+                }
+                left.setRightSiblingId(right.getRightSiblingId());
+                if (right.getRightSiblingId() != null)
+                    ((BTreeLeafPage) getPage(tid, dirtypages, right.getRightSiblingId(), Permissions.READ_WRITE)).setLeftSiblingId(left.getId());
+                parent.deleteKeyAndRightChild(entry);
+                range.freed.add(right.getId().getPageNumber());
+            } else {
+                stealFromLeafPage(isLeft ? left : right, isLeft ? right : left, parent, entry, isLeft);
+            }
+            return;
+        }
+
+        BTreeInternalPage left = (BTreeInternalPage) getPage(tid, dirtypages, entry.getLeftChild(), Permissions.READ_WRITE);
+        BTreeInternalPage right = (BTreeInternalPage) getPage(tid, dirtypages, entry.getRightChild(), Permissions.READ_WRITE);
+        ArrayList<BTreePageId> orphans = new ArrayList<BTreePageId>();
+        if (left.getNumEntries() == 0)
+            orphans.add(left.getChildId(0));
+        if (right.getNumEntries() == 0)
+            orphans.add(right.getChildId(0));
+        if (left.getNumEntries() + right.getNumEntries() < max) {
+            // pull the key of the parent entry down between the children of the two pages
+            Field key = entry.getKey();
+            BTreePageId last = lastChild(left);
+            Iterator<BTreeEntry> entries = right.iterator();
+            while (entries.hasNext()) {
+                BTreeEntry e = entries.next();
+                left.insertEntry(new BTreeEntry(key, last, e.getLeftChild()));
+                key = e.getKey();
+                last = e.getLeftChild();
+            }
+            left.insertEntry(new BTreeEntry(key, last, lastChild(right)));
+            parent.deleteKeyAndRightChild(entry);
+            range.freed.add(right.getId().getPageNumber());
+            updateParentPointers(tid, dirtypages, left);
+        } else if (isLeft) {
+            stealFromRightInternalPage(tid, dirtypages, left, right, parent, entry);
+        } else {
+            stealFromLeftInternalPage(tid, dirtypages, right, left, parent, entry);
+        }
+        for (BTreePageId orphan : orphans) {
+            rebalanceRangeEdge(tid, dirtypages, range, orphan);
+        }
+    }
+
+    /**
+     * Lock a page with READ_WRITE permission without adding it to dirtypages.  Used by range
+     * deletions for the pages they may free without changing, which need not be written back.
+     *
+     * @param tid        - the transaction id
+     * @param dirtypages - the list of dirty pages, checked first as by getPage
+     * @param pid        - the id of the requested page
+     * @return the requested page
+     * @throws DbException
+     * @throws TransactionAbortedException
+     */
+    private Page lockPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid)
+            throws DbException, TransactionAbortedException {
+        Page p = dirtypages.get(pid);
+        return p != null ? p : Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+    }
+
+    /**
+     * The state of a range deletion: the bounds of the range, the pages it frees, the leaf
+     * pages on either side of the removed ones, and the pages along the edges of the range
+     * that may need rebalancing, children before their parents.
+     */
+    private static class RangeDeletion {
+        // the bounds, with an EQUALS predicate split into a lower and an upper one
+        private final ArrayList<IndexPredicate> bounds = new ArrayList<IndexPredicate>();
+        final TreeSet<Integer> freed = new TreeSet<Integer>();
+        final ArrayList<BTreePageId> edges = new ArrayList<BTreePageId>();
+        BTreePageId leftLeaf = null;
+        BTreePageId rightLeaf = null;
+        BTreePageId lastLeaf = null;
+
+        RangeDeletion(IndexPredicate lower, IndexPredicate upper) {
+            for (IndexPredicate p : new IndexPredicate[]{lower, upper}) {
+                if (p == null)
+                    continue;
+                if (p.getOp() == Op.EQUALS) {
+                    bounds.add(new IndexPredicate(Op.GREATER_THAN_OR_EQ, p.getField()));
+                    bounds.add(new IndexPredicate(Op.LESS_THAN_OR_EQ, p.getField()));
+                } else {
+                    bounds.add(p);
+                }
+            }
+        }
+
+        /**
+         * @return true if the key lies inside the range
+         */
+        boolean matches(Field key) {
+            for (IndexPredicate p : bounds) {
+                if (!key.compare(p.getOp(), p.getField()))
+                    return false;
+            }
+            return true;
+        }
+
+        private static boolean isUpper(IndexPredicate p) {
+            return p.getOp() == Op.LESS_THAN || p.getOp() == Op.LESS_THAN_OR_EQ;
+        }
+
+        /**
+         * @return true if every key whose separator is at most high comes before the bound:
+         * satisfies it if it is an upper bound, or fails it if it is a lower bound
+         */
+        private static boolean allBefore(Field high, IndexPredicate p) {
+            if (high == null)
+                return false;
+            // a string separator may be the truncation of longer keys than itself
+            if (high instanceof StringField)
+                return high.compare(Op.LESS_THAN, BTreeInternalPage.separatorKey(p.getField()));
+            boolean inclusive = p.getOp() == Op.LESS_THAN_OR_EQ || p.getOp() == Op.GREATER_THAN;
+            return high.compare(inclusive ? Op.LESS_THAN_OR_EQ : Op.LESS_THAN, p.getField());
+        }
+
+        /**
+         * @return true if every key of at least low comes after the bound: fails it if it is an
+         * upper bound, or satisfies it if it is a lower bound
+         */
+        private static boolean allAfter(Field low, IndexPredicate p) {
+            return low != null && low.compare(p.getOp(), p.getField()) != isUpper(p);
+        }
+
+        /**
+         * @return true if no key between low and high lies inside the range
+         */
+        boolean excludes(Field low, Field high) {
+            for (IndexPredicate p : bounds) {
+                if (isUpper(p) ? allAfter(low, p) : allBefore(high, p))
+                    return true;
+            }
+            return false;
+        }
+
+        /**
+         * @return true if every key between low and high lies inside the range
+         */
+        boolean includes(Field low, Field high) {
+            for (IndexPredicate p : bounds) {
+                if (!(isUpper(p) ? allBefore(high, p) : allAfter(low, p)))
+                    return false;
+            }
+            return true;
+        }
+
+        /**
+         * Record a removed leaf page.  The leaf pages of a range are removed in key order.
+         */
+        void removeLeaf(BTreeLeafPage leaf) throws DbException {
+            if (lastLeaf == null)
+                leftLeaf = leaf.getLeftSiblingId();
+            else if (!lastLeaf.equals(leaf.getLeftSiblingId()))
+                throw new DbException("the leaf pages of a range deletion are not adjacent");
+            lastLeaf = leaf.getId();
+            rightLeaf = leaf.getRightSiblingId();
+        }
+    }
+
+    /**
+     * Get a read lock on the root pointer page. Create the root pointer page and root page
+     * if necessary.
+     *
+     * @param tid        - the transaction id
+     * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+     * @return the root pointer page
+     * @throws DbException
+     * @throws IOException
+     * @throws TransactionAbortedException
+     */
+    BTreeRootPtrPage getRootPtrPage(TransactionId tid, HashMap<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
+        synchronized (this) {
+            if (f.length() == 0) {
+                // create the root pointer page and the root page
+                BufferedOutputStream bw = new BufferedOutputStream(
+                        new FileOutputStream(f, true));
+                byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
+                byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
+                bw.write(emptyRootPtrData);
+                bw.write(emptyLeafData);
+                bw.close();
+            }
+        }
+
+        // get a read lock on the root pointer page
+        return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+    }
+
+    /**
+     * Get the page number of the first empty page in this BTreeFile.
+     * Creates a new page if none of the existing pages are empty.
+     * <p>
+     * The free pages are looked up in an in-memory bitmap of the header pages,
+     * loaded by the first allocation and updated by {@link #setEmptyPage}.  The
+     * header pages remain the record of which pages are free: a page taken from
+     * the bitmap is claimed by marking its slot used, and skipped if the slot
+     * is not free, because the transaction that freed it aborted.  New pages
+     * are taken from the extent the file last grew by.
+     * <p>
+     * A page allocated by a transaction that aborts is free again: it is
+     * returned to the bitmap when the transaction aborts, and as it is still
+     * filled with EXTENT_FILL on disk, found free when the file is opened
+     * again, although the header pages do not record it as free.
+     *
+     * @param tid        - the transaction id
+     * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+     * @return the page number of the first empty page
+     * @throws DbException
+     * @throws IOException
+     * @throws TransactionAbortedException
+     */
+    protected int getEmptyPageNo(TransactionId tid, HashMap<PageId, Page> dirtypages)
+            throws DbException, IOException, TransactionAbortedException {
+        // get a read lock on the root pointer page and use it to locate the first header page
+        BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
+        loadFreePages(tid, dirtypages, rootPtr.getHeaderId());
+
+        while (true) {
+            int emptyPageNo;
+            boolean unused;
+            synchronized (this) {
+                emptyPageNo = freePages.nextSetBit(1);
+                if (emptyPageNo < 0)
+                    break;
+                freePages.clear(emptyPageNo);
+                if (emptyPageNo > numPages())
+                    continue;
+                unused = unusedPages.get(emptyPageNo);
+                unusedPages.clear(emptyPageNo);
+                // given back to the bitmap if the transaction aborts
+                allocated(tid, emptyPageNo);
+            }
+            BTreeHeaderPage headerPage = getHeaderPage(tid, dirtypages, rootPtr.getHeaderId(),
+                    emptyPageNo / BTreeHeaderPage.getNumSlots());
+            int emptySlot = emptyPageNo % BTreeHeaderPage.getNumSlots();
+            if (headerPage != null && !headerPage.isSlotUsed(emptySlot)) {
+                headerPage.markSlotUsed(emptySlot, true);
+                return emptyPageNo;
+            }
+            if (unused)
+                return emptyPageNo;
+            synchronized (this) {
+                allocatedPages.get(tid).remove(Integer.valueOf(emptyPageNo));
+            }
+        }
+
+        // there are no free pages, so use the next page of the last extent,
+        // growing the file by another extent if it is used up
+        synchronized (this) {
+            int emptyPageNo = numPages() + 1;
+            if (emptyPageNo > filePages()) {
+                RandomAccessFile rf = allocFile();
+                byte[] extent = new byte[EXTENT_PAGES * BufferPool.getPageSize()];
+                Arrays.fill(extent, EXTENT_FILL);
+                rf.seek(BTreeRootPtrPage.getPageSize() + (long) (emptyPageNo - 1) * BufferPool.getPageSize());
+                rf.write(extent);
+            }
+            usedPages = emptyPageNo;
+            allocated(tid, emptyPageNo);
+            return emptyPageNo;
+        }
+    }
+
+    /**
+     * Record that a transaction allocated a page, to be freed again if the
+     * transaction aborts.  The caller holds the lock on this.
+     */
+    private void allocated(TransactionId tid, int pageNo) {
+        ArrayList<Integer> pages = allocatedPages.get(tid);
+        if (pages == null) {
+            pages = new ArrayList<Integer>();
+            allocatedPages.put(tid, pages);
+            Database.getBufferPool().addTransactionListener(tid, this);
+        }
+        pages.add(pageNo);
+    }
+
+    /**
+     * Record that a transaction rebalanced or freed a deferred page, to be deferred
+     * again if the transaction aborts.  The caller holds the lock on this.
+     */
+    private void undeferred(TransactionId tid, BTreePageId pid) {
+        ArrayList<BTreePageId> pages = undeferredPages.get(tid);
+        if (pages == null) {
+            pages = new ArrayList<BTreePageId>();
+            undeferredPages.put(tid, pages);
+            Database.getBufferPool().addTransactionListener(tid, this);
+        }
+        pages.add(pid);
+    }
+
+    /**
+     * Free the pages allocated by a transaction that aborted.  They were not
+     * written, so they still hold EXTENT_FILL on disk.  The deferred pages it
+     * rebalanced or freed are deferred again, since their changes were discarded.
+     */
+    public synchronized void transactionComplete(TransactionId tid, boolean commit) {
+        ArrayList<BTreePageId> undeferred = undeferredPages.remove(tid);
+        if (undeferred != null && !commit)
+            deferredPages.addAll(undeferred);
+        ArrayList<Integer> pages = allocatedPages.remove(tid);
+        if (pages == null || commit || freePages == null)
+            return;
+        for (int pageNo : pages) {
+            freePages.set(pageNo);
+            unusedPages.set(pageNo);
+        }
+    }
+
+    /**
+     * Load the bitmap of free pages from the header pages, if it is not loaded yet.
+     * The pages that still hold EXTENT_FILL on disk, because the transactions that
+     * allocated them aborted or did not commit before a crash, are free too.
+     *
+     * @param tid        - the transaction id
+     * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+     * @param headerId   - the id of the first header page, or null if there is none
+     * @throws DbException
+     * @throws IOException
+     * @throws TransactionAbortedException
+     */
+    private void loadFreePages(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId headerId)
+            throws DbException, IOException, TransactionAbortedException {
+        synchronized (this) {
+            if (freePages != null)
+                return;
+        }
+        BitSet free = new BitSet();
+        int pages = numPages();
+        int headerPageCount = 0;
+        while (headerId != null) {
+            BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
+            for (int i = 0; i < BTreeHeaderPage.getNumSlots(); i++) {
+                int pageNo = headerPageCount * BTreeHeaderPage.getNumSlots() + i;
+                if (pageNo >= 1 && pageNo <= pages && !headerPage.isSlotUsed(i))
+                    free.set(pageNo);
+            }
+            headerId = headerPage.getNextPageId();
+            headerPageCount++;
+        }
+        synchronized (this) {
+            if (freePages != null)
+                return;
+            // read the pages in use a run of them at a time
+            BitSet unused = new BitSet();
+            RandomAccessFile rf = allocFile();
+            byte[] run = new byte[EXTENT_PAGES * BufferPool.getPageSize()];
+            byte[] data = new byte[BufferPool.getPageSize()];
+            byte[] unusedData = unusedPageData();
+            rf.seek(BTreeRootPtrPage.getPageSize());
+            for (int first = 1; first <= pages; first += EXTENT_PAGES) {
+                int n = Math.min(EXTENT_PAGES, pages - first + 1);
+                rf.readFully(run, 0, n * BufferPool.getPageSize());
+                for (int i = 0; i < n; i++) {
+                    System.arraycopy(run, i * BufferPool.getPageSize(), data, 0, data.length);
+                    if (Arrays.equals(data, unusedData))
+                        unused.set(first + i);
+                }
+            }
+            free.or(unused);
+            freePages = free;
+            unusedPages = unused;
+        }
+    }
+
+    /**
+     * Get the header page with the specified position in the chain of header pages,
+     * locked with READ_WRITE permission.  The pages before it are locked with
+     * READ_ONLY permission.
+     *
+     * @param tid        - the transaction id
+     * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+     * @param headerId   - the id of the first header page, or null if there is none
+     * @param index      - the position of the header page in the chain
+     * @return the header page, or null if the chain is shorter
+     * @throws DbException
+     * @throws TransactionAbortedException
+     */
+    private BTreeHeaderPage getHeaderPage(TransactionId tid, HashMap<PageId, Page> dirtypages,
+                                          BTreePageId headerId, int index)
+            throws DbException, TransactionAbortedException {
+        for (int i = 0; i < index && headerId != null; i++) {
+            BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
+            headerId = headerPage.getNextPageId();
+        }
+        if (headerId == null)
+            return null;
+        return (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
+    }
+
+    /**
+     * Method to encapsulate the process of creating a new page.  It reuses old pages if possible,
+     * and creates a new page if none are available.  It wipes the page on disk and in the cache and
+     * returns a clean copy locked with read-write permission
      *
      * @param tid        - the transaction id
      * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
@@ -1102,15 +2200,22 @@ public class BTreeFile implements DbFile {
         int emptyPageNo = getEmptyPageNo(tid, dirtypages);
         BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 
-        // write empty page to disk
-        RandomAccessFile rf = new RandomAccessFile(f, "rw");
-        rf.seek(BTreeRootPtrPage.getPageSize() + (emptyPageNo - 1) * BufferPool.getPageSize());
-        rf.write(BTreePage.createEmptyPageData());
-        rf.close();
+        // wipe the page on disk, leaving it unused until the transaction
+        // commits and the page is written, which readPage() reads as an
+        // empty page
+        synchronized (this) {
+            RandomAccessFile rf = allocFile();
+            rf.seek(BTreeRootPtrPage.getPageSize() + (long) (emptyPageNo - 1) * BufferPool.getPageSize());
+            rf.write(unusedPageData());
+        }
 
-        // make sure the page is not in the buffer pool	or in the local cache
-        Database.getBufferPool().discardPage(newPageId);
-        dirtypages.remove(newPageId);
+        // make sure the page is not in the buffer pool	or in the local cache, under any
+        // category it had before it was freed
+        for (int categ : new int[] { BTreePageId.INTERNAL, BTreePageId.LEAF, BTreePageId.HEADER }) {
+            BTreePageId oldPageId = new BTreePageId(tableid, emptyPageNo, categ);
+            Database.getBufferPool().discardPage(oldPageId);
+            dirtypages.remove(oldPageId);
+        }
 
         return getPage(tid, dirtypages, newPageId, Permissions.READ_WRITE);
     }
@@ -1118,6 +2223,8 @@ public class BTreeFile implements DbFile {
     /**
      * Mark a page in this BTreeFile as empty. Find the corresponding header page
      * (create it if needed), and mark the corresponding slot in the header page as empty.
+     * Header page i holds the slots of pages i*BTreeHeaderPage.getNumSlots() up to the
+     * next header page's.
      *
      * @param tid         - the transaction id
      * @param dirtypages  - the list of dirty pages which should be updated with all new dirty pages
@@ -1156,6 +2263,7 @@ public class BTreeFile implements DbFile {
         BTreePageId headerId = rootPtr.getHeaderId();
         BTreePageId prevId = null;
         int headerPageCount = 0;
+        int headerIndex = emptyPageNo / BTreeHeaderPage.getNumSlots();
 
         // if there are no header pages, create the first header page and update
         // the header pointer in the BTreeRootPtrPage
@@ -1170,7 +2278,7 @@ public class BTreeFile implements DbFile {
 
         // iterate through all the existing header pages to find the one containing the slot
         // corresponding to emptyPageNo
-        while (headerId != null && (headerPageCount + 1) * BTreeHeaderPage.getNumSlots() < emptyPageNo) {
+        while (headerId != null && headerPageCount < headerIndex) {
             BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
             prevId = headerId;
             headerId = headerPage.getNextPageId();
@@ -1180,24 +2288,83 @@ public class BTreeFile implements DbFile {
         // at this point headerId should either be null or set with
         // the headerPage containing the slot corresponding to emptyPageNo.
         // Add header pages until we have one with a slot corresponding to emptyPageNo
-        while ((headerPageCount + 1) * BTreeHeaderPage.getNumSlots() < emptyPageNo) {
+        while (headerId == null) {
             BTreeHeaderPage prevPage = (BTreeHeaderPage) getPage(tid, dirtypages, prevId, Permissions.READ_WRITE);
 
             BTreeHeaderPage headerPage = (BTreeHeaderPage) getEmptyPage(tid, dirtypages, BTreePageId.HEADER);
-            headerId = headerPage.getId();
             headerPage.init();
             headerPage.setPrevPageId(prevId);
-            prevPage.setNextPageId(headerId);
+            prevPage.setNextPageId(headerPage.getId());
 
-            headerPageCount++;
-            prevId = headerId;
+            if (headerPageCount == headerIndex) {
+                headerId = headerPage.getId();
+            } else {
+                headerPageCount++;
+                prevId = headerPage.getId();
+            }
         }
 
         // now headerId should be set with the headerPage containing the slot corresponding to
         // emptyPageNo
         BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
-        int emptySlot = emptyPageNo - headerPageCount * BTreeHeaderPage.getNumSlots();
+        int emptySlot = emptyPageNo % BTreeHeaderPage.getNumSlots();
         headerPage.markSlotUsed(emptySlot, false);
+        synchronized (this) {
+            if (freePages != null)
+                freePages.set(emptyPageNo);
+            BTreePageId leafId = new BTreePageId(tableid, emptyPageNo, BTreePageId.LEAF);
+            BTreePageId internalId = new BTreePageId(tableid, emptyPageNo, BTreePageId.INTERNAL);
+            if (deferredPages.remove(leafId))
+                undeferred(tid, leafId);
+            if (deferredPages.remove(internalId))
+                undeferred(tid, internalId);
+        }
+    }
+
+    /**
+     * Read up to n of the leaf pages after a leaf page into the buffer pool in the
+     * background, following the right sibling pointers as the pages are read, so that a scan
+     * finds them there when it moves on to them.  The pages are read without locks, and a
+     * page that is already in the buffer pool is not read again.
+     *
+     * @param leaf - the leaf page the scan is on
+     * @param n - the number of leaf pages to read
+     * @param end - the predicate whose first key to fail ends the scan, or null if it reads
+     *            to the end of the file: no page is read past a page that ends with such a key
+     */
+    void prefetchLeaves(BTreeLeafPage leaf, final int n, final IndexPredicate end) {
+        final BTreePageId first = leaf.getRightSiblingId();
+        if (first == null || endsScan(leaf, end))
+            return;
+        final BufferPool pool = Database.getBufferPool();
+        BufferPool.prefetch(new Runnable() {
+            public void run() {
+                BTreePageId pid = first;
+                try {
+                    for (int i = 0; i < n && pid != null; i++) {
+                        BTreeLeafPage next = (BTreeLeafPage) pool.prefetchPage(pid);
+                        // the page may be changed by a transaction as it is read
+                        if (next == null || endsScan(next, end))
+                            return;
+                        pid = next.getRightSiblingId();
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } catch (RuntimeException e) {
+                    // the scan reads the page itself
+                }
+            }
+        });
+    }
+
+    /**
+     * @return true if the last key of a leaf page fails the predicate that ends a scan
+     */
+    private boolean endsScan(BTreeLeafPage leaf, IndexPredicate end) {
+        if (end == null)
+            return false;
+        Iterator<Tuple> it = leaf.reverseIterator();
+        return it.hasNext() && !getKey(it.next()).compare(end.getOp(), end.getField());
     }
 
     /**
@@ -1211,7 +2378,87 @@ public class BTreeFile implements DbFile {
      * @return an iterator for the filtered tuples
      */
     public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred) {
-        return new BTreeSearchIterator(this, tid, ipred);
+        return new BTreeSearchIterator(this, tid, ipred, null);
+    }
+
+    /**
+     * get the tuples from the file whose keys lie in a range, on behalf of the specified
+     * transaction.  The search descends directly to the first key satisfying the lower bound and
+     * stops at the first key past the upper bound.  With a composite key, the bounds may be
+     * prefixes of different lengths, and bound the components after a common prefix: the keys
+     * (a, b) with a = 5 and 10 &lt;= b &lt;= 20 lie between the bounds (5, 10) and (5, 20).
+     *
+     * @param tid   - the transaction id
+     * @param lower - the lower bound: an EQUALS, GREATER_THAN or GREATER_THAN_OR_EQ predicate, or
+     *              null if the range has no lower bound
+     * @param upper - the upper bound: a LESS_THAN or LESS_THAN_OR_EQ predicate, or null if the
+     *              range has no upper bound
+     * @return an iterator for the tuples satisfying both predicates
+     */
+    public DbFileIterator indexIterator(TransactionId tid, IndexPredicate lower, IndexPredicate upper) {
+        if (upper != null && upper.getOp() != Op.LESS_THAN && upper.getOp() != Op.LESS_THAN_OR_EQ)
+            throw new IllegalArgumentException("the upper bound of a range must be LESS_THAN or LESS_THAN_OR_EQ");
+        if (lower == null)
+            return upper == null ? iterator(tid) : new BTreeSearchIterator(this, tid, upper, null);
+        return new BTreeSearchIterator(this, tid, lower, upper);
+    }
+
+    /**
+     * get the specified tuples from the file based on its IndexPredicate value, in descending
+     * key order.  The search descends to the right-most leaf page that may hold a key satisfying
+     * the predicate, and follows the left sibling pointers until it passes the last one.
+     *
+     * @param tid   - the transaction id
+     * @param ipred - the index predicate value to filter on
+     * @return an iterator for the filtered tuples, in descending key order
+     * @see #reverseIndexIterator(TransactionId, IndexPredicate, IndexPredicate)
+     */
+    public DbFileIterator reverseIndexIterator(TransactionId tid, IndexPredicate ipred) {
+        switch (ipred.getOp()) {
+        case EQUALS:
+            return new BTreeReverseSearchIterator(this, tid, ipred, ipred);
+        case LESS_THAN:
+        case LESS_THAN_OR_EQ:
+            return new BTreeReverseSearchIterator(this, tid, null, ipred);
+        case GREATER_THAN:
+        case GREATER_THAN_OR_EQ:
+            return new BTreeReverseSearchIterator(this, tid, ipred, null);
+        default:
+            throw new IllegalArgumentException("a reverse search cannot answer " + ipred.getOp());
+        }
+    }
+
+    /**
+     * get the tuples from the file whose keys lie in a range, in descending key order.  The
+     * search descends directly to the last key satisfying the upper bound and stops at the first
+     * key past the lower bound; the bounds are interpreted as by
+     * {@link #indexIterator(TransactionId, IndexPredicate, IndexPredicate)}.
+     *
+     * @param tid   - the transaction id
+     * @param lower - the lower bound: an EQUALS, GREATER_THAN or GREATER_THAN_OR_EQ predicate, or
+     *              null if the range has no lower bound
+     * @param upper - the upper bound: a LESS_THAN or LESS_THAN_OR_EQ predicate, or null if the
+     *              range has no upper bound
+     * @return an iterator for the tuples satisfying both predicates, in descending key order
+     */
+    public DbFileIterator reverseIndexIterator(TransactionId tid, IndexPredicate lower, IndexPredicate upper) {
+        if (upper != null && upper.getOp() != Op.LESS_THAN && upper.getOp() != Op.LESS_THAN_OR_EQ)
+            throw new IllegalArgumentException("the upper bound of a range must be LESS_THAN or LESS_THAN_OR_EQ");
+        if (lower != null && lower.getOp() != Op.EQUALS && lower.getOp() != Op.GREATER_THAN
+                && lower.getOp() != Op.GREATER_THAN_OR_EQ)
+            throw new IllegalArgumentException("the lower bound of a range must be EQUALS, GREATER_THAN or GREATER_THAN_OR_EQ");
+        return new BTreeReverseSearchIterator(this, tid, lower, upper);
+    }
+
+    /**
+     * Get an iterator for all tuples in this B+ tree file in descending key order, starting
+     * from the right-most leaf page.
+     *
+     * @param tid - the transaction id
+     * @return an iterator for all the tuples in this file, in descending key order
+     */
+    public DbFileIterator reverseIterator(TransactionId tid) {
+        return new BTreeReverseSearchIterator(this, tid, null, null);
     }
 
     /**
@@ -1235,6 +2482,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
     Iterator<Tuple> it = null;
     BTreeLeafPage curp = null;
+    // the number of leaf pages past curp that have been read ahead
+    int ahead = 0;
 
     TransactionId tid;
     BTreeFile f;
@@ -1254,11 +2503,10 @@ class BTreeFileIterator extends AbstractDbFileIterator {
      * Open this iterator by getting an iterator on the first leaf page
      */
     public void open() throws DbException, TransactionAbortedException {
-        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-                tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-        BTreePageId root = rootPtr.getRootId();
-        curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+        curp = f.findLeafPage(tid, Permissions.READ_ONLY, null);
         it = curp.iterator();
+        f.prefetchLeaves(curp, BTreeFile.PREFETCH_LEAVES, null);
+        ahead = BTreeFile.PREFETCH_LEAVES;
     }
 
     /**
@@ -1279,6 +2527,11 @@ class BTreeFileIterator extends AbstractDbFileIterator {
             } else {
                 curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
                         nextp, Permissions.READ_ONLY);
+                // read further ahead once half the pages read ahead are used
+                if (--ahead <= BTreeFile.PREFETCH_LEAVES / 2) {
+                    f.prefetchLeaves(curp, BTreeFile.PREFETCH_LEAVES, null);
+                    ahead = BTreeFile.PREFETCH_LEAVES;
+                }
                 it = curp.iterator();
                 if (!it.hasNext())
                     it = null;
@@ -1316,10 +2569,13 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 
     Iterator<Tuple> it = null;
     BTreeLeafPage curp = null;
+    // the number of leaf pages past curp that have been read ahead
+    int ahead = 0;
 
     TransactionId tid;
     BTreeFile f;
     IndexPredicate ipred;
+    IndexPredicate upper;
 
     /**
      * Constructor for this iterator
@@ -1327,11 +2583,13 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
      * @param f     - the BTreeFile containing the tuples
      * @param tid   - the transaction id
      * @param ipred - the predicate to filter on
+     * @param upper - a LESS_THAN or LESS_THAN_OR_EQ predicate that ends the search, or null
      */
-    public BTreeSearchIterator(BTreeFile f, TransactionId tid, IndexPredicate ipred) {
+    public BTreeSearchIterator(BTreeFile f, TransactionId tid, IndexPredicate ipred, IndexPredicate upper) {
         this.f = f;
         this.tid = tid;
         this.ipred = ipred;
+        this.upper = upper;
     }
 
     /**
@@ -1339,16 +2597,27 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
      * for the given predicate operation
      */
     public void open() throws DbException, TransactionAbortedException {
-        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-                tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-        BTreePageId root = rootPtr.getRootId();
         if (ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN
                 || ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-            curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
+            curp = f.findLeafPage(tid, Permissions.READ_ONLY, ipred.getField());
         } else {
-            curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+            curp = f.findLeafPage(tid, Permissions.READ_ONLY, null);
         }
         it = curp.iterator();
+        f.prefetchLeaves(curp, BTreeFile.PREFETCH_LEAVES, end());
+        ahead = BTreeFile.PREFETCH_LEAVES;
+    }
+
+    /**
+     * @return the predicate whose first key to fail ends the search, or null if it reads
+     *         to the end of the file
+     */
+    private IndexPredicate end() {
+        if (ipred.getOp() == Op.EQUALS)
+            return new IndexPredicate(Op.LESS_THAN_OR_EQ, ipred.getField());
+        if (ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ)
+            return ipred;
+        return upper;
     }
 
     /**
@@ -1364,14 +2633,18 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 
             while (it.hasNext()) {
                 Tuple t = it.next();
-                if (t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
+                Field key = f.getKey(t);
+                if (upper != null && !key.compare(upper.getOp(), upper.getField())) {
+                    // past the upper bound of the range
+                    return null;
+                } else if (key.compare(ipred.getOp(), ipred.getField())) {
                     return t;
                 } else if (ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
                     // if the predicate was not satisfied and the operation is less than, we have
                     // hit the end
                     return null;
                 } else if (ipred.getOp() == Op.EQUALS &&
-                        t.getField(f.keyField()).compare(Op.GREATER_THAN, ipred.getField())) {
+                        key.compare(Op.GREATER_THAN, ipred.getField())) {
                     // if the tuple is now greater than the field passed in and the operation
                     // is equals, we have reached the end
                     return null;
@@ -1385,6 +2658,10 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
             } else {
                 curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
                         nextp, Permissions.READ_ONLY);
+                if (--ahead <= BTreeFile.PREFETCH_LEAVES / 2) {
+                    f.prefetchLeaves(curp, BTreeFile.PREFETCH_LEAVES, end());
+                    ahead = BTreeFile.PREFETCH_LEAVES;
+                }
                 it = curp.iterator();
             }
         }
@@ -1408,3 +2685,111 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
         it = null;
     }
 }
+
+/**
+ * Helper class that implements the DbFileIterator for the tuples of a B+ Tree
+ * File in descending key order, optionally within a range of keys
+ */
+class BTreeReverseSearchIterator extends AbstractDbFileIterator {
+
+    Iterator<Tuple> it = null;
+    BTreeLeafPage curp = null;
+
+    TransactionId tid;
+    BTreeFile f;
+    IndexPredicate lower;
+    IndexPredicate upper;
+
+    /**
+     * Constructor for this iterator
+     *
+     * @param f     - the BTreeFile containing the tuples
+     * @param tid   - the transaction id
+     * @param lower - an EQUALS, GREATER_THAN or GREATER_THAN_OR_EQ predicate that ends the
+     *              search, or null
+     * @param upper - an EQUALS, LESS_THAN or LESS_THAN_OR_EQ predicate the search starts
+     *              from, or null to start from the largest key
+     */
+    public BTreeReverseSearchIterator(BTreeFile f, TransactionId tid, IndexPredicate lower,
+                                      IndexPredicate upper) {
+        this.f = f;
+        this.tid = tid;
+        this.lower = lower;
+        this.upper = upper;
+    }
+
+    /**
+     * Open this iterator by getting a reverse iterator on the last leaf page that
+     * may hold a key satisfying the upper bound
+     */
+    public void open() throws DbException, TransactionAbortedException {
+        curp = f.findLeafPage(tid, Permissions.READ_ONLY, upper == null ? null : upper.getField(), true);
+        it = curp.reverseIterator();
+    }
+
+    /**
+     * @return true if key is greater than the keys satisfying the upper bound
+     */
+    private boolean aboveRange(Field key) {
+        if (upper == null)
+            return false;
+        if (upper.getOp() == Op.LESS_THAN)
+            return key.compare(Op.GREATER_THAN_OR_EQ, upper.getField());
+        return key.compare(Op.GREATER_THAN, upper.getField());
+    }
+
+    /**
+     * Read the next tuple either from the current page if it has more tuples in the range
+     * or from the previous page by following the left sibling pointer.
+     *
+     * @return the next tuple in the range, in descending key order, or null if none exists
+     */
+    @Override
+    protected Tuple readNext() throws TransactionAbortedException, DbException,
+            NoSuchElementException {
+        while (it != null) {
+
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                Field key = f.getKey(t);
+                if (aboveRange(key)) {
+                    // the page may begin with keys past the upper bound
+                    continue;
+                } else if (lower != null && !key.compare(lower.getOp(), lower.getField())) {
+                    // past the lower bound of the range
+                    return null;
+                }
+                return t;
+            }
+
+            BTreePageId prevp = curp.getLeftSiblingId();
+            // if there are no more pages to the left, end the iteration
+            if (prevp == null) {
+                return null;
+            } else {
+                curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
+                        prevp, Permissions.READ_ONLY);
+                it = curp.reverseIterator();
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * rewind this iterator back to the beginning of the tuples
+     */
+    public void rewind() throws DbException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+    /**
+     * close the iterator
+     */
+    public void close() {
+        super.close();
+        it = null;
+        curp = null;
+    }
+}
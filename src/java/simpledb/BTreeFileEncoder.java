@@ -228,7 +228,7 @@ public class BTreeFileEncoder {
 		int leafpointerbytes = 3 * BTreeLeafPage.INDEX_SIZE; 
 		int nrecords = (npagebytes * 8 - leafpointerbytes * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
 
-		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
+		int nentrybytes = BTreeInternalPage.separatorSize(keyType) + BTreeInternalPage.INDEX_SIZE;
 		// pointerbytes: one extra child pointer, parent pointer, child page category
 		int internalpointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
 		int nentries = (npagebytes * 8 - internalpointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
@@ -624,7 +624,7 @@ public class BTreeFileEncoder {
 	public static byte[] convertToInternalPage(ArrayList<BTreeEntry> entries, int npagebytes,
 			Type keyType, int childPageCategory)
 					throws IOException {
-		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
+		int nentrybytes = BTreeInternalPage.separatorSize(keyType) + BTreeInternalPage.INDEX_SIZE;
 		// pointerbytes: one extra child pointer, parent pointer, child page category
 		int pointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
 		int nentries = (npagebytes * 8 - pointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
@@ -669,11 +669,11 @@ public class BTreeFileEncoder {
 
 		Collections.sort(entries, new EntryComparator());
 		for(int e = 0; e < entrycount; e++) {
-			entries.get(e).getKey().serialize(dos);
+			BTreeInternalPage.separatorKey(entries.get(e).getKey()).serialize(dos);
 		}
 
 		for(int e = entrycount; e < nentries; e++) {
-			for (int j=0; j<keyType.getLen(); j++) {
+			for (int j=0; j<BTreeInternalPage.separatorSize(keyType); j++) {
 				dos.writeByte(0);
 			}
 		}
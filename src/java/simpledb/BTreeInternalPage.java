@@ -14,10 +14,19 @@ import simpledb.Predicate.Op;
  *
  */
 public class BTreeInternalPage extends BTreePage {
+	/**
+	 * The number of characters of a string key kept in a separator.  A
+	 * separator only has to tell two children apart, so internal pages store
+	 * a prefix of it rather than the whole 128-character key, and hold
+	 * several times as many entries.
+	 */
+	public static final int SEPARATOR_LEN = 20;
+
 	private final byte header[];
 	private final Field keys[];
 	private final int children[];
 	private final int numSlots;
+	private final BTreeKeyDirectory dir; // the used key slots in key order
 	
 	private int childCategory; // either leaf or internal
 
@@ -66,7 +75,20 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
-		super(id, key);
+		this(id, data, new int[] { key });
+	}
+
+	/**
+	 * Create a BTreeInternalPage of a B+ tree keyed on several fields from a
+	 * set of bytes of data read from disk.  Each key is stored as its
+	 * components, one after the other.
+	 * 
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param keyFields - the fields which the index is keyed on, in order
+	 */
+	public BTreeInternalPage(BTreePageId id, byte[] data, int[] keyFields) throws IOException {
+		super(id, keyFields);
 		this.numSlots = getMaxEntries() + 1;
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
@@ -108,6 +130,13 @@ public class BTreeInternalPage extends BTreePage {
 		}
 		dis.close();
 
+		// the entries are stored in key order, so the directory is built
+		// without comparing keys
+		dir = new BTreeKeyDirectory(this, td.getFieldType(keyField), numSlots);
+		for (int i=1; i<keys.length; i++)
+			if (isSlotUsed(i))
+				dir.insert(dir.size(), i, keys[i]);
+
 		setBeforeImage();
 	}
 
@@ -115,7 +144,7 @@ public class BTreeInternalPage extends BTreePage {
 	 * Retrieve the maximum number of entries this page can hold. (The number of keys)
  	 */
 	public int getMaxEntries() {        
-		int keySize = td.getFieldType(keyField).getLen();
+		int keySize = keySize();
 		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
 		// extraBits are: one parent pointer, 1 byte for child page category, 
 		// one extra child pointer (node with m entries has m+1 pointers to children), 1 bit for extra header
@@ -124,6 +153,44 @@ public class BTreeInternalPage extends BTreePage {
 		return entriesPerPage;
 	}
 
+	/**
+	 * Truncate a key to the form in which internal pages store it.  String
+	 * keys are cut to their first SEPARATOR_LEN characters, other keys are
+	 * stored as they are.  Truncation preserves order, but different keys
+	 * may truncate to the same separator.  The components of composite keys
+	 * are not truncated, since a truncated component would no longer order
+	 * the components after it.
+	 * @param key - the key
+	 * @return the separator for key
+	 */
+	public static Field separatorKey(Field key) {
+		if (key instanceof StringField)
+			return new StringField(((StringField) key).getValue(), SEPARATOR_LEN);
+		return key;
+	}
+
+	/**
+	 * @param keyType - the type of the key field
+	 * @return the number of bytes a separator of the specified type takes
+	 * in an internal page
+	 */
+	public static int separatorSize(Type keyType) {
+		return keyType == Type.STRING_TYPE ? SEPARATOR_LEN + 4 : keyType.getLen();
+	}
+
+	/**
+	 * @return the number of bytes a key takes in this page: the size of
+	 * its separator, or the sum of the sizes of its components
+	 */
+	private int keySize() {
+		if (keyFields.length == 1)
+			return separatorSize(td.getFieldType(keyField));
+		int size = 0;
+		for (int k : keyFields)
+			size += td.getFieldType(k).getLen();
+		return size;
+	}
+
 	/**
 	 * Computes the number of bytes in the header of a B+ internal page with each entry occupying entrySize bytes
 	 * @return the number of bytes in the header
@@ -145,7 +212,7 @@ public class BTreeInternalPage extends BTreePage {
 			{
 				oldDataRef = oldData;
 			}
-			return new BTreeInternalPage(pid,oldDataRef,keyField);
+			return new BTreeInternalPage(pid,oldDataRef,keyFields);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -168,7 +235,7 @@ public class BTreeInternalPage extends BTreePage {
 		// if associated bit is not set, read forward to the next key, and
 		// return null.
 		if (!isSlotUsed(slotId)) {
-			for (int i=0; i<td.getFieldType(keyField).getLen(); i++) {
+			for (int i=0; i<keySize(); i++) {
 				try {
 					dis.readByte();
 				} catch (IOException e) {
@@ -181,7 +248,23 @@ public class BTreeInternalPage extends BTreePage {
 		// read the key field
 		Field f = null;
 		try {
-			f = td.getFieldType(keyField).parse(dis);
+			if (keyFields.length > 1) {
+				// a composite key is stored as its components, in full
+				Field[] fields = new Field[keyFields.length];
+				for (int k=0; k<fields.length; k++)
+					fields[k] = td.getFieldType(keyFields[k]).parse(dis);
+				f = new CompositeField(fields);
+			} else if (td.getFieldType(keyField) == Type.STRING_TYPE) {
+				int strLen = dis.readInt();
+				byte bs[] = new byte[strLen];
+				dis.readFully(bs);
+				dis.skipBytes(SEPARATOR_LEN - strLen);
+				f = new StringField(new String(bs), SEPARATOR_LEN);
+			} else {
+				f = td.getFieldType(keyField).parse(dis);
+			}
+		} catch (IOException e) {
+			throw new NoSuchElementException("error reading key");
 		} catch (java.text.ParseException e) {
 			e.printStackTrace();
 			throw new NoSuchElementException("parsing error!");
@@ -269,7 +352,7 @@ public class BTreeInternalPage extends BTreePage {
 
 			// empty slot
 			if (!isSlotUsed(i)) {
-				for (int j=0; j<td.getFieldType(keyField).getLen(); j++) {
+				for (int j=0; j<keySize(); j++) {
 					try {
 						dos.writeByte(0);
 					} catch (IOException e) {
@@ -316,7 +399,7 @@ public class BTreeInternalPage extends BTreePage {
 
 		// padding
 		int zerolen = BufferPool.getPageSize() - (INDEX_SIZE + 1 + header.length + 
-				td.getFieldType(keyField).getLen() * (keys.length - 1) + INDEX_SIZE * children.length); 
+				keySize() * (keys.length - 1) + INDEX_SIZE * children.length); 
 		byte[] zeroes = new byte[zerolen];
 		try {
 			dos.write(zeroes, 0, zerolen);
@@ -352,16 +435,19 @@ public class BTreeInternalPage extends BTreePage {
 			throw new DbException("tried to delete entry on invalid page or table");
 		if (!isSlotUsed(rid.getTupleNumber()))
 			throw new DbException("tried to delete null entry.");
+		int slot = rid.getTupleNumber();
+		int pos = dir.positionOf(slot);
 		if(deleteRightChild) {
-			markSlotUsed(rid.getTupleNumber(), false);
+			markSlotUsed(slot, false);
+			dir.remove(pos);
 		}
 		else {
-			for(int i = rid.getTupleNumber() - 1; i >= 0; i--) {
-				if(isSlotUsed(i)) {
-					children[i] = children[rid.getTupleNumber()];
-					markSlotUsed(rid.getTupleNumber(), false);
-					break;
-				}	
+			// the previous used slot takes over the right child
+			int prev = pos > 0 ? dir.slotAt(pos - 1) : 0;
+			if(isSlotUsed(prev)) {
+				children[prev] = children[slot];
+				markSlotUsed(slot, false);
+				dir.remove(pos);
 			}
 		}
 		e.setRecordId(null);
@@ -410,27 +496,26 @@ public class BTreeInternalPage extends BTreePage {
 		if (!isSlotUsed(rid.getTupleNumber()))
 			throw new DbException("tried to update null entry.");
 		
-		for(int i = rid.getTupleNumber() + 1; i < numSlots; i++) {
-			if(isSlotUsed(i)) {
-				if(keys[i].compare(Op.LESS_THAN, e.getKey())) {
-					throw new DbException("attempt to update entry with invalid key " + e.getKey() +
-							" HINT: updated key must be less than or equal to keys on the right");
-				}
-				break;
-			}	
+		Field key = separatorKey(e.getKey());
+		int slot = rid.getTupleNumber();
+		int pos = dir.positionOf(slot);
+		if(pos + 1 < dir.size()) {
+			if(keys[dir.slotAt(pos + 1)].compare(Op.LESS_THAN, key)) {
+				throw new DbException("attempt to update entry with invalid key " + key +
+						" HINT: updated key must be less than or equal to keys on the right");
+			}
 		}
-		for(int i = rid.getTupleNumber() - 1; i >= 0; i--) {
-			if(isSlotUsed(i)) {
-				if(i > 0 && keys[i].compare(Op.GREATER_THAN, e.getKey())) {
-					throw new DbException("attempt to update entry with invalid key " + e.getKey() +
-							" HINT: updated key must be greater than or equal to keys on the left");
-				}
-				children[i] = e.getLeftChild().getPageNumber();
-				break;
-			}	
+		int prev = pos > 0 ? dir.slotAt(pos - 1) : 0;
+		if(isSlotUsed(prev)) {
+			if(prev > 0 && keys[prev].compare(Op.GREATER_THAN, key)) {
+				throw new DbException("attempt to update entry with invalid key " + key +
+						" HINT: updated key must be greater than or equal to keys on the left");
+			}
+			children[prev] = e.getLeftChild().getPageNumber();
 		}
-		children[rid.getTupleNumber()] = e.getRightChild().getPageNumber();
-		keys[rid.getTupleNumber()] = e.getKey();
+		children[slot] = e.getRightChild().getPageNumber();
+		keys[slot] = key;
+		dir.setKey(pos, key);
 	}
 
 	/**
@@ -441,8 +526,10 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param e The entry to add.
 	 */
 	public void insertEntry(BTreeEntry e) throws DbException {
-		if (!e.getKey().getType().equals(td.getFieldType(keyField)))
+		if (!e.getKey().getType().equals(td.getFieldType(keyField))
+				|| (e.getKey() instanceof CompositeField ? ((CompositeField) e.getKey()).numFields() : 1) != keyFields.length)
 			throw new DbException("key field type mismatch, in insertEntry");
+		Field key = separatorKey(e.getKey());
 
 		if(e.getLeftChild().getTableId() != pid.getTableId() || e.getRightChild().getTableId() != pid.getTableId())
 			throw new DbException("table id mismatch in insertEntry");
@@ -460,49 +547,45 @@ public class BTreeInternalPage extends BTreePage {
 		if(getNumEmptySlots() == getMaxEntries()) {
 			children[0] = e.getLeftChild().getPageNumber();
 			children[1] = e.getRightChild().getPageNumber();
-			keys[1] = e.getKey();
+			keys[1] = key;
 			markSlotUsed(0, true);
 			markSlotUsed(1, true);
+			dir.insert(0, 1, key);
 			e.setRecordId(new RecordId(pid, 1));
 			return;
 		}
 
-		// find the first empty slot, starting from 1
-		int emptySlot = -1;
-		for (int i=1; i<numSlots; i++) {
-			if (!isSlotUsed(i)) {
-				emptySlot = i;
-				break;
-			}
-		}
-
-		if (emptySlot == -1)
+		if (dir.size() == numSlots - 1)
 			throw new DbException("called insertEntry on page with no empty slots.");        
 
-		// find the child pointer matching the left or right child in this entry
+		// find the child pointer matching the left or right child in this entry,
+		// visiting slot 0 and then the used slots in key order
 		int lessOrEqKey = -1;
-		for (int i=0; i<numSlots; i++) {
+		int lessOrEqPos = -1;
+		for (int p=-1; p<dir.size(); p++) {
+			int i = p < 0 ? 0 : dir.slotAt(p);
 			if(isSlotUsed(i)) {
 				if(children[i] == e.getLeftChild().getPageNumber() || children[i] == e.getRightChild().getPageNumber()) {
-					if(i > 0 && keys[i].compare(Op.GREATER_THAN, e.getKey())) {
+					if(i > 0 && keys[i].compare(Op.GREATER_THAN, key)) {
 						throw new DbException("attempt to insert invalid entry with left child " + 
 								e.getLeftChild().getPageNumber() + ", right child " +
-								e.getRightChild().getPageNumber() + " and key " + e.getKey() +
+								e.getRightChild().getPageNumber() + " and key " + key +
 								" HINT: one of these children must match an existing child on the page" +
 								" and this key must be correctly ordered in between that child's" +
 								" left and right keys");
 					}
 					lessOrEqKey = i;
+					lessOrEqPos = p;
 					if(children[i] == e.getRightChild().getPageNumber()) {
 						children[i] = e.getLeftChild().getPageNumber();
 					}
 				}
 				else if(lessOrEqKey != -1) {
 					// validate that the next key is greater than or equal to the one we are inserting
-					if(keys[i].compare(Op.LESS_THAN, e.getKey())) {
+					if(keys[i].compare(Op.LESS_THAN, key)) {
 						throw new DbException("attempt to insert invalid entry with left child " + 
 								e.getLeftChild().getPageNumber() + ", right child " +
-								e.getRightChild().getPageNumber() + " and key " + e.getKey() +
+								e.getRightChild().getPageNumber() + " and key " + key +
 								" HINT: one of these children must match an existing child on the page" +
 								" and this key must be correctly ordered in between that child's" +
 								" left and right keys");
@@ -515,47 +598,62 @@ public class BTreeInternalPage extends BTreePage {
 		if(lessOrEqKey == -1) {
 			throw new DbException("attempt to insert invalid entry with left child " + 
 					e.getLeftChild().getPageNumber() + ", right child " +
-					e.getRightChild().getPageNumber() + " and key " + e.getKey() +
+					e.getRightChild().getPageNumber() + " and key " + key +
 					" HINT: one of these children must match an existing child on the page" +
 					" and this key must be correctly ordered in between that child's" +
 					" left and right keys");
 		}
 
-		// shift entries back or forward to fill empty slot and make room for new entry
-		// while keeping entries in sorted order
-		int goodSlot = -1;
-		if(emptySlot < lessOrEqKey) {
-			for(int i = emptySlot; i < lessOrEqKey; i++) {
-				moveEntry(i+1, i);
-			}
-			goodSlot = lessOrEqKey;
+		// the new entry goes right after the matching child
+		int pos = lessOrEqPos + 1;
+		int left = lessOrEqKey;
+		int right = pos < dir.size() ? dir.slotAt(pos) : numSlots;
+
+		int goodSlot;
+		if(right - left > 1) {
+			// there is an empty slot between the neighbors
+			goodSlot = left + 1;
 		}
 		else {
-			for(int i = emptySlot; i > lessOrEqKey + 1; i--) {
-				moveEntry(i-1, i);
+			// shift the entries between the nearest empty slot and the
+			// insert position by one slot to make room; slot 0 never moves
+			int emptyLeft = left - 1;
+			while(emptyLeft >= 1 && isSlotUsed(emptyLeft))
+				emptyLeft--;
+			int emptyRight = right + 1;
+			while(emptyRight < numSlots && isSlotUsed(emptyRight))
+				emptyRight++;
+
+			if(emptyLeft >= 1 && (emptyRight >= numSlots || left - emptyLeft <= emptyRight - right)) {
+				moveEntries(emptyLeft + 1, emptyLeft, left - emptyLeft);
+				dir.shiftSlots(pos - (left - emptyLeft), pos, -1);
+				goodSlot = left;
+			}
+			else {
+				moveEntries(right, right + 1, emptyRight - right);
+				dir.shiftSlots(pos, pos + (emptyRight - right), 1);
+				goodSlot = right;
 			}
-			goodSlot = lessOrEqKey + 1;
 		}
 
 		// insert new entry into the correct spot in sorted order
 		markSlotUsed(goodSlot, true);
 		Debug.log(1, "BTreeLeafPage.insertEntry: new entry, tableId = %d pageId = %d slotId = %d", pid.getTableId(), pid.getPageNumber(), goodSlot);
-		keys[goodSlot] = e.getKey();
+		keys[goodSlot] = key;
 		children[goodSlot] = e.getRightChild().getPageNumber();
+		dir.insert(pos, goodSlot, key);
 		e.setRecordId(new RecordId(pid, goodSlot));
 	}
 
 	/**
-	 * Move an entry from one slot to another slot, and update the corresponding
-	 * headers
+	 * Move n used entries starting at slot from by one slot, into the empty
+	 * slot next to them, and update the corresponding headers.  The slot
+	 * the entries leave is left marked used.
 	 */
-	private void moveEntry(int from, int to) {
-		if(!isSlotUsed(to) && isSlotUsed(from)) {
-			markSlotUsed(to, true);
-			keys[to] = keys[from];
-			children[to] = children[from];
-			markSlotUsed(from, false);
-		}
+	private void moveEntries(int from, int to, int n) {
+		System.arraycopy(keys, from, keys, to, n);
+		System.arraycopy(children, from, children, to, n);
+		markSlotUsed(to < from ? to : to + n - 1, true);
 	}
 
 	/**
@@ -569,13 +667,9 @@ public class BTreeInternalPage extends BTreePage {
 	 * Returns the number of empty slots on this page.
 	 */
 	public int getNumEmptySlots() {
-		int cnt = 0;
-		// start from 1 because the first key slot is not used
-		// since a node with m keys has m+1 pointers
-		for(int i=1; i<numSlots; i++)
-			if(!isSlotUsed(i))
-				cnt++;
-		return cnt;
+		// the first key slot is not used since a node with m keys has
+		// m+1 pointers
+		return numSlots - 1 - dir.size();
 	}
 
 	/**
@@ -617,6 +711,70 @@ public class BTreeInternalPage extends BTreePage {
 		return new BTreeInternalPageReverseIterator(this);
 	}
 
+	Field getKeyAt(int slot) {
+		return keys[slot];
+	}
+
+	/**
+	 * Find the child to descend to when searching for a key: the left child
+	 * of the first entry whose key is greater than or equal to f, or the
+	 * right child of the last entry if there is none.  Uses a binary search
+	 * of the page's key directory.  Keys are compared as separators, so a
+	 * long string key that ties with a separator is sent to the left child,
+	 * and its matches may continue in the pages to the right.
+	 * @param f - the key to search for, or null for the left-most child
+	 * @return the id of the child page, or null if the page has no entries
+	 */
+	public BTreePageId findChild(Field f) {
+		if(dir.size() == 0 || !isSlotUsed(0))
+			return null;
+		int pos = f == null ? 0 : dir.lowerBound(separatorKey(f));
+		int slot = pos == 0 ? 0 : dir.slotAt(pos - 1);
+		return new BTreePageId(pid.getTableId(), children[slot], childCategory);
+	}
+
+	/**
+	 * Find the position among the children of this page of the child that
+	 * findChild(f), or findLastChild(f) if last is set, returns.
+	 * @param f - the key to search for
+	 * @param last - whether to find the position of findLastChild(f)
+	 * @return the position of the child, from 0 for the left-most child to
+	 * getNumEntries() for the right-most one
+	 */
+	public int findChildIndex(Field f, boolean last) {
+		return last ? dir.upperBound(separatorKey(f)) : dir.lowerBound(separatorKey(f));
+	}
+
+	/**
+	 * Find the upper bound of the keys of the child findChild(f) returns:
+	 * the key of the first entry whose key is greater than or equal to f.
+	 * @param f - the key to search for
+	 * @return the key of that entry, or null if there is none, in which case
+	 * the child shares the upper bound of this page
+	 */
+	public Field findChildBound(Field f) {
+		if(dir.size() == 0 || !isSlotUsed(0))
+			return null;
+		int pos = dir.lowerBound(separatorKey(f));
+		return pos < dir.size() ? keys[dir.slotAt(pos)] : null;
+	}
+
+	/**
+	 * Find the child to descend to when searching backwards from a key: the
+	 * right child of the last entry whose key is less than or equal to f, or
+	 * the left child of the first entry if there is none.  Every key of the
+	 * pages to the right of that child is greater than f.
+	 * @param f - the key to search for, or null for the right-most child
+	 * @return the id of the child page, or null if the page has no entries
+	 */
+	public BTreePageId findLastChild(Field f) {
+		if(dir.size() == 0 || !isSlotUsed(0))
+			return null;
+		int pos = f == null ? dir.size() : dir.upperBound(separatorKey(f));
+		int slot = pos == 0 ? 0 : dir.slotAt(pos - 1);
+		return new BTreePageId(pid.getTableId(), children[slot], childCategory);
+	}
+
 	/**
 	 * protected method used by the iterator to get the ith key out of this page
 	 * @param i - the index of the key
@@ -761,8 +919,14 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 			while (true) {
 				int entry = curEntry--;
 				Field key = p.getKey(entry);
-				BTreePageId childId = p.getChildId(entry - 1);
-				if(key != null && childId != null) {
+				if(key == null)
+					continue;
+				// the left child is in the nearest used slot below, which
+				// may be separated from this one by empty slots
+				while(curEntry > 0 && !p.isSlotUsed(curEntry))
+					--curEntry;
+				BTreePageId childId = p.getChildId(curEntry);
+				if(childId != null) {
 					nextToReturn = new BTreeEntry(key, childId, nextChildId);
 					nextToReturn.setRecordId(new RecordId(p.pid, entry));
 					nextChildId = childId;
@@ -0,0 +1,177 @@
+package simpledb;
+
+import java.util.Arrays;
+
+import simpledb.Predicate.Op;
+
+/**
+ * BTreeKeyDirectory is the in-memory search structure of a B+ tree page.
+ * It lists the used key slots of the page densely, in key order, next
+ * to a primitive long for each key that orders like the key itself, so
+ * that a key can be located with a binary search that compares longs
+ * and allocates nothing.
+ * <p>
+ * Int keys are stored exactly.  String keys are reduced to their first
+ * four characters; only when those are equal does the directory compare
+ * the full keys, which it reads back from the page.  Composite keys are
+ * reduced to their first component, and compared in full the same way.
+ * <p>
+ * Since the entries of a B+ tree page are kept in key order across its
+ * slots, the slot numbers in the directory are ascending as well, and a
+ * slot can be found without comparing keys at all.
+ * <p>
+ * The directory is not persisted; pages rebuild it when they are read.
+ */
+class BTreeKeyDirectory {
+
+	private final BTreePage page;
+	private final boolean exact; // the normalized keys order exactly like the keys
+	private final int[] slots;
+	private final long[] keys;
+	private int size = 0;
+
+	/**
+	 * Create an empty directory.
+	 * @param page - the page whose keys are stored, used to compare keys
+	 * whose normalized forms are equal
+	 * @param keyType - the type of the keys, or of their first component
+	 * @param capacity - the number of key slots of the page
+	 */
+	BTreeKeyDirectory(BTreePage page, Type keyType, int capacity) {
+		this.page = page;
+		this.exact = keyType == Type.INT_TYPE && page.keyFields.length == 1;
+		this.slots = new int[capacity];
+		this.keys = new long[capacity];
+	}
+
+	/**
+	 * Map a key to a long that orders like the key.  For string keys
+	 * and composite keys the order is only partial: different keys may map
+	 * to the same long.
+	 */
+	static long normalize(Field f) {
+		if (f instanceof CompositeField)
+			f = ((CompositeField) f).getField(0);
+		if (f instanceof IntField)
+			return ((IntField) f).getValue();
+		String s = ((StringField) f).getValue();
+		long k = 0;
+		for (int i = 0; i < 4; i++) {
+			k <<= 16;
+			if (i < s.length())
+				k |= s.charAt(i);
+		}
+		// flip the sign bit so that signed comparison orders the
+		// characters as unsigned values
+		return k ^ Long.MIN_VALUE;
+	}
+
+	/** @return the number of keys in the directory */
+	int size() {
+		return size;
+	}
+
+	/** @return the slot of the key at position pos, in key order */
+	int slotAt(int pos) {
+		return slots[pos];
+	}
+
+	// compare the key at position pos with key, whose normalized form is nk
+	private int compareAt(int pos, Field key, long nk) {
+		long k = keys[pos];
+		if (k != nk)
+			return k < nk ? -1 : 1;
+		if (exact)
+			return 0;
+		Field f = page.getKeyAt(slots[pos]);
+		if (f.compare(Op.LESS_THAN, key))
+			return -1;
+		return f.compare(Op.EQUALS, key) ? 0 : 1;
+	}
+
+	/**
+	 * @return the position of the first key greater than or equal to key,
+	 * or size() if there is none
+	 */
+	int lowerBound(Field key) {
+		long nk = normalize(key);
+		int lo = 0, hi = size;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (compareAt(mid, key, nk) < 0)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * @return the position of the first key greater than key, or size()
+	 * if there is none
+	 */
+	int upperBound(Field key) {
+		long nk = normalize(key);
+		int lo = 0, hi = size;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (compareAt(mid, key, nk) <= 0)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * @return the position of the key stored in slot, or -1 if the slot
+	 * is not in the directory
+	 */
+	int positionOf(int slot) {
+		int pos = Arrays.binarySearch(slots, 0, size, slot);
+		return pos < 0 ? -1 : pos;
+	}
+
+	/**
+	 * @return the position of the first key stored in a slot greater than
+	 * or equal to slot, or size() if there is none
+	 */
+	int positionAtOrAfter(int slot) {
+		int pos = Arrays.binarySearch(slots, 0, size, slot);
+		return pos < 0 ? -pos - 1 : pos;
+	}
+
+	/**
+	 * Insert a key at position pos, shifting the following keys.
+	 * @param pos - the position of the new key in key order
+	 * @param slot - the slot the key is stored in
+	 * @param key - the key
+	 */
+	void insert(int pos, int slot, Field key) {
+		System.arraycopy(slots, pos, slots, pos + 1, size - pos);
+		System.arraycopy(keys, pos, keys, pos + 1, size - pos);
+		slots[pos] = slot;
+		keys[pos] = normalize(key);
+		size++;
+	}
+
+	/** Remove the key at position pos, shifting the following keys. */
+	void remove(int pos) {
+		System.arraycopy(slots, pos + 1, slots, pos, size - pos - 1);
+		System.arraycopy(keys, pos + 1, keys, pos, size - pos - 1);
+		size--;
+	}
+
+	/** Replace the key at position pos, which must not change the order. */
+	void setKey(int pos, Field key) {
+		keys[pos] = normalize(key);
+	}
+
+	/**
+	 * Record that the keys at positions [from, to) moved by delta slots.
+	 */
+	void shiftSlots(int from, int to, int delta) {
+		for (int pos = from; pos < to; pos++)
+			slots[pos] += delta;
+	}
+}
@@ -15,6 +15,7 @@ public class BTreeLeafPage extends BTreePage {
 	private final byte header[];
 	private final Tuple tuples[];
 	private final int numSlots;
+	private final BTreeKeyDirectory dir; // the used slots in key order
 	
 	private int leftSibling; // leaf node or 0
 	private int rightSibling; // leaf node or 0
@@ -26,13 +27,15 @@ public class BTreeLeafPage extends BTreePage {
 		Iterator<Tuple> it = this.iterator();
 		while (it.hasNext()) {
 			Tuple t = it.next();
-			assert(null == prev || prev.compare(Predicate.Op.LESS_THAN_OR_EQ, t.getField(fieldid)));
-			prev = t.getField(fieldid);
+			Field key = fieldid == keyField ? key(t) : t.getField(fieldid);
+			assert(null == prev || prev.compare(Predicate.Op.LESS_THAN_OR_EQ, key));
+			prev = key;
 			assert(t.getRecordId().getPageId().equals(this.getId()));
 		}
 
+		// the bounds are separators, which internal pages store truncated
 		if (null != upperBound && null != prev){
-			assert(prev.compare(Predicate.Op.LESS_THAN_OR_EQ, upperBound));
+			assert(BTreeInternalPage.separatorKey(prev).compare(Predicate.Op.LESS_THAN_OR_EQ, upperBound));
 		}
 
 		if (checkoccupancy && depth > 0) {
@@ -62,7 +65,19 @@ public class BTreeLeafPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeLeafPage(BTreePageId id, byte[] data, int key) throws IOException {
-		super(id, key);
+		this(id, data, new int[] { key });
+	}
+
+	/**
+	 * Create a BTreeLeafPage of a B+ tree keyed on several fields from a set
+	 * of bytes of data read from disk.
+	 * 
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param keyFields - the fields which the index is keyed on, in order
+	 */
+	public BTreeLeafPage(BTreePageId id, byte[] data, int[] keyFields) throws IOException {
+		super(id, keyFields);
 		this.numSlots = getMaxTuples();
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
@@ -103,6 +118,13 @@ public class BTreeLeafPage extends BTreePage {
 		}
 		dis.close();
 
+		// the tuples are stored in key order, so the directory is built
+		// without comparing keys
+		dir = new BTreeKeyDirectory(this, td.getFieldType(keyField), numSlots);
+		for (int i=0; i<tuples.length; i++)
+			if (isSlotUsed(i))
+				dir.insert(dir.size(), i, key(tuples[i]));
+
 		setBeforeImage();
 	}
 
@@ -137,7 +159,7 @@ public class BTreeLeafPage extends BTreePage {
 			{
 				oldDataRef = oldData;
 			}
-			return new BTreeLeafPage(pid,oldDataRef,keyField);
+			return new BTreeLeafPage(pid,oldDataRef,keyFields);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -295,6 +317,7 @@ public class BTreeLeafPage extends BTreePage {
 		if (!isSlotUsed(rid.getTupleNumber()))
 			throw new DbException("tried to delete null tuple.");
 		markSlotUsed(rid.getTupleNumber(), false);
+		dir.remove(dir.positionOf(rid.getTupleNumber()));
 		t.setRecordId(null);
 	}
 
@@ -310,44 +333,40 @@ public class BTreeLeafPage extends BTreePage {
 		if (!t.getTupleDesc().equals(td))
 			throw new DbException("type mismatch, in addTuple");
 
-		// find the first empty slot 
-		int emptySlot = -1;
-		for (int i=0; i<numSlots; i++) {
-			if (!isSlotUsed(i)) {
-				emptySlot = i;
-				break;
-			}
-		}
-
-		if (emptySlot == -1)
+		if (dir.size() == numSlots)
 			throw new DbException("called addTuple on page with no empty slots.");
 
-		// find the last key less than or equal to the key being inserted
-		int lessOrEqKey = -1;
-		Field key = t.getField(keyField);
-		for (int i=0; i<numSlots; i++) {
-			if(isSlotUsed(i)) {
-				if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
-					lessOrEqKey = i;
-				else
-					break;	
-			}
-		}
+		// the new record goes after the last key less than or equal to its key
+		Field key = key(t);
+		int pos = dir.upperBound(key);
+		int left = pos > 0 ? dir.slotAt(pos - 1) : -1;
+		int right = pos < dir.size() ? dir.slotAt(pos) : numSlots;
 
-		// shift records back or forward to fill empty slot and make room for new record
-		// while keeping records in sorted order
-		int goodSlot = -1;
-		if(emptySlot < lessOrEqKey) {
-			for(int i = emptySlot; i < lessOrEqKey; i++) {
-				moveRecord(i+1, i);
-			}
-			goodSlot = lessOrEqKey;
+		int goodSlot;
+		if (right - left > 1) {
+			// there is an empty slot between the neighbors
+			goodSlot = left + 1;
 		}
 		else {
-			for(int i = emptySlot; i > lessOrEqKey + 1; i--) {
-				moveRecord(i-1, i);
+			// shift the records between the nearest empty slot and the
+			// insert position by one slot to make room
+			int emptyLeft = left - 1;
+			while (emptyLeft >= 0 && isSlotUsed(emptyLeft))
+				emptyLeft--;
+			int emptyRight = right + 1;
+			while (emptyRight < numSlots && isSlotUsed(emptyRight))
+				emptyRight++;
+
+			if (emptyLeft >= 0 && (emptyRight >= numSlots || left - emptyLeft <= emptyRight - right)) {
+				moveRecords(emptyLeft + 1, emptyLeft, left - emptyLeft);
+				dir.shiftSlots(pos - (left - emptyLeft), pos, -1);
+				goodSlot = left;
+			}
+			else {
+				moveRecords(right, right + 1, emptyRight - right);
+				dir.shiftSlots(pos, pos + (emptyRight - right), 1);
+				goodSlot = right;
 			}
-			goodSlot = lessOrEqKey + 1;
 		}
 
 		// insert new record into the correct spot in sorted order
@@ -356,20 +375,19 @@ public class BTreeLeafPage extends BTreePage {
 		RecordId rid = new RecordId(pid, goodSlot);
 		t.setRecordId(rid);
 		tuples[goodSlot] = t;
+		dir.insert(pos, goodSlot, key);
 	}
 
 	/**
-	 * Move a record from one slot to another slot, and update the corresponding
-	 * headers and RecordId
+	 * Move n used records starting at slot from by one slot, into the empty
+	 * slot next to them, and update the corresponding headers and RecordIds.
+	 * The slot the records leave is left marked used.
 	 */
-	private void moveRecord(int from, int to) {
-		if(!isSlotUsed(to) && isSlotUsed(from)) {
-			markSlotUsed(to, true);
-			RecordId rid = new RecordId(pid, to);
-			tuples[to] = tuples[from];
-			tuples[to].setRecordId(rid);
-			markSlotUsed(from, false);
-		}
+	private void moveRecords(int from, int to, int n) {
+		System.arraycopy(tuples, from, tuples, to, n);
+		markSlotUsed(to < from ? to : to + n - 1, true);
+		for (int i = to; i < to + n; i++)
+			tuples[i].setRecordId(new RecordId(pid, i));
 	}
 
 	/**
@@ -445,11 +463,7 @@ public class BTreeLeafPage extends BTreePage {
 	 * Returns the number of empty slots on this page.
 	 */
 	public int getNumEmptySlots() {
-		int cnt = 0;
-		for(int i=0; i<numSlots; i++)
-			if(!isSlotUsed(i))
-				cnt++;
-		return cnt;
+		return numSlots - dir.size();
 	}
 
 	/**
@@ -491,6 +505,10 @@ public class BTreeLeafPage extends BTreePage {
 		return new BTreeLeafPageReverseIterator(this);
 	}
 
+	Field getKeyAt(int slot) {
+		return key(tuples[slot]);
+	}
+
 	/**
 	 * protected method used by the iterator to get the ith tuple out of this page
 	 * @param i - the index of the tuple
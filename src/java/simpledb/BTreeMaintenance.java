@@ -0,0 +1,112 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BTreeMaintenance rebalances a B+ tree in the background.  Deletions that
+ * leave a page between the minimum occupancy of the tree and half full
+ * defer its rebalancing (see {@link BTreeFile#setMinOccupancy(double)});
+ * every period, a maintenance thread rebalances the deferred pages in a
+ * transaction of its own, so that pages emptied and refilled in between
+ * are never merged and split, and the rest are rebalanced in one batch.
+ * The transaction is a {@link Transaction}, which is logged, so that
+ * recovery redoes the rebalancing once it commits like that of any other.
+ * <p>
+ * A maintenance transaction that is aborted, say because it waited too
+ * long for a lock held by a user transaction, or that fails, even while it
+ * commits, leaves the pages deferred, and they are rebalanced in the next
+ * period.
+ *
+ * @Threadsafe
+ */
+public class BTreeMaintenance {
+
+    private final BTreeFile file;
+    private final ScheduledExecutorService executor;
+
+    private long rounds = 0;    // protected by this
+
+    /**
+     * Start rebalancing a B+ tree in the background.
+     *
+     * @param file the B+ tree, which must be in the catalog
+     * @param period the time between two rounds of rebalancing, in milliseconds
+     */
+    public BTreeMaintenance(BTreeFile file, long period) {
+        if (period <= 0)
+            throw new IllegalArgumentException("the period must be positive");
+        this.file = file;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "btree-maintenance");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                runOnce();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Rebalance the deferred pages of the tree in a transaction, if there
+     * are any, and commit it.
+     *
+     * @return whether the pages were rebalanced, rather than left for the
+     * next round because the transaction was aborted
+     */
+    public boolean runOnce() {
+        if (file.numDeferredPages() == 0)
+            return true;
+        Transaction t = new Transaction();
+        t.start();
+        try {
+            Database.getBufferPool().rebalance(t.getId(), file.getId());
+            t.commit();
+            synchronized (this) {
+                rounds++;
+            }
+            return true;
+        } catch (TransactionAbortedException e) {
+            abort(t);
+        } catch (DbException e) {
+            e.printStackTrace();
+            abort(t);
+        } catch (IOException e) {
+            e.printStackTrace();
+            abort(t);
+        } catch (RuntimeException e) {
+            // keep the maintenance thread running for the next round
+            e.printStackTrace();
+            abort(t);
+        }
+        return false;
+    }
+
+    private static void abort(Transaction t) {
+        try {
+            t.abort();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** @return the number of rounds that rebalanced deferred pages */
+    public synchronized long getRounds() {
+        return rounds;
+    }
+
+    /**
+     * Stop rebalancing the tree, waiting for a round in progress to end.
+     */
+    public void shutdown() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+}
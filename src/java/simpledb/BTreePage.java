@@ -19,9 +19,11 @@ public abstract class BTreePage implements Page {
 	protected final BTreePageId pid;
 	protected final TupleDesc td;
 	protected final int keyField;
+	protected final int[] keyFields;
 
 	protected int parent; // parent is always internal node or 0 for root node
 	protected byte[] oldData;
+	protected volatile long lsn = -1;
 	protected final Byte oldDataLock=new Byte((byte)0);
 
 	/**
@@ -49,11 +51,33 @@ public abstract class BTreePage implements Page {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreePage(BTreePageId id, int key) throws IOException {
+		this(id, new int[] { key });
+	}
+
+	/**
+	 * Create a BTreePage of a B+ tree keyed on several fields, whose keys
+	 * are CompositeFields ordered by keys[0], then keys[1], and so on.
+	 * 
+	 * @param id - the id of this page
+	 * @param keys - the fields which the index is keyed on, in order
+	 */
+	public BTreePage(BTreePageId id, int[] keys) throws IOException {
 		this.pid = id;
-		this.keyField = key;
+		this.keyField = keys[0];
+		this.keyFields = keys.clone();
 		this.td = Database.getCatalog().getTupleDesc(id.getTableId());
 	}
 
+	/**
+	 * @return the key of tuple t: the key field of t, or the composite of
+	 * the key fields of t if the B+ tree is keyed on several fields
+	 */
+	protected Field key(Tuple t) {
+		if (keyFields.length == 1)
+			return t.getField(keyField);
+		return CompositeField.of(t, keyFields);
+	}
+
 	/**
 	 * @return the PageId associated with this page.
 	 */
@@ -128,6 +152,20 @@ public abstract class BTreePage implements Page {
 			return null;
 	}
 
+	public long getLSN() {
+		return lsn;
+	}
+
+	public void setLSN(long lsn) {
+		this.lsn = lsn;
+	}
+
+	/**
+	 * Returns the key stored in the specified used slot, for the page's
+	 * key directory.
+	 */
+	abstract Field getKeyAt(int slot);
+
 	/**
 	 * Returns the number of empty slots on this page.
 	 */
@@ -23,6 +23,7 @@ public class BTreeRootPtrPage implements Page {
 	private int header;
 
 	private byte[] oldData;
+	private volatile long lsn = -1;
 
 	/**
 	 * Constructor.
@@ -138,6 +139,14 @@ public class BTreeRootPtrPage implements Page {
 			return null;
 	}
 
+	public long getLSN() {
+		return lsn;
+	}
+
+	public void setLSN(long lsn) {
+		this.lsn = lsn;
+	}
+
 	/** Return a view of this page before it was modified
         -- used by recovery */
 	public BTreeRootPtrPage getBeforeImage(){
@@ -14,7 +14,10 @@ public class BTreeScan implements OpIterator {
 	private TransactionId tid;
 	private TupleDesc myTd;
 	private IndexPredicate ipred = null;
+	private IndexPredicate upper = null;
+	private boolean reverse = false;
 	private transient DbFileIterator it;
+	private int tableid;
 	private String tablename;
 	private String alias;
 
@@ -43,6 +46,36 @@ public class BTreeScan implements OpIterator {
 		reset(tableid,tableAlias);
 	}
 
+	/**
+	 * Creates a B+ tree scan over the tuples of the specified table whose keys
+	 * lie in a range, in ascending or descending key order.
+	 *
+	 * @param tid
+	 *            The transaction this scan is running as a part of.
+	 * @param tableid
+	 *            the table to scan.
+	 * @param tableAlias
+	 *            the alias of this table (needed by the parser)
+	 * @param ipred
+	 *            The index predicate to match, the lower bound of the range if
+	 *            there is an upper bound too, or null
+	 * @param upper
+	 *            a LESS_THAN or LESS_THAN_OR_EQ predicate to match too, or null
+	 * @param reverse
+	 *            true to return the tuples in descending key order, reading
+	 *            the tree from the right end of the range
+	 * @see BTreeFile#indexIterator(TransactionId, IndexPredicate, IndexPredicate)
+	 * @see BTreeFile#reverseIndexIterator(TransactionId, IndexPredicate, IndexPredicate)
+	 */
+	public BTreeScan(TransactionId tid, int tableid, String tableAlias, IndexPredicate ipred,
+			IndexPredicate upper, boolean reverse) {
+		this.tid = tid;
+		this.ipred = ipred;
+		this.upper = upper;
+		this.reverse = reverse;
+		reset(tableid,tableAlias);
+	}
+
 	/**
 	 * @return
 	 *       return the table name of the table the operator scans. This should
@@ -60,6 +93,29 @@ public class BTreeScan implements OpIterator {
 		return this.alias;
 	}
 
+	/**
+	 * @return the index predicate the tuples returned satisfy, or null if
+	 *         the scan returns all tuples
+	 */
+	public IndexPredicate getIndexPredicate() {
+		return ipred;
+	}
+
+	/**
+	 * @return the upper bound of the range the tuples returned lie in, if
+	 *         the scan has one besides its index predicate, or null
+	 */
+	public IndexPredicate getUpperPredicate() {
+		return upper;
+	}
+
+	/**
+	 * @return true if the scan returns the tuples in descending key order
+	 */
+	public boolean isReverse() {
+		return reverse;
+	}
+
 	/**
 	 * Reset the tableid, and tableAlias of this operator.
 	 * @param tableid
@@ -74,13 +130,18 @@ public class BTreeScan implements OpIterator {
 	 */
 	public void reset(int tableid, String tableAlias) {
 		this.isOpen=false;
+		this.tableid = tableid;
 		this.alias = tableAlias;
 		this.tablename = Database.getCatalog().getTableName(tableid);
-		if(ipred == null) {
-			this.it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
+		BTreeFile f = (BTreeFile) Database.getCatalog().getDatabaseFile(tableid);
+		if (upper != null) {
+			this.it = reverse ? f.reverseIndexIterator(tid, ipred, upper) : f.indexIterator(tid, ipred, upper);
+		}
+		else if (ipred == null) {
+			this.it = reverse ? f.reverseIterator(tid) : f.iterator(tid);
 		}
 		else {
-			this.it = ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).indexIterator(tid, ipred);
+			this.it = reverse ? f.reverseIndexIterator(tid, ipred) : f.indexIterator(tid, ipred);
 		}
 		myTd = Database.getCatalog().getTupleDesc(tableid);
 		String[] newNames = new String[myTd.numFields()];
@@ -99,6 +160,17 @@ public class BTreeScan implements OpIterator {
 		this(tid, tableid, Database.getCatalog().getTableName(tableid), ipred);
 	}
 
+	/**
+	 * Look up the tuples of the scanned table that satisfy another predicate
+	 * on its key, in the transaction of this scan.  The predicate of the
+	 * scan itself is not applied.
+	 * @param ipred - the predicate to match
+	 * @return an iterator over the matching tuples, in key order
+	 */
+	public DbFileIterator probe(IndexPredicate ipred) {
+		return ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).indexIterator(tid, ipred);
+	}
+
 	public void open() throws DbException, TransactionAbortedException {
 		if (isOpen)
 			throw new DbException("double open on one OpIterator.");
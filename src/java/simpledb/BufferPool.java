@@ -3,7 +3,7 @@ package simpledb;
 import java.io.*;
 
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.*;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -40,7 +40,20 @@ public class BufferPool {
     ConcurrentHashMap<PageId, HashSet<TransactionId>> shared_p_t;
     ConcurrentHashMap<PageId, TransactionId> exclusive_p_t;
     HashSet<TransactionId> deadlock;
+    // guards changes to the lock tables.  Waiting for a lock happens under
+    // the BufferPool monitor, so releasing a lock must not need it
+    private final Object lockTable = new Object();
     int nowTime = 0;
+    // the pages being read ahead of scans, guarded by itself.  discardPage()
+    // takes a page out, so that a copy read as the page was written is not
+    // added to the buffer pool
+    private final HashSet<PageId> reading = new HashSet<PageId>();
+    // the listeners to tell when each transaction completes
+    private final ConcurrentHashMap<TransactionId, Set<TransactionListener>> listeners =
+            new ConcurrentHashMap<TransactionId, Set<TransactionListener>>();
+
+    private static final int PREFETCH_THREADS = 2;
+    private static ExecutorService prefetcher = null;
 
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -97,6 +110,19 @@ public class BufferPool {
             usedTime.put(pid, ++nowTime);
             return totPage.get(pid);
         }
+        // wait for a read of the page ahead of a scan, rather than read it twice
+        synchronized (reading) {
+            try {
+                while (reading.contains(pid))
+                    reading.wait();
+            } catch (InterruptedException e) {
+                throw new TransactionAbortedException();
+            }
+        }
+        if (totPage.containsKey(pid)) {
+            usedTime.put(pid, ++nowTime);
+            return totPage.get(pid);
+        }
         try {
             while (totPage.size() >= numPage) {
                 evictPage();
@@ -111,6 +137,89 @@ public class BufferPool {
         return null;
     }
 
+    // end a read of a page ahead of a scan, and return whether it was
+    // neither ended already nor taken out by discardPage()
+    private boolean doneReading(PageId pid) {
+        synchronized (reading) {
+            reading.notifyAll();
+            return reading.remove(pid);
+        }
+    }
+
+    /**
+     * Run a task that reads pages ahead of a scan on a background thread.
+     * The threads are shared by every buffer pool, since tests replace the
+     * buffer pool often.
+     */
+    public static void prefetch(Runnable task) {
+        synchronized (BufferPool.class) {
+            if (prefetcher == null) {
+                prefetcher = Executors.newFixedThreadPool(PREFETCH_THREADS, new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "buffer-pool-prefetch");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
+        }
+        prefetcher.submit(task);
+    }
+
+    /**
+     * Read a page into the buffer pool ahead of its use, without taking a
+     * lock on it.  A page that is already in the buffer pool is returned
+     * as it is, and a page that is read is only added to the buffer pool if
+     * it was neither added nor discarded (as every page written to disk is)
+     * while it was read, so a newer copy of a page is never replaced.
+     *
+     * @param pid the ID of the page to read
+     * @return the page, or null if it is already being read, or it was not
+     *         added to the buffer pool because it has no room left or a
+     *         newer copy of the page was put in it
+     */
+    public Page prefetchPage(PageId pid) throws IOException {
+        synchronized (this) {
+            Page p = totPage.get(pid);
+            if (p != null)
+                return p;
+            synchronized (reading) {
+                if (!reading.add(pid))
+                    return null;
+            }
+            try {
+                if (totPage.size() >= numPage)
+                    evictPage();
+            } catch (DbException e) {
+                // every page is dirty; do not read ahead of the scan
+                doneReading(pid);
+                return null;
+            }
+        }
+        Page p = null;
+        try {
+            p = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+        } finally {
+            if (p == null)
+                doneReading(pid);
+        }
+        // getPage() may wait for the read under the monitor of this buffer
+        // pool, so the page is added without it
+        synchronized (reading) {
+            if (!doneReading(pid) || totPage.size() >= numPage || totPage.putIfAbsent(pid, p) != null)
+                return null;
+            usedTime.put(pid, ++nowTime);
+            return p;
+        }
+    }
+
+    /**
+     * @return true if the page is in the buffer pool
+     */
+    public boolean isCached(PageId pid) {
+        return totPage.containsKey(pid);
+    }
+
     /**
      * Releases the lock on a page.
      * Calling this is very risky, and may result in wrong behavior. Think hard
@@ -123,7 +232,17 @@ public class BufferPool {
     public void releasePage(TransactionId tid, PageId pid) {
         // some code goes here
         // not necessary for lab1|lab2
+        synchronized (lockTable) {
+            releaseLock(tid, pid);
+        }
+    }
 
+    // the sets in the lock tables are replaced rather than modified, so that
+    // a thread waiting for a lock may iterate over them without the lockTable.
+    // A transaction left with no locks is taken out of the tables, so that
+    // one that only ever held locks briefly, as to estimate from the pages
+    // of a B+ tree, leaves nothing behind
+    private void releaseLock(TransactionId tid, PageId pid) {
         if (shared_p_t.containsKey(pid)) {
             HashSet<TransactionId> af = new HashSet<>();
             if (shared_p_t.get(pid) != null)
@@ -133,7 +252,7 @@ public class BufferPool {
                 }
             shared_p_t.put(pid, af);
         }
-        exclusive_p_t.remove(pid);
+        exclusive_p_t.remove(pid, tid);
         if (shared_t_p.containsKey(tid)) {
             HashSet<PageId> af = new HashSet<>();
             if (shared_t_p.get(tid) != null)
@@ -141,7 +260,10 @@ public class BufferPool {
                     if (!i.equals(pid))
                         af.add(i);
                 }
-            shared_t_p.put(tid, af);
+            if (af.isEmpty())
+                shared_t_p.remove(tid);
+            else
+                shared_t_p.put(tid, af);
         }
         if (exclusive_t_p.containsKey(tid)) {
             HashSet<PageId> af = new HashSet<>();
@@ -150,7 +272,10 @@ public class BufferPool {
                     if (!i.equals(pid))
                         af.add(i);
                 }
-            exclusive_t_p.put(tid, af);
+            if (af.isEmpty())
+                exclusive_t_p.remove(tid);
+            else
+                exclusive_t_p.put(tid, af);
         }
     }
 
@@ -200,19 +325,7 @@ public class BufferPool {
                     }
             }
         }
-        if (pess == Permissions.READ_ONLY) {
-            HashSet<TransactionId> tmp = shared_p_t.get(pid);
-            if (tmp == null)
-                tmp = new HashSet<>();
-            tmp.add(tid);
-            shared_p_t.put(pid, tmp);
-            HashSet<PageId> tmp2 = shared_t_p.get(tid);
-            if (tmp2 == null)
-                tmp2 = new HashSet<>();
-            tmp2.add(pid);
-            shared_t_p.put(tid, tmp2);
-
-        } else {
+        if (pess == Permissions.READ_WRITE) {
             synchronized (this) {
                 long begintime = System.currentTimeMillis();
                 while (!canWrite(tid, pid))
@@ -229,22 +342,33 @@ public class BufferPool {
                         else throw new TransactionAbortedException();
                     }
             }
-            HashSet<TransactionId> tmp = shared_p_t.get(pid);
-            if (tmp == null)
-                tmp = new HashSet<>();
-            tmp.remove(tid);
+        }
+        synchronized (lockTable) {
+            grantLock(tid, pid, pess);
+        }
+    }
+
+    // record a granted lock, replacing the sets it changes (see releaseLock)
+    private void grantLock(TransactionId tid, PageId pid, Permissions pess) {
+        HashSet<TransactionId> tmp = shared_p_t.get(pid);
+        tmp = tmp == null ? new HashSet<TransactionId>() : new HashSet<TransactionId>(tmp);
+        HashSet<PageId> tmp2 = shared_t_p.get(tid);
+        tmp2 = tmp2 == null ? new HashSet<PageId>() : new HashSet<PageId>(tmp2);
+        if (pess == Permissions.READ_ONLY) {
+            tmp.add(tid);
+            tmp2.add(pid);
             shared_p_t.put(pid, tmp);
-            HashSet<PageId> tmp2 = shared_t_p.get(tid);
-            if (tmp2 == null)
-                tmp2 = new HashSet<>();
+            shared_t_p.put(tid, tmp2);
+        } else {
+            tmp.remove(tid);
             tmp2.remove(pid);
+            shared_p_t.put(pid, tmp);
             shared_t_p.put(tid, tmp2);
             exclusive_p_t.put(pid, tid);
-            tmp2 = exclusive_t_p.get(tid);
-            if (tmp2 == null)
-                tmp2 = new HashSet<>();
-            tmp2.add(pid);
-            exclusive_t_p.put(tid, tmp2);
+            HashSet<PageId> tmp3 = exclusive_t_p.get(tid);
+            tmp3 = tmp3 == null ? new HashSet<PageId>() : new HashSet<PageId>(tmp3);
+            tmp3.add(pid);
+            exclusive_t_p.put(tid, tmp3);
         }
     }
 
@@ -266,6 +390,18 @@ public class BufferPool {
         return false;
     }
 
+    /**
+     * Have a listener told when a transaction commits or aborts.  A listener
+     * added more than once for a transaction is told once.
+     *
+     * @param tid      the transaction to listen to
+     * @param listener the listener to tell
+     */
+    public void addTransactionListener(TransactionId tid, TransactionListener listener) {
+        listeners.computeIfAbsent(tid, t -> Collections.synchronizedSet(new LinkedHashSet<TransactionListener>()))
+                .add(listener);
+    }
+
     /**
      * Commit or abort a given transaction; release all locks associated to
      * the transaction.
@@ -293,19 +429,31 @@ public class BufferPool {
                     discardPage(i);
             }
         }
-        exclusive_t_p.remove(tid);
-        shared_t_p.remove(tid);
-
-        for (HashSet<TransactionId> i : shared_p_t.values()) {
-            if (i != null)
-                i.remove(tid);
+        // the files that keep state of their own for the transaction, such
+        // as the writes LSM files keep aside until it completes
+        Set<TransactionListener> toTell = listeners.remove(tid);
+        if (toTell != null) {
+            for (TransactionListener listener : toTell)
+                listener.transactionComplete(tid, commit);
+        }
+        synchronized (lockTable) {
+            exclusive_t_p.remove(tid);
+            shared_t_p.remove(tid);
+
+            for (Map.Entry<PageId, HashSet<TransactionId>> i : shared_p_t.entrySet()) {
+                if (i.getValue() != null && i.getValue().contains(tid)) {
+                    HashSet<TransactionId> af = new HashSet<>(i.getValue());
+                    af.remove(tid);
+                    shared_p_t.put(i.getKey(), af);
+                }
+            }
+            ArrayList<PageId> tmp = new ArrayList<>();
+            for (PageId i : exclusive_p_t.keySet())
+                if (exclusive_p_t.get(i) != null && exclusive_p_t.get(i).equals(tid))
+                    tmp.add(i);
+            for (PageId i : tmp)
+                exclusive_p_t.remove(i, tid);
         }
-        ArrayList<PageId> tmp = new ArrayList<>();
-        for (PageId i : exclusive_p_t.keySet())
-            if (exclusive_p_t.get(i) != null && exclusive_p_t.get(i).equals(tid))
-                tmp.add(i);
-        for (PageId i : tmp)
-            exclusive_p_t.remove(i);
 
 
 //        if (exclusive_t_p.containsKey(tid) && exclusive_t_p.get(tid) != null)
@@ -336,6 +484,8 @@ public class BufferPool {
      * their markDirty bit, and adds versions of any pages that have
      * been dirtied to the cache (replacing any existing versions of those pages) so
      * that future requests see up-to-date pages.
+     * <p>
+     * Also adds an entry for the tuple to every secondary index on the table.
      *
      * @param tid     the transaction adding the tuple
      * @param tableId the table to add the tuple to
@@ -350,6 +500,38 @@ public class BufferPool {
         for (Page page : u) {
             if (page != null)
                 usedTime.put(page.getId(), ++nowTime);
+            page.markDirty(true, tid);
+            totPage.put(page.getId(), page);
+        }
+        // the tuple now has its RecordId, which the indexes point to
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId))
+            insertTuple(tid, index.getFile().getId(), index.entry(t));
+    }
+
+    /**
+     * Add a batch of tuples to the specified table on behalf of transaction
+     * tid.  A table stored in a B+ tree inserts them with
+     * {@link BTreeFile#insertTuples(TransactionId, List)}, in key order and a
+     * leaf page at a time; other tables insert them one by one, as
+     * insertTuple does.  Marks the pages that were dirtied as dirty, as
+     * insertTuple does.
+     *
+     * @param tid     the transaction adding the tuples
+     * @param tableId the table to add the tuples to
+     * @param tuples  the tuples to add
+     */
+    public synchronized void insertTuples(TransactionId tid, int tableId, List<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(file instanceof BTreeFile) || !Database.getCatalog().getIndexes(tableId).isEmpty()) {
+            for (Tuple t : tuples)
+                insertTuple(tid, tableId, t);
+            return;
+        }
+        ArrayList<Page> u = ((BTreeFile) file).insertTuples(tid, tuples);
+        for (Page page : u) {
+            usedTime.put(page.getId(), ++nowTime);
+            page.markDirty(true, tid);
             totPage.put(page.getId(), page);
         }
     }
@@ -363,6 +545,9 @@ public class BufferPool {
      * their markDirty bit, and adds versions of any pages that have
      * been dirtied to the cache (replacing any existing versions of those pages) so
      * that future requests see up-to-date pages.
+     * <p>
+     * Also removes the entry for the tuple from every secondary index on the
+     * table.
      *
      * @param tid the transaction deleting the tuple.
      * @param t   the tuple to delete
@@ -371,12 +556,66 @@ public class BufferPool {
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
-        DbFile file = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
+        int tableId = t.getRecordId().getPageId().getTableId();
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+            Tuple entry = index.findEntry(tid, t);
+            if (entry == null)
+                throw new DbException("index on field " + index.getKeyField() + " has no entry for " + t);
+            deleteTuple(tid, entry);
+        }
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
         ArrayList<Page> u = file.deleteTuple(tid, t);
         for (Page page : u) {
-            if (page.isDirty() != null) {
-                totPage.put(page.getId(), page);
-            }
+            page.markDirty(true, tid);
+            totPage.put(page.getId(), page);
+        }
+    }
+
+    /**
+     * Remove the tuples whose keys lie in a range from a table stored in a
+     * B+ tree, with {@link BTreeFile#deleteRange(TransactionId, IndexPredicate, IndexPredicate)}.
+     * Marks the pages that were dirtied as dirty, as deleteTuple does.
+     * <p>
+     * Secondary indexes are built over heap tables, so the table has none to
+     * maintain.
+     *
+     * @param tid     the transaction deleting the tuples
+     * @param tableId the table to delete the tuples from
+     * @param lower   the lower bound of the range, or null
+     * @param upper   the upper bound of the range, or null
+     */
+    public synchronized void deleteRange(TransactionId tid, int tableId, IndexPredicate lower, IndexPredicate upper)
+            throws DbException, IOException, TransactionAbortedException {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(file instanceof BTreeFile))
+            throw new DbException("table " + tableId + " is not stored in a B+ tree");
+        if (!Database.getCatalog().getIndexes(tableId).isEmpty())
+            throw new DbException("range deletion does not maintain secondary indexes");
+        BTreeFile btree = (BTreeFile) file;
+        ArrayList<Page> u = btree.deleteRange(tid, lower, upper);
+        for (Page page : u) {
+            page.markDirty(true, tid);
+            totPage.put(page.getId(), page);
+        }
+    }
+
+    /**
+     * Rebalance the pages of a B+ tree whose rebalancing deletions deferred,
+     * with {@link BTreeFile#rebalance(TransactionId)}.  Marks the pages that
+     * were dirtied as dirty, as deleteTuple does.
+     *
+     * @param tid     the transaction rebalancing the tree
+     * @param tableId the table stored in the B+ tree
+     */
+    public synchronized void rebalance(TransactionId tid, int tableId)
+            throws DbException, IOException, TransactionAbortedException {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(file instanceof BTreeFile))
+            throw new DbException("table " + tableId + " is not stored in a B+ tree");
+        ArrayList<Page> u = ((BTreeFile) file).rebalance(tid);
+        for (Page page : u) {
+            page.markDirty(true, tid);
+            totPage.put(page.getId(), page);
         }
     }
 
@@ -388,9 +627,7 @@ public class BufferPool {
     public synchronized void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-        for (PageId i : totPage.keySet()) {
-            flushPage(i);
-        }
+        flushPages(new ArrayList<PageId>(totPage.keySet()));
 
     }
 
@@ -406,6 +643,9 @@ public class BufferPool {
     public synchronized void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
+        // a copy read ahead of the write that came before is stale, and is
+        // either not added to the buffer pool or removed from it here
+        doneReading(pid);
         totPage.remove(pid);
         usedTime.remove(pid);
     }
@@ -420,10 +660,41 @@ public class BufferPool {
         // not necessary for lab1
         if (pid == null || totPage.get(pid) == null)
             return;
-        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        if (logPage(pid))
+            Database.getLogFile().force();
+        writePage(pid);
+    }
+
+    /**
+     * Flushes a set of pages, forcing the log once for all of them.
+     */
+    private synchronized void flushPages(Collection<PageId> pids) throws IOException {
+        boolean logged = false;
+        for (PageId pid : pids)
+            logged |= logPage(pid);
+        if (logged)
+            Database.getLogFile().force();
+        for (PageId pid : pids)
+            writePage(pid);
+    }
+
+    // write an UPDATE record for the page if it is dirty; the log must be
+    // forced before the page is written (write-ahead logging)
+    private synchronized boolean logPage(PageId pid) throws IOException {
+        Page p = totPage.get(pid);
+        if (p == null || p.isDirty() == null)
+            return false;
+        Database.getLogFile().logWrite(p.isDirty(), p.getBeforeImage(), p);
+        return true;
+    }
 
-        Page tmp = totPage.get(pid);
-        file.writePage(tmp);
+    private synchronized void writePage(PageId pid) throws IOException {
+        Page p = totPage.get(pid);
+        if (p == null)
+            return;
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        file.writePage(p);
+        Database.getLogFile().logPageWritten(p);
         discardPage(pid);
     }
 
@@ -433,14 +704,12 @@ public class BufferPool {
     public synchronized void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        if (shared_t_p.containsKey(tid) && shared_t_p.get(tid) != null) {
-            for (PageId i : shared_t_p.get(tid))
-                flushPage(i);
-        }
-        if (exclusive_t_p.containsKey(tid) && exclusive_t_p.get(tid) != null) {
-            for (PageId i : exclusive_t_p.get(tid))
-                flushPage(i);
-        }
+        ArrayList<PageId> pids = new ArrayList<PageId>();
+        if (shared_t_p.containsKey(tid) && shared_t_p.get(tid) != null)
+            pids.addAll(shared_t_p.get(tid));
+        if (exclusive_t_p.containsKey(tid) && exclusive_t_p.get(tid) != null)
+            pids.addAll(exclusive_t_p.get(tid));
+        flushPages(pids);
     }
 
     /**
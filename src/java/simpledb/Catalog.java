@@ -30,6 +30,8 @@ public class Catalog {
     }
 
     List<Table> tableInfo;
+    // secondary indexes, which are not listed as tables
+    private final List<SecondaryIndex> indexInfo = new java.util.concurrent.CopyOnWriteArrayList<SecondaryIndex>();
 
     /**
      * Constructor.
@@ -68,10 +70,67 @@ public class Catalog {
         tableInfo.add(new Table(file, name, pkeyField));
     }
 
+    /**
+     * Add a secondary index on a field of a table.  The entries of the index
+     * are kept up to date by the buffer pool as tuples are inserted into and
+     * deleted from the table.  The index file can be read through
+     * {@link #getDatabaseFile} like a table, but is not listed by
+     * {@link #tableIdIterator}.
+     *
+     * @param index the index to add
+     */
+    public void addIndex(SecondaryIndex index) {
+        for (SecondaryIndex tmp : indexInfo) {
+            if (tmp.getTableId() == index.getTableId() && tmp.getKeyField() == index.getKeyField())
+                indexInfo.remove(tmp);
+        }
+        indexInfo.add(index);
+    }
+
+    /**
+     * @param tableid the id of a table
+     * @return the secondary indexes on the table; empty if it has none
+     */
+    public List<SecondaryIndex> getIndexes(int tableid) {
+        List<SecondaryIndex> indexes = new ArrayList<SecondaryIndex>();
+        for (SecondaryIndex tmp : indexInfo) {
+            if (tmp.getTableId() == tableid)
+                indexes.add(tmp);
+        }
+        return indexes;
+    }
+
+    /**
+     * @param tableid the id of a table
+     * @param field the index of a field of the table
+     * @return the secondary index on the field, or null if there is none
+     */
+    public SecondaryIndex getIndex(int tableid, int field) {
+        for (SecondaryIndex tmp : indexInfo) {
+            if (tmp.getTableId() == tableid && tmp.getKeyField() == field)
+                return tmp;
+        }
+        return null;
+    }
+
     public void addTable(DbFile file, String name) {
         addTable(file, name, "");
     }
 
+    /**
+     * Remove a table from the catalog; nothing happens if it is not in the
+     * catalog.
+     *
+     * @param tableid the id of the table to remove
+     */
+    public void removeTable(int tableid) {
+        Iterator<Table> it = tableInfo.iterator();
+        while (it.hasNext()) {
+            if (it.next().file.getId() == tableid)
+                it.remove();
+        }
+    }
+
     /**
      * Add a new table to the catalog.
      * This table has tuples formatted using the specified TupleDesc and its
@@ -111,12 +170,7 @@ public class Catalog {
      */
     public TupleDesc getTupleDesc(int tableid) throws NoSuchElementException {
         // some code goes here
-        for (Table tmp : tableInfo) {
-            if (tableid == tmp.file.getId()) {
-                return tmp.file.getTupleDesc();
-            }
-        }
-        throw new NoSuchElementException();
+        return getDatabaseFile(tableid).getTupleDesc();
     }
 
     /**
@@ -132,6 +186,11 @@ public class Catalog {
                 return tmp.file;
             }
         }
+        for (SecondaryIndex tmp : indexInfo) {
+            if (tableid == tmp.getFile().getId()) {
+                return tmp.getFile();
+            }
+        }
         throw new NoSuchElementException();
     }
 
@@ -168,10 +227,18 @@ public class Catalog {
      */
     public void clear() {
         tableInfo.clear();
+        indexInfo.clear();
     }
 
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * Each line describes a table as <tt>name (field type [annotations], ...)</tt>;
+     * a field may be annotated with <tt>pk</tt>, or with <tt>index</tt> to create a
+     * secondary index on it, optionally followed by <tt>include:f1:f2</tt> to copy
+     * fields f1 and f2 into the entries of the index.  A field annotated with
+     * <tt>hash</tt> stores the table in a {@link HashFile} keyed on it instead
+     * of a heap file, and a field annotated with <tt>lsm</tt> stores it in an
+     * {@link LSMFile} keyed on it; such tables have no secondary indexes.
      *
      * @param catalogFile
      */
@@ -190,6 +257,10 @@ public class Catalog {
                 ArrayList<String> names = new ArrayList<String>();
                 ArrayList<Type> types = new ArrayList<Type>();
                 String primaryKey = "";
+                ArrayList<Integer> indexed = new ArrayList<Integer>();
+                int hashKey = -1;
+                int lsmKey = -1;
+                HashMap<Integer, String[]> includes = new HashMap<Integer, String[]>();
                 for (String e : els) {
                     String[] els2 = e.trim().split(" ");
                     names.add(els2[0].trim());
@@ -201,11 +272,20 @@ public class Catalog {
                         System.out.println("Unknown type " + els2[1]);
                         System.exit(0);
                     }
-                    if (els2.length == 3) {
-                        if (els2[2].trim().equals("pk"))
+                    for (int i = 2; i < els2.length; i++) {
+                        if (els2[i].trim().equals("pk"))
                             primaryKey = els2[0].trim();
+                        else if (els2[i].trim().equals("index"))
+                            indexed.add(names.size() - 1);
+                        else if (els2[i].trim().equals("hash"))
+                            hashKey = names.size() - 1;
+                        else if (els2[i].trim().equals("lsm"))
+                            lsmKey = names.size() - 1;
+                        else if (els2[i].trim().startsWith("include:") && indexed.contains(names.size() - 1))
+                            // the fields to copy into the entries of the index
+                            includes.put(names.size() - 1, els2[i].trim().substring(8).split(":"));
                         else {
-                            System.out.println("Unknown annotation " + els2[2]);
+                            System.out.println("Unknown annotation " + els2[i]);
                             System.exit(0);
                         }
                     }
@@ -213,16 +293,61 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
+                if (hashKey >= 0) {
+                    if (!indexed.isEmpty()) {
+                        System.out.println("Secondary indexes are not supported on hashed table " + name);
+                        System.exit(0);
+                    }
+                    addTable(new HashFile(new File(baseFolder + "/" + name + ".dat"), hashKey, t), name, primaryKey);
+                    System.out.println("Added table : " + name + " with schema " + t + ", hashed on " + names.get(hashKey));
+                    continue;
+                }
+                if (lsmKey >= 0) {
+                    if (!indexed.isEmpty()) {
+                        System.out.println("Secondary indexes are not supported on LSM table " + name);
+                        System.exit(0);
+                    }
+                    addTable(new LSMFile(new File(baseFolder + "/" + name + ".dat"), lsmKey, t), name, primaryKey);
+                    System.out.println("Added table : " + name + " with schema " + t + ", log-structured on " + names.get(lsmKey));
+                    continue;
+                }
                 HeapFile tabHf = new HeapFile(new File(baseFolder + "/" + name + ".dat"), t);
                 addTable(tabHf, name, primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
+                for (int field : indexed) {
+                    String[] includeNames = includes.containsKey(field) ? includes.get(field) : new String[0];
+                    int[] included = new int[includeNames.length];
+                    for (int i = 0; i < included.length; i++)
+                        included[i] = t.fieldNameToIndex(includeNames[i]);
+                    // the index is stored next to the table, and built from it
+                    // the first time the schema is loaded
+                    File idxFile = new File(baseFolder + "/" + name + "." + names.get(field) + ".idx");
+                    if (idxFile.length() > 0) {
+                        BTreeFile bf = new BTreeFile(idxFile, 0, SecondaryIndex.entryDesc(t, field, included));
+                        addIndex(new SecondaryIndex(tabHf.getId(), field, included, bf));
+                    } else {
+                        TransactionId tid = new TransactionId();
+                        SecondaryIndex.create(tid, tabHf.getId(), field, included, idxFile);
+                        Database.getBufferPool().transactionComplete(tid);
+                    }
+                    System.out.println("Added index on " + name + "." + names.get(field));
+                }
             }
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(0);
+        } catch (DbException e) {
+            e.printStackTrace();
+            System.exit(0);
+        } catch (TransactionAbortedException e) {
+            e.printStackTrace();
+            System.exit(0);
         } catch (IndexOutOfBoundsException e) {
             System.out.println("Invalid catalog entry : " + line);
             System.exit(0);
+        } catch (NoSuchElementException e) {
+            System.out.println("Unknown included field in catalog entry : " + line);
+            System.exit(0);
         }
     }
 }
@@ -0,0 +1,135 @@
+package simpledb;
+
+import java.util.Arrays;
+
+/**
+ * ColumnVector holds one field of the tuples of a {@link TupleBatch} in
+ * primitive arrays, so that operators read the values of a field without a
+ * Field object, and a pointer to follow, for every tuple.
+ * <p>
+ * The values of an INT_TYPE column are in {@link #ints()}.  Those of a
+ * STRING_TYPE column are the bytes of the strings one after another in
+ * {@link #bytes()}; the string at position p is bytes [offsets[p],
+ * offsets[p+1]) of them, where offsets is {@link #offsets()}.  A position is
+ * that of the tuple in the batch, as in {@link TupleBatch#selection()}.
+ */
+public class ColumnVector {
+
+    private final Type type;
+    private final int[] ints;
+    private final int[] offsets;
+    private byte[] bytes;
+    // the number of values in the column
+    private int size = 0;
+
+    /**
+     * Create an empty column.
+     *
+     * @param type the type of the values
+     * @param capacity the greatest number of values the column holds
+     */
+    ColumnVector(Type type, int capacity) {
+        this.type = type;
+        if (type == Type.INT_TYPE) {
+            ints = new int[capacity];
+            offsets = null;
+            bytes = null;
+        } else {
+            ints = null;
+            offsets = new int[capacity + 1];
+            bytes = new byte[Math.min(capacity, 64) * Type.STRING_LEN];
+        }
+    }
+
+    /**
+     * @return the type of the values
+     */
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return the number of values in the column
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the values of an INT_TYPE column, by position
+     * @throws UnsupportedOperationException if the column is not INT_TYPE
+     */
+    public int[] ints() {
+        if (ints == null)
+            throw new UnsupportedOperationException(type + " column has no int values");
+        return ints;
+    }
+
+    /**
+     * @return the offsets of the strings of a STRING_TYPE column in bytes(),
+     *         by position, followed by the offset after the last one
+     * @throws UnsupportedOperationException if the column is not STRING_TYPE
+     */
+    public int[] offsets() {
+        if (offsets == null)
+            throw new UnsupportedOperationException(type + " column has no strings");
+        return offsets;
+    }
+
+    /**
+     * @return the bytes of the strings of a STRING_TYPE column
+     * @throws UnsupportedOperationException if the column is not STRING_TYPE
+     */
+    public byte[] bytes() {
+        if (offsets == null)
+            throw new UnsupportedOperationException(type + " column has no strings");
+        return bytes;
+    }
+
+    /**
+     * @return the value at a position as a Field, which is made for the call
+     */
+    public Field getField(int p) {
+        if (type == Type.INT_TYPE)
+            return new IntField(ints[p]);
+        return new StringField(new String(bytes, offsets[p], offsets[p + 1] - offsets[p]), Type.STRING_LEN);
+    }
+
+    /**
+     * Add an int value after the values of the column.
+     */
+    void addInt(int v) {
+        ints[size++] = v;
+    }
+
+    /**
+     * Add a string value, len bytes of b from off, after the values of the
+     * column.
+     */
+    void addString(byte[] b, int off, int len) {
+        int end = offsets[size];
+        if (end + len > bytes.length)
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, end + len));
+        System.arraycopy(b, off, bytes, end, len);
+        offsets[++size] = end + len;
+    }
+
+    /**
+     * Add the value of a Field after the values of the column.
+     */
+    void addField(Field f) {
+        if (type == Type.INT_TYPE) {
+            addInt(((IntField) f).getValue());
+        } else {
+            byte[] b = ((StringField) f).getValue().getBytes();
+            addString(b, 0, b.length);
+        }
+    }
+
+    /**
+     * Empty the column, keeping its arrays to be refilled.
+     */
+    void clear() {
+        size = 0;
+    }
+}
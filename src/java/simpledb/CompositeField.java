@@ -0,0 +1,148 @@
+package simpledb;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Instance of Field that stores a sequence of fields, such as the
+ * components of a composite B+ tree key.  Composite fields are ordered
+ * lexicographically: by their first component, then by their second, and
+ * so on.
+ * <p>
+ * A composite field may be compared with a shorter one, or with a single
+ * field, which then stands for a prefix of its components: only as many
+ * components as the shorter field has are compared.  For example, (5, 7)
+ * is EQUALS to the prefix (5) and GREATER_THAN the prefix (4), which lets
+ * an IndexPredicate on the leading components of a composite key match a
+ * range of keys.
+ */
+public class CompositeField implements Field {
+
+	private static final long serialVersionUID = 1L;
+
+	private final Field[] fields;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param fields
+	 *            The components of this field, in order; there must be at
+	 *            least one
+	 */
+	public CompositeField(Field... fields) {
+		if (fields.length == 0)
+			throw new IllegalArgumentException("a composite field needs a component");
+		this.fields = fields.clone();
+	}
+
+	/**
+	 * @param t - a tuple
+	 * @param indexes - the fields of t to combine
+	 * @return the composite of the specified fields of t
+	 */
+	public static CompositeField of(Tuple t, int[] indexes) {
+		Field[] fields = new Field[indexes.length];
+		for (int i = 0; i < indexes.length; i++)
+			fields[i] = t.getField(indexes[i]);
+		return new CompositeField(fields);
+	}
+
+	/** @return the number of components of this field */
+	public int numFields() {
+		return fields.length;
+	}
+
+	/** @return the component i of this field */
+	public Field getField(int i) {
+		return fields[i];
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder("(");
+		for (int i = 0; i < fields.length; i++) {
+			if (i > 0)
+				sb.append(", ");
+			sb.append(fields[i]);
+		}
+		return sb.append(")").toString();
+	}
+
+	public int hashCode() {
+		return Arrays.hashCode(fields);
+	}
+
+	public boolean equals(Object field) {
+		return field instanceof CompositeField && Arrays.equals(fields, ((CompositeField) field).fields);
+	}
+
+	/**
+	 * Write the components of this field to dos, one after the other.
+	 */
+	public void serialize(DataOutputStream dos) throws IOException {
+		for (Field f : fields)
+			f.serialize(dos);
+	}
+
+	/**
+	 * @return the number of components of f, as a prefix
+	 */
+	private static int length(Field f) {
+		return f instanceof CompositeField ? ((CompositeField) f).fields.length : 1;
+	}
+
+	/**
+	 * @return component i of f, as a prefix
+	 */
+	private static Field component(Field f, int i) {
+		return f instanceof CompositeField ? ((CompositeField) f).fields[i] : f;
+	}
+
+	/**
+	 * Compare the specified field to the value of this Field, component by
+	 * component, over as many components as the shorter of the two has.
+	 * Return semantics are as specified by Field.compare
+	 *
+	 * @param val
+	 *            a CompositeField, or a single Field that is compared with
+	 *            the first component of this field
+	 * @see Field#compare
+	 */
+	public boolean compare(Predicate.Op op, Field val) {
+		int n = Math.min(fields.length, length(val));
+		int cmp = 0;
+		for (int i = 0; i < n && cmp == 0; i++) {
+			Field other = component(val, i);
+			if (fields[i].compare(Predicate.Op.LESS_THAN, other))
+				cmp = -1;
+			else if (!fields[i].compare(Predicate.Op.EQUALS, other))
+				cmp = 1;
+		}
+
+		switch (op) {
+		case EQUALS:
+		case LIKE:
+			return cmp == 0;
+		case NOT_EQUALS:
+			return cmp != 0;
+		case GREATER_THAN:
+			return cmp > 0;
+		case GREATER_THAN_OR_EQ:
+			return cmp >= 0;
+		case LESS_THAN:
+			return cmp < 0;
+		case LESS_THAN_OR_EQ:
+			return cmp <= 0;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Return the Type of the first component of this field, which decides
+	 * where a key is routed first.
+	 * @return the type of the first component
+	 */
+	public Type getType() {
+		return fields[0].getType();
+	}
+}
@@ -79,6 +79,40 @@ public class Filter extends Operator {
         return now;
     }
 
+    /**
+     * Reads batches from the child operator into the batch, and drops the
+     * tuples that fail the predicate from its selection vector, until a
+     * batch keeps a tuple.  The field of the predicate is read from its
+     * column in the batch.
+     */
+    @Override
+    protected boolean fetchNextBatch(TupleBatch batch) throws TransactionAbortedException, DbException {
+        while (childOp.nextBatch(batch)) {
+            int[] sel = batch.selection();
+            int n = 0;
+            ColumnVector column = batch.column(predicate.getField());
+            if (column.getType() == Type.INT_TYPE) {
+                // compare the ints of the column, making no tuples
+                int[] values = column.ints();
+                Predicate.Op op = predicate.getOp();
+                int operand = ((IntField) predicate.getOperand()).getValue();
+                for (int i = 0; i < batch.size(); i++) {
+                    if (IntField.compare(op, values[sel[i]], operand))
+                        sel[n++] = sel[i];
+                }
+            } else {
+                for (int i = 0; i < batch.size(); i++) {
+                    if (column.getField(sel[i]).compare(predicate.getOp(), predicate.getOperand()))
+                        sel[n++] = sel[i];
+                }
+            }
+            batch.select(n);
+            if (n > 0)
+                return true;
+        }
+        return false;
+    }
+
     @Override
     public OpIterator[] getChildren() {
         // some code goes here
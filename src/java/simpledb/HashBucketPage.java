@@ -0,0 +1,341 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Each instance of HashBucketPage stores the tuples of one page of a bucket
+ * of a HashFile and implements the Page interface that is used by
+ * BufferPool.  A bucket is a chain of pages: its primary page, which the
+ * directory points to, followed by the overflow pages that hold the tuples
+ * that did not fit on the primary page.
+ *
+ * @see HashFile
+ * @see BufferPool
+ */
+public class HashBucketPage implements Page {
+	private volatile boolean dirty = false;
+	private volatile TransactionId dirtier = null;
+
+	final static int INDEX_SIZE = Type.INT_TYPE.getLen();
+
+	private final HashPageId pid;
+	private final TupleDesc td;
+	private final byte header[];
+	private final Tuple tuples[];
+	private final int numSlots;
+
+	private int localDepth; // the number of low hash bits shared by the keys of the bucket
+	private int nextPage; // next page of the bucket or 0
+
+	private byte[] oldData;
+	private volatile long lsn = -1;
+	private final Object oldDataLock = new Object();
+
+	/**
+	 * Create a HashBucketPage from a set of bytes of data read from disk.
+	 * The format of a HashBucketPage is an integer for the local depth of
+	 * the bucket, an integer for the page number of the next page of the
+	 * bucket, a set of header bytes indicating the slots of the page that
+	 * are in use, and some number of tuple slots.
+	 * Specifically, the number of tuples is equal to: <p>
+	 *          floor((BufferPool.getPageSize()*8 - extra bytes*8) / (tuple size * 8 + 1))
+	 * <p> where tuple size is the size of tuples in this
+	 * database table, which can be determined via {@link Catalog#getTupleDesc}.
+	 *
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 */
+	public HashBucketPage(HashPageId id, byte[] data) throws IOException {
+		this.pid = id;
+		this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+		this.numSlots = getMaxTuples();
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+
+		localDepth = dis.readInt();
+		nextPage = dis.readInt();
+
+		// allocate and read the header slots of this page
+		header = new byte[getHeaderSize()];
+		for (int i=0; i<header.length; i++)
+			header[i] = dis.readByte();
+
+		tuples = new Tuple[numSlots];
+		try {
+			// allocate and read the actual records of this page
+			for (int i=0; i<tuples.length; i++)
+				tuples[i] = readNextTuple(dis,i);
+		} catch (NoSuchElementException e) {
+			e.printStackTrace();
+		}
+		dis.close();
+
+		setBeforeImage();
+	}
+
+	/**
+	 * Retrieve the maximum number of tuples this page can hold.
+	 */
+	public int getMaxTuples() {
+		int bitsPerTupleIncludingHeader = td.getSize() * 8 + 1;
+		// extraBits are: the local depth and the next page pointer
+		int extraBits = 2 * INDEX_SIZE * 8;
+		return (BufferPool.getPageSize()*8 - extraBits) / bitsPerTupleIncludingHeader; //round down
+	}
+
+	/**
+	 * Computes the number of bytes in the header of a page of a HashFile
+	 */
+	private int getHeaderSize() {
+		int hb = numSlots / 8;
+		if (hb * 8 < numSlots) hb++;
+		return hb;
+	}
+
+	/** Return a view of this page before it was modified
+        -- used by recovery */
+	public HashBucketPage getBeforeImage() {
+		try {
+			byte[] oldDataRef = null;
+			synchronized(oldDataLock)
+			{
+				oldDataRef = oldData;
+			}
+			return new HashBucketPage(pid, oldDataRef);
+		} catch (IOException e) {
+			e.printStackTrace();
+			//should never happen -- we parsed it OK before!
+			System.exit(1);
+		}
+		return null;
+	}
+
+	public void setBeforeImage() {
+		synchronized(oldDataLock)
+		{
+			oldData = getPageData().clone();
+		}
+	}
+
+	/**
+	 * @return the PageId associated with this page.
+	 */
+	public HashPageId getId() {
+		return pid;
+	}
+
+	/**
+	 * Suck up tuples from the source file.
+	 */
+	private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
+		// if associated bit is not set, read forward to the next tuple, and
+		// return null.
+		if (!isSlotUsed(slotId)) {
+			for (int i=0; i<td.getSize(); i++) {
+				try {
+					dis.readByte();
+				} catch (IOException e) {
+					throw new NoSuchElementException("error reading empty tuple");
+				}
+			}
+			return null;
+		}
+
+		// read fields in the tuple
+		Tuple t = new Tuple(td);
+		t.setRecordId(new RecordId(pid, slotId));
+		try {
+			for (int j=0; j<td.numFields(); j++) {
+				Field f = td.getFieldType(j).parse(dis);
+				t.setField(j, f);
+			}
+		} catch (java.text.ParseException e) {
+			e.printStackTrace();
+			throw new NoSuchElementException("parsing error!");
+		}
+
+		return t;
+	}
+
+	/**
+	 * Generates a byte array representing the contents of this page.
+	 * Used to serialize this page to disk.
+	 * <p>
+	 * The invariant here is that it should be possible to pass the byte
+	 * array generated by getPageData to the HashBucketPage constructor and
+	 * have it produce an identical HashBucketPage object.
+	 *
+	 * @see #HashBucketPage
+	 * @return A byte array correspond to the bytes of this page.
+	 */
+	public byte[] getPageData() {
+		int len = BufferPool.getPageSize();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
+		DataOutputStream dos = new DataOutputStream(baos);
+		try {
+			dos.writeInt(localDepth);
+			dos.writeInt(nextPage);
+			dos.write(header);
+			for (int i=0; i<tuples.length; i++) {
+				if (!isSlotUsed(i)) {
+					dos.write(new byte[td.getSize()]);
+					continue;
+				}
+				for (int j=0; j<td.numFields(); j++)
+					tuples[i].getField(j).serialize(dos);
+			}
+			// padding
+			dos.write(new byte[len - (2 * INDEX_SIZE + header.length + td.getSize() * tuples.length)]);
+			dos.flush();
+		} catch (IOException e) {
+			// this really shouldn't happen
+			e.printStackTrace();
+		}
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Static method to generate a byte array corresponding to an empty
+	 * HashBucketPage.
+	 * Used to add new, empty pages to the file. Passing the results of
+	 * this method to the HashBucketPage constructor will create a page with
+	 * no valid tuples in it.
+	 *
+	 * @return The returned ByteArray.
+	 */
+	public static byte[] createEmptyPageData() {
+		int len = BufferPool.getPageSize();
+		return new byte[len]; //all 0
+	}
+
+	/** @return the number of low hash bits shared by the keys of the bucket */
+	public int getLocalDepth() {
+		return localDepth;
+	}
+
+	/** Set the number of low hash bits shared by the keys of the bucket */
+	public void setLocalDepth(int localDepth) {
+		this.localDepth = localDepth;
+	}
+
+	/** @return the id of the next page of the bucket, or null if this is its last page */
+	public HashPageId getNextPageId() {
+		return nextPage == 0 ? null : new HashPageId(pid.getTableId(), nextPage);
+	}
+
+	/** Set the next page of the bucket, or null if this is its last page */
+	public void setNextPageId(HashPageId id) {
+		nextPage = id == null ? 0 : id.getPageNumber();
+	}
+
+	/**
+	 * Delete the specified tuple from the page; the corresponding header bit should be updated to reflect
+	 * that it is no longer stored on any page.
+	 * @throws DbException if this tuple is not on this page, or tuple slot is
+	 *         already empty.
+	 * @param t The tuple to delete
+	 */
+	public void deleteTuple(Tuple t) throws DbException {
+		RecordId rid = t.getRecordId();
+		if (rid == null || !pid.equals(rid.getPageId()))
+			throw new DbException("tried to delete tuple on invalid page or table");
+		int slot = rid.getTupleNumber();
+		if (slot < 0 || slot >= numSlots || !isSlotUsed(slot))
+			throw new DbException("tried to delete null tuple.");
+		markSlotUsed(slot, false);
+		tuples[slot] = null;
+		t.setRecordId(null);
+	}
+
+	/**
+	 * Adds the specified tuple to the page;  the tuple should be updated to reflect
+	 *  that it is now stored on this page.
+	 * @throws DbException if the page is full (no empty slots) or tupledesc
+	 *         is mismatch.
+	 * @param t The tuple to add.
+	 */
+	public void insertTuple(Tuple t) throws DbException {
+		if (!t.getTupleDesc().equals(td))
+			throw new DbException("type mismatch, in addTuple");
+		for (int i=0; i<numSlots; i++) {
+			if (!isSlotUsed(i)) {
+				markSlotUsed(i, true);
+				tuples[i] = t;
+				t.setRecordId(new RecordId(pid, i));
+				return;
+			}
+		}
+		throw new DbException("called addTuple on page with no empty slots.");
+	}
+
+	/**
+	 * Marks this page as dirty/not dirty and record that transaction
+	 * that did the dirtying
+	 */
+	public void markDirty(boolean dirty, TransactionId tid) {
+		this.dirty = dirty;
+		if (dirty) this.dirtier = tid;
+	}
+
+	/**
+	 * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
+	 */
+	public TransactionId isDirty() {
+		if (this.dirty)
+			return this.dirtier;
+		else
+			return null;
+	}
+
+	public long getLSN() {
+		return lsn;
+	}
+
+	public void setLSN(long lsn) {
+		this.lsn = lsn;
+	}
+
+	/**
+	 * Returns the number of empty slots on this page.
+	 */
+	public int getNumEmptySlots() {
+		int cnt = 0;
+		for (int i=0; i<numSlots; i++)
+			if (!isSlotUsed(i))
+				cnt++;
+		return cnt;
+	}
+
+	/**
+	 * Returns true if associated slot on this page is filled.
+	 */
+	public boolean isSlotUsed(int i) {
+		int headerbit = i % 8;
+		int headerbyte = (i - headerbit) / 8;
+		return (header[headerbyte] & (1 << headerbit)) != 0;
+	}
+
+	/**
+	 * Abstraction to fill or clear a slot on this page.
+	 */
+	private void markSlotUsed(int i, boolean value) {
+		int headerbit = i % 8;
+		int headerbyte = (i - headerbit) / 8;
+		if (value)
+			header[headerbyte] |= 1 << headerbit;
+		else
+			header[headerbyte] &= (0xFF ^ (1 << headerbit));
+	}
+
+	/**
+	 * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
+	 * (note that this iterator shouldn't return tuples in empty slots!)
+	 */
+	public Iterator<Tuple> iterator() {
+		ArrayList<Tuple> used = new ArrayList<Tuple>();
+		for (int i=0; i<numSlots; i++)
+			if (isSlotUsed(i))
+				used.add(tuples[i]);
+		return Collections.unmodifiableList(used).iterator();
+	}
+}
@@ -0,0 +1,210 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * HashDirectoryPage is the first page of a HashFile.  It maps the low
+ * global depth bits of the hash of a key to the page number of the bucket
+ * holding the key, and implements the Page interface that is used by
+ * BufferPool.
+ * <p>
+ * Several directory entries may point to the same bucket: a bucket with
+ * local depth d is pointed to by every entry whose low d bits are equal.
+ * An entry of 0 means that the file has no bucket yet.
+ *
+ * @see HashFile
+ * @see BufferPool
+ */
+public class HashDirectoryPage implements Page {
+	private volatile boolean dirty = false;
+	private volatile TransactionId dirtier = null;
+
+	final static int INDEX_SIZE = Type.INT_TYPE.getLen();
+
+	private final HashPageId pid;
+	private int globalDepth;
+	private int[] buckets;
+
+	private byte[] oldData;
+	private volatile long lsn = -1;
+	private final Object oldDataLock = new Object();
+
+	/**
+	 * Create a HashDirectoryPage from a set of bytes of data read from disk.
+	 * The format of a HashDirectoryPage is an integer for the global depth,
+	 * followed by the 2^(global depth) page numbers of the buckets of the
+	 * directory entries.  An all-zero page is a directory of depth 0 without
+	 * a bucket.
+	 *
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 */
+	public HashDirectoryPage(HashPageId id, byte[] data) throws IOException {
+		this.pid = id;
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+		globalDepth = dis.readInt();
+		buckets = new int[1 << globalDepth];
+		for (int i = 0; i < buckets.length; i++)
+			buckets[i] = dis.readInt();
+		dis.close();
+
+		setBeforeImage();
+	}
+
+	/**
+	 * @return the largest global depth whose directory fits on a page
+	 */
+	public static int getMaxDepth() {
+		int entries = (BufferPool.getPageSize() - INDEX_SIZE) / INDEX_SIZE;
+		return 31 - Integer.numberOfLeadingZeros(entries);
+	}
+
+	/** @return the number of low bits of a hash that select its entry */
+	public int getGlobalDepth() {
+		return globalDepth;
+	}
+
+	/** @return the number of entries of the directory */
+	public int numEntries() {
+		return buckets.length;
+	}
+
+	/**
+	 * @param i - the index of an entry
+	 * @return the page number of the bucket of entry i, or 0 if there is none
+	 */
+	public int getEntry(int i) {
+		return buckets[i];
+	}
+
+	/**
+	 * Point entry i to a bucket.
+	 * @param i - the index of an entry
+	 * @param pgNo - the page number of the bucket
+	 */
+	public void setEntry(int i, int pgNo) {
+		buckets[i] = pgNo;
+	}
+
+	/**
+	 * @param hash - the hash of a key
+	 * @return the page number of the bucket the key belongs to, or 0 if
+	 *         there is none
+	 */
+	public int getBucket(int hash) {
+		return buckets[hash & (buckets.length - 1)];
+	}
+
+	/**
+	 * Double the directory, increasing the global depth by one.  The new
+	 * entries point to the same buckets as the entries they extend.
+	 * @throws DbException if the doubled directory would not fit on the page
+	 */
+	public void grow() throws DbException {
+		if (globalDepth == getMaxDepth())
+			throw new DbException("hash directory is full");
+		int[] grown = new int[buckets.length * 2];
+		System.arraycopy(buckets, 0, grown, 0, buckets.length);
+		System.arraycopy(buckets, 0, grown, buckets.length, buckets.length);
+		buckets = grown;
+		globalDepth++;
+	}
+
+	/** Return a view of this page before it was modified
+        -- used by recovery */
+	public HashDirectoryPage getBeforeImage() {
+		try {
+			byte[] oldDataRef = null;
+			synchronized(oldDataLock)
+			{
+				oldDataRef = oldData;
+			}
+			return new HashDirectoryPage(pid, oldDataRef);
+		} catch (IOException e) {
+			e.printStackTrace();
+			//should never happen -- we parsed it OK before!
+			System.exit(1);
+		}
+		return null;
+	}
+
+	public void setBeforeImage() {
+		synchronized(oldDataLock)
+		{
+			oldData = getPageData().clone();
+		}
+	}
+
+	/**
+	 * @return the PageId associated with this page.
+	 */
+	public HashPageId getId() {
+		return pid;
+	}
+
+	/**
+	 * Generates a byte array representing the contents of this page.
+	 * Used to serialize this page to disk.
+	 * <p>
+	 * The invariant here is that it should be possible to pass the byte
+	 * array generated by getPageData to the HashDirectoryPage constructor and
+	 * have it produce an identical HashDirectoryPage object.
+	 *
+	 * @see #HashDirectoryPage
+	 * @return A byte array correspond to the bytes of this page.
+	 */
+	public byte[] getPageData() {
+		int len = BufferPool.getPageSize();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
+		DataOutputStream dos = new DataOutputStream(baos);
+		try {
+			dos.writeInt(globalDepth);
+			for (int b : buckets)
+				dos.writeInt(b);
+			dos.write(new byte[len - INDEX_SIZE * (1 + buckets.length)]);
+			dos.flush();
+		} catch (IOException e) {
+			// this really shouldn't happen
+			e.printStackTrace();
+		}
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Static method to generate a byte array corresponding to an empty
+	 * HashDirectoryPage.
+	 *
+	 * @return The returned ByteArray.
+	 */
+	public static byte[] createEmptyPageData() {
+		int len = BufferPool.getPageSize();
+		return new byte[len]; //all 0
+	}
+
+	/**
+	 * Marks this page as dirty/not dirty and record that transaction
+	 * that did the dirtying
+	 */
+	public void markDirty(boolean dirty, TransactionId tid) {
+		this.dirty = dirty;
+		if (dirty) this.dirtier = tid;
+	}
+
+	/**
+	 * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
+	 */
+	public TransactionId isDirty() {
+		if (this.dirty)
+			return this.dirtier;
+		else
+			return null;
+	}
+
+	public long getLSN() {
+		return lsn;
+	}
+
+	public void setLSN(long lsn) {
+		this.lsn = lsn;
+	}
+}
@@ -53,19 +53,26 @@ public class HashEquiJoin extends Operator {
     HashMap<Object, ArrayList<Tuple>> map = new HashMap<Object, ArrayList<Tuple>>();
     public final static int MAP_SIZE = 20000;
 
+    transient private TupleBatch buildBatch = null;
+
     private boolean loadMap() throws DbException, TransactionAbortedException {
         int cnt = 0;
         map.clear();
-        while (child1.hasNext()) {
-            t1 = child1.next();
-            ArrayList<Tuple> list = map.get(t1.getField(pred.getField1()));
-            if (list == null) {
-                list = new ArrayList<Tuple>();
-                map.put(t1.getField(pred.getField1()), list);
+        if (buildBatch == null)
+            buildBatch = new TupleBatch(child1.getTupleDesc());
+        // child1 is read a batch at a time, so the map may hold up to a
+        // batch more than MAP_SIZE tuples
+        while (cnt <= MAP_SIZE && child1.nextBatch(buildBatch)) {
+            for (int i = 0; i < buildBatch.size(); i++) {
+                t1 = buildBatch.get(i);
+                ArrayList<Tuple> list = map.get(t1.getField(pred.getField1()));
+                if (list == null) {
+                    list = new ArrayList<Tuple>();
+                    map.put(t1.getField(pred.getField1()), list);
+                }
+                list.add(t1);
+                cnt++;
             }
-            list.add(t1);
-            if (cnt++ == MAP_SIZE)
-                return true;
         }
         return cnt > 0;
 
@@ -87,11 +94,20 @@ public class HashEquiJoin extends Operator {
         this.t2=null;
         this.listIt=null;
         this.map.clear();
+        this.matches = null;
+        if (this.probeBatch != null)
+            this.probeBatch.clear();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         child1.rewind();
         child2.rewind();
+        // start again from the first tuples of child1
+        loadMap();
+        listIt = null;
+        matches = null;
+        if (probeBatch != null)
+            probeBatch.clear();
     }
 
     transient Iterator<Tuple> listIt = null;
@@ -116,7 +132,10 @@ public class HashEquiJoin extends Operator {
      */
     private Tuple processList() throws TransactionAbortedException, DbException {
         t1 = listIt.next();
+        return combine(t1, t2);
+    }
 
+    private Tuple combine(Tuple t1, Tuple t2) {
         int td1n = t1.getTupleDesc().numFields();
         int td2n = t2.getTupleDesc().numFields();
 
@@ -159,6 +178,45 @@ public class HashEquiJoin extends Operator {
         return null;
     }
 
+    // the batch of child2 being probed, the position after the tuple being
+    // joined in it, and the tuples of child1 it matches
+    transient private TupleBatch probeBatch = null;
+    transient private int pi = 0;
+    transient private ArrayList<Tuple> matches = null;
+    transient private int mi = 0;
+
+    /**
+     * Operator.fetchNextBatch implementation.  Probes the map with batches
+     * of child2, and joins each tuple with the tuples of child1 it matches.
+     */
+    @Override
+    protected boolean fetchNextBatch(TupleBatch batch) throws TransactionAbortedException, DbException {
+        if (probeBatch == null)
+            probeBatch = new TupleBatch(child2.getTupleDesc(), batch.capacity());
+        while (!batch.isFull()) {
+            if (matches != null && mi < matches.size()) {
+                batch.add(combine(matches.get(mi++), probeBatch.get(pi - 1)));
+            } else if (pi < probeBatch.size()) {
+                // the key is read from its column, and the tuple of child2
+                // is made only if it matches
+                matches = map.get(probeBatch.column(pred.getField2()).getField(probeBatch.selection()[pi++]));
+                mi = 0;
+            } else if (map.isEmpty()) {
+                // child1 is done
+                break;
+            } else if (child2.nextBatch(probeBatch)) {
+                pi = 0;
+                matches = null;
+            } else {
+                // child2 is done: advance child1
+                child2.rewind();
+                matches = null;
+                loadMap();
+            }
+        }
+        return batch.size() > 0;
+    }
+
     @Override
     public OpIterator[] getChildren() {
         return new OpIterator[]{this.child1, this.child2};
@@ -0,0 +1,455 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+import simpledb.Predicate.Op;
+
+/**
+ * HashFile is a DbFile that stores the tuples of a table in buckets
+ * selected by the hash of a key field, using extendible hashing.  An
+ * equality lookup on the key reads the directory, which stays in the
+ * buffer pool, and the one bucket the key hashes to; there is no descent
+ * through internal pages as in a {@link BTreeFile}.  Other lookups scan
+ * the whole file.
+ * <p>
+ * Page 0 of the file is a {@link HashDirectoryPage}.  When the primary page
+ * of a bucket fills up, the bucket is split in two on the next bit of the
+ * hash, doubling the directory if that bit was not used yet.  A bucket
+ * whose keys all hash alike, or that cannot split because the directory
+ * fills its page, grows a chain of overflow pages instead.  Buckets are
+ * not merged when tuples are deleted.
+ *
+ * @see HashBucketPage
+ * @see HashDirectoryPage
+ */
+public class HashFile implements DbFile {
+
+    private final File f;
+    private final TupleDesc td;
+    private final int tableid;
+    private final int keyField;
+
+    /**
+     * Constructs a hash file backed by the specified file.
+     *
+     * @param f   - the file that stores the on-disk backing store for this hash
+     *            file.
+     * @param key - the field which the file is hashed on
+     * @param td  - the tuple descriptor of tuples in the file
+     */
+    public HashFile(File f, int key, TupleDesc td) {
+        this.f = f;
+        this.tableid = f.getAbsoluteFile().hashCode();
+        this.keyField = key;
+        this.td = td;
+    }
+
+    /**
+     * Returns the File backing this HashFile on disk.
+     */
+    public File getFile() {
+        return f;
+    }
+
+    /**
+     * Returns an ID uniquely identifying this HashFile, the hash of the
+     * absolute file name of the file underlying the HashFile.
+     *
+     * @return an ID uniquely identifying this HashFile.
+     */
+    public int getId() {
+        return tableid;
+    }
+
+    /**
+     * Returns the TupleDesc of the table stored in this DbFile.
+     *
+     * @return TupleDesc of this DbFile.
+     */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * Returns the index of the field that this file is hashed on
+     */
+    public int keyField() {
+        return keyField;
+    }
+
+    /**
+     * Returns the number of pages in this HashFile, including its directory.
+     */
+    public int numPages() {
+        // we only ever write full pages
+        return (int) (f.length() / BufferPool.getPageSize());
+    }
+
+    /**
+     * Read a page from the file on disk. This should not be called directly but should be called
+     * from the BufferPool via getPage()
+     *
+     * @param pid - the id of the page to read from disk
+     * @return the page constructed from the contents on disk
+     */
+    public Page readPage(PageId pid) {
+        HashPageId id = (HashPageId) pid;
+        byte[] pageBuf = new byte[BufferPool.getPageSize()];
+        try {
+            RandomAccessFile rf = new RandomAccessFile(f, "r");
+            try {
+                rf.seek((long) id.getPageNumber() * BufferPool.getPageSize());
+                rf.readFully(pageBuf);
+            } finally {
+                rf.close();
+            }
+            if (id.isDirectory())
+                return new HashDirectoryPage(id, pageBuf);
+            return new HashBucketPage(id, pageBuf);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Write a page to disk.  This should not be called directly but should
+     * be called from the BufferPool when pages are flushed to disk
+     *
+     * @param page - the page to write to disk
+     */
+    public void writePage(Page page) throws IOException {
+        RandomAccessFile rf = new RandomAccessFile(f, "rw");
+        try {
+            rf.seek((long) page.getId().getPageNumber() * BufferPool.getPageSize());
+            rf.write(page.getPageData());
+        } finally {
+            rf.close();
+        }
+    }
+
+    /**
+     * Hash a key.  The directory uses the low bits of the hash, so the bits
+     * of Field.hashCode() are mixed first: the hash code of an IntField is
+     * its value, whose low bits alone would put runs of keys in few buckets.
+     *
+     * @param key - a key
+     * @return the hash of the key
+     */
+    static int hash(Field key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * Get the directory page of this file with the specified permissions,
+     * creating it if the file is empty.
+     */
+    private HashDirectoryPage getDirectory(TransactionId tid, Permissions perm)
+            throws DbException, IOException, TransactionAbortedException {
+        synchronized (this) {
+            if (f.length() == 0) {
+                FileOutputStream out = new FileOutputStream(f, true);
+                out.write(HashDirectoryPage.createEmptyPageData());
+                out.close();
+            }
+        }
+        return (HashDirectoryPage) Database.getBufferPool().getPage(tid, new HashPageId(tableid, 0), perm);
+    }
+
+    /**
+     * Append an empty bucket page to the file and lock it with READ_WRITE
+     * permission.
+     */
+    private HashBucketPage newBucketPage(TransactionId tid)
+            throws DbException, IOException, TransactionAbortedException {
+        HashPageId id;
+        synchronized (this) {
+            id = new HashPageId(tableid, numPages());
+            FileOutputStream out = new FileOutputStream(f, true);
+            out.write(HashBucketPage.createEmptyPageData());
+            out.close();
+        }
+        return (HashBucketPage) Database.getBufferPool().getPage(tid, id, Permissions.READ_WRITE);
+    }
+
+    private HashBucketPage getBucketPage(TransactionId tid, int pgNo, Permissions perm)
+            throws DbException, TransactionAbortedException {
+        return (HashBucketPage) Database.getBufferPool().getPage(tid, new HashPageId(tableid, pgNo), perm);
+    }
+
+    /**
+     * Insert a tuple into the bucket of its key in this HashFile.  Tuples
+     * with the same key, or the same values, may be inserted any number of
+     * times.  May cause buckets to split, and the directory to double.
+     *
+     * @param tid - the transaction id
+     * @param t   - the tuple to insert
+     * @return a list of all pages that were dirtied by this operation. Could include
+     * many pages since splits may move tuples to a new bucket
+     * @see #splitBucket(TransactionId, HashMap, HashDirectoryPage, HashBucketPage)
+     */
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        if (!td.equals(t.getTupleDesc()))
+            throw new DbException("type mismatch, in insertTuple");
+        HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+        int h = hash(t.getField(keyField));
+
+        // the directory is only locked for writing when it changes
+        HashDirectoryPage dir = getDirectory(tid, Permissions.READ_ONLY);
+        while (true) {
+            int bucketNo = dir.getBucket(h);
+            if (bucketNo == 0) {
+                // the first insert creates the first bucket
+                dir = getDirectory(tid, Permissions.READ_WRITE);
+                HashBucketPage bucket = newBucketPage(tid);
+                dir.setEntry(0, bucket.getId().getPageNumber());
+                dirtypages.put(dir.getId(), dir);
+                dirtypages.put(bucket.getId(), bucket);
+                continue;
+            }
+
+            // use the first page of the bucket with an empty slot
+            HashBucketPage bucket = getBucketPage(tid, bucketNo, Permissions.READ_WRITE);
+            HashBucketPage last = bucket;
+            for (HashBucketPage p = bucket; p != null; ) {
+                if (p.getNumEmptySlots() > 0) {
+                    p.insertTuple(t);
+                    dirtypages.put(p.getId(), p);
+                    return new ArrayList<Page>(dirtypages.values());
+                }
+                last = p;
+                HashPageId next = p.getNextPageId();
+                p = next == null ? null : getBucketPage(tid, next.getPageNumber(), Permissions.READ_WRITE);
+            }
+
+            if (bucket.getNextPageId() == null && canSplit(dir, bucket, h)) {
+                dir = getDirectory(tid, Permissions.READ_WRITE);
+                splitBucket(tid, dirtypages, dir, bucket);
+                continue;
+            }
+
+            // chain an overflow page to the bucket
+            HashBucketPage overflow = newBucketPage(tid);
+            overflow.setLocalDepth(bucket.getLocalDepth());
+            last.setNextPageId(overflow.getId());
+            overflow.insertTuple(t);
+            dirtypages.put(last.getId(), last);
+            dirtypages.put(overflow.getId(), overflow);
+            return new ArrayList<Page>(dirtypages.values());
+        }
+    }
+
+    /**
+     * @return true if splitting the full primary page of a bucket would make
+     * room for a key with hash h: the directory can point to one more bucket,
+     * and the keys of the page and the new key do not all hash alike
+     */
+    private boolean canSplit(HashDirectoryPage dir, HashBucketPage bucket, int h) {
+        if (bucket.getLocalDepth() == dir.getGlobalDepth()
+                && dir.getGlobalDepth() == HashDirectoryPage.getMaxDepth())
+            return false;
+        Iterator<Tuple> it = bucket.iterator();
+        while (it.hasNext()) {
+            if (hash(it.next().getField(keyField)) != h)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Split the primary page of a bucket on the next bit of the hash: the
+     * tuples whose hash has that bit set move to a new bucket, and the
+     * directory entries with that bit set point to it.  Doubles the
+     * directory first if the bucket uses every bit it has.
+     *
+     * @param tid        - the transaction id
+     * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+     * @param dir        - the directory, locked with READ_WRITE permission
+     * @param bucket     - the primary page of the bucket to split, which has no overflow pages
+     */
+    private void splitBucket(TransactionId tid, HashMap<PageId, Page> dirtypages,
+                             HashDirectoryPage dir, HashBucketPage bucket)
+            throws DbException, IOException, TransactionAbortedException {
+        int depth = bucket.getLocalDepth();
+        if (depth == dir.getGlobalDepth())
+            dir.grow();
+        HashBucketPage image = newBucketPage(tid);
+        bucket.setLocalDepth(depth + 1);
+        image.setLocalDepth(depth + 1);
+        int bucketNo = bucket.getId().getPageNumber();
+        for (int i = 0; i < dir.numEntries(); i++) {
+            if (dir.getEntry(i) == bucketNo && ((i >>> depth) & 1) == 1)
+                dir.setEntry(i, image.getId().getPageNumber());
+        }
+
+        ArrayList<Tuple> moved = new ArrayList<Tuple>();
+        Iterator<Tuple> it = bucket.iterator();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            if (((hash(t.getField(keyField)) >>> depth) & 1) == 1)
+                moved.add(t);
+        }
+        for (Tuple t : moved) {
+            bucket.deleteTuple(t);
+            image.insertTuple(t);
+        }
+        dirtypages.put(dir.getId(), dir);
+        dirtypages.put(bucket.getId(), bucket);
+        dirtypages.put(image.getId(), image);
+    }
+
+    /**
+     * Delete a tuple from this HashFile.
+     *
+     * @param tid - the transaction id
+     * @param t   - the tuple to delete
+     * @return a list of all pages that were dirtied by this operation
+     */
+    public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !(rid.getPageId() instanceof HashPageId)
+                || rid.getPageId().getTableId() != tableid || ((HashPageId) rid.getPageId()).isDirectory())
+            throw new DbException("tuple is not a member of this file");
+        HashBucketPage page = getBucketPage(tid, rid.getPageId().getPageNumber(), Permissions.READ_WRITE);
+        page.deleteTuple(t);
+        ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
+        dirtyPagesArr.add(page);
+        return dirtyPagesArr;
+    }
+
+    /**
+     * Get a read lock on the directory page and the pages of the bucket a key
+     * hashes to, and return an iterator over the tuples of the bucket with
+     * that key.  A predicate other than EQUALS scans the whole file.
+     *
+     * @param tid   - the transaction id
+     * @param ipred - the index predicate value to filter on
+     * @return an iterator for the filtered tuples
+     */
+    public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred) {
+        return new HashFileIterator(this, tid, ipred);
+    }
+
+    /**
+     * Get an iterator for all tuples in this HashFile, in no particular order
+     *
+     * @param tid - the transaction id
+     * @return an iterator for all the tuples in this file
+     */
+    public DbFileIterator iterator(TransactionId tid) {
+        return new HashFileIterator(this, tid, null);
+    }
+
+    /**
+     * @return the page numbers of the pages of the bucket holding the keys
+     * with hash h, in chain order; empty if the file has no bucket yet
+     */
+    ArrayList<Integer> bucketPages(TransactionId tid, int h)
+            throws DbException, TransactionAbortedException {
+        ArrayList<Integer> pages = new ArrayList<Integer>();
+        try {
+            HashDirectoryPage dir = getDirectory(tid, Permissions.READ_ONLY);
+            int pgNo = dir.getBucket(h);
+            while (pgNo != 0) {
+                pages.add(pgNo);
+                HashPageId next = getBucketPage(tid, pgNo, Permissions.READ_ONLY).getNextPageId();
+                pgNo = next == null ? 0 : next.getPageNumber();
+            }
+        } catch (IOException e) {
+            throw new DbException("could not create the directory: " + e.getMessage());
+        }
+        return pages;
+    }
+
+}
+
+/**
+ * Helper class that implements the DbFileIterator for the tuples of a
+ * HashFile, either all of them, page by page, or those in the bucket of a
+ * key that are equal to it.
+ */
+class HashFileIterator extends AbstractDbFileIterator {
+
+    Iterator<Tuple> it = null;
+    Iterator<Integer> pages = null;
+
+    TransactionId tid;
+    HashFile f;
+    IndexPredicate ipred;
+
+    /**
+     * Constructor for this iterator
+     *
+     * @param f     - the HashFile containing the tuples
+     * @param tid   - the transaction id
+     * @param ipred - the predicate to filter on, or null to return every tuple
+     */
+    public HashFileIterator(HashFile f, TransactionId tid, IndexPredicate ipred) {
+        this.f = f;
+        this.tid = tid;
+        this.ipred = ipred;
+    }
+
+    /**
+     * Open this iterator by listing the pages to read: the pages of the
+     * bucket of the key of an equality predicate, or every bucket page
+     */
+    public void open() throws DbException, TransactionAbortedException {
+        ArrayList<Integer> list;
+        if (ipred != null && ipred.getOp() == Op.EQUALS) {
+            list = f.bucketPages(tid, HashFile.hash(ipred.getField()));
+        } else {
+            list = new ArrayList<Integer>();
+            for (int i = 1; i < f.numPages(); i++)
+                list.add(i);
+        }
+        pages = list.iterator();
+    }
+
+    /**
+     * Read the next tuple matching the predicate from the current page, or
+     * from the next page to read.
+     *
+     * @return the next tuple matching the predicate, or null if none exists
+     */
+    @Override
+    protected Tuple readNext() throws TransactionAbortedException, DbException {
+        while (pages != null) {
+            while (it != null && it.hasNext()) {
+                Tuple t = it.next();
+                if (ipred == null || t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField()))
+                    return t;
+            }
+            if (!pages.hasNext())
+                return null;
+            HashPageId pid = new HashPageId(f.getId(), pages.next());
+            it = ((HashBucketPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY)).iterator();
+        }
+        return null;
+    }
+
+    /**
+     * rewind this iterator back to the beginning of the tuples
+     */
+    public void rewind() throws DbException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+    /**
+     * close the iterator
+     */
+    public void close() {
+        super.close();
+        it = null;
+        pages = null;
+    }
+}
@@ -1,7 +1,6 @@
 package simpledb;
 
 import com.sun.security.auth.UnixNumericGroupPrincipal;
-import junit.framework.Assert;
 
 import java.io.*;
 import java.util.*;
@@ -27,13 +26,11 @@ public class HeapFile implements DbFile {
      */
     File fileOndisk;
     TupleDesc tableTd;
-    int nowPage;
 
     public HeapFile(File f, TupleDesc td) {
         // some code goes here
         fileOndisk = f;
         tableTd = td;
-        nowPage = -1;
     }
 
     /**
@@ -95,9 +92,13 @@ public class HeapFile implements DbFile {
         // some code goes here
         // not necessary for lab1
         RandomAccessFile ss = new RandomAccessFile(fileOndisk, "rwd");
-        byte[] bw = page.getPageData();
-        ss.seek(page.getId().getPageNumber() * BufferPool.getPageSize());
-        ss.write(bw);
+        try {
+            byte[] bw = page.getPageData();
+            ss.seek((long) page.getId().getPageNumber() * BufferPool.getPageSize());
+            ss.write(bw);
+        } finally {
+            ss.close();
+        }
     }
 
     /**
@@ -128,14 +129,15 @@ public class HeapFile implements DbFile {
                 return output;
             }
         }
-        HeapPage p = new HeapPage(new HeapPageId(getId(), numPages()),
-                HeapPage.createEmptyPageData());
-        p.insertTuple(t);
-        p.markDirty(false, tid);
-        byte[] bt = p.getPageData();
+        // extend the file with an empty page, then insert through the buffer
+        // pool so the insert is logged like any other update
+        HeapPageId pid = new HeapPageId(getId(), numPages());
         FileOutputStream bw = new FileOutputStream(fileOndisk, true);
-        bw.write(bt);
+        bw.write(HeapPage.createEmptyPageData());
         bw.close();
+        HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+        p.insertTuple(t);
+        p.markDirty(true, tid);
         ArrayList<Page> output = new ArrayList<>();
         output.add(p);
         return output;
@@ -162,10 +164,19 @@ public class HeapFile implements DbFile {
     class TupleListIterator implements DbFileIterator {
         private List<Tuple> tuples;
         private boolean isOpen;
+        // the page of the tuples, which is kept by each iterator
+        private int nowPage;
         Iterator<Tuple> now;
         TransactionId tid;
         String isDbException = null;
         String isTransactionAbortedException = null;
+        // the page and slot readBatch() reads from next, which are apart
+        // from those of next(), and whether next() has been called since
+        // open() or rewind(), so that readBatch() goes on from it
+        private boolean rowsRead = false;
+        private HeapPage batchPage = null;
+        private int batchPageNo = 0;
+        private int batchSlot = 0;
 
         public TupleListIterator(TransactionId tid, PageId pid) {
             nowPage = 0;
@@ -189,6 +200,9 @@ public class HeapFile implements DbFile {
 
             isOpen = true;
             now = tuples.iterator();
+            rowsRead = false;
+            batchPage = null;
+            batchPageNo = 0;
         }
 
         @Override
@@ -198,12 +212,17 @@ public class HeapFile implements DbFile {
 
             if (!isOpen)
                 return false;
-            if (now.hasNext())
-                return true;
-            if (nowPage >= numPages() - 1)
-                return false;
-            nowPage++;
-            return getNextVailPage().size() != 0;
+            // move on to the next page with tuples here, so that calling
+            // hasNext() again does not skip a page
+            while (!now.hasNext()) {
+                if (nowPage >= numPages() - 1)
+                    return false;
+                nowPage++;
+                tuples = getNextVailPage();
+                throwException();
+                now = tuples.iterator();
+            }
+            return true;
         }
 
         @Override
@@ -211,13 +230,10 @@ public class HeapFile implements DbFile {
 
             throwException();
 
-            if (!isOpen || now == null) {
+            if (!isOpen || now == null || !hasNext()) {
                 throw new NoSuchElementException();
             }
-            if (!now.hasNext()) {
-                tuples = getNextVailPage();
-                now = tuples.iterator();
-            }
+            rowsRead = true;
             return now.next();
         }
 
@@ -229,6 +245,44 @@ public class HeapFile implements DbFile {
             nowPage = 0;
             tuples = getNextVailPage();
             now = tuples.iterator();
+            rowsRead = false;
+            batchPage = null;
+            batchPageNo = 0;
+        }
+
+        /**
+         * Fill a batch with the next tuples of the file, read page by page
+         * into the columns of the batch.  After calls to next(), the batch
+         * goes on from the tuples next() has returned.
+         *
+         * @return false if there are no more tuples
+         * @see HeapPage#readColumns
+         */
+        boolean readBatch(TupleBatch batch) throws DbException, TransactionAbortedException {
+            throwException();
+            batch.clear();
+            if (!isOpen)
+                return false;
+            if (rowsRead) {
+                while (!batch.isFull() && now.hasNext())
+                    batch.add(now.next());
+                if (now.hasNext())
+                    return true;
+                rowsRead = false;
+                batchPage = null;
+                batchPageNo = nowPage + 1;
+            }
+            while (!batch.isFull()) {
+                if (batchPage == null || batchSlot >= batchPage.numSlots) {
+                    if (batchPageNo >= numPages())
+                        break;
+                    batchPage = (HeapPage) Database.getBufferPool().getPage(tid,
+                            new HeapPageId(getId(), batchPageNo++), Permissions.READ_ONLY);
+                    batchSlot = 0;
+                }
+                batchSlot = batchPage.readColumns(batchSlot, batch);
+            }
+            return batch.size() > 0;
         }
 
         @Override
@@ -284,8 +338,7 @@ public class HeapFile implements DbFile {
 
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
-        nowPage = 0;
-        return new TupleListIterator(tid, new HeapPageId(getId(), nowPage));
+        return new TupleListIterator(tid, new HeapPageId(getId(), 0));
     }
 
 }
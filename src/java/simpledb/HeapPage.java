@@ -19,9 +19,13 @@ public class HeapPage implements Page {
     final int numSlots;
 
     byte[] oldData;
-    private final Byte oldDataLock = new Byte((byte) 0);
+    private final Object oldDataLock = new Object();
+    // true once a slot has been filled or cleared, after which oldData no
+    // longer holds the tuples of the page
+    private boolean changed = false;
     boolean isd=false;
     TransactionId dirtyId;
+    volatile long lsn = -1;
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -312,6 +316,14 @@ public class HeapPage implements Page {
         return isd ? dirtyId : null;
     }
 
+    public long getLSN() {
+        return lsn;
+    }
+
+    public void setLSN(long lsn) {
+        this.lsn = lsn;
+    }
+
     /**
      * Returns the number of empty slots on this page.
      *
@@ -327,6 +339,52 @@ public class HeapPage implements Page {
         return getNumTuples() - ans;
     }
 
+    /**
+     * @return the tuple in slot i, or null if the slot is empty
+     */
+    Tuple getTuple(int i) {
+        if (i < 0 || i >= numSlots || !isSlotUsed(i))
+            return null;
+        return tuples[i];
+    }
+
+    /**
+     * Add the tuples of this page, from a slot on, to the columns of a batch
+     * until the batch is full.  The fields are read straight from the bytes
+     * of the page, and no tuples are made, unless the page has changed since
+     * it was read.
+     *
+     * @param slot the first slot to read
+     * @return the slot after the last one read
+     */
+    int readColumns(int slot, TupleBatch batch) {
+        byte[] data;
+        synchronized (oldDataLock) {
+            data = changed ? null : oldData;
+        }
+        ColumnVector[] columns = batch.columns();
+        for (; slot < numSlots && !batch.isFull(); slot++) {
+            if (!isSlotUsed(slot))
+                continue;
+            if (data == null) {
+                batch.add(tuples[slot]);
+                continue;
+            }
+            int off = header.length + slot * td.getSize();
+            for (int j = 0; j < columns.length; j++) {
+                int v = (data[off] & 0xff) << 24 | (data[off + 1] & 0xff) << 16
+                        | (data[off + 2] & 0xff) << 8 | (data[off + 3] & 0xff);
+                if (td.getFieldType(j) == Type.INT_TYPE)
+                    columns[j].addInt(v);
+                else
+                    columns[j].addString(data, off + 4, v);
+                off += td.getFieldType(j).getLen();
+            }
+            batch.addRow(pid, slot);
+        }
+        return slot;
+    }
+
     /**
      * Returns true if associated slot on this page is filled.
      */
@@ -341,6 +399,9 @@ public class HeapPage implements Page {
     private void markSlotUsed(int i, boolean value) {
         // some code goes here
         // not necessary for lab1
+        synchronized (oldDataLock) {
+            changed = true;
+        }
         if (value)
             header[i / 8] = (byte) (header[i / 8] | (((byte) (1 << (i % 8)))));
         else
@@ -0,0 +1,136 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * IndexNestedLoopJoin is a Join whose inner relation is a table stored in a
+ * B+ tree file keyed on the join field.  Instead of rescanning the inner
+ * table for each outer tuple, it looks up the inner tuples with a key equal
+ * to the join field of the outer tuple.  It does so for batches too,
+ * rather than join blocks of tuples as {@link Join#fetchNextBatch} does.
+ */
+public class IndexNestedLoopJoin extends Join {
+
+    private static final long serialVersionUID = 1L;
+
+    private transient Tuple outer = null;
+    private transient DbFileIterator matches = null;
+    // the batch the outer tuples are read in by fetchNextBatch(), and the
+    // position of the next of them to probe for
+    private transient TupleBatch outerBatch = null;
+    private transient int outerPos = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to use to join the children; its operator must
+     *            be EQUALS, and its second field the key of the inner table
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Scan of the right(inner) relation to join, which is probed
+     *            for each outer tuple. Inner tuples returned must still
+     *            satisfy the index predicate and upper bound of the scan, if
+     *            any.
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, OpIterator child1, BTreeScan child2) {
+        super(p, child1, child2);
+        if (p.getOperator() != Predicate.Op.EQUALS)
+            throw new IllegalArgumentException("an index join needs an equality predicate");
+    }
+
+    public void close() {
+        super.close();
+        closeMatches();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        super.rewind();
+        closeMatches();
+    }
+
+    private void closeMatches() {
+        if (matches != null)
+            matches.close();
+        matches = null;
+        outer = null;
+        if (outerBatch != null)
+            outerBatch.clear();
+        outerPos = 0;
+    }
+
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (matches == null) {
+                // the rest of a batch read by fetchNextBatch() comes first
+                if (outerBatch != null && outerPos < outerBatch.size())
+                    probe(outerBatch.get(outerPos++));
+                else if (leftOp.hasNext())
+                    probe(leftOp.next());
+                else
+                    return null;
+            }
+            Tuple t = nextMatch();
+            if (t != null)
+                return t;
+        }
+    }
+
+    /**
+     * Operator.fetchNextBatch implementation, which reads the outer relation
+     * a batch at a time, and probes the index once for every outer tuple, as
+     * fetchNext() does.
+     */
+    @Override
+    protected boolean fetchNextBatch(TupleBatch batch) throws TransactionAbortedException, DbException {
+        if (outerBatch == null)
+            outerBatch = new TupleBatch(leftOp.getTupleDesc(), batch.capacity());
+        while (!batch.isFull()) {
+            if (matches == null) {
+                if (outerPos >= outerBatch.size()) {
+                    if (!leftOp.nextBatch(outerBatch))
+                        break;
+                    outerPos = 0;
+                    continue;
+                }
+                probe(outerBatch.get(outerPos++));
+            }
+            Tuple t = nextMatch();
+            if (t != null)
+                batch.add(t);
+        }
+        return batch.size() > 0;
+    }
+
+    /**
+     * Look up the inner tuples whose key is equal to the join field of an
+     * outer tuple.
+     */
+    private void probe(Tuple t) throws TransactionAbortedException, DbException {
+        outer = t;
+        matches = ((BTreeScan) rightOp).probe(new IndexPredicate(Predicate.Op.EQUALS,
+                outer.getField(predicate.getField1())));
+        matches.open();
+    }
+
+    /**
+     * @return the next match of the outer tuple joined with it, or null once
+     *         there are no more, when the matches are closed
+     */
+    private Tuple nextMatch() throws TransactionAbortedException, DbException {
+        BTreeScan inner = (BTreeScan) rightOp;
+        IndexPredicate ipred = inner.getIndexPredicate();
+        IndexPredicate upper = inner.getUpperPredicate();
+        while (matches.hasNext()) {
+            Tuple t = matches.next();
+            Field key = t.getField(predicate.getField2());
+            if ((ipred == null || key.compare(ipred.getOp(), ipred.getField()))
+                    && (upper == null || key.compare(upper.getOp(), upper.getField())))
+                return mergeTuple(outer, t);
+        }
+        matches.close();
+        matches = null;
+        return null;
+    }
+}
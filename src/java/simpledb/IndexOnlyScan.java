@@ -0,0 +1,137 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * IndexOnlyScan is an operator which reads the key and included fields of
+ * the tuples of a heap table from a secondary index, without reading the
+ * table itself.  Tuples are returned in the order of the indexed field, and
+ * have no RecordId.
+ *
+ * @see SecondaryIndex#covers
+ */
+public class IndexOnlyScan implements OpIterator {
+
+	private static final long serialVersionUID = 1L;
+
+	private boolean isOpen = false;
+	private final SecondaryIndex index;
+	private final IndexPredicate ipred;
+	private final String tablename;
+	private final String alias;
+	private final TupleDesc myTd;
+	private transient DbFileIterator it;
+
+	/**
+	 * Creates a scan of the entries of a secondary index as a part of the
+	 * specified transaction.
+	 *
+	 * @param tid
+	 *            The transaction this scan is running as a part of.
+	 * @param index
+	 *            the index to scan
+	 * @param tableAlias
+	 *            the alias of the indexed table (needed by the parser); the
+	 *            returned tupleDesc has fields with name tableAlias.fieldName
+	 * @param ipred
+	 *            the predicate on the indexed field to match. If null, the
+	 *            scan returns every entry
+	 */
+	public IndexOnlyScan(TransactionId tid, SecondaryIndex index, String tableAlias, IndexPredicate ipred) {
+		this.index = index;
+		this.ipred = ipred;
+		this.alias = tableAlias;
+		this.tablename = Database.getCatalog().getTableName(index.getTableId());
+		if (ipred == null)
+			this.it = index.getFile().iterator(tid);
+		else
+			this.it = index.getFile().indexIterator(tid, ipred);
+		TupleDesc td = Database.getCatalog().getTupleDesc(index.getTableId());
+		int[] included = index.getIncludedFields();
+		String[] newNames = new String[1 + included.length];
+		Type[] newTypes = new Type[1 + included.length];
+		newNames[0] = tableAlias + "." + td.getFieldName(index.getKeyField());
+		newTypes[0] = td.getFieldType(index.getKeyField());
+		for (int i = 0; i < included.length; i++) {
+			newNames[1 + i] = tableAlias + "." + td.getFieldName(included[i]);
+			newTypes[1 + i] = td.getFieldType(included[i]);
+		}
+		myTd = new TupleDesc(newTypes, newNames);
+	}
+
+	/**
+	 * @return the name of the table the operator scans, as it is in the
+	 *         catalog
+	 */
+	public String getTableName() {
+		return this.tablename;
+	}
+
+	/**
+	 * @return the alias of the table this operator scans
+	 */
+	public String getAlias() {
+		return this.alias;
+	}
+
+	/** @return the index this operator scans */
+	public SecondaryIndex getIndex() {
+		return index;
+	}
+
+	/**
+	 * @return the predicate the tuples returned satisfy, or null if the
+	 *         scan returns every entry
+	 */
+	public IndexPredicate getIndexPredicate() {
+		return ipred;
+	}
+
+	public void open() throws DbException, TransactionAbortedException {
+		if (isOpen)
+			throw new DbException("double open on one OpIterator.");
+
+		it.open();
+		isOpen = true;
+	}
+
+	/**
+	 * @return the TupleDesc of the key field followed by the included fields
+	 *         of the index, with field names prefixed with the tableAlias
+	 *         string from the constructor
+	 */
+	public TupleDesc getTupleDesc() {
+		return myTd;
+	}
+
+	public boolean hasNext() throws TransactionAbortedException, DbException {
+		if (!isOpen)
+			throw new IllegalStateException("iterator is closed");
+		return it.hasNext();
+	}
+
+	public Tuple next() throws NoSuchElementException,
+	TransactionAbortedException, DbException {
+		if (!isOpen)
+			throw new IllegalStateException("iterator is closed");
+
+		// drop the page and slot of the entry
+		Tuple e = it.next();
+		Tuple t = new Tuple(myTd);
+		t.setField(0, e.getField(0));
+		for (int i = 1; i < myTd.numFields(); i++)
+			t.setField(i, e.getField(2 + i));
+		return t;
+	}
+
+	public void close() {
+		it.close();
+		isOpen = false;
+	}
+
+	public void rewind() throws DbException, NoSuchElementException,
+	TransactionAbortedException {
+		close();
+		open();
+	}
+}
@@ -1,14 +1,20 @@
 package simpledb;
 
 import java.io.IOException;
+import java.util.ArrayList;
 
 /**
  * Inserts tuples read from the child operator into the tableId specified in the
- * constructor
+ * constructor.  Tuples are inserted in batches of {@link #BATCH_SIZE}, which a
+ * table stored in a B+ tree sorts and inserts a leaf page at a time.
  */
 public class Insert extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** The number of tuples read from the child before they are inserted */
+    public static final int BATCH_SIZE = 1000;
+
     int tabelId;
     OpIterator operator;
     TransactionId tid;
@@ -79,10 +85,17 @@ public class Insert extends Operator {
         try {
 
 
+            ArrayList<Tuple> batch = new ArrayList<Tuple>();
             while (operator.hasNext()) {
                 num++;
-                Database.getBufferPool().insertTuple(tid, tabelId, operator.next());
+                batch.add(operator.next());
+                if (batch.size() == BATCH_SIZE) {
+                    Database.getBufferPool().insertTuples(tid, tabelId, batch);
+                    batch.clear();
+                }
             }
+            if (!batch.isEmpty())
+                Database.getBufferPool().insertTuples(tid, tabelId, batch);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -4,6 +4,12 @@ package simpledb;
  */
 public class IntHistogram {
 
+    private final int min;
+    private final int max;
+    private final int[] counts;
+    private final double width;
+    private int total = 0;
+
     /**
      * Create a new IntHistogram.
      * 
@@ -21,7 +27,22 @@ public class IntHistogram {
      * @param max The maximum integer value that will ever be passed to this class for histogramming
      */
     public IntHistogram(int buckets, int min, int max) {
-    	// some code goes here
+        this.min = min;
+        this.max = max;
+        // never make a bucket narrower than a single value
+        long range = (long) max - min + 1;
+        this.counts = new int[(int) Math.max(1, Math.min(buckets, range))];
+        this.width = range / (double) counts.length;
+    }
+
+    private int bucket(int v) {
+        return Math.min(counts.length - 1, (int) (((long) v - min) / width));
+    }
+
+    /** @return the number of values in bucket b that are less than v */
+    private double countBelow(int b, int v) {
+        double left = min + b * width;
+        return counts[b] * Math.max(0.0, Math.min(1.0, ((long) v - left) / width));
     }
 
     /**
@@ -29,7 +50,10 @@ public class IntHistogram {
      * @param v Value to add to the histogram
      */
     public void addValue(int v) {
-    	// some code goes here
+        if (v < min || v > max)
+            return;
+        counts[bucket(v)]++;
+        total++;
     }
 
     /**
@@ -43,9 +67,43 @@ public class IntHistogram {
      * @return Predicted selectivity of this particular operator and value
      */
     public double estimateSelectivity(Predicate.Op op, int v) {
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            return equals(v);
+        case NOT_EQUALS:
+            return 1.0 - equals(v);
+        case LESS_THAN:
+            return lessThan(v);
+        case LESS_THAN_OR_EQ:
+            return lessThan(v) + equals(v);
+        case GREATER_THAN:
+            return 1.0 - lessThan(v) - equals(v);
+        case GREATER_THAN_OR_EQ:
+            return 1.0 - lessThan(v);
+        default:
+            throw new IllegalArgumentException("unknown operator " + op);
+        }
+    }
+
+    /** @return the fraction of the values equal to v */
+    private double equals(int v) {
+        if (v < min || v > max || total == 0)
+            return 0.0;
+        return counts[bucket(v)] / width / total;
+    }
 
-    	// some code goes here
-        return -1.0;
+    /** @return the fraction of the values less than v */
+    private double lessThan(int v) {
+        if (v <= min || total == 0)
+            return 0.0;
+        if (v > max)
+            return 1.0;
+        int b = bucket(v);
+        double below = countBelow(b, v);
+        for (int i = 0; i < b; i++)
+            below += counts[i];
+        return Math.max(0.0, Math.min(1.0, below / total));
     }
     
     /**
@@ -58,15 +116,22 @@ public class IntHistogram {
      * */
     public double avgSelectivity()
     {
-        // some code goes here
-        return 1.0;
+        if (total == 0)
+            return 1.0;
+        // the chance that two values drawn from the histogram are equal
+        double sel = 0.0;
+        for (int c : counts)
+            sel += (double) c * c / width;
+        return sel / ((double) total * total);
     }
     
     /**
      * @return A string describing this histogram, for debugging purposes
      */
     public String toString() {
-        // some code goes here
-        return null;
+        StringBuilder sb = new StringBuilder("IntHistogram[" + min + ", " + max + "]:");
+        for (int i = 0; i < counts.length; i++)
+            sb.append(' ').append(counts[i]);
+        return sb.toString();
     }
 }
@@ -100,21 +100,66 @@ public class IntegerAggregator implements Aggregator {
             else corrNum.set(0, corrNum.get(0) + 1);
             update(0, tup.getField(aField).hashCode());
         } else {
-            int now = -1;
-            for (int i = 0; i < tupList.size(); i++) {
-                if (tupList.get(i).getField(0).equals(getCorrTuple(tup, gbField).getField(0))) {
-                    now = i;
-                    corrNum.set(i, corrNum.get(i) + 1);
-                    break;
-                }
-            }
-            if (now == -1) {
-                corrNum.add(1);
-                now = corrNum.size() - 1;
-                tupList.add(getCorrTuple(tup, gbField));
+            Field g = tup.getField(gbField);
+            update(group(g, tup.getTupleDesc()), tup.getField(aField).hashCode());
+        }
+    }
+
+    /**
+     * Count a tuple in its group, creating the group if it has not yet been
+     * encountered.
+     *
+     * @param g the group-by field of the tuple
+     * @param td the schema of the tuple
+     * @return the index of the group
+     */
+    private int group(Field g, TupleDesc td) {
+        for (int i = 0; i < tupList.size(); i++) {
+            if (tupList.get(i).getField(0).equals(g)) {
+                corrNum.set(i, corrNum.get(i) + 1);
+                return i;
             }
-            update(now, tup.getField(aField).hashCode());
         }
+        Tuple t = new Tuple(new TupleDesc(new Type[] { td.getFieldType(gbField) },
+                new String[] { td.getFieldName(gbField) }));
+        t.setField(0, g);
+        tupList.add(t);
+        corrNum.add(1);
+        return corrNum.size() - 1;
+    }
+
+    /**
+     * Merge a batch into the aggregate, reading the aggregate field from its
+     * int column in the batch.  Without grouping, the batch is aggregated
+     * in a single pass over the column.
+     */
+    @Override
+    public void mergeBatch(TupleBatch batch) {
+        if (batch.size() == 0)
+            return;
+        int[] values = batch.column(aField).ints();
+        int[] sel = batch.selection();
+        if (gbField != NO_GROUPING) {
+            ColumnVector groups = batch.column(gbField);
+            for (int i = 0; i < batch.size(); i++)
+                update(group(groups.getField(sel[i]), batch.getTupleDesc()), values[sel[i]]);
+            return;
+        }
+        int acc = values[sel[0]];
+        for (int i = 1; i < batch.size(); i++) {
+            int v = values[sel[i]];
+            if (operator == Op.MIN)
+                acc = Math.min(acc, v);
+            else if (operator == Op.MAX)
+                acc = Math.max(acc, v);
+            else
+                acc += v;
+        }
+        if (corrNum.size() == 0)
+            corrNum.add(batch.size());
+        else
+            corrNum.set(0, corrNum.get(0) + batch.size());
+        update(0, acc);
     }
 
     /**
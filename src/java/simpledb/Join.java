@@ -82,6 +82,12 @@ public class Join extends Operator {
         // some code goes here
         leftOp.rewind();
         rightOp.rewind();
+        if (leftBatch != null) {
+            leftBatch.clear();
+            rightBatch.clear();
+        }
+        li = 0;
+        ri = 0;
     }
 
     /**
@@ -124,6 +130,94 @@ public class Join extends Operator {
         return ans;
     }
 
+    // the batches of the outer and inner relations being joined, and the
+    // positions of the next pair of tuples in them
+    private transient TupleBatch leftBatch = null;
+    private transient TupleBatch rightBatch = null;
+    private transient int li = 0, ri = 0;
+    // the int columns of the joined fields of the batches, or null if the
+    // fields are not ints
+    private transient int[] leftKeys = null, rightKeys = null;
+
+    /**
+     * Operator.fetchNextBatch implementation, a block nested loops join: the
+     * inner relation is read once for every batch of the outer relation,
+     * rather than for every tuple of it.  The tuples are those fetchNext()
+     * returns, in another order.  Joined int fields are compared in the
+     * columns of the batches, and only the tuples that match are made.
+     */
+    @Override
+    protected boolean fetchNextBatch(TupleBatch batch) throws TransactionAbortedException, DbException {
+        if (leftBatch == null) {
+            leftBatch = new TupleBatch(leftOp.getTupleDesc(), batch.capacity());
+            rightBatch = new TupleBatch(rightOp.getTupleDesc(), batch.capacity());
+        }
+        TupleDesc td = getTupleDesc();
+        int num1 = leftOp.getTupleDesc().numFields();
+        while (!batch.isFull()) {
+            if (li >= leftBatch.size()) {
+                li = 0;
+                ri++;
+            }
+            if (ri >= rightBatch.size() && !nextBlock())
+                break;
+            int l = li++;
+            boolean match;
+            if (leftKeys != null)
+                match = IntField.compare(predicate.getOperator(),
+                        leftKeys[leftBatch.selection()[l]], rightKeys[rightBatch.selection()[ri]]);
+            else
+                match = predicate.filter(leftBatch.get(l), rightBatch.get(ri));
+            if (match) {
+                Tuple left = leftBatch.get(l);
+                Tuple right = rightBatch.get(ri);
+                Tuple output = new Tuple(td);
+                for (int i = 0; i < num1; i++)
+                    output.setField(i, left.getField(i));
+                for (int i = num1; i < td.numFields(); i++)
+                    output.setField(i, right.getField(i - num1));
+                batch.add(output);
+            }
+        }
+        return batch.size() > 0;
+    }
+
+    /**
+     * Read the next batch of the inner relation, or the next batch of the
+     * outer relation and the first of the inner relation again once the
+     * outer batch has been joined with all of it.
+     *
+     * @return false if the join is finished
+     */
+    private boolean nextBlock() throws TransactionAbortedException, DbException {
+        li = 0;
+        ri = 0;
+        if (leftBatch.size() == 0 || !rightOp.nextBatch(rightBatch)) {
+            if (!leftOp.nextBatch(leftBatch))
+                return false;
+            rightOp.rewind();
+            if (!rightOp.nextBatch(rightBatch))
+                return false;
+        }
+        readKeys();
+        return true;
+    }
+
+    /**
+     * Fill in the int columns of the joined fields of the batches.
+     */
+    private void readKeys() {
+        ColumnVector left = leftBatch.column(predicate.getField1());
+        ColumnVector right = rightBatch.column(predicate.getField2());
+        if (left.getType() == Type.INT_TYPE && right.getType() == Type.INT_TYPE) {
+            leftKeys = left.ints();
+            rightKeys = right.ints();
+        } else {
+            leftKeys = null;
+            rightKeys = null;
+        }
+    }
+
     @Override
     public OpIterator[] getChildren() {
         // some code goes here
@@ -13,6 +13,8 @@ import javax.swing.tree.*;
 public class JoinOptimizer {
     LogicalPlan p;
     Vector<LogicalJoinNode> joins;
+    /** the table stats passed to {@link #orderJoins}, by table name */
+    Map<String, TableStats> stats;
 
     /**
      * Constructor
@@ -68,7 +70,24 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        // the filters over the inner table are applied to the output of an
+        // index join, so that the index is probed directly
+        Vector<Filter> innerFilters = new Vector<Filter>();
+        OpIterator inner = plan2;
+        while (inner instanceof Filter) {
+            innerFilters.add((Filter) inner);
+            inner = ((Filter) inner).getChildren()[0];
+        }
+        if (lj.indexJoin && inner instanceof BTreeScan) {
+            j = new IndexNestedLoopJoin(p, plan1, (BTreeScan) inner);
+            int offset = plan1.getTupleDesc().numFields();
+            for (int i = innerFilters.size() - 1; i >= 0; i--) {
+                Predicate fp = innerFilters.get(i).getPredicate();
+                j = new Filter(new Predicate(fp.getField() + offset, fp.getOp(), fp.getOperand()), j);
+            }
+        } else {
+            j = new Join(p,plan1,plan2);
+        }
 
         return j;
 
@@ -107,12 +126,51 @@ public class JoinOptimizer {
             // You do not need to implement proper support for these for Lab 3.
             return card1 + cost1 + cost2;
         } else {
-            // Insert your code here.
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic
-            // nested-loops join.
-            return -1.0;
+            return Math.min(estimateNestedLoopJoinCost(card1, card2, cost1, cost2),
+                    estimateIndexJoinCost(j, card1, cost1));
+        }
+    }
+
+    /**
+     * Estimate the cost of a nested-loop join, which scans the inner relation
+     * once per outer tuple and applies the predicate to every pair.
+     */
+    private static double estimateNestedLoopJoinCost(int card1, int card2,
+            double cost1, double cost2) {
+        return cost1 + card1 * cost2 + (double) card1 * card2;
+    }
+
+    /**
+     * Estimate the cost of an {@link IndexNestedLoopJoin}, which looks up the
+     * matching tuples of the inner table in the B+ tree the table is stored
+     * in once per outer tuple.
+     * 
+     * @return the estimated cost, or infinity when the inner side of j is not
+     *         a table stored in a B+ tree keyed on the join field
+     */
+    private double estimateIndexJoinCost(LogicalJoinNode j, int card1,
+            double cost1) {
+        if (j instanceof LogicalSubplanJoinNode || j.p != Predicate.Op.EQUALS)
+            return Double.POSITIVE_INFINITY;
+        Integer tableid = p.getTableId(j.t2Alias);
+        if (tableid == null)
+            return Double.POSITIVE_INFINITY;
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        String tableName = Database.getCatalog().getTableName(tableid);
+        TableStats s = stats != null ? stats.get(tableName) : TableStats
+                .getTableStats(tableName);
+        int field;
+        try {
+            field = file.getTupleDesc().fieldNameToIndex(j.f2PureName);
+        } catch (NoSuchElementException e) {
+            return Double.POSITIVE_INFINITY;
         }
+        if (s == null || !(file instanceof BTreeFile)
+                || ((BTreeFile) file).keyField() != field)
+            return Double.POSITIVE_INFINITY;
+        double sel = s.avgSelectivity(field, Predicate.Op.EQUALS);
+        return cost1 + card1 * s.estimateIndexScanCost(field, sel)
+                + (double) card1 * s.estimateTableCardinality(sel);
     }
 
     /**
@@ -156,7 +214,19 @@ public class JoinOptimizer {
             boolean t2pkey, Map<String, TableStats> stats,
             Map<String, Integer> tableAliasToId) {
         int card = 1;
-        // some code goes here
+        if (joinOp == Predicate.Op.EQUALS) {
+            // each tuple of a primary key table matches at most one tuple
+            if (t1pkey && t2pkey)
+                card = Math.min(card1, card2);
+            else if (t1pkey)
+                card = card2;
+            else if (t2pkey)
+                card = card1;
+            else
+                card = Math.max(card1, card2);
+        } else {
+            card = (int) (0.3 * card1 * card2);
+        }
         return card <= 0 ? 1 : card;
     }
 
@@ -217,11 +287,30 @@ public class JoinOptimizer {
             HashMap<String, TableStats> stats,
             HashMap<String, Double> filterSelectivities, boolean explain)
             throws ParsingException {
-        //Not necessary for labs 1--3
-
-        // some code goes here
-        //Replace the following
-        return joins;
+        this.stats = stats;
+        PlanCache pc = new PlanCache();
+        for (int i = 1; i <= joins.size(); i++) {
+            for (Set<LogicalJoinNode> s : enumerateSubsets(joins, i)) {
+                double bestCost = Double.MAX_VALUE;
+                CostCard best = null;
+                for (LogicalJoinNode j : s) {
+                    CostCard cc = computeCostAndCardOfSubplan(stats,
+                            filterSelectivities, j, s, bestCost, pc);
+                    if (cc != null) {
+                        bestCost = cc.cost;
+                        best = cc;
+                    }
+                }
+                if (best != null)
+                    pc.addPlan(s, best.cost, best.card, best.plan);
+            }
+        }
+        Vector<LogicalJoinNode> order = pc.getOrder(new HashSet<LogicalJoinNode>(joins));
+        if (order == null)
+            throw new ParsingException("Query does not include join expressions joining all nodes!");
+        if (explain && !java.awt.GraphicsEnvironment.isHeadless())
+            printJoins(order, pc, stats, filterSelectivities);
+        return order;
     }
 
     // ===================== Private Methods =================================
@@ -350,18 +439,30 @@ public class JoinOptimizer {
         }
 
         // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+        double cost1 = estimateNestedLoopJoinCost(t1card, t2card, t1cost, t2cost);
+        // an index join needs a base table on the inner side
+        double indexCost1 = news.isEmpty() || doesJoin(prevBest, table1Alias)
+                ? estimateIndexJoinCost(j, t1card, t1cost) : Double.POSITIVE_INFINITY;
 
         LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
-        if (cost2 < cost1) {
+        double cost2 = estimateNestedLoopJoinCost(t2card, t1card, t2cost, t1cost);
+        double indexCost2 = news.isEmpty() || !doesJoin(prevBest, table1Alias)
+                ? estimateIndexJoinCost(j2, t2card, t2cost) : Double.POSITIVE_INFINITY;
+        if (Math.min(cost2, indexCost2) < Math.min(cost1, indexCost1)) {
             boolean tmp;
             j = j2;
             cost1 = cost2;
+            indexCost1 = indexCost2;
             tmp = rightPkey;
             rightPkey = leftPkey;
             leftPkey = tmp;
         }
+        if (indexCost1 < cost1) {
+            // copy the node, which other plans may share, to record the choice
+            j = j.swapInnerOuter().swapInnerOuter();
+            j.indexJoin = true;
+            cost1 = indexCost1;
+        }
         if (cost1 >= bestCostSoFar)
             return null;
 
@@ -0,0 +1,1029 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+import simpledb.Predicate.Op;
+
+/**
+ * LSMFile is a DbFile that stores a table as a log-structured merge tree,
+ * for tables that take far more inserts than lookups.  An insert writes
+ * nothing but a record in an in-memory memtable, kept in key order; a
+ * delete writes a tombstone record.  When the memtable fills up, it is
+ * written out sequentially as an immutable sorted run, and runs are merged
+ * in the background: when a level holds {@link #FANOUT} runs, a compaction
+ * merges them into one run of the next level, dropping the tuples their
+ * tombstones delete.  No page is ever written in place.
+ * <p>
+ * A scan merges the memtable and the runs in key order.  A lookup reads
+ * only the runs whose key range may hold the key, skips the runs whose
+ * Bloom filter rules an equal key out, and reads each remaining run from
+ * the first page that may hold the key, located in its sparse index of
+ * the first key of every page (see {@link LSMRun}).
+ * <p>
+ * The records a transaction writes are kept aside until it completes,
+ * visible to the transaction itself only.  On commit they are appended to
+ * the log of the memtable and forced, then applied to the memtable; on
+ * abort they are dropped.  The memtable is rebuilt from its log when the
+ * file is opened.  Neither the memtable nor the runs, which never change,
+ * take locks, so a transaction reads the tuples committed while it runs.
+ * <p>
+ * The log of the memtable is separate from the write-ahead log, and a
+ * transaction is committed to it after its COMMIT record is logged.  A
+ * transaction that also wrote a HeapFile or a BTreeFile and was cut short
+ * by a crash between the two commits is committed in those files after
+ * recovery, and is missing from this one.
+ * <p>
+ * The file f holds the manifest: the runs, by number and level, and the
+ * generation of the log of the memtable.  Run n is stored in f.run&lt;n&gt;
+ * and generation g of the log in f.memlog&lt;g&gt;.  A flush starts a new
+ * generation, so the manifest always names the runs and the log that
+ * together hold every committed record.
+ * <p>
+ * Tuples are deleted by record: the RecordId of a tuple read from an
+ * LSMFile names its record by sequence number.
+ *
+ * @see LSMRun
+ * @see LSMRecord
+ */
+public class LSMFile implements DbFile, TransactionListener {
+
+    /** The default number of records the memtable holds before it is written out */
+    public static final int DEFAULT_MEMTABLE_SIZE = 10000;
+    /** The number of runs of a level that are merged into one run of the next level */
+    public static final int FANOUT = 4;
+
+    private static final int MANIFEST_MAGIC = 0x4c534d31;
+
+    private final File f;
+    private final TupleDesc td;
+    private final int tableid;
+    private final int keyField;
+
+    // the open runs by number, including the runs a compaction replaced that
+    // a scan still reads, so that readPage finds them without locking
+    private final ConcurrentHashMap<Integer, LSMRun> runsByNo = new ConcurrentHashMap<Integer, LSMRun>();
+
+    // guarded by this: whether the manifest and the log were read, the next
+    // sequence and run numbers, the log of the memtable, the memtable, the
+    // runs from the newest to the oldest, which is in ascending level, and
+    // the records of the transactions in progress
+    private boolean loaded = false;
+    private long nextSeq = 1;
+    private int nextRunNo = 1;
+    private long memlogGen = 1;
+    private FileOutputStream memlogFile = null;
+    private DataOutputStream memlog = null;
+    private ConcurrentSkipListSet<LSMRecord> memtable = new ConcurrentSkipListSet<LSMRecord>(LSMRecord.ORDER);
+    private int memtableRecords = 0;
+    private int memtableSize = DEFAULT_MEMTABLE_SIZE;
+    private final ArrayList<LSMRun> runs = new ArrayList<LSMRun>();
+    private final HashMap<TransactionId, ArrayList<LSMRecord>> pending = new HashMap<TransactionId, ArrayList<LSMRecord>>();
+    private boolean compactionScheduled = false;
+    private ExecutorService compactor = null;
+
+    // held while runs are merged, so that one compaction runs at a time
+    private final Object compactionLock = new Object();
+
+    /**
+     * Constructs an LSM file backed by the specified file.
+     *
+     * @param f   - the file that stores the manifest of this LSM file; its runs
+     *            and the log of its memtable are stored next to it
+     * @param key - the field which the file is keyed on
+     * @param td  - the tuple descriptor of tuples in the file
+     */
+    public LSMFile(File f, int key, TupleDesc td) {
+        this.f = f;
+        this.tableid = f.getAbsoluteFile().hashCode();
+        this.keyField = key;
+        this.td = td;
+    }
+
+    /**
+     * Returns the File holding the manifest of this LSMFile.
+     */
+    public File getFile() {
+        return f;
+    }
+
+    /**
+     * Returns an ID uniquely identifying this LSMFile, the hash of the
+     * absolute file name of its manifest.
+     *
+     * @return an ID uniquely identifying this LSMFile.
+     */
+    public int getId() {
+        return tableid;
+    }
+
+    /**
+     * Returns the TupleDesc of the table stored in this DbFile.
+     *
+     * @return TupleDesc of this DbFile.
+     */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * Returns the index of the field that this file is keyed on
+     */
+    public int keyField() {
+        return keyField;
+    }
+
+    /**
+     * Set the number of records the memtable holds before it is written out
+     * as a run.
+     */
+    public synchronized void setMemtableSize(int records) {
+        if (records <= 0)
+            throw new IllegalArgumentException("the memtable must hold at least one record");
+        memtableSize = records;
+    }
+
+    /**
+     * Returns the number of pages of the runs of this file, plus the pages
+     * the records of the memtable would take.
+     */
+    public synchronized int numPages() {
+        loadQuietly();
+        int pages = (memtableRecords + LSMPage.maxRecords(td) - 1) / LSMPage.maxRecords(td);
+        for (LSMRun run : runs)
+            pages += run.numPages;
+        return pages;
+    }
+
+    /**
+     * Returns the number of runs of this file.
+     */
+    public synchronized int numRuns() {
+        loadQuietly();
+        return runs.size();
+    }
+
+    private File runFile(int runNo) {
+        return new File(f.getPath() + ".run" + runNo);
+    }
+
+    private File memlogFile(long gen) {
+        return new File(f.getPath() + ".memlog" + gen);
+    }
+
+    /**
+     * Read the manifest, open the runs it names, and rebuild the memtable
+     * from its log, the first time the file is used.
+     */
+    private synchronized void load() throws IOException {
+        if (loaded)
+            return;
+        if (f.exists() && f.length() > 0) {
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+            try {
+                if (dis.readInt() != MANIFEST_MAGIC)
+                    throw new IOException(f + " is not the manifest of an LSM file");
+                nextSeq = dis.readLong();
+                nextRunNo = dis.readInt();
+                memlogGen = dis.readLong();
+                int n = dis.readInt();
+                for (int i = 0; i < n; i++) {
+                    int runNo = dis.readInt();
+                    int level = dis.readInt();
+                    LSMRun run = LSMRun.open(runFile(runNo), runNo, level, td.getFieldType(keyField));
+                    runs.add(run);
+                    runsByNo.put(runNo, run);
+                }
+            } finally {
+                dis.close();
+            }
+        }
+
+        // replay the complete records of the log, dropping any partial record
+        // a crash left at its end
+        File log = memlogFile(memlogGen);
+        if (log.exists()) {
+            int size = LSMRecord.size(td);
+            long complete = log.length() / size;
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(log)));
+            try {
+                for (long i = 0; i < complete; i++) {
+                    LSMRecord r = LSMRecord.parse(dis, td, keyField);
+                    r.tuple.setRecordId(recordId(tableid, r.seq));
+                    apply(r);
+                    nextSeq = Math.max(nextSeq, r.seq + 1);
+                }
+            } finally {
+                dis.close();
+            }
+            RandomAccessFile rf = new RandomAccessFile(log, "rw");
+            try {
+                rf.setLength(complete * size);
+            } finally {
+                rf.close();
+            }
+        }
+        loaded = true;
+        scheduleCompaction();
+    }
+
+    private void loadQuietly() {
+        try {
+            load();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Replace the manifest with one naming the current runs and log, through
+     * a temporary file, so that a crash leaves either the old or the new one.
+     */
+    private void writeManifest() throws IOException {
+        File tmp = new File(f.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(fos));
+            dos.writeInt(MANIFEST_MAGIC);
+            dos.writeLong(nextSeq);
+            dos.writeInt(nextRunNo);
+            dos.writeLong(memlogGen);
+            dos.writeInt(runs.size());
+            for (LSMRun run : runs) {
+                dos.writeInt(run.runNo);
+                dos.writeInt(run.level);
+            }
+            dos.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return the RecordId naming the record with the given sequence number
+     * of a table: page (run 0, seq / 2^31), tuple seq % 2^31
+     */
+    static RecordId recordId(int tableid, long seq) {
+        return new RecordId(new LSMPageId(tableid, 0, (int) (seq >>> 31)), (int) (seq & Integer.MAX_VALUE));
+    }
+
+    /**
+     * @return the sequence number of the record a RecordId names, or -1 if it
+     * does not name a record of this file
+     */
+    private long seqOf(RecordId rid) {
+        if (rid == null || !(rid.getPageId() instanceof LSMPageId))
+            return -1;
+        LSMPageId pid = (LSMPageId) rid.getPageId();
+        if (pid.getTableId() != tableid || pid.getRunNumber() != 0)
+            return -1;
+        return ((long) pid.getPageNumber() << 31) | rid.getTupleNumber();
+    }
+
+    /**
+     * Read a page of a run from disk. This should not be called directly but
+     * should be called from the BufferPool via getPage()
+     *
+     * @param pid - the id of the page to read from disk
+     * @return the page constructed from the contents on disk
+     */
+    public Page readPage(PageId pid) throws IOException {
+        LSMPageId id = (LSMPageId) pid;
+        LSMRun run = runsByNo.get(id.getRunNumber());
+        if (run == null)
+            throw new IllegalArgumentException("no run " + id.getRunNumber() + " in " + f);
+        return new LSMPage(id, run.readPageData(id.getPageNumber()), td, keyField);
+    }
+
+    /**
+     * Runs are written whole, when the memtable is written out or runs are
+     * merged, and their pages are never dirty, so this writes nothing.
+     */
+    public void writePage(Page page) {
+    }
+
+    /**
+     * Insert a tuple into this LSMFile: the tuple is added to the memtable
+     * when the transaction commits.
+     *
+     * @param tid - the transaction id
+     * @param t   - the tuple to insert
+     * @return an empty list: no page is dirtied
+     */
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        if (!td.equals(t.getTupleDesc()))
+            throw new DbException("type mismatch, in insertTuple");
+        Tuple copy = new Tuple(td);
+        for (int i = 0; i < td.numFields(); i++)
+            copy.setField(i, t.getField(i));
+        synchronized (this) {
+            load();
+            long seq = nextSeq++;
+            copy.setRecordId(recordId(tableid, seq));
+            pendingRecords(tid).add(LSMRecord.tuple(seq, copy, keyField));
+        }
+        t.setRecordId(copy.getRecordId());
+        return new ArrayList<Page>();
+    }
+
+    /**
+     * Delete a tuple from this LSMFile: a tombstone for its record is added
+     * to the memtable when the transaction commits.  A tuple the transaction
+     * inserted itself is dropped at once.
+     *
+     * @param tid - the transaction id
+     * @param t   - the tuple to delete, read from this file
+     * @return an empty list: no page is dirtied
+     * @throws DbException if the tuple is not a member of the file
+     */
+    public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        long seq = seqOf(t.getRecordId());
+        synchronized (this) {
+            load();
+            ArrayList<LSMRecord> mine = pendingRecords(tid);
+            for (Iterator<LSMRecord> it = mine.iterator(); it.hasNext(); ) {
+                LSMRecord r = it.next();
+                if (!r.tombstone && (seq >= 0 ? r.seq == seq : sameFields(r.tuple, t))) {
+                    it.remove();
+                    return new ArrayList<Page>();
+                }
+            }
+        }
+
+        // find the committed record of the tuple, among the records with its key
+        LSMRecord deleted = null;
+        DbFileIterator it = indexIterator(tid, new IndexPredicate(Op.EQUALS, t.getField(keyField)));
+        it.open();
+        try {
+            while (deleted == null && it.hasNext()) {
+                Tuple found = it.next();
+                long foundSeq = seqOf(found.getRecordId());
+                if (seq >= 0 ? foundSeq == seq : sameFields(found, t))
+                    deleted = LSMRecord.tuple(foundSeq, found, keyField);
+            }
+        } finally {
+            it.close();
+        }
+        if (deleted == null)
+            throw new DbException("tuple is not a member of this file");
+        synchronized (this) {
+            pendingRecords(tid).add(LSMRecord.tombstone(nextSeq++, deleted));
+        }
+        return new ArrayList<Page>();
+    }
+
+    private static boolean sameFields(Tuple a, Tuple b) {
+        for (int i = 0; i < a.getTupleDesc().numFields(); i++) {
+            if (!a.getField(i).equals(b.getField(i)))
+                return false;
+        }
+        return true;
+    }
+
+    private ArrayList<LSMRecord> pendingRecords(TransactionId tid) {
+        ArrayList<LSMRecord> mine = pending.get(tid);
+        if (mine == null) {
+            mine = new ArrayList<LSMRecord>();
+            pending.put(tid, mine);
+            Database.getBufferPool().addTransactionListener(tid, this);
+        }
+        return mine;
+    }
+
+    /**
+     * Add a committed record to the memtable.  A tombstone for a tuple in
+     * the memtable removes it instead.
+     */
+    private void apply(LSMRecord r) {
+        if (r.tombstone && memtable.remove(LSMRecord.tuple(r.target, r.tuple, keyField)))
+            memtableRecords--;
+        else if (memtable.add(r))
+            memtableRecords++;
+    }
+
+    /**
+     * Complete a transaction.  On commit, its records are appended to the
+     * log of the memtable, which is forced, and added to the memtable, which
+     * is written out if it is full.  On abort they are dropped.  Called by
+     * {@link BufferPool#transactionComplete(TransactionId, boolean)} for the
+     * transactions that wrote this file.
+     *
+     * @param tid    - the transaction id
+     * @param commit - whether the transaction commits
+     */
+    public synchronized void transactionComplete(TransactionId tid, boolean commit) throws IOException {
+        ArrayList<LSMRecord> mine = pending.remove(tid);
+        if (mine == null || mine.isEmpty() || !commit)
+            return;
+        if (memlog == null) {
+            memlogFile = new FileOutputStream(memlogFile(memlogGen), true);
+            memlog = new DataOutputStream(new BufferedOutputStream(memlogFile));
+        }
+        for (LSMRecord r : mine)
+            r.serialize(memlog);
+        memlog.flush();
+        memlogFile.getFD().sync();
+        for (LSMRecord r : mine)
+            apply(r);
+        if (memtableRecords >= memtableSize)
+            flush();
+    }
+
+    /**
+     * Write the memtable out as a run of level 0, and start a new log for
+     * the next memtable.
+     */
+    public synchronized void flush() throws IOException {
+        load();
+        if (memtableRecords == 0)
+            return;
+        int runNo = nextRunNo++;
+        LSMRun run = LSMRun.write(runFile(runNo), runNo, 0, td, memtable.iterator(), memtableRecords);
+        runs.add(0, run);
+        runsByNo.put(runNo, run);
+
+        long oldGen = memlogGen++;
+        if (memlog != null) {
+            memlog.close();
+            memlog = null;
+            memlogFile = null;
+        }
+        writeManifest();
+        memlogFile(oldGen).delete();
+        memtable = new ConcurrentSkipListSet<LSMRecord>(LSMRecord.ORDER);
+        memtableRecords = 0;
+        scheduleCompaction();
+    }
+
+    /**
+     * @return the lowest level with {@link #FANOUT} runs or more, or -1 if
+     * there is none
+     */
+    private int levelToCompact() {
+        HashMap<Integer, Integer> counts = new HashMap<Integer, Integer>();
+        for (LSMRun run : runs) {
+            int n = counts.containsKey(run.level) ? counts.get(run.level) + 1 : 1;
+            counts.put(run.level, n);
+        }
+        int level = -1;
+        for (Map.Entry<Integer, Integer> e : counts.entrySet()) {
+            if (e.getValue() >= FANOUT && (level < 0 || e.getKey() < level))
+                level = e.getKey();
+        }
+        return level;
+    }
+
+    /**
+     * Start compacting in the background if a level is full and no
+     * compaction is running.
+     */
+    private void scheduleCompaction() {
+        if (compactionScheduled || levelToCompact() < 0)
+            return;
+        compactionScheduled = true;
+        if (compactor == null) {
+            compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "lsm-compaction");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        compactor.submit(new Runnable() {
+            public void run() {
+                try {
+                    compactLevels();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    synchronized (LSMFile.this) {
+                        compactionScheduled = false;
+                        LSMFile.this.notifyAll();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Wait until the compaction running in the background, if any, is done.
+     */
+    synchronized void awaitCompaction() throws InterruptedException {
+        while (compactionScheduled)
+            wait();
+    }
+
+    /**
+     * Merge the runs of every full level into one run of the next level,
+     * from the lowest level up.
+     */
+    private void compactLevels() throws IOException {
+        synchronized (compactionLock) {
+            while (true) {
+                ArrayList<LSMRun> group = new ArrayList<LSMRun>();
+                int level;
+                synchronized (this) {
+                    level = levelToCompact();
+                    if (level < 0) {
+                        compactionScheduled = false;
+                        notifyAll();
+                        return;
+                    }
+                    for (LSMRun run : runs) {
+                        if (run.level == level)
+                            group.add(run);
+                    }
+                }
+                merge(group, level + 1);
+            }
+        }
+    }
+
+    /**
+     * Write the memtable out, and merge all the runs of this file into one,
+     * dropping every tuple deleted by a tombstone and every tombstone.
+     */
+    public void compact() throws IOException {
+        synchronized (compactionLock) {
+            ArrayList<LSMRun> group;
+            int level = 0;
+            synchronized (this) {
+                flush();
+                group = new ArrayList<LSMRun>(runs);
+                for (LSMRun run : group)
+                    level = Math.max(level, run.level);
+            }
+            if (group.size() > 1)
+                merge(group, level);
+        }
+    }
+
+    /**
+     * Merge runs that are next to each other in age into one run of the
+     * given level, which takes their place.  A tombstone is dropped with the
+     * tuple it deletes when both are merged, and on its own when the runs
+     * include the oldest run, which leaves no older tuple for it to delete.
+     * Only one merge runs at a time.
+     *
+     * @param group - the runs to merge, from the newest to the oldest
+     * @param level - the level of the merged run
+     */
+    private void merge(List<LSMRun> group, int level) throws IOException {
+        boolean oldest;
+        int runNo;
+        synchronized (this) {
+            oldest = runs.get(runs.size() - 1) == group.get(group.size() - 1);
+            runNo = nextRunNo++;
+        }
+        long expected = 0;
+        ArrayList<LSMCursor> cursors = new ArrayList<LSMCursor>();
+        LSMRun merged;
+        try {
+            for (LSMRun run : group) {
+                expected += run.numRecords;
+                cursors.add(new LSMRunCursor(this, null, run, 0));
+            }
+            merged = LSMRun.write(runFile(runNo), runNo, level, td, new LSMCompactionIterator(cursors, oldest), expected);
+        } catch (DbException e) {
+            throw new IOException("could not read a run: " + e.getMessage());
+        } catch (TransactionAbortedException e) {
+            throw new IOException("could not read a run: " + e.getMessage());
+        } catch (LSMCompactionIterator.ReadFailure e) {
+            throw new IOException("could not read a run: " + e.getCause().getMessage());
+        }
+
+        ArrayList<LSMRun> dead = new ArrayList<LSMRun>();
+        synchronized (this) {
+            int pos = runs.indexOf(group.get(0));
+            runs.removeAll(group);
+            if (merged != null) {
+                runs.add(pos, merged);
+                runsByNo.put(runNo, merged);
+            }
+            writeManifest();
+            for (LSMRun run : group) {
+                run.obsolete = true;
+                if (--run.refs == 0)
+                    dead.add(run);
+            }
+        }
+        delete(dead);
+    }
+
+    /**
+     * Delete runs no longer used, dropping their pages from the buffer pool.
+     */
+    private void delete(List<LSMRun> dead) {
+        for (LSMRun run : dead) {
+            runsByNo.remove(run.runNo);
+            for (int i = 0; i < run.numPages; i++)
+                Database.getBufferPool().discardPage(new LSMPageId(tableid, run.runNo, i));
+            run.file.delete();
+        }
+    }
+
+    /**
+     * The parts of the file a scan merges: the memtable, the records of the
+     * transaction in progress, in record order, and the runs.
+     */
+    static class Snapshot {
+        final NavigableSet<LSMRecord> memtable;
+        final List<LSMRecord> pending;
+        final List<LSMRun> runs;
+
+        Snapshot(NavigableSet<LSMRecord> memtable, List<LSMRecord> pending, List<LSMRun> runs) {
+            this.memtable = memtable;
+            this.pending = pending;
+            this.runs = runs;
+        }
+    }
+
+    /**
+     * Take a snapshot for a scan, keeping its runs from being deleted until
+     * it is released.
+     */
+    synchronized Snapshot acquire(TransactionId tid) throws IOException {
+        load();
+        ArrayList<LSMRecord> mine = new ArrayList<LSMRecord>();
+        if (pending.containsKey(tid))
+            mine.addAll(pending.get(tid));
+        Collections.sort(mine, LSMRecord.ORDER);
+        for (LSMRun run : runs)
+            run.refs++;
+        return new Snapshot(memtable, mine, new ArrayList<LSMRun>(runs));
+    }
+
+    /**
+     * Release a snapshot, deleting the runs a compaction replaced that no
+     * other snapshot uses.
+     */
+    void release(Snapshot s) {
+        ArrayList<LSMRun> dead = new ArrayList<LSMRun>();
+        synchronized (this) {
+            for (LSMRun run : s.runs) {
+                if (--run.refs == 0 && run.obsolete)
+                    dead.add(run);
+            }
+        }
+        delete(dead);
+    }
+
+    /**
+     * Returns an iterator over the tuples whose key satisfies a predicate,
+     * in key order.  EQUALS, LESS_THAN and LESS_THAN_OR_EQ stop at the last
+     * key that can match; EQUALS, GREATER_THAN and GREATER_THAN_OR_EQ start
+     * each run at the first page that may hold a match, and EQUALS skips the
+     * runs whose Bloom filter rules the key out.
+     *
+     * @param tid   - the transaction id
+     * @param ipred - the index predicate value to filter on
+     * @return an iterator for the filtered tuples
+     */
+    public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred) {
+        return new LSMFileIterator(this, tid, ipred);
+    }
+
+    /**
+     * Get an iterator for all tuples in this LSMFile, in key order
+     *
+     * @param tid - the transaction id
+     * @return an iterator for all the tuples in this file
+     */
+    public DbFileIterator iterator(TransactionId tid) {
+        return new LSMFileIterator(this, tid, null);
+    }
+
+}
+
+/**
+ * A position in a sorted sequence of LSMRecords merged by a scan or a
+ * compaction.
+ */
+abstract class LSMCursor {
+    /** @return the record at the position, or null at the end */
+    abstract LSMRecord peek();
+
+    /** Move to the next record */
+    abstract void advance() throws DbException, TransactionAbortedException;
+
+    static final Comparator<LSMCursor> ORDER = new Comparator<LSMCursor>() {
+        public int compare(LSMCursor a, LSMCursor b) {
+            return LSMRecord.ORDER.compare(a.peek(), b.peek());
+        }
+    };
+}
+
+/**
+ * A cursor over records held in memory, in record order.
+ */
+class LSMMemoryCursor extends LSMCursor {
+    private final Iterator<LSMRecord> it;
+    private LSMRecord current;
+
+    LSMMemoryCursor(Iterator<LSMRecord> it) {
+        this.it = it;
+        this.current = it.hasNext() ? it.next() : null;
+    }
+
+    LSMRecord peek() {
+        return current;
+    }
+
+    void advance() {
+        current = it.hasNext() ? it.next() : null;
+    }
+}
+
+/**
+ * A cursor over the records of a run, from a given page.  A scan reads the
+ * pages through the buffer pool; a compaction, which has no transaction,
+ * reads them from the file of the run.
+ */
+class LSMRunCursor extends LSMCursor {
+    private final LSMFile file;
+    private final TransactionId tid;
+    private final LSMRun run;
+    private int pageNo;
+    private List<LSMRecord> records;
+    private int index = 0;
+
+    LSMRunCursor(LSMFile file, TransactionId tid, LSMRun run, int pageNo)
+            throws DbException, TransactionAbortedException {
+        this.file = file;
+        this.tid = tid;
+        this.run = run;
+        this.pageNo = pageNo;
+        this.records = readPage();
+    }
+
+    private List<LSMRecord> readPage() throws DbException, TransactionAbortedException {
+        if (pageNo >= run.numPages)
+            return null;
+        LSMPageId pid = new LSMPageId(file.getId(), run.runNo, pageNo);
+        if (tid != null)
+            return ((LSMPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY)).records();
+        try {
+            return ((LSMPage) file.readPage(pid)).records();
+        } catch (IOException e) {
+            throw new DbException("could not read " + pid + ": " + e.getMessage());
+        }
+    }
+
+    LSMRecord peek() {
+        return records == null ? null : records.get(index);
+    }
+
+    void advance() throws DbException, TransactionAbortedException {
+        if (++index == records.size()) {
+            pageNo++;
+            index = 0;
+            records = readPage();
+        }
+    }
+}
+
+/**
+ * Helper class that merges the runs of a compaction into the records of
+ * the merged run, dropping the tombstones that meet their tuples.
+ */
+class LSMCompactionIterator implements Iterator<LSMRecord> {
+
+    /** A failure to read a run, thrown through Iterator.next() */
+    static class ReadFailure extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        ReadFailure(Exception cause) {
+            super(cause);
+        }
+    }
+
+    private final PriorityQueue<LSMCursor> heap = new PriorityQueue<LSMCursor>(11, LSMCursor.ORDER);
+    private final boolean dropTombstones;
+    // the last tombstone merged, until the record after it is merged, and a
+    // record merged after a tombstone that is written first
+    private LSMRecord tombstone = null;
+    private LSMRecord queued = null;
+    private LSMRecord next = null;
+
+    /**
+     * @param cursors        - cursors at the start of the runs to merge
+     * @param dropTombstones - whether to drop tombstones whose tuple is not
+     *                       merged, because no older run holds it
+     */
+    LSMCompactionIterator(List<LSMCursor> cursors, boolean dropTombstones) {
+        for (LSMCursor c : cursors) {
+            if (c.peek() != null)
+                heap.add(c);
+        }
+        this.dropTombstones = dropTombstones;
+    }
+
+    private LSMRecord poll() {
+        LSMCursor c = heap.poll();
+        if (c == null)
+            return null;
+        LSMRecord r = c.peek();
+        try {
+            c.advance();
+        } catch (DbException e) {
+            throw new ReadFailure(e);
+        } catch (TransactionAbortedException e) {
+            throw new ReadFailure(e);
+        }
+        if (c.peek() != null)
+            heap.add(c);
+        return r;
+    }
+
+    /**
+     * @return the next record to write: a tombstone is held back until the
+     * record after it shows whether its tuple is merged too
+     */
+    private LSMRecord readNext() {
+        if (queued != null) {
+            LSMRecord r = queued;
+            queued = null;
+            return r;
+        }
+        while (true) {
+            LSMRecord r = poll();
+            if (r == null) {
+                LSMRecord held = tombstone;
+                tombstone = null;
+                return held == null || dropTombstones ? null : held;
+            }
+            boolean sameTarget = tombstone != null && r.target == tombstone.target;
+            if (r.tombstone) {
+                if (sameTarget)
+                    continue; // another deletion of the same tuple
+                LSMRecord held = tombstone;
+                tombstone = r;
+                if (held != null && !dropTombstones)
+                    return held;
+            } else if (sameTarget) {
+                tombstone = null; // the tuple and its tombstone cancel out
+            } else {
+                LSMRecord held = tombstone;
+                tombstone = null;
+                if (held != null && !dropTombstones) {
+                    queued = r;
+                    return held;
+                }
+                return r;
+            }
+        }
+    }
+
+    public boolean hasNext() {
+        if (next == null)
+            next = readNext();
+        return next != null;
+    }
+
+    public LSMRecord next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        LSMRecord r = next;
+        next = null;
+        return r;
+    }
+}
+
+/**
+ * Helper class that implements the DbFileIterator for the tuples of an
+ * LSMFile, merging the memtable, the records of the transaction and the
+ * runs in key order.
+ */
+class LSMFileIterator extends AbstractDbFileIterator {
+
+    private final LSMFile f;
+    private final TransactionId tid;
+    private final IndexPredicate ipred;
+
+    private LSMFile.Snapshot snapshot = null;
+    private PriorityQueue<LSMCursor> heap = null;
+    // the tuple deleted by the tombstone just merged, which comes next
+    private long deleted = -1;
+
+    /**
+     * Constructor for this iterator
+     *
+     * @param f     - the LSMFile containing the tuples
+     * @param tid   - the transaction id
+     * @param ipred - the predicate to filter on, or null to return every tuple
+     */
+    public LSMFileIterator(LSMFile f, TransactionId tid, IndexPredicate ipred) {
+        this.f = f;
+        this.tid = tid;
+        this.ipred = ipred;
+    }
+
+    /**
+     * Open this iterator by placing a cursor on each part of the file that
+     * may hold a matching key, at the first record that may match
+     */
+    public void open() throws DbException, TransactionAbortedException {
+        try {
+            snapshot = f.acquire(tid);
+        } catch (IOException e) {
+            throw new DbException("could not open " + f.getFile() + ": " + e.getMessage());
+        }
+        Op op = ipred == null ? null : ipred.getOp();
+        Field value = ipred == null ? null : ipred.getField();
+        Field low = op == Op.EQUALS || op == Op.GREATER_THAN || op == Op.GREATER_THAN_OR_EQ ? value : null;
+        boolean bounded = op == Op.EQUALS || op == Op.LESS_THAN || op == Op.LESS_THAN_OR_EQ;
+
+        heap = new PriorityQueue<LSMCursor>(11, LSMCursor.ORDER);
+        LSMRecord start = low == null ? null : LSMRecord.probe(low, Long.MIN_VALUE);
+        add(new LSMMemoryCursor(start == null ? snapshot.memtable.iterator()
+                : snapshot.memtable.tailSet(start, true).iterator()));
+        add(new LSMMemoryCursor(snapshot.pending.iterator()));
+        for (LSMRun run : snapshot.runs) {
+            if (op == Op.EQUALS && !run.mightContain(value))
+                continue;
+            if (low != null && LSMRecord.compareKeys(run.lastKey(), low) < 0)
+                continue;
+            if (bounded && LSMRecord.compareKeys(run.firstKey(), value) > 0)
+                continue;
+            add(new LSMRunCursor(f, tid, run, low == null ? 0 : run.firstPage(low)));
+        }
+        deleted = -1;
+    }
+
+    private void add(LSMCursor c) {
+        if (c.peek() != null)
+            heap.add(c);
+    }
+
+    /**
+     * @return true if no key from this one on can satisfy the predicate
+     */
+    private boolean pastEnd(Field key) {
+        if (ipred == null)
+            return false;
+        switch (ipred.getOp()) {
+        case EQUALS:
+        case LESS_THAN_OR_EQ:
+            return key.compare(Op.GREATER_THAN, ipred.getField());
+        case LESS_THAN:
+            return key.compare(Op.GREATER_THAN_OR_EQ, ipred.getField());
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Merge the next record of the cursors.  A tombstone comes right before
+     * the tuple it deletes, which is skipped.
+     *
+     * @return the next tuple matching the predicate, or null if none exists
+     */
+    @Override
+    protected Tuple readNext() throws TransactionAbortedException, DbException {
+        while (heap != null && !heap.isEmpty()) {
+            LSMCursor c = heap.poll();
+            LSMRecord r = c.peek();
+            c.advance();
+            add(c);
+            if (pastEnd(r.key)) {
+                heap.clear();
+                return null;
+            }
+            if (r.tombstone) {
+                deleted = r.target;
+                continue;
+            }
+            if (r.seq == deleted)
+                continue;
+            if (ipred == null || r.key.compare(ipred.getOp(), ipred.getField()))
+                return r.tuple;
+        }
+        return null;
+    }
+
+    /**
+     * rewind this iterator back to the beginning of the tuples
+     */
+    public void rewind() throws DbException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+    /**
+     * close the iterator
+     */
+    public void close() {
+        super.close();
+        if (snapshot != null)
+            f.release(snapshot);
+        snapshot = null;
+        heap = null;
+    }
+}
@@ -0,0 +1,96 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A page of a sorted run of an {@link LSMFile}.  It holds a number of
+ * {@link LSMRecord}s in record order, after an int giving their count.
+ * Runs are written once, by a flush or a compaction, and never change, so
+ * an LSMPage is never dirty: it has no before image and is never logged.
+ */
+public class LSMPage implements Page {
+
+    private final LSMPageId pid;
+    private final byte[] data;
+    private final ArrayList<LSMRecord> records;
+
+    /**
+     * Create an LSMPage from the bytes of a page of a run.
+     *
+     * @param id       - the id of this page
+     * @param data     - the raw data of this page
+     * @param td       - the type of the tuples of the file
+     * @param keyField - the key field of the file
+     */
+    public LSMPage(LSMPageId id, byte[] data, TupleDesc td, int keyField) throws IOException {
+        this.pid = id;
+        this.data = data;
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        int count = dis.readInt();
+        records = new ArrayList<LSMRecord>(count);
+        for (int i = 0; i < count; i++) {
+            LSMRecord r = LSMRecord.parse(dis, td, keyField);
+            r.tuple.setRecordId(LSMFile.recordId(id.getTableId(), r.seq));
+            records.add(r);
+        }
+    }
+
+    /** @return the number of records that fit on a page */
+    static int maxRecords(TupleDesc td) {
+        return (BufferPool.getPageSize() - 4) / LSMRecord.size(td);
+    }
+
+    /**
+     * @return the bytes of a page holding the given records, which must
+     * fit on it
+     */
+    static byte[] createPageData(List<LSMRecord> records) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize());
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeInt(records.size());
+        for (LSMRecord r : records)
+            r.serialize(dos);
+        dos.flush();
+        if (baos.size() > BufferPool.getPageSize())
+            throw new IOException("records do not fit on a page");
+        return Arrays.copyOf(baos.toByteArray(), BufferPool.getPageSize());
+    }
+
+    /** @return the records of this page, in record order */
+    List<LSMRecord> records() {
+        return records;
+    }
+
+    public LSMPageId getId() {
+        return pid;
+    }
+
+    public byte[] getPageData() {
+        return data.clone();
+    }
+
+    /** Run pages are never dirty */
+    public TransactionId isDirty() {
+        return null;
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+        if (dirty)
+            throw new UnsupportedOperationException("the pages of LSM runs are never changed");
+    }
+
+    public LSMPage getBeforeImage() {
+        return this;
+    }
+
+    public void setBeforeImage() {
+    }
+
+    public long getLSN() {
+        return LogFile.NO_LSN;
+    }
+
+    public void setLSN(long lsn) {
+    }
+}
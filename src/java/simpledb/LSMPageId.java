@@ -0,0 +1,89 @@
+package simpledb;
+
+/** Unique identifier for LSMPage objects: a page of one of the sorted runs
+ *  of an LSMFile.  Runs are numbered from 1; run number 0 names no run,
+ *  and only appears in the RecordIds of tuples, which name a record by its
+ *  sequence number rather than by its place in a run.
+ */
+public class LSMPageId implements PageId {
+
+	private final int tableId;
+	private final int runNo;
+	private final int pgNo;
+
+	/**
+	 * Constructor. Create a page id structure for a specific page of a
+	 * specific run of a specific table.
+	 *
+	 * @param tableId The table that is being referenced
+	 * @param runNo The run of the table the page belongs to
+	 * @param pgNo The page number in that run.
+	 */
+	public LSMPageId(int tableId, int runNo, int pgNo) {
+		this.tableId = tableId;
+		this.runNo = runNo;
+		this.pgNo = pgNo;
+	}
+
+	/** @return the table associated with this PageId */
+	public int getTableId() {
+		return tableId;
+	}
+
+	/** @return the run associated with this PageId */
+	public int getRunNumber() {
+		return runNo;
+	}
+
+	/**
+	 * @return the page number in the run getRunNumber() associated with
+	 *   this PageId
+	 */
+	public int getPageNumber() {
+		return pgNo;
+	}
+
+	/**
+	 * @return a hash code for this page, represented by the combination of
+	 *   the table number, the run number and the page number
+	 * @see BufferPool
+	 */
+	public int hashCode() {
+		return (tableId << 16) + (runNo << 20) + pgNo;
+	}
+
+	/**
+	 * Compares one PageId to another.
+	 *
+	 * @param o The object to compare against (must be a PageId)
+	 * @return true if the objects are equal (e.g., table ids, run numbers
+	 *   and page numbers are the same)
+	 */
+	public boolean equals(Object o) {
+		if (!(o instanceof LSMPageId))
+			return false;
+		LSMPageId p = (LSMPageId) o;
+		return tableId == p.tableId && runNo == p.runNo && pgNo == p.pgNo;
+	}
+
+	public String toString() {
+		return "(tableId: " + tableId + ", runNo: " + runNo + ", pgNo: " + pgNo + ")";
+	}
+
+	/**
+	 *  Return a representation of this object as an array of
+	 *  integers, for writing to disk.  Size of returned array must contain
+	 *  number of integers that corresponds to number of args to one of the
+	 *  constructors.
+	 */
+	public int[] serialize() {
+		int data[] = new int[3];
+
+		data[0] = tableId;
+		data[1] = runNo;
+		data[2] = pgNo;
+
+		return data;
+	}
+
+}
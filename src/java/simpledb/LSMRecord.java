@@ -0,0 +1,121 @@
+package simpledb;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.Comparator;
+
+import simpledb.Predicate.Op;
+
+/**
+ * A write to an {@link LSMFile}: either a tuple, or a tombstone deleting
+ * the tuple written by an earlier record.  Every record has a sequence
+ * number unique in its file.
+ * <p>
+ * Records are ordered by key, then by the sequence number of the tuple
+ * they write or delete, with a tombstone before the tuple it deletes.  A
+ * merge of the memtable and the runs of a file in this order meets each
+ * tombstone right before its tuple, wherever the two are stored.
+ * <p>
+ * A record is stored as its long sequence number, a byte that is 1 for a
+ * tombstone, the long sequence number of the tuple a tombstone deletes
+ * (its own for a tuple), and the fields of the tuple; a tombstone stores
+ * the tuple it deletes.
+ */
+class LSMRecord {
+
+    /** The number of bytes a record takes besides its tuple */
+    static final int OVERHEAD = 8 + 1 + 8;
+
+    final long seq;
+    final boolean tombstone;
+    final long target;
+    final Tuple tuple;
+    final Field key;
+
+    private LSMRecord(long seq, boolean tombstone, long target, Tuple tuple, Field key) {
+        this.seq = seq;
+        this.tombstone = tombstone;
+        this.target = target;
+        this.tuple = tuple;
+        this.key = key;
+    }
+
+    /** @return a record writing a tuple */
+    static LSMRecord tuple(long seq, Tuple t, int keyField) {
+        return new LSMRecord(seq, false, seq, t, t.getField(keyField));
+    }
+
+    /** @return a tombstone deleting the tuple of another record */
+    static LSMRecord tombstone(long seq, LSMRecord deleted) {
+        return new LSMRecord(seq, true, deleted.seq, deleted.tuple, deleted.key);
+    }
+
+    /**
+     * @return a record to position a search at: it is ordered before every
+     * record with the key and a sequence number at least seq
+     */
+    static LSMRecord probe(Field key, long seq) {
+        return new LSMRecord(seq, true, seq, null, key);
+    }
+
+    /** @return the number of bytes a record of a tuple of the given type takes */
+    static int size(TupleDesc td) {
+        return OVERHEAD + td.getSize();
+    }
+
+    /**
+     * Compare two keys.
+     *
+     * @return a negative number, zero, or a positive number as a is less
+     * than, equal to, or greater than b
+     */
+    static int compareKeys(Field a, Field b) {
+        if (a.compare(Op.LESS_THAN, b))
+            return -1;
+        return a.compare(Op.GREATER_THAN, b) ? 1 : 0;
+    }
+
+    /** The order of records in the memtable and in runs */
+    static final Comparator<LSMRecord> ORDER = new Comparator<LSMRecord>() {
+        public int compare(LSMRecord a, LSMRecord b) {
+            int c = compareKeys(a.key, b.key);
+            if (c != 0)
+                return c;
+            c = Long.compare(a.target, b.target);
+            if (c != 0)
+                return c;
+            return a.tombstone == b.tombstone ? 0 : a.tombstone ? -1 : 1;
+        }
+    };
+
+    void serialize(DataOutputStream dos) throws IOException {
+        dos.writeLong(seq);
+        dos.writeByte(tombstone ? 1 : 0);
+        dos.writeLong(target);
+        for (int i = 0; i < tuple.getTupleDesc().numFields(); i++)
+            tuple.getField(i).serialize(dos);
+    }
+
+    /**
+     * Read a record written by serialize().
+     *
+     * @throws EOFException if the stream ends before the record does
+     */
+    static LSMRecord parse(DataInputStream dis, TupleDesc td, int keyField) throws IOException {
+        long seq = dis.readLong();
+        boolean tombstone = dis.readByte() == 1;
+        long target = dis.readLong();
+        Tuple t = new Tuple(td);
+        try {
+            for (int i = 0; i < td.numFields(); i++)
+                t.setField(i, td.getFieldType(i).parse(dis));
+        } catch (ParseException e) {
+            throw new EOFException("truncated record");
+        }
+        return new LSMRecord(seq, tombstone, target, t, t.getField(keyField));
+    }
+
+    public String toString() {
+        return (tombstone ? "delete " + target + " " : "") + seq + ": " + tuple;
+    }
+}
@@ -0,0 +1,210 @@
+package simpledb;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.*;
+
+/**
+ * An immutable sorted run of an {@link LSMFile}, stored in a file of its
+ * own.  The file holds the records of the run in record order, packed into
+ * {@link LSMPage}s, followed by a footer: the number of pages and records,
+ * a Bloom filter over the keys of the run, the first key of every page,
+ * the last key of the run, and, in the last 8 bytes, the offset of the
+ * footer.  The footer is kept in memory while the run is open, so a
+ * lookup reads no page of a run whose Bloom filter or key range rules the
+ * key out, and reads the pages of the run from the first that may hold it.
+ */
+class LSMRun {
+
+    /** The size of the Bloom filter of a run, in bits per record */
+    static final int BLOOM_BITS_PER_KEY = 10;
+    /** The number of bits of the Bloom filter set for each key */
+    static final int BLOOM_HASHES = 7;
+
+    final int runNo;
+    final int level;
+    final File file;
+    final int numPages;
+    final long numRecords;
+
+    private final Field[] firstKeys;
+    private final Field lastKey;
+    private final long[] bloom;
+
+    // guarded by the LSMFile of the run: the number of snapshots of the file
+    // using the run, counting its current state, and whether a compaction
+    // replaced the run, which is deleted when it is no longer used
+    int refs = 1;
+    boolean obsolete = false;
+
+    private LSMRun(File file, int runNo, int level, long numRecords, Field[] firstKeys, Field lastKey, long[] bloom) {
+        this.file = file;
+        this.runNo = runNo;
+        this.level = level;
+        this.numPages = firstKeys.length;
+        this.numRecords = numRecords;
+        this.firstKeys = firstKeys;
+        this.lastKey = lastKey;
+        this.bloom = bloom;
+    }
+
+    /**
+     * Write a run and force it to disk.
+     *
+     * @param file     - the file to write the run to
+     * @param runNo    - the number of the run
+     * @param level    - the level of the run
+     * @param td       - the type of the tuples of the records
+     * @param records  - the records of the run, in record order
+     * @param expected - about the number of records, to size the Bloom filter
+     * @return the run, or null if there are no records, in which case no
+     * file is written
+     */
+    static LSMRun write(File file, int runNo, int level, TupleDesc td, Iterator<LSMRecord> records, long expected)
+            throws IOException {
+        if (!records.hasNext())
+            return null;
+        long[] bloom = new long[(int) Math.max(1, (expected * BLOOM_BITS_PER_KEY + 63) / 64)];
+        ArrayList<Field> firstKeys = new ArrayList<Field>();
+        Field lastKey = null;
+        long count = 0;
+        int perPage = LSMPage.maxRecords(td);
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            ArrayList<LSMRecord> page = new ArrayList<LSMRecord>(perPage);
+            while (records.hasNext()) {
+                LSMRecord r = records.next();
+                if (page.isEmpty())
+                    firstKeys.add(r.key);
+                page.add(r);
+                addToBloom(bloom, r.key);
+                lastKey = r.key;
+                count++;
+                if (page.size() == perPage) {
+                    out.write(LSMPage.createPageData(page));
+                    page.clear();
+                }
+            }
+            if (!page.isEmpty())
+                out.write(LSMPage.createPageData(page));
+
+            out.writeInt(firstKeys.size());
+            out.writeLong(count);
+            out.writeInt(bloom.length);
+            for (long word : bloom)
+                out.writeLong(word);
+            for (Field key : firstKeys)
+                key.serialize(out);
+            lastKey.serialize(out);
+            out.writeLong((long) firstKeys.size() * BufferPool.getPageSize());
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        return new LSMRun(file, runNo, level, count, firstKeys.toArray(new Field[0]), lastKey, bloom);
+    }
+
+    /**
+     * Open a run written by write(), reading its footer.
+     *
+     * @param file    - the file of the run
+     * @param runNo   - the number of the run
+     * @param level   - the level of the run
+     * @param keyType - the type of the keys of the run
+     */
+    static LSMRun open(File file, int runNo, int level, Type keyType) throws IOException {
+        RandomAccessFile rf = new RandomAccessFile(file, "r");
+        try {
+            rf.seek(rf.length() - 8);
+            long footer = rf.readLong();
+            byte[] buf = new byte[(int) (rf.length() - 8 - footer)];
+            rf.seek(footer);
+            rf.readFully(buf);
+            DataInputStream dis = new DataInputStream(new ByteArrayInputStream(buf));
+            Field[] firstKeys = new Field[dis.readInt()];
+            long count = dis.readLong();
+            long[] bloom = new long[dis.readInt()];
+            for (int i = 0; i < bloom.length; i++)
+                bloom[i] = dis.readLong();
+            for (int i = 0; i < firstKeys.length; i++)
+                firstKeys[i] = keyType.parse(dis);
+            Field lastKey = keyType.parse(dis);
+            return new LSMRun(file, runNo, level, count, firstKeys, lastKey, bloom);
+        } catch (ParseException e) {
+            throw new IOException("corrupt footer in " + file);
+        } finally {
+            rf.close();
+        }
+    }
+
+    /** @return the bytes of a page of this run, read from its file */
+    byte[] readPageData(int pageNo) throws IOException {
+        if (pageNo < 0 || pageNo >= numPages)
+            throw new IllegalArgumentException("run " + runNo + " has no page " + pageNo);
+        byte[] data = new byte[BufferPool.getPageSize()];
+        RandomAccessFile rf = new RandomAccessFile(file, "r");
+        try {
+            rf.seek((long) pageNo * BufferPool.getPageSize());
+            rf.readFully(data);
+        } finally {
+            rf.close();
+        }
+        return data;
+    }
+
+    private static void addToBloom(long[] bloom, Field key) {
+        int h1 = HashFile.hash(key);
+        int h2 = Integer.reverse(h1) | 1;
+        long bits = (long) bloom.length * 64;
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            long bit = Math.floorMod(h1 + i * h2, bits);
+            bloom[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /** @return false if no record of this run has the key */
+    boolean mightContain(Field key) {
+        int h1 = HashFile.hash(key);
+        int h2 = Integer.reverse(h1) | 1;
+        long bits = (long) bloom.length * 64;
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            long bit = Math.floorMod(h1 + i * h2, bits);
+            if ((bloom[(int) (bit >>> 6)] & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /** @return the smallest key of this run */
+    Field firstKey() {
+        return firstKeys[0];
+    }
+
+    /** @return the largest key of this run */
+    Field lastKey() {
+        return lastKey;
+    }
+
+    /**
+     * @return the first page that may hold records with keys at least low:
+     * the last page whose first key is less than low, since records with
+     * equal keys may continue from one page onto the next
+     */
+    int firstPage(Field low) {
+        int lo = 0, hi = numPages - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (LSMRecord.compareKeys(firstKeys[mid], low) < 0)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+        return lo;
+    }
+
+    public String toString() {
+        return "run " + runNo + " (level " + level + ", " + numRecords + " records in " + numPages + " pages)";
+    }
+}
@@ -0,0 +1,163 @@
+package simpledb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LogBuffer is the in-memory tail of the log.  Producers serialize a
+ * whole log record into a byte array on their own, reserve its log
+ * sequence number (LSN) with a single atomic add and copy it into a
+ * direct ByteBuffer used as a ring.  No lock is taken and no system call
+ * is made on the append path unless the ring is full.
+ * <p>
+ * An LSN is the offset of the record in the log, so a record is written
+ * back to exactly the position its LSN names.  {@link #drain} writes
+ * every completely copied record to the log segments in one or two large
+ * positional writes.
+ * <p>
+ * Copies may finish out of order; a producer publishes its record only
+ * once every record before it has been published, so the published
+ * prefix of the ring is always contiguous.
+ *
+ * @Threadsafe
+ */
+class LogBuffer {
+
+    /** Default size of the ring, in bytes */
+    public static final int DEFAULT_CAPACITY = 1 << 20;
+
+    private final ByteBuffer ring;
+    private final int capacity;
+
+    private final AtomicLong reserved;  // next LSN to hand out
+    private final AtomicLong filled;    // every byte below this is in the ring
+    private volatile long flushed;      // every byte below this is in the log
+    private final LogSegments segments;
+
+    private final Object drainLock = new Object();
+    private long writes = 0;            // protected by drainLock
+    private long bytesWritten = 0;      // protected by drainLock
+
+    /**
+     * Create a buffer that appends to the specified log.
+     *
+     * @param segments the segment files of the log
+     * @param lsn the LSN of the next record
+     * @param capacity the size of the ring, in bytes
+     */
+    public LogBuffer(LogSegments segments, long lsn, int capacity) {
+        this.ring = ByteBuffer.allocateDirect(capacity);
+        this.capacity = capacity;
+        this.segments = segments;
+        this.reserved = new AtomicLong(lsn);
+        this.filled = new AtomicLong(lsn);
+        this.flushed = lsn;
+    }
+
+    /**
+     * Append a serialized log record.  The last 8 bytes of rec are
+     * overwritten with the LSN of the record, which is where log records
+     * store their own start offset.
+     *
+     * @param rec the serialized record, ending in a placeholder long
+     * @return the LSN of the record
+     * @throws IOException if the ring was full and draining it failed
+     */
+    public long append(byte[] rec) throws IOException {
+        int len = rec.length;
+        if (len > capacity)
+            throw new IOException("log record of " + len + " bytes does not fit the log buffer");
+
+        long lsn = reserved.getAndAdd(len);
+        for (int i = 0; i < LogFile.LONG_SIZE; i++)
+            rec[len - LogFile.LONG_SIZE + i] = (byte) (lsn >>> (56 - 8 * i));
+
+        // wait for room in the ring; whoever waits helps drain it
+        while (lsn + len - flushed > capacity) {
+            if (drain() == 0)
+                Thread.yield();
+        }
+
+        ByteBuffer dst = ring.duplicate();
+        int idx = (int) (lsn % capacity);
+        int first = Math.min(len, capacity - idx);
+        dst.position(idx);
+        dst.put(rec, 0, first);
+        if (first < len) {
+            dst.position(0);
+            dst.put(rec, first, len - first);
+        }
+
+        // publish in LSN order
+        while (!filled.compareAndSet(lsn, lsn + len))
+            Thread.yield();
+        return lsn;
+    }
+
+    /**
+     * Write every published record to the log.  The caller is
+     * responsible for forcing the log if durability is required.
+     *
+     * @return the number of bytes written
+     */
+    public long drain() throws IOException {
+        synchronized (drainLock) {
+            long end = filled.get();
+            long pos = flushed;
+            while (pos < end) {
+                int idx = (int) (pos % capacity);
+                int n = (int) Math.min(end - pos, capacity - idx);
+                ByteBuffer src = ring.duplicate();
+                src.limit(idx + n);
+                src.position(idx);
+                segments.write(src, pos);
+                pos += n;
+                writes++;
+            }
+            long n = pos - flushed;
+            bytesWritten += n;
+            flushed = pos;
+            return n;
+        }
+    }
+
+    /**
+     * Drain the buffer, then continue appending at the specified LSN.
+     * The caller must make sure no appends run concurrently.
+     *
+     * @param lsn the LSN of the next record
+     */
+    public void reset(long lsn) throws IOException {
+        synchronized (drainLock) {
+            drain();
+            reserved.set(lsn);
+            filled.set(lsn);
+            flushed = lsn;
+        }
+    }
+
+    /** @return the LSN the next record will receive */
+    public long getEndLsn() {
+        return reserved.get();
+    }
+
+    /** @return the LSN up to which records have been written to the log */
+    public long getFlushedLsn() {
+        return flushed;
+    }
+
+    /** @return the number of file writes issued by drain() */
+    public long getWriteCount() {
+        synchronized (drainLock) {
+            return writes;
+        }
+    }
+
+    /** @return the number of bytes written by drain() */
+    public long getBytesWritten() {
+        synchronized (drainLock) {
+            return bytesWritten;
+        }
+    }
+}
@@ -3,7 +3,19 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
-import java.lang.reflect.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -32,6 +44,44 @@ must not be declared synchronized and must begin with a block like:
        }
     }
 </pre>
+
+<u> Log buffer: </u>
+<p>
+
+Records are not written to the file directly.  Each record is
+serialized into a byte array by the calling thread and appended to a
+{@link LogBuffer}, which reserves its LSN (its file offset) atomically
+and copies it into an in-memory ring without taking the LogFile lock.
+The ring is drained to the log in large sequential writes by force(),
+by the group commit flusher, and whenever it fills up.  Operations
+that need a consistent view of the log (checkpoints, rollback and
+recovery) briefly close the append gate so no append is in flight.
+
+<p>
+<u> Checkpoints and truncation: </u>
+<p>
+
+Checkpoints are fuzzy: logCheckpoint() snapshots the active
+transactions and the dirty page table and appends them, without
+flushing the buffer pool.  Recovery starts its scan at the LSN the
+snapshot was taken at, or earlier if a dirty page's first unwritten
+update is older.  The log is stored in fixed-size segment files (see
+{@link LogSegments}); LSNs never change, and truncation deletes the
+segments that lie entirely before the oldest record recovery still
+needs.
+
+<p>
+<u> Group commit: </u>
+<p>
+
+logCommit() does not force the log while holding the LogFile lock.
+A committing transaction appends its COMMIT record and then waits for
+a shared flush.  The first waiter becomes the flusher: it waits up to
+{@link #setGroupCommitWait} microseconds (or until
+{@link #setGroupCommitMaxBatch} committers have queued) and then
+issues a single force on behalf of every commit queued since the last
+force.  The flusher does not hold the LogFile monitor while forcing,
+so other transactions keep appending records in the meantime.
 */
 
 /**
@@ -39,33 +89,52 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The log file itself holds the long integer LSN of the last
+written checkpoint, or -1 if there are no checkpoints, followed by the
+long integer size of the log segments
 
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> The records are stored in segment files named after the log file
+(log.0, log.1, ...), which together form one sequence of bytes
+starting at LSN 0.  Log records are variable length and may span two
+segments.
 
-<li> Each log record begins with an integer type and a long integer
-transaction id.
+<li> Each log record begins with an integer type, a long integer
+transaction id and the long integer offset of the previous record of
+the same transaction (-1 for BEGIN records and for records that do
+not belong to a transaction).  These back pointers form the
+per-transaction chain that rollback and recovery undo.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with a long integer representing the
+position in the log where the record began.  This position is the
+record's log sequence number (LSN).
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are seven record types: ABORT, COMMIT, UPDATE, BEGIN,
+CHECKPOINT, CLR and PAGE_WRITTEN
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
-<li>UPDATE RECORDS consist of two entries, a before image and an
-after image.  These images are serialized Page objects, and can be
-accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
-
-<li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+<li>UPDATE RECORDS consist of a page delta: the page's type code and
+id, and the byte ranges that changed with their before and after
+contents.  See PageDelta for the format and LogFile.print() for an
+example.
+
+<li> CHECKPOINT records consist of the LSN at which the checkpoint was
+taken, the active transactions at that time with their first and last
+log records, and the dirty page table.  The format of the record is a
+long integer begin LSN, an integer count of the number of
+transactions, as well as a long integer transaction id, a long integer
+first record offset and a long integer last record offset for each
+active transaction, then an integer count of dirty pages and, for each,
+a page id (see PageDelta) and the long integer LSN of its first update
+that is not known to be on disk.
+
+<li> CLR (compensation) records are written while undoing an UPDATE.
+They hold the long integer offset of the next record of the transaction
+to undo, followed by a page delta that reapplies the undo during redo.
+
+<li> PAGE_WRITTEN records hold a page id (see PageDelta) and the long
+integer LSN of the last update of the page when it was written to disk.
+They make the page LSN durable without changing the page format.
 
 </ul>
 
@@ -74,24 +143,60 @@ for each active transaction.
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
-    Boolean recoveryUndecided; // no call to recover() and no append to log
+    // holds the checkpoint LSN and the segment size
+    private final RandomAccessFile master;
+    private final LogSegments segments;
+    private final long newSegmentSize; // for a log that is started over
+    volatile boolean recoveryUndecided; // no call to recover() and no append to log
+    private final LogBuffer logBuffer;
+    // appends hold the read lock; operations that need a quiescent log
+    // file hold the write lock
+    private final ReentrantReadWriteLock appendGate = new ReentrantReadWriteLock();
 
     static final int ABORT_RECORD = 1;
     static final int COMMIT_RECORD = 2;
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int CLR_RECORD = 6;
+    static final int PAGE_WRITTEN_RECORD = 7;
     static final long NO_CHECKPOINT_ID = -1;
+    static final long NO_LSN = -1;
+
+    /** Default size of a log segment file, in bytes */
+    public static final long DEFAULT_SEGMENT_SIZE = 1 << 24;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
+    // position of the previous-record pointer within a record
+    final static int PREV_OFFSET = INT_SIZE + LONG_SIZE;
+    final static int HEADER_SIZE = PREV_OFFSET + LONG_SIZE;
 
-    long currentOffset = -1;//protected by this
 //    int pageSize;
-    int totalRecords = 0; // for PatchTest //protected by this
-
-    HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
+    final AtomicInteger totalRecords = new AtomicInteger(); // for PatchTest
+
+    Map<Long,Long> tidToFirstLogRecord = new ConcurrentHashMap<Long,Long>();
+    Map<Long,Long> tidToLastLogRecord = new ConcurrentHashMap<Long,Long>();
+    // pages with logged updates that are not known to be on disk yet,
+    // mapped to the LSN of the first such update (recLSN)
+    final Map<PageId,Long> dirtyPages = new ConcurrentHashMap<PageId,Long>();
+    // serialize the appends of a transaction so its chain stays in order
+    private final Object[] chainLocks = new Object[16];
+
+    // group commit; everything but commitSeq is protected by groupLock.
+    // A commit is durable once durableSeq >= its sequence number.
+    private final AtomicLong commitSeq = new AtomicLong();
+    private final ReentrantLock groupLock = new ReentrantLock();
+    private final Condition groupChanged = groupLock.newCondition();
+    private long requestedSeq = 0;
+    private long durableSeq = 0;
+    private boolean groupFlushing = false;
+    private int queuedCommits = 0;
+    private long groupCommitWaitMicros = 0;
+    private int groupCommitMaxBatch = 64;
+    private long groupFlushes = 0;
+    private long groupCommits = 0;
+    private int maxGroupBatch = 0;
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -105,9 +210,31 @@ public class LogFile {
         @param f The log file's name
     */
     public LogFile(File f) throws IOException {
+        this(f, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /** Constructor.  Like {@link #LogFile(File)}, with the specified
+        segment size for a new log; an existing log keeps the segment size
+        it was written with.
+
+        @param f The log file's name
+        @param segmentSize The size of each log segment file, in bytes
+    */
+    public LogFile(File f, long segmentSize) throws IOException {
 	this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        this.newSegmentSize = segmentSize;
+        master = new RandomAccessFile(f, "rw");
+        if (master.length() >= 2 * LONG_SIZE) {
+            master.seek(LONG_SIZE);
+            long size = master.readLong();
+            if (size > 0)
+                segmentSize = size;
+        }
+        segments = new LogSegments(f, segmentSize);
         recoveryUndecided = true;
+        logBuffer = new LogBuffer(segments, segments.length(), LogBuffer.DEFAULT_CAPACITY);
+        for (int i = 0; i < chainLocks.length; i++)
+            chainLocks[i] = new Object();
 
         // install shutdown hook to force cleanup on close
         // Runtime.getRuntime().addShutdownHook(new Thread() {
@@ -124,19 +251,111 @@ public class LogFile {
     // DB wants to do recovery, we're sure now -- it didn't. So truncate
     // the log.
     void preAppend() throws IOException {
-        totalRecords++;
+        totalRecords.incrementAndGet();
+        decideNoRecovery();
+    }
+
+    // records that are not counted in totalRecords (PAGE_WRITTEN) only
+    // need this half of preAppend
+    private void decideNoRecovery() throws IOException {
         if(recoveryUndecided){
-            recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            synchronized (this) {
+                if (recoveryUndecided) {
+                    recoveryUndecided = false;
+                    segments.reset(0, newSegmentSize);
+                    writeCheckpointLsn(NO_CHECKPOINT_ID);
+                    logBuffer.reset(0);
+                }
+            }
         }
     }
 
-    public synchronized int getTotalRecords() {
-        return totalRecords;
+    // point the log file at the checkpoint record with the specified LSN
+    private synchronized void writeCheckpointLsn(long lsn) throws IOException {
+        master.seek(0);
+        master.writeLong(lsn);
+        master.writeLong(segments.getSegmentSize());
+        master.getChannel().force(true);
+    }
+
+    private synchronized long readCheckpointLsn() throws IOException {
+        if (master.length() < LONG_SIZE)
+            return NO_CHECKPOINT_ID;
+        master.seek(0);
+        return master.readLong();
+    }
+
+    public int getTotalRecords() {
+        return totalRecords.get();
+    }
+
+    // start a record; the caller writes the payload and then hands the
+    // bytes to append(), which fills in the previous record pointer and
+    // the trailing start offset
+    private DataOutputStream beginRecord(ByteArrayOutputStream bytes,
+                                         int type, long tid) throws IOException {
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(type);
+        out.writeLong(tid);
+        out.writeLong(NO_LSN);
+        return out;
+    }
+
+    // a record with no payload: ABORT, COMMIT and BEGIN
+    private byte[] simpleRecord(int type, long tid) {
+        ByteBuffer rec = ByteBuffer.allocate(HEADER_SIZE + LONG_SIZE);
+        rec.putInt(type);
+        rec.putLong(tid);
+        rec.putLong(NO_LSN);
+        return rec.array();
+    }
+
+    private static byte[] finish(ByteArrayOutputStream bytes, DataOutputStream out)
+        throws IOException {
+        out.writeLong(0); // start offset, filled in by the log buffer
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    // append a record that belongs to no transaction and return its offset
+    private long append(byte[] rec) throws IOException {
+        appendGate.readLock().lock();
+        try {
+            return logBuffer.append(rec);
+        } finally {
+            appendGate.readLock().unlock();
+        }
+    }
+
+    // append a record of transaction tid, linking it to the transaction's
+    // previous record, and return its offset.  The transaction's entries
+    // in the transaction table are updated before the append gate opens,
+    // so a checkpoint never sees a record without its table entry; a
+    // transaction's last record (COMMIT or ABORT) removes them.
+    private long appendChained(long tid, byte[] rec, boolean last) throws IOException {
+        appendGate.readLock().lock();
+        try {
+            synchronized (chainLocks[(int) (tid & (chainLocks.length - 1))]) {
+                Long prev = tidToLastLogRecord.get(tid);
+                ByteBuffer.wrap(rec).putLong(PREV_OFFSET, prev == null ? NO_LSN : prev);
+                long lsn = logBuffer.append(rec);
+                if (last) {
+                    tidToFirstLogRecord.remove(tid);
+                    tidToLastLogRecord.remove(tid);
+                } else {
+                    if (prev == null)
+                        tidToFirstLogRecord.put(tid, lsn);
+                    tidToLastLogRecord.put(tid, lsn);
+                }
+                return lsn;
+            }
+        } finally {
+            appendGate.readLock().unlock();
+        }
+    }
+
+    private long appendChained(long tid, byte[] rec) throws IOException {
+        return appendChained(tid, rec, false);
     }
     
     /** Write an abort record to the log for the specified tid, force
@@ -158,12 +377,8 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                appendChained(tid.getId(), simpleRecord(ABORT_RECORD, tid.getId()), true);
                 force();
-                tidToFirstLogRecord.remove(tid.getId());
             }
         }
     }
@@ -173,17 +388,142 @@ public class LogFile {
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
+    public void logCommit(TransactionId tid) throws IOException {
         preAppend();
         Debug.log("COMMIT " + tid.getId());
         //should we verify that this is a live transaction?
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+        appendChained(tid.getId(), simpleRecord(COMMIT_RECORD, tid.getId()), true);
+        // sequence numbers are handed out only after the record is in the
+        // buffer, so a flush that covers seq also covers the record
+        groupForce(commitSeq.incrementAndGet());
+    }
+
+    /** Wait until the commit with sequence number seq is on disk.  If
+        no flush is in progress the caller becomes the flusher for the
+        current group; otherwise it waits for the flusher to cover it.
+
+        @param seq The commit sequence number assigned in logCommit
+    */
+    void groupForce(long seq) throws IOException {
+        groupLock.lock();
+        try {
+            queuedCommits++;
+            if (seq > requestedSeq)
+                requestedSeq = seq;
+            groupChanged.signalAll();
+
+            while (durableSeq < seq) {
+                if (groupFlushing) {
+                    groupChanged.awaitUninterruptibly();
+                    continue;
+                }
+
+                // become the flusher; let other committers join the group
+                groupFlushing = true;
+                long remaining = TimeUnit.MICROSECONDS.toNanos(groupCommitWaitMicros);
+                while (remaining > 0 && queuedCommits < groupCommitMaxBatch) {
+                    try {
+                        remaining = groupChanged.awaitNanos(remaining);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+                long target = requestedSeq;
+                int batch = queuedCommits;
+                queuedCommits = 0;
+
+                boolean forced = false;
+                groupLock.unlock();
+                try {
+                    forceChannel();
+                    forced = true;
+                } finally {
+                    groupLock.lock();
+                    groupFlushing = false;
+                    if (forced) {
+                        if (target > durableSeq)
+                            durableSeq = target;
+                        groupFlushes++;
+                        groupCommits += batch;
+                        if (batch > maxGroupBatch)
+                            maxGroupBatch = batch;
+                        Debug.log("GROUP COMMIT forced " + batch + " commits");
+                    } else {
+                        // let a waiter retry the flush on our behalf
+                        queuedCommits += batch;
+                    }
+                    groupChanged.signalAll();
+                }
+            }
+        } finally {
+            groupLock.unlock();
+        }
+    }
+
+    // drain and force the log without holding this object's monitor, so
+    // that other transactions can keep appending while the disk catches up
+    private void forceChannel() throws IOException {
+        logBuffer.drain();
+        segments.force();
+    }
+
+    /** Set how long the group commit flusher waits for other committers
+        to join its group before forcing the log.  0 (the default) forces
+        immediately; commits arriving during that force form the next group.
+
+        @param micros The maximum wait, in microseconds
+    */
+    public void setGroupCommitWait(long micros) {
+        groupLock.lock();
+        try {
+            groupCommitWaitMicros = micros;
+        } finally {
+            groupLock.unlock();
+        }
+    }
+
+    /** Set the number of queued commits at which the flusher stops
+        waiting and forces the log.
+        @param n The maximum group size
+    */
+    public void setGroupCommitMaxBatch(int n) {
+        groupLock.lock();
+        try {
+            groupCommitMaxBatch = n;
+        } finally {
+            groupLock.unlock();
+        }
+    }
+
+    /** @return the number of log forces issued on behalf of commits */
+    public long getGroupFlushCount() {
+        groupLock.lock();
+        try {
+            return groupFlushes;
+        } finally {
+            groupLock.unlock();
+        }
+    }
+
+    /** @return the number of commits made durable by group forces */
+    public long getGroupCommitCount() {
+        groupLock.lock();
+        try {
+            return groupCommits;
+        } finally {
+            groupLock.unlock();
+        }
+    }
+
+    /** @return the largest number of commits covered by a single force */
+    public int getMaxGroupCommitBatch() {
+        groupLock.lock();
+        try {
+            return maxGroupBatch;
+        } finally {
+            groupLock.unlock();
+        }
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -194,112 +534,66 @@ public class LogFile {
 
         @see simpledb.Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
-                                       Page after)
+    public void logWrite(TransactionId tid, Page before,
+                         Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
         preAppend();
         /* update record conists of
 
            record type
            transaction id
-           before page data (see writePageData)
-           after page data
+           previous record of the transaction
+           page delta (see PageDelta)
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-
-        Debug.log("WRITE OFFSET = " + currentOffset);
-    }
-
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
-
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
-
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
-
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
-
-        raf.writeInt(pageInfo.length);
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
+        PageDelta delta = PageDelta.diff(before, after);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = beginRecord(bytes, UPDATE_RECORD, tid.getId());
+        delta.write(out);
+        long offset;
+        // keep the gate open until the page is in the dirty page table
+        appendGate.readLock().lock();
+        try {
+            offset = appendChained(tid.getId(), finish(bytes, out));
+            dirtyPages.putIfAbsent(after.getId(), offset);
+        } finally {
+            appendGate.readLock().unlock();
         }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
-    }
+        after.setLSN(offset);
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
+        Debug.log("WRITE, offset = " + offset + ", " + delta);
+    }
 
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+    /** Record that a page whose updates were logged has been written to
+        disk, up to and including the update with its page LSN.  The
+        record is not forced: if it is lost, recovery just redoes more.
 
+        @param p The page that was written
+        @see Page#getLSN
+    */
+    public void logPageWritten(Page p) throws IOException {
+        final long pageLsn = p.getLSN();
+        if (pageLsn == NO_LSN)
+            return;
+        decideNoRecovery();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = beginRecord(bytes, PAGE_WRITTEN_RECORD, -1);
+        PageDelta.writePageId(out, p.getId());
+        out.writeLong(pageLsn);
+        appendGate.readLock().lock();
         try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
-
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
-
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
-
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
-
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
-
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException e){
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-            throw new IOException();
+            append(finish(bytes, out));
+            dirtyPages.computeIfPresent(p.getId(), (pid, recLsn) -> recLsn <= pageLsn ? null : recLsn);
+        } finally {
+            appendGate.readLock().unlock();
         }
-        return newPage;
-
     }
 
     /** Write a BEGIN record for the specified transaction
         @param tid The transaction that is beginning
 
     */
-    public synchronized  void logXactionBegin(TransactionId tid)
+    public void logXactionBegin(TransactionId tid)
         throws IOException {
         Debug.log("BEGIN");
         if(tidToFirstLogRecord.get(tid.getId()) != null){
@@ -307,150 +601,91 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        long offset = appendChained(tid.getId(), simpleRecord(BEGIN_RECORD, tid.getId()));
 
-        Debug.log("BEGIN OFFSET = " + currentOffset);
+        Debug.log("BEGIN OFFSET = " + offset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.  The
+        checkpoint is fuzzy: it records the active transactions and the
+        dirty page table, but does not flush the buffer pool, and other
+        transactions keep appending while it is written. */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        preAppend();
+        long begin;
+        Map<Long,Long> first;
+        Map<Long,Long> last;
+        Map<PageId,Long> dirty;
+        // no I/O happens while the gate is closed, just the snapshot
+        appendGate.writeLock().lock();
+        try {
+            begin = logBuffer.getEndLsn();
+            first = new HashMap<Long,Long>(tidToFirstLogRecord);
+            last = new HashMap<Long,Long>(tidToLastLogRecord);
+            dirty = new HashMap<PageId,Long>(dirtyPages);
+        } finally {
+            appendGate.writeLock().unlock();
+        }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
-            }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        //no tid , but leave space for convenience
+        DataOutputStream out = beginRecord(bytes, CHECKPOINT_RECORD, -1);
+        out.writeLong(begin);
+
+        //write list of outstanding transactions
+        out.writeInt(first.size());
+        for (Map.Entry<Long,Long> e : first.entrySet()) {
+            Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+            out.writeLong(e.getKey());
+            out.writeLong(e.getValue());
+            out.writeLong(last.get(e.getKey()));
         }
 
+        //write the dirty page table
+        out.writeInt(dirty.size());
+        for (Map.Entry<PageId,Long> e : dirty.entrySet()) {
+            PageDelta.writePageId(out, e.getKey());
+            out.writeLong(e.getValue());
+        }
+        long cp = append(finish(bytes, out));
+
+        //once the CP is durable, make sure the CP location in the log
+        // file is updated
+        forceChannel();
+        writeCheckpointLsn(cp);
+        Debug.log("CP OFFSET = " + cp);
+
         logTruncate();
     }
 
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
+        consumption.  Only whole segments before the oldest record needed
+        to recover from the last checkpoint are deleted. */
     public synchronized void logTruncate() throws IOException {
         preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
-
-        long minLogRecord = cpLoc;
-
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
-
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
-            }
-        }
-
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
-            }
-        }
-
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
+        long cp = readCheckpointLsn();
+        if (cp == NO_CHECKPOINT_ID)
+            return;
+
+        LogRecord r = readRecord(openReader(cp));
+        if (r.type != CHECKPOINT_RECORD)
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+        long minLogRecord = r.scanStart();
+        for (long[] xaction : r.active)
+            minLogRecord = Math.min(minLogRecord, xaction[1]);
+
+        int deleted = segments.deleteBefore(minLogRecord);
+        Debug.log("TRUNCATING LOG BEFORE " + minLogRecord + ": DELETED " + deleted + " SEGMENTS");
+    }
 
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
+    /** @return the first LSN still stored in the log */
+    public long getLogStart() {
+        return segments.getStartLsn();
+    }
 
-        currentOffset = raf.getFilePointer();
-        //print();
+    /** @return the number of segment files the log is stored in */
+    public int getSegmentCount() {
+        return segments.getSegmentCount();
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -466,11 +701,65 @@ public class LogFile {
         synchronized (Database.getBufferPool()) {
             synchronized(this) {
                 preAppend();
-                // some code goes here
+                Long last = tidToLastLogRecord.get(tid.getId());
+                if (last == null)
+                    throw new NoSuchElementException("transaction " + tid.getId() + " is not active");
+                undo(Collections.singletonMap(tid.getId(), last));
             }
         }
     }
 
+    /* Undo the updates of the specified transactions by walking their
+       chains backwards from the given records, always undoing the newest
+       remaining record of any of them first.  Every undone UPDATE gets a
+       CLR that points at the next record to undo, so an undo interrupted
+       by a crash is not repeated.  Pages are patched in memory, the log is
+       forced, and then each page is written once. */
+    private void undo(Map<Long,Long> lastRecord) throws IOException {
+        logBuffer.drain();
+        TreeMap<Long,Long> toUndo = new TreeMap<Long,Long>(); // offset -> tid
+        for (Map.Entry<Long,Long> e : lastRecord.entrySet()) {
+            if (e.getValue() != NO_LSN)
+                toUndo.put(e.getValue(), e.getKey());
+        }
+
+        Map<PageId,byte[]> pages = new HashMap<PageId,byte[]>();
+        Map<PageId,Long> pageLsns = new HashMap<PageId,Long>();
+        while (!toUndo.isEmpty()) {
+            LogRecord r = readRecord(openReader(toUndo.pollLastEntry().getKey()));
+            long next = r.prev;
+            if (r.type == UPDATE_RECORD) {
+                PageId pid = r.delta.getPageId();
+                byte[] data = pages.get(pid);
+                if (data == null) {
+                    data = r.delta.readPageBytes();
+                    pages.put(pid, data);
+                }
+                r.delta.apply(data, false);
+
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = beginRecord(bytes, CLR_RECORD, r.tid);
+                out.writeLong(r.prev);
+                r.delta.inverse().write(out);
+                long clr = appendChained(r.tid, finish(bytes, out));
+                pageLsns.put(pid, clr);
+                dirtyPages.putIfAbsent(pid, clr);
+            } else if (r.type == CLR_RECORD) {
+                next = r.undoNext;
+            }
+            if (next != NO_LSN)
+                toUndo.put(next, r.tid);
+        }
+
+        force();
+        for (Map.Entry<PageId,byte[]> e : pages.entrySet()) {
+            Page p = PageDelta.writePageBytes(e.getKey(), e.getValue());
+            p.setLSN(pageLsns.get(e.getKey()));
+            logPageWritten(p);
+            Database.getBufferPool().discardPage(e.getKey());
+        }
+    }
+
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
@@ -478,7 +767,9 @@ public class LogFile {
     public synchronized void shutdown() {
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            logBuffer.drain();
+            segments.close();
+            master.close();
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -488,23 +779,362 @@ public class LogFile {
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+        <p>
+        Recovery follows ARIES.  Analysis scans forward from the last
+        checkpoint, starting with the active transactions and the dirty
+        page table it recorded: a page stops being dirty at a
+        PAGE_WRITTEN record whose page LSN covers its updates.  Redo then repeats history
+        only for the pages that are still dirty, starting at each
+        page's first update not known to be on disk, one page per task
+        on a pool of threads.  Finally the transactions that never
+        finished are undone along their backward chains, and an ABORT
+        record is written for each.
     */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
-                // some code goes here
+                appendGate.writeLock().lock();
+                try {
+                    if (master.length() < 2 * LONG_SIZE) {
+                        segments.reset(0, newSegmentSize);
+                        writeCheckpointLsn(NO_CHECKPOINT_ID);
+                        logBuffer.reset(0);
+                        return;
+                    }
+                    long cp = readCheckpointLsn();
+
+                    // analysis
+                    Map<Long,Long> firstRecord = new HashMap<Long,Long>();
+                    Map<Long,Long> lastRecord = new HashMap<Long,Long>();
+                    Map<PageId,List<LogRecord>> redo = new HashMap<PageId,List<LogRecord>>();
+                    long start = segments.getStartLsn();
+                    long begin = start;
+                    Map<PageId,Long> dirty = null;
+                    if (cp != NO_CHECKPOINT_ID) {
+                        LogRecord r = readRecord(openReader(cp));
+                        for (long[] xaction : r.active) {
+                            firstRecord.put(xaction[0], xaction[1]);
+                            lastRecord.put(xaction[0], xaction[2]);
+                        }
+                        begin = r.beginLsn;
+                        dirty = r.dirty;
+                        start = r.scanStart();
+                    }
+                    long end = analyze(start, begin, dirty, firstRecord, lastRecord, redo);
+
+                    // drop a torn record at the end of the log before appending
+                    segments.truncate(end);
+                    logBuffer.reset(end);
+                    tidToFirstLogRecord.clear();
+                    tidToFirstLogRecord.putAll(firstRecord);
+                    tidToLastLogRecord.clear();
+                    tidToLastLogRecord.putAll(lastRecord);
+                    dirtyPages.clear();
+
+                    redo(redo);
+
+                    undo(lastRecord);
+                    for (long tid : lastRecord.keySet())
+                        appendChained(tid, simpleRecord(ABORT_RECORD, tid), true);
+                    force();
+                } finally {
+                    appendGate.writeLock().unlock();
+                }
             }
          }
     }
 
+    /* The analysis pass: scan the log from start, tracking the first and
+       last record of every transaction that has not finished, and the
+       updates of each page that are not known to be on disk.  Records
+       before begin, the LSN of the checkpoint, only matter for the
+       pages of its dirty page table.  Returns the offset just past the
+       last complete record. */
+    private long analyze(long start, long begin, Map<PageId,Long> dirty,
+                         Map<Long,Long> firstRecord,
+                         Map<Long,Long> lastRecord,
+                         Map<PageId,List<LogRecord>> redo) throws IOException {
+        LogReader in = openReader(start);
+        long end = start;
+        long length = segments.length();
+        while (end < length) {
+            LogRecord r;
+            try {
+                r = readRecord(in);
+            } catch (IOException e) {
+                // a partially written record at the end of the log
+                Debug.log("LOG ENDS AT " + end + ": " + e);
+                break;
+            }
+            end = r.end;
+            if (r.lsn < begin) {
+                if (r.delta != null) {
+                    Long recLsn = dirty.get(r.delta.getPageId());
+                    if (recLsn != null && r.lsn >= recLsn)
+                        pendingUpdate(redo, r);
+                } else if (r.type == PAGE_WRITTEN_RECORD) {
+                    pageWritten(redo, r);
+                }
+                continue;
+            }
+            switch (r.type) {
+            case BEGIN_RECORD:
+                firstRecord.put(r.tid, r.lsn);
+                lastRecord.put(r.tid, r.lsn);
+                break;
+            case COMMIT_RECORD:
+            case ABORT_RECORD:
+                firstRecord.remove(r.tid);
+                lastRecord.remove(r.tid);
+                break;
+            case UPDATE_RECORD:
+            case CLR_RECORD:
+                if (!firstRecord.containsKey(r.tid))
+                    firstRecord.put(r.tid, r.lsn);
+                lastRecord.put(r.tid, r.lsn);
+                pendingUpdate(redo, r);
+                break;
+            case PAGE_WRITTEN_RECORD:
+                pageWritten(redo, r);
+                break;
+            }
+        }
+        return end;
+    }
+
+    private static void pendingUpdate(Map<PageId,List<LogRecord>> redo, LogRecord r) {
+        List<LogRecord> updates = redo.get(r.delta.getPageId());
+        if (updates == null) {
+            updates = new ArrayList<LogRecord>();
+            redo.put(r.delta.getPageId(), updates);
+        }
+        updates.add(r);
+    }
+
+    // the updates of the page up to the written page LSN are on disk
+    private static void pageWritten(Map<PageId,List<LogRecord>> redo, LogRecord r) {
+        List<LogRecord> pending = redo.get(r.pid);
+        if (pending != null) {
+            final long pageLsn = r.pageLsn;
+            pending.removeIf(u -> u.lsn <= pageLsn);
+            if (pending.isEmpty())
+                redo.remove(r.pid);
+        }
+    }
+
+    /* The redo pass: reapply the pending updates of every dirty page, in
+       log order, and write each page once.  Pages are independent, so they
+       are redone in parallel. */
+    private void redo(Map<PageId,List<LogRecord>> redo) throws IOException {
+        if (redo.isEmpty())
+            return;
+        int threads = Math.min(redo.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Page>> written = new ArrayList<Future<Page>>();
+            for (final List<LogRecord> updates : redo.values()) {
+                written.add(pool.submit(new Callable<Page>() {
+                    public Page call() throws IOException {
+                        byte[] data = updates.get(0).delta.readPageBytes();
+                        for (LogRecord u : updates)
+                            u.delta.apply(data, true);
+                        LogRecord last = updates.get(updates.size() - 1);
+                        Page p = PageDelta.writePageBytes(last.delta.getPageId(), data);
+                        p.setLSN(last.lsn);
+                        return p;
+                    }
+                }));
+            }
+            for (Future<Page> f : written) {
+                Page p = f.get();
+                logPageWritten(p);
+                Database.getBufferPool().discardPage(p.getId());
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("redo interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
-        // some code goes here
+        synchronized (this) {
+            logBuffer.drain();
+            long end = logBuffer.getFlushedLsn();
+            System.out.println("checkpoint at " + readCheckpointLsn() + ", "
+                               + segments.getSegmentCount() + " segments of "
+                               + segments.getSegmentSize() + " bytes");
+            LogReader in = openReader(segments.getStartLsn());
+            while (in.position() < end) {
+                LogRecord r = readRecord(in);
+                System.out.println(r);
+            }
+        }
+    }
+
+    // a buffered reader over the log, starting at the given offset
+    private LogReader openReader(long offset) {
+        return new LogReader(segments.openInput(offset), offset);
+    }
+
+    /* Read the record at the reader's position.  Throws an IOException if
+       the record is incomplete or does not end with its own offset. */
+    private static LogRecord readRecord(LogReader in) throws IOException {
+        LogRecord r = new LogRecord();
+        r.lsn = in.position();
+        r.type = in.readInt();
+        r.tid = in.readLong();
+        r.prev = in.readLong();
+        switch (r.type) {
+        case ABORT_RECORD:
+        case COMMIT_RECORD:
+        case BEGIN_RECORD:
+            break;
+        case UPDATE_RECORD:
+            r.delta = PageDelta.read(in);
+            break;
+        case CLR_RECORD:
+            r.undoNext = in.readLong();
+            r.delta = PageDelta.read(in);
+            break;
+        case PAGE_WRITTEN_RECORD:
+            r.pid = PageDelta.readPageId(in);
+            r.pageLsn = in.readLong();
+            break;
+        case CHECKPOINT_RECORD:
+            r.beginLsn = in.readLong();
+            int numXactions = in.readInt();
+            r.active = new long[numXactions][3];
+            for (long[] xaction : r.active) {
+                xaction[0] = in.readLong();
+                xaction[1] = in.readLong();
+                xaction[2] = in.readLong();
+            }
+            int numPages = in.readInt();
+            r.dirty = new HashMap<PageId,Long>();
+            for (int i = 0; i < numPages; i++)
+                r.dirty.put(PageDelta.readPageId(in), in.readLong());
+            break;
+        default:
+            throw new IOException("unknown log record type " + r.type + " at " + r.lsn);
+        }
+        if (in.readLong() != r.lsn)
+            throw new IOException("log record at " + r.lsn + " is corrupt");
+        r.end = in.position();
+        return r;
+    }
+
+    /** A decoded log record; only the fields of its type are set. */
+    static class LogRecord {
+        int type;
+        long tid;
+        long prev;
+        long lsn;
+        long end;
+        PageDelta delta;            // UPDATE and CLR
+        long undoNext = NO_LSN;     // CLR
+        PageId pid;                 // PAGE_WRITTEN
+        long pageLsn;               // PAGE_WRITTEN
+        long beginLsn;              // CHECKPOINT
+        long[][] active;            // CHECKPOINT: tid, first and last record
+        Map<PageId,Long> dirty;     // CHECKPOINT: page id to recLSN
+
+        /** @return where recovery from this checkpoint starts reading */
+        long scanStart() {
+            long start = beginLsn;
+            for (long recLsn : dirty.values())
+                start = Math.min(start, recLsn);
+            return start;
+        }
+
+        public String toString() {
+            String[] names = { "?", "ABORT", "COMMIT", "UPDATE", "BEGIN",
+                               "CHECKPOINT", "CLR", "PAGE_WRITTEN" };
+            String s = lsn + ": " + names[type] + " " + tid + " prev " + prev;
+            switch (type) {
+            case UPDATE_RECORD:
+                return s + " " + delta;
+            case CLR_RECORD:
+                return s + " undo next " + undoNext + " " + delta;
+            case PAGE_WRITTEN_RECORD:
+                return s + " " + pid + " at " + pageLsn;
+            case CHECKPOINT_RECORD:
+                StringBuilder b = new StringBuilder(s);
+                b.append(" begin ").append(beginLsn);
+                for (long[] xaction : active)
+                    b.append(" ").append(xaction[0]).append("@").append(xaction[1])
+                        .append("-").append(xaction[2]);
+                for (Map.Entry<PageId,Long> e : dirty.entrySet())
+                    b.append(" ").append(e.getKey()).append("@").append(e.getValue());
+                return b.toString();
+            default:
+                return s;
+            }
+        }
+    }
+
+    /** A buffered DataInputStream that knows its offset in the log. */
+    static class LogReader extends DataInputStream {
+        private final Counter counter;
+
+        LogReader(InputStream in, long offset) {
+            this(new Counter(new BufferedInputStream(in, 1 << 16), offset));
+        }
+
+        private LogReader(Counter counter) {
+            super(counter);
+            this.counter = counter;
+        }
+
+        /** @return the log offset of the next byte to be read */
+        long position() {
+            return counter.pos;
+        }
+    }
+
+    private static class Counter extends FilterInputStream {
+        long pos;
+
+        Counter(InputStream in, long pos) {
+            super(in);
+            this.pos = pos;
+        }
+
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0)
+                pos++;
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0)
+                pos += n;
+            return n;
+        }
+
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            pos += skipped;
+            return skipped;
+        }
     }
 
     public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        logBuffer.drain();
+        segments.force();
+    }
+
+    /** @return the buffer that holds the tail of the log */
+    LogBuffer getLogBuffer() {
+        return logBuffer;
     }
 
 }
@@ -0,0 +1,230 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * LogSegments stores the log as a sequence of fixed-size segment files.
+ * Readers and writers see one address space of LSNs, while the oldest
+ * part of the log can be dropped by deleting whole files instead of
+ * copying the part that survives.
+ * <p>
+ * Segment i holds the LSNs [i * segmentSize, (i + 1) * segmentSize) and
+ * is stored next to the log file, in a file named after it with the
+ * suffix "." + i.  A record may span two segments.
+ *
+ * @Threadsafe
+ */
+class LogSegments {
+
+    private final File base;
+    private volatile long segmentSize;
+    private final ConcurrentSkipListMap<Long,FileChannel> segments =
+        new ConcurrentSkipListMap<Long,FileChannel>();
+    // segments written since the last force()
+    private final Set<Long> unforced = ConcurrentHashMap.newKeySet();
+    private volatile long start; // the LSN where the log begins
+
+    /**
+     * Open the segments of the specified log file, if any.
+     *
+     * @param base the log file; segments are stored next to it
+     * @param segmentSize the size of each segment, in bytes
+     */
+    public LogSegments(File base, long segmentSize) throws IOException {
+        this.base = base.getAbsoluteFile();
+        this.segmentSize = segmentSize;
+        String prefix = this.base.getName() + ".";
+        File[] files = this.base.getParentFile().listFiles();
+        if (files != null) {
+            for (File f : files) {
+                String name = f.getName();
+                if (!name.startsWith(prefix))
+                    continue;
+                try {
+                    long index = Long.parseLong(name.substring(prefix.length()));
+                    segments.put(index, new RandomAccessFile(f, "rw").getChannel());
+                } catch (NumberFormatException e) {
+                    // not a segment
+                }
+            }
+        }
+        start = segments.isEmpty() ? 0 : segments.firstKey() * segmentSize;
+    }
+
+    /** @return the size of each segment, in bytes */
+    public long getSegmentSize() {
+        return segmentSize;
+    }
+
+    /** @return the number of segment files */
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /** @return the first LSN still stored */
+    public long getStartLsn() {
+        return start;
+    }
+
+    /** @return the LSN just past the last byte stored */
+    public long length() throws IOException {
+        Map.Entry<Long,FileChannel> last = segments.lastEntry();
+        if (last == null)
+            return start;
+        return last.getKey() * segmentSize + last.getValue().size();
+    }
+
+    private File segmentFile(long index) {
+        return new File(base.getParentFile(), base.getName() + "." + index);
+    }
+
+    private FileChannel segment(long index) throws IOException {
+        FileChannel ch = segments.get(index);
+        if (ch == null) {
+            synchronized (this) {
+                ch = segments.get(index);
+                if (ch == null) {
+                    ch = new RandomAccessFile(segmentFile(index), "rw").getChannel();
+                    segments.put(index, ch);
+                }
+            }
+        }
+        return ch;
+    }
+
+    /**
+     * Write the remaining bytes of src to the log, starting at lsn.
+     * The caller is responsible for calling force() if durability is
+     * required.
+     */
+    public void write(ByteBuffer src, long lsn) throws IOException {
+        while (src.hasRemaining()) {
+            long index = lsn / segmentSize;
+            long offset = lsn % segmentSize;
+            int n = (int) Math.min(src.remaining(), segmentSize - offset);
+            ByteBuffer part = src.duplicate();
+            part.limit(part.position() + n);
+            FileChannel ch = segment(index);
+            while (part.hasRemaining())
+                offset += ch.write(part, offset);
+            unforced.add(index);
+            src.position(src.position() + n);
+            lsn += n;
+        }
+    }
+
+    /**
+     * Read bytes starting at lsn into dst, without crossing a segment
+     * boundary.
+     *
+     * @return the number of bytes read, or -1 at the end of the log
+     */
+    public int read(ByteBuffer dst, long lsn) throws IOException {
+        if (lsn < start)
+            throw new IOException("log position " + lsn + " was truncated; the log starts at " + start);
+        FileChannel ch = segments.get(lsn / segmentSize);
+        if (ch == null)
+            return -1;
+        long offset = lsn % segmentSize;
+        ByteBuffer part = dst.duplicate();
+        part.limit(part.position() + (int) Math.min(dst.remaining(), segmentSize - offset));
+        int n = ch.read(part, offset);
+        if (n > 0)
+            dst.position(dst.position() + n);
+        return n;
+    }
+
+    /** @return an unbuffered stream over the log, starting at lsn */
+    public InputStream openInput(final long lsn) {
+        return new InputStream() {
+            private long pos = lsn;
+
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) == 1 ? b[0] & 0xff : -1;
+            }
+
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0)
+                    return 0;
+                int n = LogSegments.this.read(ByteBuffer.wrap(b, off, len), pos);
+                if (n > 0)
+                    pos += n;
+                return n <= 0 ? -1 : n;
+            }
+        };
+    }
+
+    /** Force every segment written since the last force to disk. */
+    public void force() throws IOException {
+        for (Long index : unforced.toArray(new Long[0])) {
+            unforced.remove(index);
+            FileChannel ch = segments.get(index);
+            if (ch == null)
+                continue;
+            try {
+                ch.force(true);
+            } catch (ClosedChannelException e) {
+                // the segment was deleted
+            }
+        }
+    }
+
+    /**
+     * Delete every segment that lies entirely before lsn.
+     *
+     * @return the number of segments deleted
+     */
+    public synchronized int deleteBefore(long lsn) throws IOException {
+        int deleted = 0;
+        while (!segments.isEmpty() && (segments.firstKey() + 1) * segmentSize <= lsn) {
+            Map.Entry<Long,FileChannel> first = segments.pollFirstEntry();
+            first.getValue().close();
+            segmentFile(first.getKey()).delete();
+            unforced.remove(first.getKey());
+            start = (first.getKey() + 1) * segmentSize;
+            deleted++;
+        }
+        return deleted;
+    }
+
+    /** Discard everything stored from lsn on. */
+    public synchronized void truncate(long lsn) throws IOException {
+        while (!segments.isEmpty() && segments.lastKey() * segmentSize > lsn) {
+            Map.Entry<Long,FileChannel> last = segments.pollLastEntry();
+            last.getValue().close();
+            segmentFile(last.getKey()).delete();
+            unforced.remove(last.getKey());
+        }
+        FileChannel ch = segments.get(lsn / segmentSize);
+        if (ch != null)
+            ch.truncate(lsn % segmentSize);
+    }
+
+    /** Delete every segment; the log restarts empty at lsn. */
+    public synchronized void reset(long lsn) throws IOException {
+        reset(lsn, segmentSize);
+    }
+
+    /**
+     * Delete every segment; the log restarts empty at lsn, with segments
+     * of the specified size.
+     */
+    public synchronized void reset(long lsn, long segmentSize) throws IOException {
+        deleteBefore(Long.MAX_VALUE);
+        this.segmentSize = segmentSize;
+        start = lsn;
+    }
+
+    /** Close every segment file. */
+    public synchronized void close() throws IOException {
+        for (FileChannel ch : segments.values())
+            ch.close();
+    }
+}
@@ -23,6 +23,10 @@ public class LogicalJoinNode {
     /** The join predicate */
     public Predicate.Op p;
 
+    /** Whether the optimizer chose to answer the join by probing the B+ tree
+     * t2 is stored in for each tuple of t1, instead of rescanning t2 */
+    public boolean indexJoin;
+
     public LogicalJoinNode() {
     }
 
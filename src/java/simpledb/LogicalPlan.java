@@ -1,7 +1,9 @@
 package simpledb;
 import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.io.File;
 import java.util.ArrayList;
@@ -271,6 +273,130 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /**
+     * @param alias the alias of a table of the query
+     * @param td the TupleDesc of the table
+     * @return the fields of the table that the query refers to, or null if
+     *         it refers to all of them
+     */
+    private Set<Integer> referencedFields(String alias, TupleDesc td) {
+        ArrayList<String> names = new ArrayList<String>();
+        for (LogicalFilterNode lf : filters) {
+            if (lf.tableAlias.equals(alias))
+                names.add(lf.fieldPureName);
+        }
+        for (LogicalJoinNode lj : joins) {
+            if (lj.t1Alias.equals(alias))
+                names.add(lj.f1PureName);
+            if (alias.equals(lj.t2Alias))
+                names.add(lj.f2PureName);
+        }
+        ArrayList<String> quantified = new ArrayList<String>();
+        for (LogicalSelectListNode si : selectList)
+            quantified.add(si.fname);
+        if (hasAgg) {
+            quantified.add(aggField);
+            if (groupByField != null)
+                quantified.add(groupByField);
+        }
+        if (hasOrderBy)
+            quantified.add(oByField);
+        for (String q : quantified) {
+            String[] parts = q.split("[.]");
+            if (parts.length != 2 || parts[1].equals("*")) {
+                if (parts[0].equals("null") || parts[0].equals(alias) || parts.length != 2)
+                    return null;
+            } else if (parts[0].equals(alias)) {
+                names.add(parts[1]);
+            }
+        }
+        HashSet<Integer> fields = new HashSet<Integer>();
+        for (String name : names) {
+            try {
+                fields.add(td.fieldNameToIndex(name));
+            } catch (NoSuchElementException e) {
+                return null; // reported below
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * @param alias the alias of a table of the query
+     * @param file the file of the table
+     * @return an equality filter on each of the leading key fields of the
+     *         table, in key order, if it is a B+ tree file keyed on several
+     *         fields; the list ends before the first key field without one
+     */
+    private ArrayList<LogicalFilterNode> keyPrefix(String alias, DbFile file) {
+        ArrayList<LogicalFilterNode> prefix = new ArrayList<LogicalFilterNode>();
+        if (!(file instanceof BTreeFile))
+            return prefix;
+        for (int key : ((BTreeFile) file).keyFields()) {
+            LogicalFilterNode match = null;
+            for (LogicalFilterNode lf : filters) {
+                if (!lf.tableAlias.equals(alias) || lf.p != Predicate.Op.EQUALS)
+                    continue;
+                try {
+                    if (file.getTupleDesc().fieldNameToIndex(lf.fieldPureName) == key)
+                        match = lf;
+                } catch (NoSuchElementException e) {
+                    // reported below
+                }
+            }
+            if (match == null)
+                break;
+            prefix.add(match);
+        }
+        return prefix;
+    }
+
+    /**
+     * @param alias the alias of a table of the query
+     * @param file the B+ tree file of the table
+     * @param lower whether to look for a lower bound rather than an upper one
+     * @return a GREATER_THAN or GREATER_THAN_OR_EQ filter on the key of the
+     *         table if lower is set, a LESS_THAN or LESS_THAN_OR_EQ one
+     *         otherwise, or null if there is none
+     */
+    private LogicalFilterNode keyBound(String alias, BTreeFile file, boolean lower) {
+        for (LogicalFilterNode lf : filters) {
+            if (!lf.tableAlias.equals(alias))
+                continue;
+            boolean bound = lower
+                    ? lf.p == Predicate.Op.GREATER_THAN || lf.p == Predicate.Op.GREATER_THAN_OR_EQ
+                    : lf.p == Predicate.Op.LESS_THAN || lf.p == Predicate.Op.LESS_THAN_OR_EQ;
+            try {
+                if (bound && file.getTupleDesc().fieldNameToIndex(lf.fieldPureName) == file.keyField())
+                    return lf;
+            } catch (NoSuchElementException e) {
+                // reported below
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param alias the alias of a table of the query
+     * @param file the file of the table
+     * @return true if the query reads this table alone and orders its result
+     *         by the key of the B+ tree file the table is stored in, so that
+     *         a scan of the tree in key order needs no sort
+     */
+    private boolean orderedByKey(String alias, DbFile file) {
+        if (!hasOrderBy || hasAgg || tables.size() != 1 || !(file instanceof BTreeFile))
+            return false;
+        return oByField.equals(alias + "." + file.getTupleDesc().getFieldName(((BTreeFile) file).keyField()));
+    }
+
+    /** Convert the constant of a filter to a field of the specified type */
+    private static Field parseConstant(Type ftyp, String c) {
+        if (ftyp == Type.INT_TYPE)
+            return new IntField(new Integer(c).intValue());
+        else
+            return new StringField(c, Type.STRING_LEN);
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link OpIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned OpIterator will run as a part of
@@ -290,18 +416,174 @@ public class LogicalPlan {
         HashMap<String,Double> filterSelectivities = new HashMap<String, Double>();
         HashMap<String,TableStats> statsMap = new HashMap<String,TableStats>();
 
+        // the filters answered by the access paths of the tables
+        HashSet<LogicalFilterNode> indexFilters = new HashSet<LogicalFilterNode>();
+        // whether the access path returns the tuples in the ORDER BY order
+        boolean sortedByScan = false;
+
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
-            SeqScan ss = null;
+            DbFile file;
             try {
-                 ss = new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias);
+                 file = Database.getCatalog().getDatabaseFile(table.t);
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
-            
-            subplanMap.put(table.alias,ss);
             String baseTableName = Database.getCatalog().getTableName(table.t);
-            statsMap.put(baseTableName, baseTableStats.get(baseTableName));
+            TableStats s = baseTableStats.get(baseTableName);
+
+            // a predicate on the key of a B+ tree file or on a field with a
+            // secondary index can be answered by a lookup instead of by
+            // filtering a scan of the whole table, and a secondary index
+            // that holds every field the query refers to can be read instead
+            // of the table; pick whichever of these access paths is
+            // estimated to read the fewest pages
+            double bestCost = s == null ? 0 : s.estimateScanCost();
+            LogicalFilterNode best = null;
+            Field bestField = null;
+            SecondaryIndex bestCovering = null;
+            ArrayList<SecondaryIndex> covering = new ArrayList<SecondaryIndex>();
+            Set<Integer> referenced = referencedFields(table.alias, file.getTupleDesc());
+            for (SecondaryIndex index : Database.getCatalog().getIndexes(table.t)) {
+                if (s == null || referenced == null || !index.covers(referenced))
+                    continue;
+                covering.add(index);
+                double cost = s.estimateIndexOnlyScanCost(index.getKeyField(), 1.0);
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    bestCovering = index;
+                }
+            }
+            for (LogicalFilterNode lf : filters) {
+                if (!lf.tableAlias.equals(table.alias) || s == null
+                        || lf.p == Predicate.Op.NOT_EQUALS || lf.p == Predicate.Op.LIKE)
+                    continue;
+                int field;
+                try {
+                    field = file.getTupleDesc().fieldNameToIndex(lf.fieldPureName);
+                } catch (NoSuchElementException e) {
+                    continue; // reported below
+                }
+                if (file instanceof HashFile && ((HashFile) file).keyField() == field
+                        && lf.p != Predicate.Op.EQUALS)
+                    continue; // a hash file can only look keys up
+                Field f = parseConstant(file.getTupleDesc().getFieldType(field), lf.c);
+                double sel = s.estimateSelectivity(t, field, lf.p, f);
+                double cost = s.estimateIndexScanCost(field, sel);
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    best = lf;
+                    bestField = f;
+                    bestCovering = null;
+                }
+                for (SecondaryIndex index : covering) {
+                    if (index.getKeyField() != field)
+                        continue;
+                    cost = s.estimateIndexOnlyScanCost(field, sel);
+                    if (cost < bestCost) {
+                        bestCost = cost;
+                        best = lf;
+                        bestField = f;
+                        bestCovering = index;
+                    }
+                }
+            }
+
+            // equality filters on the leading fields of a composite key are
+            // answered together, by a single descent to the first key with
+            // all of their values
+            ArrayList<LogicalFilterNode> answered = new ArrayList<LogicalFilterNode>();
+            if (best != null)
+                answered.add(best);
+            ArrayList<LogicalFilterNode> prefix = keyPrefix(table.alias, file);
+            if (s != null && prefix.size() > 1) {
+                int[] keys = ((BTreeFile) file).keyFields();
+                Field[] fields = new Field[prefix.size()];
+                double sel = 1.0;
+                for (int i = 0; i < fields.length; i++) {
+                    fields[i] = parseConstant(file.getTupleDesc().getFieldType(keys[i]), prefix.get(i).c);
+                    sel *= s.estimateSelectivity(t, keys[i], Predicate.Op.EQUALS, fields[i]);
+                }
+                double cost = s.estimateIndexScanCost(keys[0], sel);
+                if (cost <= bestCost) {
+                    bestCost = cost;
+                    best = prefix.get(0);
+                    bestField = new CompositeField(fields);
+                    bestCovering = null;
+                    answered = prefix;
+                }
+            }
+
+            OpIterator ss;
+            IndexPredicate ipred = best == null ? null : new IndexPredicate(best.p, bestField);
+
+            // a range on the key of a B+ tree file is read between its two
+            // bounds; a range with only an upper bound is read backwards
+            // from it, unless the query orders by the key ascending, and a
+            // query ordering by the key descending reads the tree backwards
+            IndexPredicate upper = null;
+            boolean reverse = false;
+            boolean keyScan = file instanceof BTreeFile && bestCovering == null && (best == null
+                    || file.getTupleDesc().fieldNameToIndex(best.fieldPureName) == ((BTreeFile) file).keyField());
+            if (keyScan && best != null && answered.size() == 1 && best.p != Predicate.Op.EQUALS) {
+                boolean lowerBest = best.p == Predicate.Op.GREATER_THAN || best.p == Predicate.Op.GREATER_THAN_OR_EQ;
+                LogicalFilterNode other = keyBound(table.alias, (BTreeFile) file, !lowerBest);
+                if (other != null) {
+                    int key = ((BTreeFile) file).keyField();
+                    IndexPredicate bound = new IndexPredicate(other.p,
+                            parseConstant(file.getTupleDesc().getFieldType(key), other.c));
+                    upper = lowerBest ? bound : ipred;
+                    ipred = lowerBest ? ipred : bound;
+                    answered.add(other);
+                    double sel = s.estimateSelectivity(t, key, ipred.getOp(), ipred.getField())
+                            + s.estimateSelectivity(t, key, upper.getOp(), upper.getField()) - 1.0;
+                    bestCost = s.estimateIndexScanCost(key, Math.max(0.0, sel));
+                } else {
+                    reverse = !lowerBest;
+                }
+            }
+            if (keyScan && orderedByKey(table.alias, file)) {
+                reverse = !oByAsc;
+                sortedByScan = true;
+            }
+
+            if (bestCovering != null) {
+                ss = new IndexOnlyScan(t, bestCovering, table.alias, ipred);
+            } else if (keyScan) {
+                ss = new BTreeScan(t, table.t, table.alias, ipred, upper, reverse);
+            } else if (best == null && file instanceof HashFile) {
+                ss = new HashScan(t, table.t, table.alias, null);
+            } else if (best == null && file instanceof LSMFile) {
+                ss = new LSMScan(t, table.t, table.alias, null);
+            } else if (best == null) {
+                ss = new SeqScan(t, table.t, table.alias);
+            } else {
+                int field = file.getTupleDesc().fieldNameToIndex(best.fieldPureName);
+                if (file instanceof HashFile && ((HashFile) file).keyField() == field)
+                    ss = new HashScan(t, table.t, table.alias, ipred);
+                else if (file instanceof LSMFile && ((LSMFile) file).keyField() == field)
+                    ss = new LSMScan(t, table.t, table.alias, ipred);
+                else
+                    ss = new SecondaryIndexScan(t, Database.getCatalog().getIndex(table.t, field),
+                            table.alias, ipred);
+            }
+            indexFilters.addAll(answered);
+            if (explain && s != null) {
+                String path = "full scan";
+                for (int i = 0; i < answered.size(); i++) {
+                    LogicalFilterNode lf = answered.get(i);
+                    path = (i == 0 ? "lookup on " : path + " and ") + lf.fieldQuantifiedName + " " + lf.p + " " + lf.c;
+                }
+                if (bestCovering != null)
+                    path = "index-only " + path;
+                if (reverse)
+                    path = path + " in descending key order";
+                System.out.println("Access path for " + table.alias + ": " + path + ", estimated cost "
+                        + bestCost + (bestCost < s.estimateScanCost() ? " (full scan " + s.estimateScanCost() + ")" : ""));
+            }
+
+            subplanMap.put(table.alias,ss);
+            statsMap.put(baseTableName, s);
             filterSelectivities.put(table.alias, 1.0);
 
         }
@@ -323,10 +605,7 @@ public class LogicalPlan {
             } catch (java.util.NoSuchElementException e) {
                 throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
             }
-            if (ftyp == Type.INT_TYPE)
-                f = new IntField(new Integer(lf.c).intValue());
-            else
-                f = new StringField(lf.c, Type.STRING_LEN);
+            f = parseConstant(ftyp, lf.c);
 
             Predicate p = null;
             try {
@@ -334,11 +613,12 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            if (!indexFilters.contains(lf))
+                subplanMap.put(lf.tableAlias, new Filter(p, subplan));
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
             
-            double sel= s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
+            double sel= s.estimateSelectivity(t, subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
             filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
@@ -475,7 +755,7 @@ public class LogicalPlan {
             node = aggNode;
         }
 
-        if (hasOrderBy) {
+        if (hasOrderBy && !sortedByScan) {
             node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
         }
 
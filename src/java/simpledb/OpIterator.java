@@ -34,6 +34,29 @@ public interface OpIterator extends Serializable{
    */
   public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException;
 
+  /**
+   * Empties a batch and fills it with the next tuples from the operator, as
+   * many as it holds unless the operator runs out of tuples.  The batch is
+   * owned by the caller, which reuses it for every call; the tuples put in
+   * it are not reused by the operator.  An operator is read either with
+   * next() or with nextBatch() between calls to open() or rewind().
+   * <p>
+   * This implementation reads the tuples with hasNext() and next(), for
+   * operators that do not produce batches themselves.
+   *
+   * @param batch the batch to fill, of the TupleDesc of this OpIterator
+   * @return false if there were no more tuples, and the batch is empty
+   * @throws IllegalStateException If the iterator has not been opened
+   * @see TupleBatch
+   */
+  public default boolean nextBatch(TupleBatch batch)
+      throws DbException, TransactionAbortedException {
+    batch.clear();
+    while (!batch.isFull() && hasNext())
+      batch.add(next());
+    return batch.size() > 0;
+  }
+
   /**
    * Resets the iterator to the start.
    * @throws DbException when rewind is unsupported.
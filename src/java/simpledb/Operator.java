@@ -33,6 +33,42 @@ public abstract class Operator implements OpIterator {
         return result;
     }
 
+    public boolean nextBatch(TupleBatch batch) throws DbException,
+            TransactionAbortedException {
+        if (!this.open)
+            throw new IllegalStateException("Operator not yet open");
+
+        batch.clear();
+        if (next != null) {
+            // the tuple read ahead by hasNext() comes first, on its own
+            batch.add(next);
+            next = null;
+            return true;
+        }
+        return fetchNextBatch(batch);
+    }
+
+    /**
+     * Fills an empty batch with the next tuples of the iterator.  Operator
+     * uses this method to implement <code>nextBatch</code>; this
+     * implementation reads the tuples with <code>fetchNext</code>, and
+     * operators that produce batches themselves override it.
+     * 
+     * @param batch
+     *            the empty batch to fill
+     * @return false if the iteration is finished, and the batch is empty
+     */
+    protected boolean fetchNextBatch(TupleBatch batch) throws DbException,
+            TransactionAbortedException {
+        while (!batch.isFull()) {
+            Tuple t = fetchNext();
+            if (t == null)
+                break;
+            batch.add(t);
+        }
+        return batch.size() > 0;
+    }
+
     /**
      * Returns the next Tuple in the iterator, or null if the iteration is
      * finished. Operator uses this method to implement both <code>next</code>
@@ -57,8 +57,11 @@ public class OrderBy extends Operator {
             TransactionAbortedException {
         child.open();
         // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add((Tuple) child.next());
+        TupleBatch batch = new TupleBatch(td);
+        while (child.nextBatch(batch)) {
+            for (int i = 0; i < batch.size(); i++)
+                childTups.add(batch.get(i));
+        }
         Collections.sort(childTups, new TupleComparator(orderByField, asc));
         it = childTups.iterator();
         super.open();
@@ -88,6 +91,17 @@ public class OrderBy extends Operator {
             return null;
     }
 
+    /**
+     * Operator.fetchNextBatch implementation. Returns the sorted tuples a
+     * batch at a time
+     */
+    @Override
+    protected boolean fetchNextBatch(TupleBatch batch) throws TransactionAbortedException, DbException {
+        while (it != null && it.hasNext() && !batch.isFull())
+            batch.add(it.next());
+        return batch.size() > 0;
+    }
+
     @Override
     public OpIterator[] getChildren() {
         return new OpIterator[] { this.child };
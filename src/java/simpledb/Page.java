@@ -56,4 +56,15 @@ public interface Page {
      * copy current content to the before image.
      */
     public void setBeforeImage();
+
+    /**
+     * Return the LSN of the last logged update of this page, or -1 if the
+     * page has not been logged since it was read from disk.  The page LSN
+     * is not stored in the page bytes; LogFile makes it durable with a
+     * PAGE_WRITTEN record once the page is on disk.
+     */
+    public long getLSN();
+
+    /** Set the LSN of the last logged update of this page. */
+    public void setLSN(long lsn);
 }
@@ -0,0 +1,259 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * PageDelta is the payload of an UPDATE log record: the byte ranges in
+ * which the after image of a page differs from its before image, with
+ * the old and new contents of each range.  Inserting a tuple into a heap
+ * page, for example, logs the header byte holding the slot bit and the
+ * bytes of the tuple, rather than two full page images.
+ * <p>
+ * Pages are identified by a numeric type code followed by the integers
+ * of {@link PageId#serialize}, so no class names are written to the log.
+ * <p>
+ * The serialized form is:
+ * <ul>
+ * <li> byte page type code (HEAP_PAGE, BTREE_PAGE or HASH_PAGE)
+ * <li> the page id integers (two for heap and hash pages, three for B+
+ * tree pages)
+ * <li> int page length
+ * <li> int number of ranges
+ * <li> for each range: int offset, int length, the before bytes and the
+ * after bytes
+ * </ul>
+ */
+class PageDelta {
+
+    static final byte HEAP_PAGE = 1;
+    static final byte BTREE_PAGE = 2;
+    static final byte HASH_PAGE = 3;
+
+    // ranges separated by fewer unchanged bytes than this are logged as
+    // one range, since each range costs 8 bytes of offset and length
+    static final int MERGE_GAP = 8;
+
+    private final PageId pid;
+    private final int pageLength;
+    private final int[] offsets;
+    private final byte[][] before;
+    private final byte[][] after;
+
+    private PageDelta(PageId pid, int pageLength, int[] offsets,
+                      byte[][] before, byte[][] after) {
+        this.pid = pid;
+        this.pageLength = pageLength;
+        this.offsets = offsets;
+        this.before = before;
+        this.after = after;
+    }
+
+    /**
+     * Compute the delta that turns the before image of a page into its
+     * after image.
+     *
+     * @param beforePage the page before the update
+     * @param afterPage the page after the update
+     */
+    public static PageDelta diff(Page beforePage, Page afterPage) {
+        byte[] b = beforePage.getPageData();
+        byte[] a = afterPage.getPageData();
+        if (a.length != b.length) {
+            // should not happen; log the whole page
+            byte[] old = Arrays.copyOf(b, a.length);
+            return new PageDelta(afterPage.getId(), a.length, new int[] { 0 },
+                                 new byte[][] { old }, new byte[][] { a.clone() });
+        }
+
+        ArrayList<int[]> ranges = new ArrayList<int[]>();
+        int i = 0;
+        while (i < a.length) {
+            if (a[i] == b[i]) {
+                i++;
+                continue;
+            }
+            int start = i, end = i + 1;
+            // extend the range while the next difference is close enough
+            int j = end;
+            while (j < a.length && j - end < MERGE_GAP) {
+                if (a[j] != b[j])
+                    end = j + 1;
+                j++;
+            }
+            ranges.add(new int[] { start, end });
+            i = end;
+        }
+
+        int n = ranges.size();
+        int[] offsets = new int[n];
+        byte[][] before = new byte[n][];
+        byte[][] after = new byte[n][];
+        for (int r = 0; r < n; r++) {
+            int[] range = ranges.get(r);
+            offsets[r] = range[0];
+            before[r] = Arrays.copyOfRange(b, range[0], range[1]);
+            after[r] = Arrays.copyOfRange(a, range[0], range[1]);
+        }
+        return new PageDelta(afterPage.getId(), a.length, offsets, before, after);
+    }
+
+    /** @return the page this delta applies to */
+    public PageId getPageId() {
+        return pid;
+    }
+
+    /** @return the number of changed ranges */
+    public int getNumRanges() {
+        return offsets.length;
+    }
+
+    /** @return the number of changed bytes */
+    public int getNumBytes() {
+        int n = 0;
+        for (byte[] r : after)
+            n += r.length;
+        return n;
+    }
+
+    /**
+     * Apply the delta to the bytes of a page.
+     *
+     * @param data the page bytes, modified in place
+     * @param redo true to install the after image, false to install the
+     *        before image (undo)
+     */
+    public void apply(byte[] data, boolean redo) {
+        byte[][] src = redo ? after : before;
+        for (int r = 0; r < offsets.length; r++)
+            System.arraycopy(src[r], 0, data, offsets[r], src[r].length);
+    }
+
+    /**
+     * @return the delta that undoes this one: its before and after
+     *         contents swapped.  Used as the payload of CLR records.
+     */
+    public PageDelta inverse() {
+        return new PageDelta(pid, pageLength, offsets, after, before);
+    }
+
+    /**
+     * Read the bytes of the on-disk copy of the page, bypassing the
+     * buffer pool.  A page that was never written reads as zeros.
+     */
+    public byte[] readPageBytes() throws IOException {
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        try {
+            return file.readPage(pid).getPageData();
+        } catch (IllegalArgumentException e) {
+            // the page was never written; start from an empty one
+            return new byte[pageLength];
+        }
+    }
+
+    /**
+     * Construct the page with the specified id from its bytes and write
+     * it to its file, bypassing the buffer pool.
+     *
+     * @return the page as written
+     */
+    static Page writePageBytes(PageId pid, byte[] data) throws IOException {
+        Page p = makePage(pid, data);
+        Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(p);
+        return p;
+    }
+
+    /** Write the delta to the log. */
+    public void write(DataOutput out) throws IOException {
+        writePageId(out, pid);
+        out.writeInt(pageLength);
+        out.writeInt(offsets.length);
+        for (int r = 0; r < offsets.length; r++) {
+            out.writeInt(offsets[r]);
+            out.writeInt(after[r].length);
+            out.write(before[r]);
+            out.write(after[r]);
+        }
+    }
+
+    /** Read a delta written by {@link #write}. */
+    public static PageDelta read(DataInput in) throws IOException {
+        PageId pid = readPageId(in);
+        int pageLength = in.readInt();
+        int n = in.readInt();
+        int[] offsets = new int[n];
+        byte[][] before = new byte[n][];
+        byte[][] after = new byte[n][];
+        for (int r = 0; r < n; r++) {
+            offsets[r] = in.readInt();
+            int len = in.readInt();
+            before[r] = new byte[len];
+            in.readFully(before[r]);
+            after[r] = new byte[len];
+            in.readFully(after[r]);
+        }
+        return new PageDelta(pid, pageLength, offsets, before, after);
+    }
+
+    /** @return the type code used in the log for pages with this id */
+    static byte typeCode(PageId pid) {
+        if (pid instanceof HeapPageId)
+            return HEAP_PAGE;
+        if (pid instanceof BTreePageId)
+            return BTREE_PAGE;
+        if (pid instanceof HashPageId)
+            return HASH_PAGE;
+        throw new IllegalArgumentException("no log type code for " + pid.getClass().getName());
+    }
+
+    static void writePageId(DataOutput out, PageId pid) throws IOException {
+        out.writeByte(typeCode(pid));
+        for (int i : pid.serialize())
+            out.writeInt(i);
+    }
+
+    static PageId readPageId(DataInput in) throws IOException {
+        byte code = in.readByte();
+        switch (code) {
+        case HEAP_PAGE:
+            return new HeapPageId(in.readInt(), in.readInt());
+        case BTREE_PAGE:
+            return new BTreePageId(in.readInt(), in.readInt(), in.readInt());
+        case HASH_PAGE:
+            return new HashPageId(in.readInt(), in.readInt());
+        default:
+            throw new IOException("unknown page type code " + code);
+        }
+    }
+
+    /**
+     * Construct the page with the specified id from its bytes.
+     */
+    static Page makePage(PageId pid, byte[] data) throws IOException {
+        if (pid instanceof HeapPageId)
+            return new HeapPage((HeapPageId) pid, data);
+        if (pid instanceof HashPageId) {
+            HashPageId hid = (HashPageId) pid;
+            if (hid.isDirectory())
+                return new HashDirectoryPage(hid, data);
+            return new HashBucketPage(hid, data);
+        }
+        BTreePageId id = (BTreePageId) pid;
+        switch (id.pgcateg()) {
+        case BTreePageId.ROOT_PTR:
+            return new BTreeRootPtrPage(id, data);
+        case BTreePageId.HEADER:
+            return new BTreeHeaderPage(id, data);
+        default:
+            int[] keyFields = ((BTreeFile) Database.getCatalog()
+                            .getDatabaseFile(id.getTableId())).keyFields();
+            if (id.pgcateg() == BTreePageId.INTERNAL)
+                return new BTreeInternalPage(id, data, keyFields);
+            return new BTreeLeafPage(id, data, keyFields);
+        }
+    }
+
+    public String toString() {
+        return pid + ": " + offsets.length + " ranges, " + getNumBytes() + " bytes";
+    }
+}
@@ -11,6 +11,7 @@ public class Project extends Operator {
     private OpIterator child;
     private TupleDesc td;
     private ArrayList<Integer> outFieldIds;
+    private transient TupleBatch childBatch = null;
 
     /**
      * Constructor accepts a child operator to read tuples to apply projection
@@ -80,6 +81,28 @@ public class Project extends Operator {
         return null;
     }
 
+    /**
+     * Operator.fetchNextBatch implementation. Projects a batch of tuples
+     * from the child operator into the batch.
+     */
+    @Override
+    protected boolean fetchNextBatch(TupleBatch batch) throws TransactionAbortedException, DbException {
+        if (childBatch == null || childBatch.capacity() != batch.capacity())
+            childBatch = new TupleBatch(child.getTupleDesc(), batch.capacity());
+        if (!child.nextBatch(childBatch))
+            return false;
+        for (int j = 0; j < childBatch.size(); j++) {
+            Tuple t = childBatch.get(j);
+            Tuple newTuple = new Tuple(td);
+            newTuple.setRecordId(t.getRecordId());
+            for (int i = 0; i < td.numFields(); i++) {
+                newTuple.setField(i, t.getField(outFieldIds.get(i)));
+            }
+            batch.add(newTuple);
+        }
+        return true;
+    }
+
     @Override
     public OpIterator[] getChildren() {
         return new OpIterator[] { this.child };
@@ -9,10 +9,14 @@ public class QueryPlanVisualizer {
 
     static final String JOIN = "⨝";
     static final String HASH_JOIN = "⨝(hash)";
+    static final String INDEX_JOIN = "⨝(index)";
     static final String SELECT = "σ";
     static final String PROJECT = "π";
     static final String RENAME = "ρ";
     static final String SCAN = "scan";
+    static final String INDEX_SCAN = "index scan";
+    static final String INDEX_ONLY_SCAN = "index-only scan";
+    static final String DESCENDING = " desc";
     static final String ORDERBY = "o";
     static final String GROUPBY = "g";
     static final String SPACE = "  ";
@@ -65,17 +69,84 @@ public class QueryPlanVisualizer {
         int adjustDepth = currentDepth == 0 ? -1 : 0;
         SubTreeDescriptor thisNode = new SubTreeDescriptor(null, null);
 
-        if (queryPlan instanceof SeqScan) {
-            SeqScan s = (SeqScan) queryPlan;
-            String tableName = s.getTableName();
-            String alias = s.getAlias();
+        if (queryPlan instanceof SeqScan || queryPlan instanceof SecondaryIndexScan
+                || queryPlan instanceof BTreeScan || queryPlan instanceof IndexOnlyScan
+                || queryPlan instanceof HashScan || queryPlan instanceof LSMScan) {
+            String tableName, alias, predicate = "";
+            String scan = SCAN;
+            if (queryPlan instanceof SeqScan) {
+                SeqScan s = (SeqScan) queryPlan;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+            } else if (queryPlan instanceof BTreeScan) {
+                BTreeScan s = (BTreeScan) queryPlan;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+                BTreeFile f = (BTreeFile) Database.getCatalog().getDatabaseFile(
+                        Database.getCatalog().getTableId(tableName));
+                IndexPredicate ip = s.getIndexPredicate();
+                if (ip != null) {
+                    scan = INDEX_SCAN;
+                    predicate = "," + s.getTupleDesc().getFieldName(f.keyField())
+                            + ip.getOp() + ip.getField();
+                }
+                ip = s.getUpperPredicate();
+                if (ip != null) {
+                    scan = INDEX_SCAN;
+                    predicate += "," + s.getTupleDesc().getFieldName(f.keyField())
+                            + ip.getOp() + ip.getField();
+                }
+                if (s.isReverse())
+                    scan += DESCENDING;
+            } else if (queryPlan instanceof HashScan) {
+                HashScan s = (HashScan) queryPlan;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+                IndexPredicate ip = s.getIndexPredicate();
+                if (ip != null) {
+                    HashFile f = (HashFile) Database.getCatalog().getDatabaseFile(
+                            Database.getCatalog().getTableId(tableName));
+                    scan = INDEX_SCAN;
+                    predicate = "," + s.getTupleDesc().getFieldName(f.keyField())
+                            + ip.getOp() + ip.getField();
+                }
+            } else if (queryPlan instanceof LSMScan) {
+                LSMScan s = (LSMScan) queryPlan;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+                IndexPredicate ip = s.getIndexPredicate();
+                if (ip != null) {
+                    LSMFile f = (LSMFile) Database.getCatalog().getDatabaseFile(
+                            Database.getCatalog().getTableId(tableName));
+                    scan = INDEX_SCAN;
+                    predicate = "," + s.getTupleDesc().getFieldName(f.keyField())
+                            + ip.getOp() + ip.getField();
+                }
+            } else if (queryPlan instanceof IndexOnlyScan) {
+                IndexOnlyScan s = (IndexOnlyScan) queryPlan;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+                scan = INDEX_ONLY_SCAN;
+                IndexPredicate ip = s.getIndexPredicate();
+                if (ip != null)
+                    predicate = "," + s.getTupleDesc().getFieldName(0) + ip.getOp() + ip.getField();
+            } else {
+                scan = INDEX_SCAN;
+                SecondaryIndexScan s = (SecondaryIndexScan) queryPlan;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+                IndexPredicate ip = s.getIndexPredicate();
+                predicate = "," + s.getTupleDesc().getFieldName(s.getIndex().getKeyField())
+                        + ip.getOp() + ip.getField();
+            }
 //            TupleDesc td = s.getTupleDesc();
             if (!tableName.equals(alias))
                 alias = " " + alias;
             else
                 alias = "";
             thisNode.text = String
-                    .format("%1$s(%2$s)", SCAN, tableName + alias);
+                    .format("%1$s(%2$s)", scan,
+                            tableName + alias + predicate);
             if (SCAN.length() / 2 < parentUpperBarStartShift) {
                 thisNode.upBarPosition = currentStartPosition
                         + parentUpperBarStartShift;
@@ -114,7 +185,8 @@ public class QueryPlanVisualizer {
                 String field1 = td.getFieldName(jp.getField1());
                 String field2 = td.getFieldName(jp.getField2()
                         + children[0].getTupleDesc().numFields());
-                thisNode.text = String.format("%1$s(%2$s),card:%3$d", JOIN,
+                thisNode.text = String.format("%1$s(%2$s),card:%3$d",
+                        plan instanceof IndexNestedLoopJoin ? INDEX_JOIN : JOIN,
                         field1 + jp.getOperator() + field2,j.getEstimatedCardinality());
                 int upBarShift = parentUpperBarStartShift;
                 if (JOIN.length() / 2 > parentUpperBarStartShift)
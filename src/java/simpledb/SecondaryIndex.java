@@ -0,0 +1,310 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+import simpledb.Predicate.Op;
+
+/**
+ * SecondaryIndex is a B+ tree over one field of a heap table that maps
+ * each key to the RecordId of the tuple holding it.
+ * <p>
+ * The entries of the index are stored in a BTreeFile keyed on their first
+ * field, as tuples (key, page number, slot): the page number and slot of
+ * the tuple's RecordId.  The table id is implied by the table the index
+ * belongs to.
+ * <p>
+ * An index may also carry copies of other fields of the table, its
+ * included fields, which follow the slot in each entry.  A query that only
+ * refers to the key and the included fields of the table is answered from
+ * the index alone by an {@link IndexOnlyScan}.
+ * <p>
+ * Indexes are registered with {@link Catalog#addIndex}.  The buffer pool
+ * keeps them up to date: {@link BufferPool#insertTuple} and
+ * {@link BufferPool#deleteTuple} add and remove the entries of the tuples
+ * they insert into and delete from the table, in the same transaction.
+ *
+ * @see SecondaryIndexScan
+ */
+public class SecondaryIndex {
+
+	private final int tableid;
+	private final int keyField;
+	private final int[] included;
+	private final BTreeFile file;
+
+	/**
+	 * Create an index over a field of a table, stored in a B+ tree file.
+	 * @param tableid - the table the index belongs to
+	 * @param keyField - the indexed field of the table
+	 * @param file - the B+ tree file holding the entries of the index,
+	 * described by {@link #entryDesc}
+	 */
+	public SecondaryIndex(int tableid, int keyField, BTreeFile file) {
+		this(tableid, keyField, new int[0], file);
+	}
+
+	/**
+	 * Create an index over a field of a table with included fields, stored
+	 * in a B+ tree file.
+	 * @param tableid - the table the index belongs to
+	 * @param keyField - the indexed field of the table
+	 * @param included - the other fields of the table copied into the entries
+	 * @param file - the B+ tree file holding the entries of the index,
+	 * described by {@link #entryDesc}
+	 */
+	public SecondaryIndex(int tableid, int keyField, int[] included, BTreeFile file) {
+		this.tableid = tableid;
+		this.keyField = keyField;
+		this.included = included.clone();
+		this.file = file;
+	}
+
+	/**
+	 * @param keyType - the type of the indexed field
+	 * @return the TupleDesc of the entries of an index on a field of the
+	 * specified type
+	 */
+	public static TupleDesc entryDesc(Type keyType) {
+		return new TupleDesc(new Type[] { keyType, Type.INT_TYPE, Type.INT_TYPE },
+				new String[] { "key", "page", "slot" });
+	}
+
+	/**
+	 * @param td - the TupleDesc of the table
+	 * @param keyField - the indexed field of the table
+	 * @param included - the other fields of the table copied into the entries
+	 * @return the TupleDesc of the entries of an index on the table
+	 */
+	public static TupleDesc entryDesc(TupleDesc td, int keyField, int[] included) {
+		Type[] types = new Type[3 + included.length];
+		String[] names = new String[3 + included.length];
+		TupleDesc base = entryDesc(td.getFieldType(keyField));
+		for (int i = 0; i < 3; i++) {
+			types[i] = base.getFieldType(i);
+			names[i] = base.getFieldName(i);
+		}
+		for (int i = 0; i < included.length; i++) {
+			types[3 + i] = td.getFieldType(included[i]);
+			names[3 + i] = td.getFieldName(included[i]);
+		}
+		return new TupleDesc(types, names);
+	}
+
+	/**
+	 * Create an index over a field of a table: scan the table, bulk load
+	 * the entries into a new B+ tree file, and add the index to the catalog.
+	 * The index is only added once it is loaded, so that a failed load leaves
+	 * no index to keep up to date; the file is then deleted.
+	 *
+	 * @param tid - the transaction reading the table
+	 * @param tableid - the heap table to index
+	 * @param keyField - the field to index
+	 * @param f - the file to store the index in; it is overwritten
+	 * @return the index
+	 */
+	public static SecondaryIndex create(TransactionId tid, int tableid, int keyField, File f)
+			throws DbException, TransactionAbortedException, IOException {
+		return create(tid, tableid, keyField, new int[0], f);
+	}
+
+	/**
+	 * Create an index over a field of a table with included fields, as
+	 * {@link #create(TransactionId, int, int, File)} does.
+	 *
+	 * @param tid - the transaction reading the table
+	 * @param tableid - the heap table to index
+	 * @param keyField - the field to index
+	 * @param included - the other fields of the table to copy into the entries
+	 * @param f - the file to store the index in; it is overwritten
+	 * @return the index
+	 */
+	public static SecondaryIndex create(TransactionId tid, int tableid, int keyField, int[] included, File f)
+			throws DbException, TransactionAbortedException, IOException {
+		TupleDesc td = Database.getCatalog().getTupleDesc(tableid);
+		new FileOutputStream(f).close(); // truncate
+		BTreeFile bf = new BTreeFile(f, 0, entryDesc(td, keyField, included));
+		SecondaryIndex index = new SecondaryIndex(tableid, keyField, included, bf);
+		// the pages are made through the catalog, so the file is added as a
+		// table while it is loaded, and as an index once it is loaded
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+		boolean loaded = false;
+		try {
+			new BTreeBulkLoader().load(index.new EntryScan(new SeqScan(tid, tableid)), bf);
+			loaded = true;
+		} finally {
+			Database.getCatalog().removeTable(bf.getId());
+			if (!loaded)
+				f.delete();
+		}
+		Database.getCatalog().addIndex(index);
+		return index;
+	}
+
+	/** @return the table the index belongs to */
+	public int getTableId() {
+		return tableid;
+	}
+
+	/** @return the indexed field of the table */
+	public int getKeyField() {
+		return keyField;
+	}
+
+	/** @return the fields of the table copied into the entries, in order */
+	public int[] getIncludedFields() {
+		return included.clone();
+	}
+
+	/**
+	 * @param fields - fields of the table
+	 * @return true if each of the fields is the key or an included field, so
+	 * that the index alone holds their values
+	 */
+	public boolean covers(Collection<Integer> fields) {
+		for (int f : fields) {
+			boolean found = f == keyField;
+			for (int i = 0; i < included.length && !found; i++)
+				found = included[i] == f;
+			if (!found)
+				return false;
+		}
+		return true;
+	}
+
+	/** @return the B+ tree file holding the entries of the index */
+	public BTreeFile getFile() {
+		return file;
+	}
+
+	/**
+	 * @param t - a tuple of the table, with its RecordId set
+	 * @return the index entry for t
+	 */
+	Tuple entry(Tuple t) {
+		Tuple e = new Tuple(file.getTupleDesc());
+		e.setField(0, t.getField(keyField));
+		e.setField(1, new IntField(t.getRecordId().getPageId().getPageNumber()));
+		e.setField(2, new IntField(t.getRecordId().getTupleNumber()));
+		for (int i = 0; i < included.length; i++)
+			e.setField(3 + i, t.getField(included[i]));
+		return e;
+	}
+
+	/**
+	 * Find the stored entry for a tuple of the table.
+	 * @param tid - the transaction
+	 * @param t - a tuple of the table, with its RecordId set
+	 * @return the entry, with its RecordId in the index file set, or null if
+	 * the index has no entry for t
+	 */
+	Tuple findEntry(TransactionId tid, Tuple t) throws DbException, TransactionAbortedException {
+		int page = t.getRecordId().getPageId().getPageNumber();
+		int slot = t.getRecordId().getTupleNumber();
+		DbFileIterator it = file.indexIterator(tid, new IndexPredicate(Op.EQUALS, t.getField(keyField)));
+		it.open();
+		try {
+			while (it.hasNext()) {
+				Tuple e = it.next();
+				if (((IntField) e.getField(1)).getValue() == page && ((IntField) e.getField(2)).getValue() == slot)
+					return e;
+			}
+			return null;
+		} finally {
+			it.close();
+		}
+	}
+
+	/**
+	 * @param tid - the transaction
+	 * @param ipred - the predicate on the indexed field
+	 * @return an iterator over the tuples of the table whose indexed field
+	 * satisfies ipred, in key order
+	 */
+	public DbFileIterator lookup(TransactionId tid, IndexPredicate ipred) {
+		return new LookupIterator(tid, ipred);
+	}
+
+	/**
+	 * Iterates over the entries matching a predicate and fetches the tuple
+	 * each of them points to.
+	 */
+	private class LookupIterator extends AbstractDbFileIterator {
+		private final TransactionId tid;
+		private final DbFileIterator entries;
+
+		LookupIterator(TransactionId tid, IndexPredicate ipred) {
+			this.tid = tid;
+			this.entries = file.indexIterator(tid, ipred);
+		}
+
+		public void open() throws DbException, TransactionAbortedException {
+			entries.open();
+		}
+
+		protected Tuple readNext() throws DbException, TransactionAbortedException {
+			while (entries.hasNext()) {
+				Tuple e = entries.next();
+				HeapPageId pid = new HeapPageId(tableid, ((IntField) e.getField(1)).getValue());
+				HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+				Tuple t = p.getTuple(((IntField) e.getField(2)).getValue());
+				if (t != null)
+					return t;
+			}
+			return null;
+		}
+
+		public void rewind() throws DbException, TransactionAbortedException {
+			close();
+			open();
+		}
+
+		public void close() {
+			super.close();
+			entries.close();
+		}
+	}
+
+	/**
+	 * Turns the tuples of a scan of the table into index entries.
+	 */
+	private class EntryScan extends Operator {
+		private static final long serialVersionUID = 1L;
+
+		private OpIterator child;
+
+		EntryScan(OpIterator child) {
+			this.child = child;
+		}
+
+		public void open() throws DbException, TransactionAbortedException {
+			child.open();
+			super.open();
+		}
+
+		public void close() {
+			super.close();
+			child.close();
+		}
+
+		public void rewind() throws DbException, TransactionAbortedException {
+			child.rewind();
+		}
+
+		protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+			return child.hasNext() ? entry(child.next()) : null;
+		}
+
+		public OpIterator[] getChildren() {
+			return new OpIterator[] { child };
+		}
+
+		public void setChildren(OpIterator[] children) {
+			child = children[0];
+		}
+
+		public TupleDesc getTupleDesc() {
+			return file.getTupleDesc();
+		}
+	}
+}
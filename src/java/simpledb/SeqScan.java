@@ -124,6 +124,19 @@ public class SeqScan implements OpIterator {
         return tupleIterator.next();
     }
 
+    /**
+     * Fills the batch straight from the file iterator, or from the pages of
+     * a heap file into the columns of the batch.
+     */
+    public boolean nextBatch(TupleBatch batch) throws TransactionAbortedException, DbException {
+        if (tupleIterator instanceof HeapFile.TupleListIterator)
+            return ((HeapFile.TupleListIterator) tupleIterator).readBatch(batch);
+        batch.clear();
+        while (!batch.isFull() && tupleIterator.hasNext())
+            batch.add(tupleIterator.next());
+        return batch.size() > 0;
+    }
+
     public void close() {
         // some code goes here
         tupleIterator.close();
@@ -1,6 +1,9 @@
 package simpledb;
 
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -66,6 +69,22 @@ public class TableStats {
      */
     static final int NUM_HIST_BINS = 100;
 
+    private final int ioCostPerPage;
+    private final TupleDesc td;
+    private int numPages;
+    private int numTuples = 0;
+    /** IntHistogram or StringHistogram for each field, null for empty tables */
+    private final Object[] histograms;
+
+    /** the B+ tree or hash keyField of the table, or -1 for other files */
+    private int keyField = -1;
+    /** the B+ tree the table is stored in, if it is keyed on a single field */
+    private BTreeFile tree = null;
+    /** levels of the B+ tree the table is stored in, 1 for the directory of a hash file */
+    private int height;
+    /** page counts and levels of the secondary indexes, by indexed field */
+    private final HashMap<Integer, int[]> indexShapes = new HashMap<Integer, int[]>();
+
     /**
      * Create a new TableStats object, that keeps track of statistics on each
      * column of a table
@@ -77,14 +96,107 @@ public class TableStats {
      *            sequential-scan IO and disk seeks.
      */
     public TableStats(int tableid, int ioCostPerPage) {
-        // For this function, you'll have to get the
-        // DbFile for the table in question,
-        // then scan through its tuples and calculate
-        // the values that you need.
-        // You should try to do this reasonably efficiently, but you don't
-        // necessarily have to (for example) do everything
-        // in a single scan of the table.
-        // some code goes here
+        this.ioCostPerPage = ioCostPerPage;
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        this.td = file.getTupleDesc();
+        this.histograms = new Object[td.numFields()];
+        TransactionId tid = new TransactionId();
+        try {
+            // the first scan finds the range of each integer field, the
+            // second fills in the histograms
+            int[] mins = new int[td.numFields()];
+            int[] maxs = new int[td.numFields()];
+            Arrays.fill(mins, Integer.MAX_VALUE);
+            Arrays.fill(maxs, Integer.MIN_VALUE);
+            HashSet<PageId> pages = new HashSet<PageId>();
+            DbFileIterator it = file.iterator(tid);
+            it.open();
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                numTuples++;
+                pages.add(t.getRecordId().getPageId());
+                for (int i = 0; i < td.numFields(); i++) {
+                    if (td.getFieldType(i) == Type.INT_TYPE) {
+                        int v = ((IntField) t.getField(i)).getValue();
+                        mins[i] = Math.min(mins[i], v);
+                        maxs[i] = Math.max(maxs[i], v);
+                    }
+                }
+            }
+            if (numTuples > 0) {
+                for (int i = 0; i < td.numFields(); i++) {
+                    if (td.getFieldType(i) == Type.INT_TYPE)
+                        histograms[i] = new IntHistogram(NUM_HIST_BINS, mins[i], maxs[i]);
+                    else
+                        histograms[i] = new StringHistogram(NUM_HIST_BINS);
+                }
+                it.rewind();
+                while (it.hasNext()) {
+                    Tuple t = it.next();
+                    for (int i = 0; i < td.numFields(); i++) {
+                        if (histograms[i] instanceof IntHistogram)
+                            ((IntHistogram) histograms[i]).addValue(((IntField) t.getField(i)).getValue());
+                        else
+                            ((StringHistogram) histograms[i]).addValue(((StringField) t.getField(i)).getValue());
+                    }
+                }
+            }
+            it.close();
+
+            if (file instanceof HeapFile) {
+                numPages = ((HeapFile) file).numPages();
+            } else if (file instanceof BTreeFile) {
+                numPages = ((BTreeFile) file).numPages();
+                keyField = ((BTreeFile) file).keyField();
+                height = height(tid, (BTreeFile) file);
+                if (((BTreeFile) file).keyFields().length == 1)
+                    tree = (BTreeFile) file;
+            } else if (file instanceof HashFile) {
+                numPages = ((HashFile) file).numPages();
+                keyField = ((HashFile) file).keyField();
+                height = 1;
+            } else if (file instanceof LSMFile) {
+                numPages = ((LSMFile) file).numPages();
+                keyField = ((LSMFile) file).keyField();
+                // a lookup reads a page of each run that may hold the key
+                height = Math.max(1, ((LSMFile) file).numRuns());
+            } else {
+                numPages = pages.size();
+            }
+            for (SecondaryIndex index : Database.getCatalog().getIndexes(tableid)) {
+                BTreeFile bf = index.getFile();
+                indexShapes.put(index.getKeyField(), new int[] { bf.numPages(), height(tid, bf) });
+            }
+            Database.getBufferPool().transactionComplete(tid);
+        } catch (DbException e) {
+            throw new RuntimeException(e);
+        } catch (TransactionAbortedException e) {
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the number of pages read by a descent from the root pointer
+     *         of a B+ tree to its leftmost leaf
+     */
+    private static int height(TransactionId tid, BTreeFile f)
+            throws DbException, TransactionAbortedException {
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+                BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
+        BTreePageId pid = rootPtr.getRootId();
+        int levels = 1;
+        while (pid != null) {
+            levels++;
+            if (pid.pgcateg() != BTreePageId.INTERNAL)
+                break;
+            BTreeInternalPage p = (BTreeInternalPage) Database.getBufferPool().getPage(tid, pid,
+                    Permissions.READ_ONLY);
+            Iterator<BTreeEntry> it = p.iterator();
+            pid = it.hasNext() ? it.next().getLeftChild() : null;
+        }
+        return levels;
     }
 
     /**
@@ -100,8 +212,55 @@ public class TableStats {
      * @return The estimated cost of scanning the table.
      */
     public double estimateScanCost() {
-        // some code goes here
-        return 0;
+        return (double) numPages * ioCostPerPage;
+    }
+
+    /**
+     * Estimates the cost of reading the tuples that satisfy a predicate on
+     * the specified field through an index on it: either the B+ tree or hash
+     * file the table is stored in, when the field is its key, or a secondary
+     * index on the field.
+     * <p>
+     * A lookup descends the tree and then reads the fraction of its leaves
+     * that hold the matching keys; a hash lookup reads the directory and
+     * the bucket of the key.  A hash file only answers equality predicates.  The tuples found through a secondary
+     * index are scattered over the table, so each of them costs another
+     * page read.
+     *
+     * @param field
+     *            The field the predicate is on
+     * @param selectivityFactor
+     *            The selectivity of the predicate
+     * @return The estimated cost of the lookup, or infinity when there is
+     *         no index on the field
+     */
+    public double estimateIndexScanCost(int field, double selectivityFactor) {
+        if (field == keyField)
+            return (height + Math.ceil(selectivityFactor * numPages)) * ioCostPerPage;
+        int[] shape = indexShapes.get(field);
+        if (shape == null)
+            return Double.POSITIVE_INFINITY;
+        return (shape[1] + Math.ceil(selectivityFactor * shape[0])
+                + selectivityFactor * numTuples) * ioCostPerPage;
+    }
+
+    /**
+     * Estimates the cost of reading the entries of the secondary index on the
+     * specified field that satisfy a predicate on it, without looking up the
+     * tuples they point to, as an {@link IndexOnlyScan} does.
+     *
+     * @param field
+     *            The indexed field
+     * @param selectivityFactor
+     *            The selectivity of the predicate, 1.0 to read every entry
+     * @return The estimated cost of the scan, or infinity when there is no
+     *         secondary index on the field
+     */
+    public double estimateIndexOnlyScanCost(int field, double selectivityFactor) {
+        int[] shape = indexShapes.get(field);
+        if (shape == null)
+            return Double.POSITIVE_INFINITY;
+        return (shape[1] + Math.ceil(selectivityFactor * shape[0])) * ioCostPerPage;
     }
 
     /**
@@ -114,8 +273,7 @@ public class TableStats {
      *         selectivityFactor
      */
     public int estimateTableCardinality(double selectivityFactor) {
-        // some code goes here
-        return 0;
+        return (int) Math.round(numTuples * selectivityFactor);
     }
 
     /**
@@ -129,13 +287,21 @@ public class TableStats {
      * expected selectivity. You may estimate this value from the histograms.
      * */
     public double avgSelectivity(int field, Predicate.Op op) {
-        // some code goes here
+        if (histograms[field] instanceof IntHistogram)
+            return ((IntHistogram) histograms[field]).avgSelectivity();
+        if (histograms[field] instanceof StringHistogram)
+            return ((StringHistogram) histograms[field]).avgSelectivity();
         return 1.0;
     }
 
     /**
      * Estimate the selectivity of predicate <tt>field op constant</tt> on the
      * table.
+     * <p>
+     * A predicate on the key of a table stored in a B+ tree is estimated from
+     * the current structure of the tree, which needs no histogram and is
+     * never out of date: see {@link #estimateKeySelectivity}.  Other
+     * predicates are estimated from the histograms.
      * 
      * @param field
      *            The field over which the predicate ranges
@@ -147,16 +313,94 @@ public class TableStats {
      *         predicate
      */
     public double estimateSelectivity(int field, Predicate.Op op, Field constant) {
-        // some code goes here
+        return estimateSelectivity(null, field, op, constant);
+    }
+
+    /**
+     * Estimate the selectivity of predicate <tt>field op constant</tt> on the
+     * table, as {@link #estimateSelectivity(int, Predicate.Op, Field)} does, in
+     * the transaction the query is planned in.  The B+ tree the table is stored
+     * in is read under that transaction, so that the estimate counts its own
+     * changes, and does not wait for the locks it holds on the tree.
+     * 
+     * @param tid
+     *            The transaction the query is planned in, or null to read the
+     *            tree under a transaction of its own
+     * @param field
+     *            The field over which the predicate ranges
+     * @param op
+     *            The logical operation in the predicate
+     * @param constant
+     *            The value against which the field is compared
+     * @return The estimated selectivity (fraction of tuples that satisfy) the
+     *         predicate
+     */
+    public double estimateSelectivity(TransactionId tid, int field, Predicate.Op op, Field constant) {
+        if (tree != null && field == keyField && op != Predicate.Op.LIKE) {
+            double selectivity = estimateKeySelectivity(tid, op, constant);
+            if (selectivity >= 0)
+                return selectivity;
+        }
+        if (histograms[field] instanceof IntHistogram)
+            return ((IntHistogram) histograms[field]).estimateSelectivity(op,
+                    ((IntField) constant).getValue());
+        if (histograms[field] instanceof StringHistogram)
+            return ((StringHistogram) histograms[field]).estimateSelectivity(op,
+                    ((StringField) constant).getValue());
         return 1.0;
     }
 
+    /**
+     * Estimate the selectivity of predicate <tt>key op constant</tt> on the key
+     * of the B+ tree the table is stored in, from the positions of the constant
+     * among the keys of the tree, estimated by
+     * {@link BTreeFile#estimateKeyPosition} with a descent from the root.  The
+     * descent holds no lock on the pages once it returns, so the transaction is
+     * not completed: nothing is written, and no page leaves the buffer pool.
+     * 
+     * @param tid
+     *            The transaction to read the tree in, or null for a new one
+     * @param op
+     *            The logical operation in the predicate, other than LIKE
+     * @param constant
+     *            The value against which the key is compared
+     * @return The estimated selectivity, or -1 if the tree could not be read,
+     *         because another transaction has locked its pages
+     */
+    private double estimateKeySelectivity(TransactionId tid, Predicate.Op op, Field constant) {
+        if (tid == null)
+            tid = new TransactionId();
+        try {
+            switch (op) {
+            case LESS_THAN:
+                return tree.estimateKeyPosition(tid, constant, false);
+            case LESS_THAN_OR_EQ:
+                return tree.estimateKeyPosition(tid, constant, true);
+            case GREATER_THAN:
+                return 1.0 - tree.estimateKeyPosition(tid, constant, true);
+            case GREATER_THAN_OR_EQ:
+                return 1.0 - tree.estimateKeyPosition(tid, constant, false);
+            case EQUALS:
+                return Math.max(0.0, tree.estimateKeyPosition(tid, constant, true)
+                        - tree.estimateKeyPosition(tid, constant, false));
+            case NOT_EQUALS:
+                return 1.0 - Math.max(0.0, tree.estimateKeyPosition(tid, constant, true)
+                        - tree.estimateKeyPosition(tid, constant, false));
+            default:
+                return -1;
+            }
+        } catch (DbException e) {
+            return -1;
+        } catch (TransactionAbortedException e) {
+            return -1;
+        }
+    }
+
     /**
      * return the total number of tuples in this table
      * */
     public int totalTuples() {
-        // some code goes here
-        return 0;
+        return numTuples;
     }
 
 }
@@ -0,0 +1,23 @@
+package simpledb;
+
+import java.io.IOException;
+
+/**
+ * TransactionListener is implemented by the files that keep state of their
+ * own for the transactions that change them, outside of the pages in the
+ * buffer pool.  A file adds itself with
+ * {@link BufferPool#addTransactionListener} when a transaction first changes
+ * that state, and is told when the transaction commits or aborts.
+ */
+public interface TransactionListener {
+
+    /**
+     * Called by {@link BufferPool#transactionComplete(TransactionId, boolean)}
+     * after the pages of the transaction are flushed or discarded, and before
+     * its locks are released.
+     *
+     * @param tid    the transaction that completed
+     * @param commit whether the transaction committed or aborted
+     */
+    void transactionComplete(TransactionId tid, boolean commit) throws IOException;
+}
@@ -0,0 +1,212 @@
+package simpledb;
+
+import java.util.Arrays;
+
+/**
+ * TupleBatch holds the tuples an operator hands to its parent at once, so
+ * that a batch of tuples costs one call to {@link OpIterator#nextBatch}
+ * rather than calls to hasNext() and next() for every tuple.  A batch is
+ * made once by the parent and refilled by every call.
+ * <p>
+ * The selection vector of a batch lists the positions of its live tuples,
+ * so that a filter drops tuples from a batch without moving the rest:
+ * <pre>
+ * int[] sel = batch.selection();
+ * int n = 0;
+ * for (int i = 0; i &lt; batch.size(); i++)
+ *     if (p.filter(batch.get(i)))
+ *         sel[n++] = sel[i];
+ * batch.select(n);
+ * </pre>
+ * <p>
+ * The fields of the tuples are also held by column, in the primitive arrays
+ * of a {@link ColumnVector} for each field, read by position:
+ * <pre>
+ * int[] v = batch.column(f).ints();
+ * for (int i = 0; i &lt; batch.size(); i++)
+ *     if (v[sel[i]] &gt; 0)
+ *         sel[n++] = sel[i];
+ * </pre>
+ * A scan fills the columns straight from the bytes of its pages, and a tuple
+ * of such a batch is made only when get() asks for it.  The columns of
+ * tuples added with add() are filled the first time column() asks for them.
+ */
+public class TupleBatch {
+
+    /**
+     * The number of tuples a batch holds unless it is made with another
+     * capacity.
+     */
+    public static final int DEFAULT_SIZE = 1024;
+
+    private final TupleDesc td;
+    private final Tuple[] tuples;
+    // the columns, made when first asked for, and the record ids of the
+    // tuples added to them by addRow()
+    private ColumnVector[] columns = null;
+    private final PageId[] pages;
+    private final int[] slots;
+    // the positions of the live tuples
+    private final int[] sel;
+    // the number of tuples added, and the number of them that are live
+    private int filled = 0;
+    private int size = 0;
+
+    /**
+     * Create an empty batch of tuples of a schema.
+     *
+     * @param td the schema of the tuples
+     * @param capacity the greatest number of tuples the batch holds
+     */
+    public TupleBatch(TupleDesc td, int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("a batch must hold at least one tuple");
+        this.td = td;
+        tuples = new Tuple[capacity];
+        sel = new int[capacity];
+        pages = new PageId[capacity];
+        slots = new int[capacity];
+    }
+
+    public TupleBatch(TupleDesc td) {
+        this(td, DEFAULT_SIZE);
+    }
+
+    /**
+     * @return the schema of the tuples
+     */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * @return the greatest number of tuples the batch holds
+     */
+    public int capacity() {
+        return tuples.length;
+    }
+
+    /**
+     * @return the number of live tuples
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return true if no more tuples can be added
+     */
+    public boolean isFull() {
+        return filled == tuples.length;
+    }
+
+    /**
+     * @param i the index of a live tuple, less than size()
+     * @return the ith live tuple
+     */
+    public Tuple get(int i) {
+        int p = sel[i];
+        if (tuples[p] == null) {
+            // a tuple added to the columns, made once
+            Tuple t = new Tuple(td);
+            for (int f = 0; f < columns.length; f++)
+                t.setField(f, columns[f].getField(p));
+            if (pages[p] != null)
+                t.setRecordId(new RecordId(pages[p], slots[p]));
+            tuples[p] = t;
+        }
+        return tuples[p];
+    }
+
+    /**
+     * Add a live tuple after the tuples of the batch.
+     *
+     * @throws IllegalStateException if the batch is full
+     */
+    public void add(Tuple t) {
+        if (isFull())
+            throw new IllegalStateException("batch is full");
+        // a tuple added after a filter is live, whatever the filter dropped
+        sel[size++] = filled;
+        tuples[filled++] = t;
+    }
+
+    /**
+     * @param f the index of a field
+     * @return the column of the field, holding the values of all the tuples
+     *         added to the batch, live or not
+     */
+    public ColumnVector column(int f) {
+        if (columns == null) {
+            columns = new ColumnVector[td.numFields()];
+            for (int i = 0; i < columns.length; i++)
+                columns[i] = new ColumnVector(td.getFieldType(i), tuples.length);
+        }
+        ColumnVector c = columns[f];
+        // fill in the tuples added since the column was last asked for
+        for (int p = c.size(); p < filled; p++)
+            c.addField(tuples[p].getField(f));
+        return c;
+    }
+
+    /**
+     * @return the columns of the batch, holding all the tuples added to it,
+     *         to which a value of every field is added before each call to
+     *         addRow()
+     */
+    ColumnVector[] columns() {
+        for (int f = 0; f < td.numFields(); f++)
+            column(f);
+        return columns;
+    }
+
+    /**
+     * Add a live tuple whose fields have been added to the columns, after
+     * the tuples of the batch.  All the columns must hold the values of the
+     * tuples added before it.
+     *
+     * @param pid the page of the tuple, or null if it has no record id
+     * @param slot the slot of the tuple on its page
+     * @throws IllegalStateException if the batch is full
+     */
+    void addRow(PageId pid, int slot) {
+        if (isFull())
+            throw new IllegalStateException("batch is full");
+        pages[filled] = pid;
+        slots[filled] = slot;
+        sel[size++] = filled++;
+    }
+
+    /**
+     * @return the selection vector of the batch, whose first size() entries
+     *         are the positions of the live tuples in the order get() returns
+     *         them.  It may be rewritten in place, followed by select().
+     */
+    public int[] selection() {
+        return sel;
+    }
+
+    /**
+     * Keep the live tuples at the first n positions of the selection vector.
+     */
+    public void select(int n) {
+        if (n < 0 || n > size)
+            throw new IllegalArgumentException("cannot select " + n + " of " + size + " tuples");
+        size = n;
+    }
+
+    /**
+     * Empty the batch, so that it can be refilled.
+     */
+    public void clear() {
+        // drop the tuples, which the batch does not own
+        Arrays.fill(tuples, 0, filled, null);
+        Arrays.fill(pages, 0, filled, null);
+        if (columns != null) {
+            for (ColumnVector c : columns)
+                c.clear();
+        }
+        filled = 0;
+        size = 0;
+    }
+}
@@ -0,0 +1,148 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.Predicate.Op;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class AccessPathTest extends SimpleDbTestBase {
+	private TransactionId tid;
+	private ArrayList<ArrayList<Integer>> tuples;
+	private BTreeFile table;
+	private ArrayList<ArrayList<Integer>> heapTuples;
+	private HeapFile heap;
+	private HashMap<String, TableStats> stats;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		tid = new TransactionId();
+		tuples = new ArrayList<ArrayList<Integer>>();
+		File f = BTreeUtility.createRandomBTreeFile(3, 30000, 5000, null, tuples, 0).getFile();
+		// reopen the file with named fields, so that the plan can refer to them
+		table = new BTreeFile(f, 0, Utility.getTupleDesc(3, "c"));
+		Database.getCatalog().addTable(table, "t");
+
+		heapTuples = new ArrayList<ArrayList<Integer>>();
+		heap = SystemTestUtil.createRandomHeapFile(3, 30000, 5000, null, heapTuples, "c");
+		Database.getCatalog().addTable(heap, "h");
+		File idx = File.createTempFile("index", ".idx");
+		idx.deleteOnExit();
+		SecondaryIndex.create(tid, heap.getId(), 1, idx);
+
+		stats = new HashMap<String, TableStats>();
+		stats.put("t", new TableStats(table.getId(), TableStats.IOCOSTPERPAGE));
+		stats.put("h", new TableStats(heap.getId(), TableStats.IOCOSTPERPAGE));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	private static ArrayList<ArrayList<Integer>> matching(ArrayList<ArrayList<Integer>> tuples,
+			int field, Op op, int value) {
+		ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+		for (ArrayList<Integer> t : tuples) {
+			if (new IntField(t.get(field)).compare(op, new IntField(value)))
+				result.add(t);
+		}
+		return result;
+	}
+
+	/**
+	 * @return the leaf of the physical plan of a scan of a table with one
+	 * filter, after checking that the plan returns the expected tuples
+	 */
+	private OpIterator plan(DbFile file, String field, Op op, int value, ArrayList<ArrayList<Integer>> expected)
+			throws Exception {
+		LogicalPlan lp = new LogicalPlan();
+		String alias = Database.getCatalog().getTableName(file.getId());
+		lp.addScan(file.getId(), alias);
+		lp.addFilter(alias + "." + field, op, Integer.toString(value));
+		lp.addProjectField("null.*", null);
+		OpIterator plan = lp.physicalPlan(tid, stats, false);
+		SystemTestUtil.matchTuples(plan, expected);
+		OpIterator leaf = plan;
+		while (leaf instanceof Operator)
+			leaf = ((Operator) leaf).getChildren()[0];
+		return leaf;
+	}
+
+	/**
+	 * Unit test for TableStats.estimateIndexScanCost()
+	 */
+	@Test
+	public void indexScanCost() {
+		TableStats s = stats.get("t");
+		assertTrue(s.estimateIndexScanCost(0, 0.001) < s.estimateScanCost());
+		assertTrue(s.estimateIndexScanCost(0, 0.5) < s.estimateScanCost());
+		assertEquals(Double.POSITIVE_INFINITY, s.estimateIndexScanCost(1, 0.001), 0);
+
+		TableStats h = stats.get("h");
+		assertTrue(h.estimateIndexScanCost(1, 0.001) < h.estimateScanCost());
+		// the tuples found through the secondary index are scattered
+		assertTrue(h.estimateIndexScanCost(1, 0.1) > h.estimateScanCost());
+		assertTrue(h.estimateIndexScanCost(1, 0.1) > s.estimateIndexScanCost(0, 0.1));
+		assertEquals(Double.POSITIVE_INFINITY, h.estimateIndexScanCost(0, 0.001), 0);
+	}
+
+	/**
+	 * Unit test for the choice of a lookup in the B+ tree the table is
+	 * stored in
+	 */
+	@Test
+	public void keyLookup() throws Exception {
+		int key = tuples.get(0).get(0);
+		OpIterator leaf = plan(table, "c0", Op.EQUALS, key, matching(tuples, 0, Op.EQUALS, key));
+		assertTrue(leaf instanceof BTreeScan);
+		assertEquals(Op.EQUALS, ((BTreeScan) leaf).getIndexPredicate().getOp());
+
+		// ranges are read from the tree too
+		leaf = plan(table, "c0", Op.LESS_THAN, 100, matching(tuples, 0, Op.LESS_THAN, 100));
+		assertNotNull(((BTreeScan) leaf).getIndexPredicate());
+	}
+
+	/**
+	 * Unit test for the choice of a lookup in a secondary index
+	 */
+	@Test
+	public void secondaryLookup() throws Exception {
+		int key = heapTuples.get(0).get(1);
+		OpIterator leaf = plan(heap, "c1", Op.EQUALS, key, matching(heapTuples, 1, Op.EQUALS, key));
+		assertTrue(leaf instanceof SecondaryIndexScan);
+	}
+
+	/**
+	 * Unit test for the choice of a full scan when most tuples match
+	 */
+	@Test
+	public void fullScan() throws Exception {
+		OpIterator leaf = plan(heap, "c1", Op.GREATER_THAN, 1000,
+				matching(heapTuples, 1, Op.GREATER_THAN, 1000));
+		assertTrue(leaf instanceof SeqScan);
+
+		// a B+ tree file is scanned in key order when no index applies
+		leaf = plan(table, "c2", Op.EQUALS, 42, matching(tuples, 2, Op.EQUALS, 42));
+		assertTrue(leaf instanceof BTreeScan);
+		assertNull(((BTreeScan) leaf).getIndexPredicate());
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(AccessPathTest.class);
+	}
+}
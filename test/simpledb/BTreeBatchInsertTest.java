@@ -0,0 +1,183 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.Predicate.Op;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeBatchInsertTest extends SimpleDbTestBase {
+	private TransactionId tid;
+	private ArrayList<ArrayList<Integer>> tuples;
+	private Random rand;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		// small pages, so that the tree has several levels of internal pages
+		BufferPool.setPageSize(256);
+		Database.resetBufferPool(5000);
+		tid = new TransactionId();
+		tuples = new ArrayList<ArrayList<Integer>>();
+		rand = new Random(6830);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+		BufferPool.resetPageSize();
+	}
+
+	/**
+	 * @return n tuples of two fields in random order, whose keys are drawn
+	 * from [0, keys), which are also added to the expected tuples
+	 */
+	private ArrayList<Tuple> randomTuples(int n, int keys) {
+		ArrayList<Tuple> batch = new ArrayList<Tuple>();
+		for (int i = 0; i < n; i++) {
+			Tuple t = new Tuple(Utility.getTupleDesc(2));
+			t.setField(0, new IntField(rand.nextInt(keys)));
+			t.setField(1, new IntField(i));
+			batch.add(t);
+			tuples.add(SystemTestUtil.tupleToList(t));
+		}
+		return batch;
+	}
+
+	/**
+	 * Check that the tree is well formed and holds exactly the expected
+	 * tuples, in key order.  Splits of internal pages do not keep them half
+	 * full, so occupancy is not checked.
+	 */
+	private void check(BTreeFile bf) throws Exception {
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+		SystemTestUtil.matchSortedTuples(bf.iterator(tid), 0, true, tuples);
+	}
+
+	/**
+	 * Unit test for batches inserted into a tree that already holds tuples,
+	 * with many duplicate keys
+	 */
+	@Test
+	public void insertIntoTree() throws Exception {
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 3000, 2000, null, tuples, 0);
+		Database.resetBufferPool(5000);
+		Database.getBufferPool().insertTuples(tid, bf.getId(), randomTuples(5000, 2000));
+		check(bf);
+
+		// a batch of a single key, and a batch at either end of the tree
+		Database.getBufferPool().insertTuples(tid, bf.getId(), randomTuples(500, 1));
+		Database.getBufferPool().insertTuples(tid, bf.getId(), new ArrayList<Tuple>());
+		ArrayList<Tuple> ends = randomTuples(100, 1);
+		for (int i = 0; i < ends.size(); i++) {
+			int key = i % 2 == 0 ? -1 - i : 5000 + i;
+			ends.get(i).setField(0, new IntField(key));
+			tuples.get(tuples.size() - ends.size() + i).set(0, key);
+		}
+		Database.getBufferPool().insertTuples(tid, bf.getId(), ends);
+		check(bf);
+
+		// the tuples survive commit
+		Database.getBufferPool().transactionComplete(tid);
+		Database.resetBufferPool(5000);
+		tid = new TransactionId();
+		check(bf);
+	}
+
+	/**
+	 * Unit test for the Insert operator, which inserts the tuples of its
+	 * child into a tree in batches
+	 */
+	@Test
+	public void insertOperator() throws Exception {
+		File f = File.createTempFile("batch", ".dat");
+		f.deleteOnExit();
+		BTreeFile bf = BTreeUtility.createEmptyBTreeFile(f.getPath(), 2, 0);
+		ArrayList<Tuple> source = randomTuples(Insert.BATCH_SIZE * 3 + 17, 100000);
+		Insert insert = new Insert(tid, new TupleIterator(Utility.getTupleDesc(2), source), bf.getId());
+		insert.open();
+		assertEquals(new IntField(source.size()), insert.next().getField(0));
+		assertFalse(insert.hasNext());
+		insert.close();
+		check(bf);
+
+		// lookups find the tuples
+		for (int i = 0; i < 100; i++) {
+			int key = tuples.get(rand.nextInt(tuples.size())).get(0);
+			int expected = 0;
+			for (ArrayList<Integer> t : tuples) {
+				if (t.get(0) == key)
+					expected++;
+			}
+			assertEquals(expected, SystemTestUtil.readTuples(bf.indexIterator(tid,
+					new IndexPredicate(Op.EQUALS, new IntField(key)))).size());
+		}
+	}
+
+	/**
+	 * Unit test for a batch of string keys longer than the separators of
+	 * internal pages, which are inserted one at a time
+	 */
+	@Test
+	public void longStringKeys() throws Exception {
+		BufferPool.setPageSize(1024);
+		Database.resetBufferPool(5000);
+		TupleDesc td = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE });
+		File f = File.createTempFile("strings", ".dat");
+		f.deleteOnExit();
+		BTreeFile bf = new BTreeFile(f, 0, td);
+		Database.getCatalog().addTable(bf, SystemTestUtil.getUUID());
+
+		ArrayList<String> keys = new ArrayList<String>();
+		ArrayList<Tuple> batch = new ArrayList<Tuple>();
+		for (int i = 0; i < 3000; i++) {
+			String k = String.format(i % 3 == 0 ? "k%03d" : "key-%03d-shared-suffix-of-the-key-%05d",
+					rand.nextInt(40), rand.nextInt(200));
+			keys.add(k);
+			Tuple t = new Tuple(td);
+			t.setField(0, new StringField(k, Type.STRING_LEN));
+			t.setField(1, new IntField(i));
+			batch.add(t);
+		}
+		Database.getBufferPool().insertTuples(tid, bf.getId(), batch);
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+
+		Collections.sort(keys);
+		ArrayList<String> scanned = new ArrayList<String>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		while (it.hasNext())
+			scanned.add(((StringField) it.next().getField(0)).getValue());
+		it.close();
+		assertEquals(keys, scanned);
+		for (int i = 0; i < keys.size(); i += 97) {
+			String k = keys.get(i);
+			int found = 0;
+			it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new StringField(k, Type.STRING_LEN)));
+			it.open();
+			while (it.hasNext()) {
+				assertEquals(k, ((StringField) it.next().getField(0)).getValue());
+				found++;
+			}
+			it.close();
+			assertEquals(Collections.frequency(keys, k), found);
+		}
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeBatchInsertTest.class);
+	}
+}
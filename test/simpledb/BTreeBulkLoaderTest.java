@@ -0,0 +1,208 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.Predicate.Op;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeBulkLoaderTest extends SimpleDbTestBase {
+	private TransactionId tid;
+	private ArrayList<ArrayList<Integer>> tuples;
+	private HeapFile table;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		tid = new TransactionId();
+		tuples = new ArrayList<ArrayList<Integer>>();
+		// many duplicate keys, and enough tuples for several sorted runs
+		table = SystemTestUtil.createRandomHeapFile(2, 31000, 1000, null, tuples);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	private BTreeFile build(double fillFactor, int memoryPages) throws Exception {
+		File f = File.createTempFile("index", ".dat");
+		f.deleteOnExit();
+		return new BTreeBulkLoader(fillFactor, memoryPages).createIndex(tid, table.getId(), 1, f,
+				SystemTestUtil.getUUID());
+	}
+
+	/**
+	 * Unit test for BTreeBulkLoader.createIndex(): with two pages of memory
+	 * the sort needs several merge passes
+	 */
+	@Test
+	public void createIndex() throws Exception {
+		BTreeFile bf = build(1.0, 2);
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+
+		// the index holds the tuples of the table, sorted on the key
+		ArrayList<ArrayList<Integer>> loaded = new ArrayList<ArrayList<Integer>>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		Field prev = null;
+		while (it.hasNext()) {
+			Tuple t = it.next();
+			if (prev != null)
+				assertTrue(t.getField(1).compare(Op.GREATER_THAN_OR_EQ, prev));
+			prev = t.getField(1);
+			loaded.add(BTreeUtility.tupleToList(t));
+		}
+		it.close();
+		Comparator<ArrayList<Integer>> order = new Comparator<ArrayList<Integer>>() {
+			public int compare(ArrayList<Integer> a, ArrayList<Integer> b) {
+				int c = a.get(1).compareTo(b.get(1));
+				return c != 0 ? c : a.get(0).compareTo(b.get(0));
+			}
+		};
+		Collections.sort(loaded, order);
+		ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>(tuples);
+		Collections.sort(expected, order);
+		assertEquals(expected, loaded);
+
+		// and can be found through the index
+		int key = tuples.get(0).get(1);
+		int matching = 0;
+		for (ArrayList<Integer> t : tuples) {
+			if (t.get(1) == key)
+				matching++;
+		}
+		it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key)));
+		it.open();
+		int found = 0;
+		while (it.hasNext()) {
+			assertEquals(key, ((IntField) it.next().getField(1)).getValue());
+			found++;
+		}
+		it.close();
+		assertEquals(matching, found);
+	}
+
+	/**
+	 * Unit test for the fill factor: half full pages need twice the leaves
+	 */
+	@Test
+	public void fillFactor() throws Exception {
+		BTreeFile full = build(1.0, BTreeBulkLoader.DEFAULT_MEMORY_PAGES);
+		BTreeFile half = build(0.5, BTreeBulkLoader.DEFAULT_MEMORY_PAGES);
+		int maxTuples = BTreeUtility.getNumTuplesPerPage(2);
+		assertEquals((31000 + maxTuples - 1) / maxTuples + 1, full.numPages()); // leaves and the root
+		assertTrue(half.numPages() >= 2 * full.numPages() - 2);
+		BTreeChecker.checkRep(half, tid, new HashMap<PageId, Page>(), true);
+	}
+
+	/**
+	 * Unit test for BTreeBulkLoader.createIndex() with small pages, which
+	 * gives a tree with several levels of internal pages
+	 */
+	@Test
+	public void multiLevel() throws Exception {
+		BufferPool.setPageSize(512);
+		try {
+			tuples.clear();
+			table = SystemTestUtil.createRandomHeapFile(2, 31000, 1000, null, tuples);
+			BTreeFile bf = build(0.7, 4);
+			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+					BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+			BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getPage(tid,
+					rootPtr.getRootId(), Permissions.READ_ONLY);
+			assertEquals(BTreePageId.INTERNAL, root.iterator().next().getLeftChild().pgcateg());
+			BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+
+			int count = 0;
+			DbFileIterator it = bf.iterator(tid);
+			it.open();
+			while (it.hasNext()) {
+				it.next();
+				count++;
+			}
+			it.close();
+			assertEquals(31000, count);
+		} finally {
+			Database.getBufferPool().transactionComplete(tid);
+			BufferPool.resetPageSize();
+		}
+	}
+
+	/**
+	 * Unit test for inserting into a bulk loaded tree
+	 */
+	@Test
+	public void insertAfterLoad() throws Exception {
+		BTreeFile bf = build(0.9, BTreeBulkLoader.DEFAULT_MEMORY_PAGES);
+		int pages = bf.numPages();
+		for (int i = 0; i < 1000; i++) {
+			Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(500, 2));
+		}
+		assertTrue(bf.numPages() > pages);
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+	}
+
+	/**
+	 * Unit test for BTreeBulkLoader.load() with no tuples
+	 */
+	@Test
+	public void loadEmpty() throws Exception {
+		File f = File.createTempFile("index", ".dat");
+		f.deleteOnExit();
+		BTreeFile bf = new BTreeFile(f, 0, Utility.getTupleDesc(2));
+		Database.getCatalog().addTable(bf, SystemTestUtil.getUUID());
+		new BTreeBulkLoader().load(new TupleIterator(Utility.getTupleDesc(2), new ArrayList<Tuple>()), bf);
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		assertFalse(it.hasNext());
+		it.close();
+	}
+
+	/**
+	 * Unit test for BTreeBulkLoader.createIndex() on a failed load, which
+	 * leaves no index in the catalog
+	 */
+	@Test
+	public void failedLoad() throws Exception {
+		// another transaction holds the first page of the table, so the scan
+		// is aborted
+		TransactionId writer = new TransactionId();
+		Database.getBufferPool().getPage(writer, new HeapPageId(table.getId(), 0), Permissions.READ_WRITE);
+		File f = File.createTempFile("index", ".dat");
+		f.deleteOnExit();
+		String name = SystemTestUtil.getUUID();
+		try {
+			new BTreeBulkLoader().createIndex(tid, table.getId(), 1, f, name);
+			fail("loaded an index from a table locked by another transaction");
+		} catch (TransactionAbortedException e) {
+			// expected
+		} finally {
+			Database.getBufferPool().transactionComplete(writer);
+		}
+		try {
+			Database.getCatalog().getTableId(name);
+			fail("a failed index is in the catalog");
+		} catch (NoSuchElementException e) {
+			// expected
+		}
+		assertEquals(0, f.length());
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeBulkLoaderTest.class);
+	}
+}
@@ -0,0 +1,173 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.Predicate.Op;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeCompositeKeyTest extends SimpleDbTestBase {
+	private TransactionId tid;
+	private BTreeFile bf;
+	private ArrayList<ArrayList<Integer>> tuples;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		tid = new TransactionId();
+		File f = File.createTempFile("composite", ".dat");
+		f.deleteOnExit();
+		// keyed on c1, then c0
+		bf = new BTreeFile(f, new int[] { 1, 0 }, Utility.getTupleDesc(3, "c"));
+		Database.getCatalog().addTable(bf, "t");
+		tuples = new ArrayList<ArrayList<Integer>>();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+		BufferPool.resetPageSize();
+	}
+
+	private void insert(int n) throws Exception {
+		Random rand = new Random(6830);
+		for (int i = 0; i < n; i++)
+			SystemTestUtil.insertTuple(tid, bf, tuples, rand.nextInt(100), rand.nextInt(30), i);
+	}
+
+	private static CompositeField key(int... values) {
+		Field[] fields = new Field[values.length];
+		for (int i = 0; i < values.length; i++)
+			fields[i] = new IntField(values[i]);
+		return new CompositeField(fields);
+	}
+
+	/**
+	 * @return the tuples whose (c1, c0) lies between (c1, lo) and (c1, hi)
+	 */
+	private ArrayList<ArrayList<Integer>> between(int c1, int lo, int hi) {
+		ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+		for (ArrayList<Integer> t : tuples) {
+			if (t.get(1) == c1 && t.get(0) >= lo && t.get(0) <= hi)
+				result.add(t);
+		}
+		return result;
+	}
+
+	/**
+	 * Unit test for the lexicographic order of CompositeField
+	 */
+	@Test
+	public void compare() {
+		assertTrue(key(1, 9).compare(Op.LESS_THAN, key(2, 0)));
+		assertTrue(key(2, 0).compare(Op.LESS_THAN, key(2, 1)));
+		assertTrue(key(2, 1).compare(Op.EQUALS, key(2, 1)));
+		assertEquals(key(2, 1), key(2, 1));
+		assertEquals(key(2, 1).hashCode(), key(2, 1).hashCode());
+		assertFalse(key(2, 1).equals(key(2)));
+
+		// shorter fields compare as prefixes
+		assertTrue(key(2, 1).compare(Op.EQUALS, key(2)));
+		assertTrue(key(2, 1).compare(Op.EQUALS, new IntField(2)));
+		assertTrue(key(2, 1).compare(Op.GREATER_THAN, new IntField(1)));
+		assertTrue(key(2, 1).compare(Op.LESS_THAN_OR_EQ, key(2)));
+		assertFalse(key(2, 1).compare(Op.GREATER_THAN, key(2)));
+	}
+
+	/**
+	 * Unit test for inserting, finding and deleting composite keys in a tree
+	 * with several levels of internal pages
+	 */
+	@Test
+	public void insertFindDelete() throws Exception {
+		BufferPool.setPageSize(1024);
+		Database.resetBufferPool(5000);
+		setUp();
+		insert(8000);
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+
+		// the root is an internal page over internal pages
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+				BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+		BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getPage(tid,
+				rootPtr.getRootId(), Permissions.READ_ONLY);
+		assertEquals(BTreePageId.INTERNAL, root.iterator().next().getLeftChild().pgcateg());
+		assertTrue(root.iterator().next().getKey() instanceof CompositeField);
+
+		// a scan returns the tuples ordered by c1, then c0
+		ArrayList<ArrayList<Integer>> scanned = SystemTestUtil.tuplesToLists(SystemTestUtil.readTuples(bf.iterator(tid)));
+		assertEquals(tuples.size(), scanned.size());
+		for (int i = 1; i < scanned.size(); i++) {
+			ArrayList<Integer> a = scanned.get(i - 1), b = scanned.get(i);
+			assertTrue(a.get(1) < b.get(1) || (a.get(1).equals(b.get(1)) && a.get(0) <= b.get(0)));
+		}
+
+		for (int c1 = 0; c1 < 30; c1 += 7) {
+			// a lookup on a prefix of the key
+			SystemTestUtil.matchTuples(bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(c1))),
+					between(c1, 0, 100));
+			// a lookup on the whole key
+			SystemTestUtil.matchTuples(bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, key(c1, 42))),
+					between(c1, 42, 42));
+			// a range that bounds both components
+			SystemTestUtil.matchTuples(bf.indexIterator(tid, new IndexPredicate(Op.GREATER_THAN_OR_EQ, key(c1, 10)),
+					new IndexPredicate(Op.LESS_THAN_OR_EQ, key(c1, 20))), between(c1, 10, 20));
+		}
+
+		// deleting most of the tuples merges pages and moves separators around
+		ArrayList<Tuple> all = SystemTestUtil.readTuples(bf.iterator(tid));
+		for (int i = 0; i < all.size(); i++) {
+			if (i % 4 != 0) {
+				Database.getBufferPool().deleteTuple(tid, all.get(i));
+				tuples.remove(SystemTestUtil.tupleToList(all.get(i)));
+			}
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		SystemTestUtil.matchTuples(bf.iterator(tid), tuples);
+		SystemTestUtil.matchTuples(bf.indexIterator(tid, new IndexPredicate(Op.GREATER_THAN_OR_EQ, key(3, 50)),
+				new IndexPredicate(Op.LESS_THAN_OR_EQ, key(3))), between(3, 50, 100));
+	}
+
+	/**
+	 * Unit test for the lookup of equality filters on the leading key fields
+	 * by LogicalPlan.physicalPlan()
+	 */
+	@Test
+	public void plan() throws Exception {
+		insert(5000);
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+		HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+		stats.put("t", new TableStats(bf.getId(), TableStats.IOCOSTPERPAGE));
+
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(bf.getId(), "t");
+		lp.addFilter("t.c0", Op.EQUALS, "42");
+		lp.addFilter("t.c1", Op.EQUALS, "7");
+		lp.addProjectField("null.*", null);
+		OpIterator plan = lp.physicalPlan(tid, stats, false);
+
+		// both filters are answered by a single descent
+		OpIterator scan = ((Operator) plan).getChildren()[0];
+		assertTrue(scan instanceof BTreeScan);
+		assertEquals(key(7, 42), ((BTreeScan) scan).getIndexPredicate().getField());
+		SystemTestUtil.matchTuples(plan, between(7, 42, 42));
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeCompositeKeyTest.class);
+	}
+}
@@ -0,0 +1,197 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeDeferredRebalanceTest extends SimpleDbTestBase {
+	private TransactionId tid;
+	private ArrayList<ArrayList<Integer>> tuples;
+	private BTreeFile bf;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		Database.reset();
+		// small pages, so that the tree has several levels of internal pages
+		BufferPool.setPageSize(256);
+		tuples = new ArrayList<ArrayList<Integer>>();
+		bf = BTreeUtility.createRandomBTreeFile(2, 10000, 1000000, null, tuples, 0);
+		Database.resetBufferPool(5000);
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+		BufferPool.resetPageSize();
+	}
+
+	/**
+	 * Delete three of every five tuples, in key order, so that the leaf
+	 * pages are left less than half full but not below a quarter full
+	 *
+	 * @return the number of deletions that dirtied more than the leaf page
+	 */
+	private int deleteMost() throws Exception {
+		ArrayList<Tuple> all = new ArrayList<Tuple>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		while (it.hasNext())
+			all.add(it.next());
+		it.close();
+		int rebalanced = 0;
+		for (int i = 0; i < all.size(); i++) {
+			if (i % 5 >= 3)
+				continue;
+			ArrayList<Page> dirty = bf.deleteTuple(tid, all.get(i));
+			for (Page p : dirty)
+				p.markDirty(true, tid);
+			if (dirty.size() > 1)
+				rebalanced++;
+			tuples.remove(SystemTestUtil.tupleToList(all.get(i)));
+		}
+		return rebalanced;
+	}
+
+	/**
+	 * Check that the tree is well formed and holds exactly the expected tuples
+	 */
+	private void check(boolean checkOccupancy) throws Exception {
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), checkOccupancy);
+		SystemTestUtil.matchTuples(new BTreeScan(tid, bf.getId(), null), tuples);
+	}
+
+	/**
+	 * Unit test for deferring the rebalancing of pages above the minimum
+	 * occupancy, and for BufferPool.rebalance()
+	 */
+	@Test
+	public void deferredRebalance() throws Exception {
+		bf.setMinOccupancy(0.25);
+		assertTrue(deleteMost() <= 1);
+		assertTrue(bf.numDeferredPages() > 0);
+		check(false);
+
+		Database.getBufferPool().rebalance(tid, bf.getId());
+		assertEquals(0, bf.numDeferredPages());
+		check(true);
+
+		// the rebalanced tree is written out and read back
+		Database.getBufferPool().transactionComplete(tid);
+		Database.resetBufferPool(5000);
+		tid = new TransactionId();
+		check(true);
+	}
+
+	/**
+	 * Unit test for deferring the pages of a rebalance again when its
+	 * transaction aborts
+	 */
+	@Test
+	public void abortedRebalance() throws Exception {
+		bf.setMinOccupancy(0.25);
+		deleteMost();
+		Database.getBufferPool().transactionComplete(tid);
+		int deferred = bf.numDeferredPages();
+		assertTrue(deferred > 0);
+
+		tid = new TransactionId();
+		Database.getBufferPool().rebalance(tid, bf.getId());
+		assertEquals(0, bf.numDeferredPages());
+		Database.getBufferPool().transactionComplete(tid, false);
+		assertEquals(deferred, bf.numDeferredPages());
+
+		// the next rebalance finds the pages again
+		tid = new TransactionId();
+		check(false);
+		Database.getBufferPool().rebalance(tid, bf.getId());
+		assertEquals(0, bf.numDeferredPages());
+		check(true);
+	}
+
+	/**
+	 * Unit test for rebalancing every page that drops below half full right
+	 * away, by default
+	 */
+	@Test
+	public void eagerRebalance() throws Exception {
+		assertEquals(0.5, bf.getMinOccupancy(), 0);
+		assertTrue(deleteMost() > 1);
+		assertEquals(0, bf.numDeferredPages());
+		check(true);
+	}
+
+	/**
+	 * Unit test for rebalancing deferred pages with BTreeMaintenance
+	 */
+	@Test
+	public void backgroundRebalance() throws Exception {
+		bf.setMinOccupancy(0.25);
+		deleteMost();
+		Database.getBufferPool().transactionComplete(tid);
+
+		BTreeMaintenance maintenance = new BTreeMaintenance(bf, 10);
+		long deadline = System.currentTimeMillis() + 60000;
+		while ((maintenance.getRounds() == 0 || bf.numDeferredPages() > 0)
+				&& System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		maintenance.shutdown();
+		assertEquals(0, bf.numDeferredPages());
+
+		tid = new TransactionId();
+		check(true);
+	}
+
+	/**
+	 * Unit test for logging the transactions of BTreeMaintenance, so that
+	 * their rebalancing survives a crash
+	 */
+	@Test
+	public void recoverRebalance() throws Exception {
+		bf.setMinOccupancy(0.25);
+		Transaction t = new Transaction();
+		t.start();
+		tid = t.getId();
+		deleteMost();
+		t.commit();
+
+		BTreeMaintenance maintenance = new BTreeMaintenance(bf, Long.MAX_VALUE);
+		assertTrue(maintenance.runOnce());
+		maintenance.shutdown();
+		assertEquals(0, bf.numDeferredPages());
+
+		// crash, and recover the committed deletions and rebalancing
+		Database.reset();
+		Database.resetBufferPool(5000);
+		bf = BTreeUtility.openBTreeFile(2, bf.getFile(), 0);
+		Database.getLogFile().recover();
+		tid = new TransactionId();
+		check(true);
+	}
+
+	/**
+	 * Unit test for rejecting minimum occupancies above one half
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidMinOccupancy() {
+		bf.setMinOccupancy(0.75);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeDeferredRebalanceTest.class);
+	}
+}
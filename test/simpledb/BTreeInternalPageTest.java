@@ -313,6 +313,28 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeInternalPage.findChild()
+	 */
+	@Test public void findChild() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		Iterator<BTreeEntry> it = page.iterator();
+		BTreeEntry first = it.next();
+		assertEquals(first.getLeftChild(), page.findChild(null));
+
+		BTreeEntry e = first;
+		while (true) {
+			int key = ((IntField) e.getKey()).getValue();
+			assertEquals(e.getLeftChild(), page.findChild(new IntField(key)));
+			assertEquals(e.getLeftChild(), page.findChild(new IntField(key - 1)));
+			if (!it.hasNext()) {
+				assertEquals(e.getRightChild(), page.findChild(new IntField(key + 1)));
+				break;
+			}
+			e = it.next();
+		}
+	}
+
 	/**
 	 * JUnit suite target
 	 */
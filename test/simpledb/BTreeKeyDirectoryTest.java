@@ -0,0 +1,53 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class BTreeKeyDirectoryTest extends SimpleDbTestBase {
+
+	private static long norm(String s) {
+		return BTreeKeyDirectory.normalize(new StringField(s, Type.STRING_LEN));
+	}
+
+	private static long norm(int i) {
+		return BTreeKeyDirectory.normalize(new IntField(i));
+	}
+
+	/**
+	 * Unit test for BTreeKeyDirectory.normalize(): int keys keep their order
+	 * exactly.
+	 */
+	@Test public void normalizeInt() {
+		assertTrue(norm(Integer.MIN_VALUE) < norm(-1));
+		assertTrue(norm(-1) < norm(0));
+		assertTrue(norm(0) < norm(Integer.MAX_VALUE));
+		assertEquals(norm(17), norm(17));
+	}
+
+	/**
+	 * Unit test for BTreeKeyDirectory.normalize(): string keys are ordered
+	 * by their first four characters, and keys that share them map to the
+	 * same value.
+	 */
+	@Test public void normalizeString() {
+		assertTrue(norm("") < norm("a"));
+		assertTrue(norm("ab") < norm("abc"));
+		assertTrue(norm("abc") < norm("abd"));
+		assertTrue(norm("b") > norm("abcd"));
+		assertTrue(norm("z") < norm("\u00e9"));
+		assertTrue(norm("a") < norm("\uffff"));
+		assertEquals(norm("abcde"), norm("abcdf"));
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeKeyDirectoryTest.class);
+	}
+}
@@ -336,6 +336,43 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeLeafPage.insertTuple() and deleteTuple(): records
+	 * stay sorted when inserts and deletes are interleaved at random, and
+	 * every record id names the slot its tuple is in.
+	 */
+	@Test public void insertDeleteRandom() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, BTreeLeafPage.createEmptyPageData(), 0);
+		Random rand = new Random(6830);
+		ArrayList<Tuple> stored = new ArrayList<Tuple>();
+		for (int i = 0; i < 2000; i++) {
+			if (page.getNumEmptySlots() > 0 && (stored.isEmpty() || rand.nextInt(3) > 0)) {
+				Tuple t = BTreeUtility.getBTreeTuple(rand.nextInt(100), 2);
+				page.insertTuple(t);
+				stored.add(t);
+			} else {
+				page.deleteTuple(stored.remove(rand.nextInt(stored.size())));
+			}
+		}
+
+		assertEquals(page.getMaxTuples() - stored.size(), page.getNumEmptySlots());
+		int used = 0;
+		for (int i = 0; i < page.getMaxTuples(); i++)
+			if (page.isSlotUsed(i))
+				used++;
+		assertEquals(stored.size(), used);
+
+		Collections.sort(stored, new TupleComparator(0));
+		Iterator<Tuple> it = page.iterator();
+		for (Tuple expected : stored) {
+			Tuple tup = it.next();
+			assertEquals(expected.getField(0), tup.getField(0));
+			assertTrue(page.isSlotUsed(tup.getRecordId().getTupleNumber()));
+			assertTrue(tup == page.getTuple(tup.getRecordId().getTupleNumber()));
+		}
+		assertFalse(it.hasNext());
+	}
+
 	/**
 	 * JUnit suite target
 	 */
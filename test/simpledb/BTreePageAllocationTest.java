@@ -0,0 +1,133 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreePageAllocationTest extends SimpleDbTestBase {
+
+	/**
+	 * Mark the pages a BTreeFile method dirtied as dirty in the buffer pool,
+	 * as BufferPool.insertTuple() does, so that they are written on commit
+	 */
+	private static void markDirty(TransactionId tid, HashMap<PageId, Page> dirtypages) {
+		for (Page p : dirtypages.values())
+			p.markDirty(true, tid);
+	}
+
+	/**
+	 * Unit test for growing the file by extents
+	 */
+	@Test
+	public void extents() throws Exception {
+		File f = File.createTempFile("extents", ".dat");
+		f.deleteOnExit();
+		BTreeFile bf = BTreeUtility.createEmptyBTreeFile(f.getAbsolutePath(), 2, 0);
+		TransactionId tid = new TransactionId();
+		for (int i = 0; i < 2000; i++)
+			Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(i, 2));
+		Database.getBufferPool().transactionComplete(tid);
+
+		// the file holds the pages in use and the rest of the last extent
+		int pages = bf.numPages();
+		assertTrue(pages > 1);
+		long filePages = (f.length() - BTreeRootPtrPage.getPageSize()) / BufferPool.getPageSize();
+		assertTrue(filePages >= pages && filePages < pages + BTreeFile.EXTENT_PAGES);
+
+		// the unused pages are not counted when the file is opened again
+		BTreeFile reopened = BTreeUtility.openBTreeFile(2, f, 0);
+		assertEquals(pages, reopened.numPages());
+		tid = new TransactionId();
+		assertEquals(pages + 1, reopened.getEmptyPageNo(tid, new HashMap<PageId, Page>()));
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * Unit test for reusing the pages freed by committed transactions only
+	 */
+	@Test
+	public void reuseFreedPages() throws Exception {
+		File f = File.createTempFile("reuse", ".dat");
+		f.deleteOnExit();
+		BTreeFile bf = BTreeUtility.createEmptyBTreeFile(f.getAbsolutePath(), 2, 0, 3);
+
+		// a page freed by a transaction that aborts stays in use
+		TransactionId tid = new TransactionId();
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		bf.setEmptyPage(tid, dirtypages, 2);
+		markDirty(tid, dirtypages);
+		Database.getBufferPool().transactionComplete(tid, false);
+		tid = new TransactionId();
+		int pageNo = bf.getEmptyPageNo(tid, new HashMap<PageId, Page>());
+		assertTrue(pageNo > 3);
+		Database.getBufferPool().transactionComplete(tid, false);
+
+		// a page freed by a transaction that commits is reused, once
+		tid = new TransactionId();
+		dirtypages = new HashMap<PageId, Page>();
+		bf.setEmptyPage(tid, dirtypages, 3);
+		markDirty(tid, dirtypages);
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+		dirtypages = new HashMap<PageId, Page>();
+		assertEquals(3, bf.getEmptyPageNo(tid, dirtypages));
+		assertTrue(bf.getEmptyPageNo(tid, dirtypages) > 3);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * Unit test for reusing the pages allocated by transactions that abort,
+	 * in the same run and when the file is opened again
+	 */
+	@Test
+	public void reuseAbortedPages() throws Exception {
+		File f = File.createTempFile("aborted", ".dat");
+		f.deleteOnExit();
+		BTreeFile bf = BTreeUtility.createEmptyBTreeFile(f.getAbsolutePath(), 2, 0);
+		TransactionId tid = new TransactionId();
+		int n = BTreeUtility.getNumTuplesPerPage(2);
+		for (int i = 0; i < n; i++)
+			Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(i, 2));
+		Database.getBufferPool().transactionComplete(tid);
+		int pages = bf.numPages();
+
+		// the split of the full root leaf allocates a leaf and a root page
+		tid = new TransactionId();
+		Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(n, 2));
+		assertEquals(pages + 2, bf.numPages());
+		Database.getBufferPool().transactionComplete(tid, false);
+
+		tid = new TransactionId();
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		assertEquals(pages + 1, bf.getEmptyPageNo(tid, dirtypages));
+		assertEquals(pages + 2, bf.getEmptyPageNo(tid, dirtypages));
+		assertEquals(pages + 3, bf.getEmptyPageNo(tid, dirtypages));
+		Database.getBufferPool().transactionComplete(tid, false);
+
+		// a page written after them, as by a later transaction that commits
+		bf.writePage(new BTreeLeafPage(new BTreePageId(bf.getId(), pages + 3, BTreePageId.LEAF),
+				BTreeLeafPage.createEmptyPageData(), 0));
+
+		BTreeFile reopened = BTreeUtility.openBTreeFile(2, f, 0);
+		assertEquals(pages + 3, reopened.numPages());
+		tid = new TransactionId();
+		dirtypages = new HashMap<PageId, Page>();
+		assertEquals(pages + 1, reopened.getEmptyPageNo(tid, dirtypages));
+		assertEquals(pages + 2, reopened.getEmptyPageNo(tid, dirtypages));
+		assertEquals(pages + 4, reopened.getEmptyPageNo(tid, dirtypages));
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreePageAllocationTest.class);
+	}
+}
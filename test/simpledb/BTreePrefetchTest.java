@@ -0,0 +1,179 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.Predicate.Op;
+
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreePrefetchTest extends SimpleDbTestBase {
+	private TransactionId tid;
+	private BTreeFile bf;
+	private ArrayList<ArrayList<Integer>> tuples;
+	private ArrayList<BTreePageId> leaves;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		// small pages, so that the tree has many leaves
+		BufferPool.setPageSize(1024);
+		tuples = new ArrayList<ArrayList<Integer>>();
+		bf = BTreeUtility.createRandomBTreeFile(2, 20000, 100000, null, tuples, 0);
+		Database.resetBufferPool(5000);
+
+		// the leaf pages, in key order
+		tid = new TransactionId();
+		leaves = new ArrayList<BTreePageId>();
+		BTreeLeafPage leaf = bf.findLeafPage(tid, Permissions.READ_ONLY, null);
+		while (true) {
+			leaves.add(leaf.getId());
+			if (leaf.getRightSiblingId() == null)
+				break;
+			leaf = (BTreeLeafPage) Database.getBufferPool().getPage(tid, leaf.getRightSiblingId(), Permissions.READ_ONLY);
+		}
+		Database.getBufferPool().transactionComplete(tid);
+		Database.resetBufferPool(5000);
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+		BufferPool.resetPageSize();
+	}
+
+	/**
+	 * Wait until a page is read into the buffer pool
+	 */
+	private void awaitCached(PageId pid) throws Exception {
+		for (int i = 0; i < 500 && !Database.getBufferPool().isCached(pid); i++)
+			Thread.sleep(10);
+		assertTrue(Database.getBufferPool().isCached(pid));
+	}
+
+	/**
+	 * Unit test for the leaf pages a full scan reads ahead of the one it is on
+	 */
+	@Test
+	public void scanReadsAhead() throws Exception {
+		assertTrue(leaves.size() > BTreeFile.PREFETCH_LEAVES * 4);
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		it.next();
+		for (int i = 1; i <= BTreeFile.PREFETCH_LEAVES; i++)
+			awaitCached(leaves.get(i));
+		Thread.sleep(100);
+		assertFalse(Database.getBufferPool().isCached(leaves.get(BTreeFile.PREFETCH_LEAVES + 1)));
+		// pages read ahead hold no locks
+		assertFalse(Database.getBufferPool().holdsLock(tid, leaves.get(1)));
+
+		// the rest of the scan is unchanged, and keeps reading ahead
+		int n = 1;
+		int last = Integer.MIN_VALUE;
+		while (it.hasNext()) {
+			int key = ((IntField) it.next().getField(0)).getValue();
+			assertTrue(key >= last);
+			last = key;
+			n++;
+		}
+		it.close();
+		assertEquals(tuples.size(), n);
+		for (BTreePageId pid : leaves)
+			assertTrue(Database.getBufferPool().isCached(pid));
+	}
+
+	/**
+	 * Unit test for searches, which read no further ahead than the pages
+	 * they need
+	 */
+	@Test
+	public void searchStopsAtBound() throws Exception {
+		BTreeLeafPage first = (BTreeLeafPage) Database.getBufferPool().getPage(tid, leaves.get(0), Permissions.READ_ONLY);
+		Field firstKey = first.iterator().next().getField(0);
+		Field lastKey = first.reverseIterator().next().getField(0);
+		Database.getBufferPool().transactionComplete(tid);
+		Database.resetBufferPool(5000);
+		tid = new TransactionId();
+
+		// a search that ends within the first page reads nothing ahead
+		assertFalse(SystemTestUtil.readTuples(bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, firstKey))).isEmpty());
+		Thread.sleep(100);
+		assertFalse(Database.getBufferPool().isCached(leaves.get(1)));
+
+		// one that may go on past it reads the page after it, but no further
+		DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, lastKey));
+		it.open();
+		assertTrue(it.hasNext());
+		awaitCached(leaves.get(1));
+		Thread.sleep(100);
+		it.close();
+		assertFalse(Database.getBufferPool().isCached(leaves.get(2)));
+
+		// a range reads ahead up to its upper bound
+		int low = tuples.size() / 4, high = tuples.size() / 2;
+		ArrayList<Integer> keys = new ArrayList<Integer>();
+		for (ArrayList<Integer> t : tuples)
+			keys.add(t.get(0));
+		Collections.sort(keys);
+		ArrayList<Tuple> range = SystemTestUtil.readTuples(bf.indexIterator(tid,
+				new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(keys.get(low))),
+				new IndexPredicate(Op.LESS_THAN, new IntField(keys.get(high)))));
+		int expected = 0;
+		for (Integer k : keys) {
+			if (k >= keys.get(low) && k < keys.get(high))
+				expected++;
+		}
+		assertEquals(expected, range.size());
+		Thread.sleep(100);
+		assertFalse(Database.getBufferPool().isCached(leaves.get(leaves.size() - 1)));
+	}
+
+	/**
+	 * Unit test for pages read ahead of scans, which never replace a newer
+	 * copy of a page
+	 */
+	@Test
+	public void newerCopies() throws Exception {
+		assertEquals(tuples.size(), SystemTestUtil.readTuples(bf.iterator(tid)).size());
+		Database.getBufferPool().transactionComplete(tid);
+
+		// delete the first tuple of every leaf page, and commit
+		tid = new TransactionId();
+		for (BTreePageId pid : leaves) {
+			BTreeLeafPage leaf = (BTreeLeafPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+			Tuple t = leaf.iterator().next();
+			Database.getBufferPool().deleteTuple(tid, t);
+			tuples.remove(SystemTestUtil.tupleToList(t));
+		}
+
+		// a dirty page is returned as it is
+		BTreeLeafPage dirty = (BTreeLeafPage) Database.getBufferPool().getPage(tid, leaves.get(1), Permissions.READ_ONLY);
+		assertNotNull(dirty.isDirty());
+		assertSame(dirty, Database.getBufferPool().prefetchPage(leaves.get(1)));
+		Database.getBufferPool().transactionComplete(tid);
+
+		// scans see the deletions, with the pages read ahead or not
+		tid = new TransactionId();
+		assertEquals(tuples.size(), SystemTestUtil.readTuples(bf.iterator(tid)).size());
+		Database.getBufferPool().transactionComplete(tid);
+		Database.resetBufferPool(5000);
+		tid = new TransactionId();
+		SystemTestUtil.matchTuples(bf.iterator(tid), tuples);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreePrefetchTest.class);
+	}
+}
@@ -0,0 +1,132 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.Predicate.Op;
+
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeRangeDeleteTest extends SimpleDbTestBase {
+	private TransactionId tid;
+	private ArrayList<ArrayList<Integer>> tuples;
+	private BTreeFile bf;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		// small pages, so that the tree has three levels of internal pages
+		BufferPool.setPageSize(256);
+		tuples = new ArrayList<ArrayList<Integer>>();
+		bf = BTreeUtility.createRandomBTreeFile(2, 40000, 5000, null, tuples, 0);
+		Database.resetBufferPool(5000);
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+		BufferPool.resetPageSize();
+	}
+
+	private static IndexPredicate pred(Op op, int value) {
+		return new IndexPredicate(op, new IntField(value));
+	}
+
+	/**
+	 * Delete a range from the tree and from the expected tuples
+	 */
+	private void delete(IndexPredicate lower, IndexPredicate upper) throws Exception {
+		Database.getBufferPool().deleteRange(tid, bf.getId(), lower, upper);
+		Iterator<ArrayList<Integer>> it = tuples.iterator();
+		while (it.hasNext()) {
+			IntField key = new IntField(it.next().get(0));
+			if ((lower == null || key.compare(lower.getOp(), lower.getField()))
+					&& (upper == null || key.compare(upper.getOp(), upper.getField())))
+				it.remove();
+		}
+	}
+
+	/**
+	 * Check that the tree is well formed and holds exactly the expected
+	 * tuples, in key order
+	 */
+	private void check() throws Exception {
+		check(true);
+	}
+
+	/**
+	 * As check(), optionally without checking that the pages are at least
+	 * half full, which splits of internal pages do not guarantee
+	 */
+	private void check(boolean checkOccupancy) throws Exception {
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), checkOccupancy);
+		SystemTestUtil.matchSortedTuples(bf.iterator(tid), 0, true, tuples);
+	}
+
+	/**
+	 * Unit test for BTreeFile.deleteRange() on ranges spanning many pages,
+	 * a few tuples, and either end of the tree
+	 */
+	@Test
+	public void deleteRanges() throws Exception {
+		delete(pred(Op.GREATER_THAN_OR_EQ, 1000), pred(Op.LESS_THAN, 4000));
+		check();
+		// the pages of the range are freed and reused, rather than growing the file
+		int pages = bf.numPages();
+		for (int i = 0; i < 5000; i++)
+			SystemTestUtil.insertTuple(tid, bf, tuples, 1000 + i % 3000, i);
+		assertEquals(pages, bf.numPages());
+		check(false);
+
+		delete(pred(Op.GREATER_THAN, 4200), pred(Op.LESS_THAN_OR_EQ, 4203));
+		check(false);
+		delete(null, pred(Op.LESS_THAN, 300));
+		check(false);
+		delete(pred(Op.GREATER_THAN_OR_EQ, 4800), null);
+		check(false);
+		int key = tuples.get(tuples.size() / 2).get(0);
+		delete(pred(Op.EQUALS, key), null);
+		check(false);
+
+		// the changes survive being written out and read back
+		Database.getBufferPool().transactionComplete(tid);
+		Database.resetBufferPool(5000);
+		tid = new TransactionId();
+		check(false);
+		delete(pred(Op.GREATER_THAN, 500), pred(Op.LESS_THAN, 4700));
+		check(false);
+	}
+
+	/**
+	 * Unit test for BTreeFile.deleteRange() on the whole tree
+	 */
+	@Test
+	public void deleteAll() throws Exception {
+		delete(null, null);
+		check();
+		BTreeRootPtrPage rootPtr = bf.getRootPtrPage(tid, new HashMap<PageId, Page>());
+		assertEquals(BTreePageId.LEAF, rootPtr.getRootId().pgcateg());
+
+		int pages = bf.numPages();
+		for (int i = 0; i < 2000; i++)
+			SystemTestUtil.insertTuple(tid, bf, tuples, i, -i);
+		assertEquals(pages, bf.numPages());
+		check();
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeRangeDeleteTest.class);
+	}
+}
@@ -0,0 +1,162 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.Predicate.Op;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeReverseScanTest extends SimpleDbTestBase {
+	private TransactionId tid;
+	private ArrayList<ArrayList<Integer>> tuples;
+	private BTreeFile bf;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		tid = new TransactionId();
+		tuples = new ArrayList<ArrayList<Integer>>();
+		// many duplicate keys, spread over several levels of internal pages
+		File f = BTreeUtility.createRandomBTreeFile(3, 20000, 2000, null, tuples, 0).getFile();
+		// reopen the file with named fields, so that plans can refer to them
+		bf = new BTreeFile(f, 0, Utility.getTupleDesc(3, "c"));
+		Database.getCatalog().addTable(bf, "t");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * @return the tuples whose key satisfies both predicates
+	 */
+	private ArrayList<ArrayList<Integer>> expected(IndexPredicate a, IndexPredicate b) {
+		ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+		for (ArrayList<Integer> t : tuples) {
+			IntField key = new IntField(t.get(0));
+			if ((a == null || key.compare(a.getOp(), a.getField()))
+					&& (b == null || key.compare(b.getOp(), b.getField())))
+				result.add(t);
+		}
+		return result;
+	}
+
+	private static IndexPredicate pred(Op op, int value) {
+		return new IndexPredicate(op, new IntField(value));
+	}
+
+	/**
+	 * Unit test for BTreeFile.reverseIterator() and reverseIndexIterator()
+	 */
+	@Test
+	public void reverseIterators() throws Exception {
+		SystemTestUtil.matchSortedTuples(bf.reverseIterator(tid), 0, false, tuples);
+
+		int key = tuples.get(0).get(0);
+		for (Op op : new Op[] { Op.EQUALS, Op.LESS_THAN, Op.LESS_THAN_OR_EQ,
+				Op.GREATER_THAN, Op.GREATER_THAN_OR_EQ }) {
+			SystemTestUtil.matchSortedTuples(bf.reverseIndexIterator(tid, pred(op, key)), 0, false,
+					expected(pred(op, key), null));
+		}
+
+		// ranges, including ones whose bounds lie outside the keys of the tree
+		int[][] ranges = { { 100, 900 }, { key, key }, { -5, 40 }, { 1990, 5000 }, { 700, 600 } };
+		for (int[] r : ranges) {
+			IndexPredicate lower = pred(Op.GREATER_THAN_OR_EQ, r[0]);
+			IndexPredicate upper = pred(Op.LESS_THAN, r[1]);
+			SystemTestUtil.matchSortedTuples(bf.reverseIndexIterator(tid, lower, upper), 0, false, expected(lower, upper));
+			lower = pred(Op.GREATER_THAN, r[0]);
+			upper = pred(Op.LESS_THAN_OR_EQ, r[1]);
+			SystemTestUtil.matchSortedTuples(bf.reverseIndexIterator(tid, lower, upper), 0, false, expected(lower, upper));
+		}
+	}
+
+	/**
+	 * @return the physical plan of a query on the table, after checking that
+	 * it returns the expected tuples
+	 */
+	private OpIterator plan(LogicalPlan lp, ArrayList<ArrayList<Integer>> expected) throws Exception {
+		HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+		stats.put("t", new TableStats(bf.getId(), TableStats.IOCOSTPERPAGE));
+		lp.addProjectField("null.*", null);
+		OpIterator plan = lp.physicalPlan(tid, stats, false);
+		SystemTestUtil.matchTuples(plan, expected);
+		return plan;
+	}
+
+	/**
+	 * @return the scan at the bottom of a plan
+	 */
+	private static OpIterator leaf(OpIterator plan) {
+		while (plan instanceof Operator)
+			plan = ((Operator) plan).getChildren()[0];
+		return plan;
+	}
+
+	/**
+	 * Unit test for the reverse scans chosen by LogicalPlan.physicalPlan()
+	 */
+	@Test
+	public void plans() throws Exception {
+		// ORDER BY the key descending reads the tree backwards, without a sort
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(bf.getId(), "t");
+		lp.addOrderBy("t.c0", false);
+		OpIterator plan = plan(lp, tuples);
+		assertFalse(((Operator) plan).getChildren()[0] instanceof OrderBy);
+		assertTrue(((BTreeScan) leaf(plan)).isReverse());
+		plan.open();
+		int last = Integer.MAX_VALUE;
+		while (plan.hasNext()) {
+			int key = ((IntField) plan.next().getField(0)).getValue();
+			assertTrue(key <= last);
+			last = key;
+		}
+		plan.close();
+
+		// an upper-bounded range is read backwards from its bound
+		lp = new LogicalPlan();
+		lp.addScan(bf.getId(), "t");
+		lp.addFilter("t.c0", Op.LESS_THAN, "50");
+		BTreeScan scan = (BTreeScan) leaf(plan(lp, expected(pred(Op.LESS_THAN, 50), null)));
+		assertTrue(scan.isReverse());
+		assertEquals(Op.LESS_THAN, scan.getIndexPredicate().getOp());
+
+		// a range with both bounds is read between them, in ORDER BY order
+		lp = new LogicalPlan();
+		lp.addScan(bf.getId(), "t");
+		lp.addFilter("t.c0", Op.LESS_THAN_OR_EQ, "120");
+		lp.addFilter("t.c0", Op.GREATER_THAN, "80");
+		lp.addOrderBy("t.c0", false);
+		plan = plan(lp, expected(pred(Op.LESS_THAN_OR_EQ, 120), pred(Op.GREATER_THAN, 80)));
+		scan = (BTreeScan) ((Operator) plan).getChildren()[0];
+		assertTrue(scan.isReverse());
+		assertEquals(Op.GREATER_THAN, scan.getIndexPredicate().getOp());
+		assertEquals(Op.LESS_THAN_OR_EQ, scan.getUpperPredicate().getOp());
+
+		// ORDER BY another field still sorts
+		lp = new LogicalPlan();
+		lp.addScan(bf.getId(), "t");
+		lp.addOrderBy("t.c1", false);
+		plan = plan(lp, tuples);
+		assertTrue(((Operator) plan).getChildren()[0] instanceof OrderBy);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeReverseScanTest.class);
+	}
+}
@@ -0,0 +1,188 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.Predicate.Op;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeSelectivityTest extends SimpleDbTestBase {
+	private TransactionId tid;
+	private BTreeFile bf;
+	private Random rand;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		// small pages, so that the tree has several levels of internal pages
+		BufferPool.setPageSize(256);
+		Database.resetBufferPool(5000);
+		File f = File.createTempFile("selectivity", ".dat");
+		f.deleteOnExit();
+		bf = BTreeUtility.createEmptyBTreeFile(f.getPath(), 2, 0);
+		tid = new TransactionId();
+		rand = new Random(6830);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+		BufferPool.resetPageSize();
+	}
+
+	/**
+	 * Insert n tuples whose keys are drawn from [low, high), and commit
+	 */
+	private void insert(int n, int low, int high) throws Exception {
+		ArrayList<Tuple> batch = new ArrayList<Tuple>();
+		for (int i = 0; i < n; i++) {
+			Tuple t = new Tuple(bf.getTupleDesc());
+			t.setField(0, new IntField(low + rand.nextInt(high - low)));
+			t.setField(1, new IntField(i));
+			batch.add(t);
+		}
+		Database.getBufferPool().insertTuples(tid, bf.getId(), batch);
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+	}
+
+	/**
+	 * Unit test for range estimates on skewed keys, which histograms of equal
+	 * width cannot tell apart
+	 */
+	@Test
+	public void skewedKeys() throws Exception {
+		// nine tuples in ten have a key below 100, out of a range of 100000
+		insert(9000, 0, 100);
+		insert(1000, 100, 100000);
+		TableStats stats = new TableStats(bf.getId(), TableStats.IOCOSTPERPAGE);
+
+		IntField hundred = new IntField(100);
+		assertEquals(0.9, stats.estimateSelectivity(0, Op.LESS_THAN, hundred), 0.05);
+		assertEquals(0.1, stats.estimateSelectivity(0, Op.GREATER_THAN_OR_EQ, hundred), 0.05);
+		// subtrees of the same level are taken to be the same size, which
+		// splits only keep them close to
+		assertEquals(0.225, stats.estimateSelectivity(0, Op.LESS_THAN, new IntField(25)), 0.1);
+		assertEquals(0.45, stats.estimateSelectivity(0, Op.LESS_THAN, new IntField(50)), 0.1);
+		assertEquals(0.675, stats.estimateSelectivity(0, Op.LESS_THAN, new IntField(75)), 0.1);
+		assertEquals(0.05, stats.estimateSelectivity(0, Op.GREATER_THAN, new IntField(50000)), 0.03);
+		assertEquals(0.0, stats.estimateSelectivity(0, Op.LESS_THAN, new IntField(0)), 0.001);
+		assertEquals(1.0, stats.estimateSelectivity(0, Op.LESS_THAN_OR_EQ, new IntField(100000)), 0.001);
+
+		// a key in the dense range has about a hundredth of 0.9 of the tuples
+		double eq = stats.estimateSelectivity(0, Op.EQUALS, new IntField(42));
+		assertEquals(0.009, eq, 0.005);
+		assertEquals(1.0 - eq, stats.estimateSelectivity(0, Op.NOT_EQUALS, new IntField(42)), 1e-9);
+
+		// a predicate on a field other than the key is still estimated from
+		// its histogram
+		assertEquals(0.5, stats.estimateSelectivity(1, Op.LESS_THAN, new IntField(4500)), 0.1);
+	}
+
+	/**
+	 * Unit test for estimates that follow the tree as it changes, without
+	 * recomputing the statistics
+	 */
+	@Test
+	public void freshEstimates() throws Exception {
+		insert(5000, 0, 1000);
+		TableStats stats = new TableStats(bf.getId(), TableStats.IOCOSTPERPAGE);
+		IntField thousand = new IntField(1000);
+		assertEquals(1.0, stats.estimateSelectivity(0, Op.LESS_THAN, thousand), 0.001);
+
+		// three times as many tuples again above the old keys
+		insert(15000, 1000, 2000);
+		assertEquals(0.25, stats.estimateSelectivity(0, Op.LESS_THAN, thousand), 0.05);
+		assertEquals(0.125, stats.estimateSelectivity(0, Op.LESS_THAN, new IntField(500)), 0.05);
+		assertEquals(0.375, stats.estimateSelectivity(0, Op.GREATER_THAN_OR_EQ, new IntField(1500)), 0.05);
+
+		// the estimates hold no locks on the tree
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+				BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_WRITE);
+		Database.getBufferPool().getPage(tid, rootPtr.getRootId(), Permissions.READ_WRITE);
+	}
+
+	/**
+	 * @return the pages of the tree in the buffer pool
+	 */
+	private HashSet<PageId> cachedPages() {
+		HashSet<PageId> cached = new HashSet<PageId>();
+		if (Database.getBufferPool().isCached(BTreeRootPtrPage.getId(bf.getId())))
+			cached.add(BTreeRootPtrPage.getId(bf.getId()));
+		for (int i = 1; i <= bf.numPages(); i++) {
+			for (int categ : new int[] { BTreePageId.INTERNAL, BTreePageId.LEAF, BTreePageId.HEADER }) {
+				BTreePageId pid = new BTreePageId(bf.getId(), i, categ);
+				if (Database.getBufferPool().isCached(pid))
+					cached.add(pid);
+			}
+		}
+		return cached;
+	}
+
+	/**
+	 * Unit test for estimates in the transaction a query is planned in, which
+	 * count its own changes, and for estimates that neither write nor evict
+	 * pages
+	 */
+	@Test
+	public void plannerTransaction() throws Exception {
+		insert(5000, 0, 1000);
+		TableStats stats = new TableStats(bf.getId(), TableStats.IOCOSTPERPAGE);
+
+		// as many tuples again above the old keys, not committed
+		ArrayList<Tuple> batch = new ArrayList<Tuple>();
+		for (int i = 0; i < 5000; i++) {
+			Tuple t = new Tuple(bf.getTupleDesc());
+			t.setField(0, new IntField(1000 + rand.nextInt(1000)));
+			t.setField(1, new IntField(i));
+			batch.add(t);
+		}
+		Database.getBufferPool().insertTuples(tid, bf.getId(), batch);
+		HashSet<PageId> cached = cachedPages();
+		HashSet<PageId> dirty = new HashSet<PageId>();
+		for (PageId pid : cached) {
+			if (Database.getBufferPool().holdsLock(tid, pid)
+					&& Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY).isDirty() != null)
+				dirty.add(pid);
+		}
+		assertFalse(dirty.isEmpty());
+		int records = Database.getLogFile().getTotalRecords();
+
+		// the histograms count only the tuples below 1000, but the estimates
+		// in the transaction that inserted the rest follow the tree
+		IntField thousand = new IntField(1000);
+		double below = stats.estimateSelectivity(tid, 0, Op.LESS_THAN, thousand);
+		assertEquals(0.5, below, 0.15);
+		assertEquals(1.0 - below, stats.estimateSelectivity(tid, 0, Op.GREATER_THAN_OR_EQ, thousand), 1e-9);
+		assertEquals(records, Database.getLogFile().getTotalRecords());
+		assertTrue(cachedPages().containsAll(cached));
+		for (PageId pid : dirty)
+			assertEquals(tid, Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY).isDirty());
+
+		// an estimate in a transaction of its own leaves the pages it read
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+		records = Database.getLogFile().getTotalRecords();
+		assertEquals(0.5, stats.estimateSelectivity(0, Op.LESS_THAN, thousand), 0.15);
+		cached = cachedPages();
+		assertEquals(0.5, stats.estimateSelectivity(0, Op.LESS_THAN, thousand), 0.15);
+		assertEquals(cached, cachedPages());
+		assertEquals(records, Database.getLogFile().getTotalRecords());
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeSelectivityTest.class);
+	}
+}
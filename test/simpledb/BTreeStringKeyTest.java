@@ -0,0 +1,151 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.Predicate.Op;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeStringKeyTest extends SimpleDbTestBase {
+	private static final TupleDesc TD = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE });
+
+	private TransactionId tid;
+	private BTreeFile bf;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		tid = new TransactionId();
+		File f = File.createTempFile("strings", ".dat");
+		f.deleteOnExit();
+		bf = new BTreeFile(f, 0, TD);
+		Database.getCatalog().addTable(bf, SystemTestUtil.getUUID());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+		BufferPool.resetPageSize();
+	}
+
+	private static Tuple tuple(String key, int value) {
+		Tuple t = new Tuple(TD);
+		t.setField(0, new StringField(key, Type.STRING_LEN));
+		t.setField(1, new IntField(value));
+		return t;
+	}
+
+	/**
+	 * Keys that share a prefix longer than the separators, so that many of
+	 * them truncate to the same separator
+	 */
+	private static String key(int group, int i) {
+		return String.format("key-%03d-shared-suffix-of-the-key-%05d", group, i);
+	}
+
+	/**
+	 * Unit test for the fanout of internal pages on string keys
+	 */
+	@Test
+	public void fanout() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(new BTreePageId(bf.getId(), 1, BTreePageId.INTERNAL),
+				BTreeInternalPage.createEmptyPageData(), 0);
+		// whole 132-byte keys would leave room for this many entries
+		int unTruncated = (BufferPool.getPageSize() * 8 - 73) / ((Type.STRING_TYPE.getLen() + 4) * 8 + 1);
+		assertTrue(page.getMaxEntries() >= 4 * unTruncated);
+	}
+
+	/**
+	 * Unit test for inserting, finding and deleting string keys in a tree
+	 * with several levels of internal pages
+	 */
+	@Test
+	public void insertFindDelete() throws Exception {
+		BufferPool.setPageSize(1024);
+		Database.resetBufferPool(5000);
+		setUp();
+
+		Random rand = new Random(6830);
+		ArrayList<String> keys = new ArrayList<String>();
+		for (int i = 0; i < 3000; i++) {
+			String k = key(rand.nextInt(40), rand.nextInt(200));
+			keys.add(k);
+			Database.getBufferPool().insertTuple(tid, bf.getId(), tuple(k, i));
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+
+		// the root is an internal page over internal pages
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+				BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+		BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getPage(tid,
+				rootPtr.getRootId(), Permissions.READ_ONLY);
+		assertEquals(BTreePageId.INTERNAL, root.iterator().next().getLeftChild().pgcateg());
+
+		// a scan returns every key, in order
+		Collections.sort(keys);
+		ArrayList<String> scanned = new ArrayList<String>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		while (it.hasNext())
+			scanned.add(((StringField) it.next().getField(0)).getValue());
+		it.close();
+		assertEquals(keys, scanned);
+
+		// and lookups find every copy of a key
+		for (int i = 0; i < keys.size(); i += 97) {
+			String k = keys.get(i);
+			int expected = Collections.frequency(keys, k);
+			int found = 0;
+			it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new StringField(k, Type.STRING_LEN)));
+			it.open();
+			while (it.hasNext()) {
+				assertEquals(k, ((StringField) it.next().getField(0)).getValue());
+				found++;
+			}
+			it.close();
+			assertEquals(expected, found);
+		}
+
+		// deleting most of the tuples merges pages and moves separators around
+		it = bf.iterator(tid);
+		it.open();
+		ArrayList<Tuple> all = new ArrayList<Tuple>();
+		while (it.hasNext())
+			all.add(it.next());
+		it.close();
+		int remaining = all.size();
+		for (int i = 0; i < all.size(); i++) {
+			if (i % 4 != 0) {
+				Database.getBufferPool().deleteTuple(tid, all.get(i));
+				remaining--;
+			}
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		int count = 0;
+		it = bf.iterator(tid);
+		it.open();
+		while (it.hasNext()) {
+			it.next();
+			count++;
+		}
+		it.close();
+		assertEquals(remaining, count);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeStringKeyTest.class);
+	}
+}
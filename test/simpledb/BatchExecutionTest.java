@@ -0,0 +1,223 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.Predicate.Op;
+
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BatchExecutionTest extends SimpleDbTestBase {
+	private TransactionId tid;
+	private HeapFile left;
+	private HeapFile right;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		tid = new TransactionId();
+		left = SystemTestUtil.createRandomHeapFile(3, 3000, 200, null, new ArrayList<ArrayList<Integer>>());
+		right = SystemTestUtil.createRandomHeapFile(2, 500, 200, null, new ArrayList<ArrayList<Integer>>());
+	}
+
+	/**
+	 * @return the tuples of an open operator, read a tuple at a time
+	 */
+	private ArrayList<ArrayList<Integer>> rows(OpIterator op) throws Exception {
+		ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+		while (op.hasNext())
+			result.add(SystemTestUtil.tupleToList(op.next()));
+		return result;
+	}
+
+	/**
+	 * @return the tuples of an open operator, read a batch at a time
+	 */
+	private ArrayList<ArrayList<Integer>> batches(OpIterator op, int capacity) throws Exception {
+		ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+		TupleBatch batch = new TupleBatch(op.getTupleDesc(), capacity);
+		while (op.nextBatch(batch)) {
+			assertTrue(batch.size() > 0 && batch.size() <= capacity);
+			for (int i = 0; i < batch.size(); i++)
+				result.add(SystemTestUtil.tupleToList(batch.get(i)));
+		}
+		assertEquals(0, batch.size());
+		assertFalse(op.nextBatch(batch));
+		return result;
+	}
+
+	/**
+	 * Check that batches of several sizes hold the tuples read a tuple at a
+	 * time, in any order, rewinding the operator between the reads
+	 */
+	private void match(OpIterator op) throws Exception {
+		op.open();
+		ArrayList<ArrayList<Integer>> expected = rows(op);
+		assertFalse(expected.isEmpty());
+		for (int capacity : new int[] { 1, 7, TupleBatch.DEFAULT_SIZE }) {
+			op.rewind();
+			SystemTestUtil.matchTuples(batches(op, capacity), expected);
+		}
+		op.close();
+	}
+
+	/**
+	 * Unit test for the selection vector of a batch
+	 */
+	@Test
+	public void selection() throws Exception {
+		TupleDesc td = Utility.getTupleDesc(1);
+		TupleBatch batch = new TupleBatch(td, 8);
+		for (int i = 0; i < 6; i++)
+			batch.add(Utility.getHeapTuple(i, 1));
+		assertEquals(6, batch.size());
+		assertFalse(batch.isFull());
+
+		// keep the even tuples, then the multiples of four
+		for (int mod : new int[] { 2, 4 }) {
+			int[] sel = batch.selection();
+			int n = 0;
+			for (int i = 0; i < batch.size(); i++) {
+				if (((IntField) batch.get(i).getField(0)).getValue() % mod == 0)
+					sel[n++] = sel[i];
+			}
+			batch.select(n);
+		}
+		assertEquals(2, batch.size());
+		assertEquals(new IntField(0), batch.get(0).getField(0));
+		assertEquals(new IntField(4), batch.get(1).getField(0));
+
+		// tuples added after a filter are live
+		batch.add(Utility.getHeapTuple(7, 1));
+		batch.add(Utility.getHeapTuple(9, 1));
+		assertTrue(batch.isFull());
+		assertEquals(4, batch.size());
+		assertEquals(new IntField(9), batch.get(3).getField(0));
+		try {
+			batch.add(Utility.getHeapTuple(10, 1));
+			fail("added a tuple to a full batch");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+
+		batch.clear();
+		assertEquals(0, batch.size());
+		assertFalse(batch.isFull());
+	}
+
+	/**
+	 * Unit test for batches of scans, filters and projections
+	 */
+	@Test
+	public void scanFilterProject() throws Exception {
+		match(new SeqScan(tid, left.getId(), "l"));
+		match(new Filter(new Predicate(0, Op.LESS_THAN, new IntField(50)), new SeqScan(tid, left.getId(), "l")));
+		ArrayList<Integer> fields = new ArrayList<Integer>(Arrays.asList(2, 0));
+		ArrayList<Type> types = new ArrayList<Type>(Arrays.asList(Type.INT_TYPE, Type.INT_TYPE));
+		match(new Project(fields, types, new Filter(new Predicate(1, Op.GREATER_THAN, new IntField(150)),
+				new SeqScan(tid, left.getId(), "l"))));
+
+		// an operator that does not produce batches itself is read a tuple
+		// at a time
+		match(new Filter(new Predicate(0, Op.NOT_EQUALS, new IntField(3)), TestUtil.createTupleList(2,
+				new int[] { 1, 2, 3, 4, 5, 6, 3, 8 })));
+	}
+
+	/**
+	 * Unit test for batches of joins
+	 */
+	@Test
+	public void joins() throws Exception {
+		JoinPredicate eq = new JoinPredicate(0, Op.EQUALS, 0);
+		match(new Join(eq, new SeqScan(tid, left.getId(), "l"), new SeqScan(tid, right.getId(), "r")));
+		match(new Join(new JoinPredicate(1, Op.LESS_THAN, 1),
+				new Filter(new Predicate(1, Op.LESS_THAN, new IntField(10)), new SeqScan(tid, left.getId(), "l")),
+				new SeqScan(tid, right.getId(), "r")));
+		match(new HashEquiJoin(eq, new SeqScan(tid, left.getId(), "l"), new SeqScan(tid, right.getId(), "r")));
+
+		// more tuples to hash than the map holds at once
+		ArrayList<ArrayList<Integer>> big = new ArrayList<ArrayList<Integer>>();
+		HeapFile build = SystemTestUtil.createRandomHeapFile(1, HashEquiJoin.MAP_SIZE * 2 + 100, 100000, null, big);
+		HashEquiJoin join = new HashEquiJoin(eq, new SeqScan(tid, build.getId(), "b"), new SeqScan(tid, right.getId(), "r"));
+		Join nested = new Join(eq, new SeqScan(tid, build.getId(), "b"), new SeqScan(tid, right.getId(), "r"));
+		nested.open();
+		ArrayList<ArrayList<Integer>> expected = rows(nested);
+		nested.close();
+		join.open();
+		SystemTestUtil.matchTuples(rows(join), expected);
+		join.rewind();
+		SystemTestUtil.matchTuples(batches(join, TupleBatch.DEFAULT_SIZE), expected);
+
+		// a join rewound part way through starts again
+		join.rewind();
+		assertTrue(join.nextBatch(new TupleBatch(join.getTupleDesc(), 3)));
+		join.rewind();
+		SystemTestUtil.matchTuples(batches(join, 3), expected);
+		join.close();
+	}
+
+	/**
+	 * Unit test for batches of aggregates and sorts
+	 */
+	@Test
+	public void aggregateOrderBy() throws Exception {
+		match(new Aggregate(new SeqScan(tid, left.getId(), "l"), 2, 1, Aggregator.Op.SUM));
+		match(new Aggregate(new SeqScan(tid, left.getId(), "l"), 0, Aggregator.NO_GROUPING, Aggregator.Op.COUNT));
+
+		// sorted batches are in order
+		OrderBy sort = new OrderBy(0, false, new SeqScan(tid, left.getId(), "l"));
+		sort.open();
+		ArrayList<ArrayList<Integer>> expected = rows(sort);
+		for (int i = 1; i < expected.size(); i++)
+			assertTrue(expected.get(i - 1).get(0) >= expected.get(i).get(0));
+		sort.rewind();
+		assertEquals(expected, batches(sort, 100));
+		sort.close();
+	}
+
+	/**
+	 * Unit test for a batch read after hasNext(), which has read a tuple
+	 * ahead
+	 */
+	@Test
+	public void afterHasNext() throws Exception {
+		Filter filter = new Filter(new Predicate(0, Op.GREATER_THAN, new IntField(100)), new SeqScan(tid, left.getId(), "l"));
+		filter.open();
+		ArrayList<ArrayList<Integer>> expected = rows(filter);
+		filter.close();
+		filter = new Filter(new Predicate(0, Op.GREATER_THAN, new IntField(100)), new SeqScan(tid, left.getId(), "l"));
+
+		TupleBatch batch = new TupleBatch(filter.getTupleDesc());
+		try {
+			filter.nextBatch(batch);
+			fail("read a batch before opening the operator");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		filter.open();
+		assertTrue(filter.hasNext());
+		assertTrue(filter.nextBatch(batch));
+		assertEquals(1, batch.size());
+		ArrayList<ArrayList<Integer>> actual = new ArrayList<ArrayList<Integer>>();
+		do {
+			for (int i = 0; i < batch.size(); i++)
+				actual.add(SystemTestUtil.tupleToList(batch.get(i)));
+		} while (filter.nextBatch(batch));
+		filter.close();
+		assertEquals(expected, actual);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BatchExecutionTest.class);
+	}
+}
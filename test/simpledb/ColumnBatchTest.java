@@ -0,0 +1,236 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.Predicate.Op;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class ColumnBatchTest extends SimpleDbTestBase {
+	private TransactionId tid;
+	private HeapFile hf;
+	private ArrayList<ArrayList<Integer>> tuples;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		tid = new TransactionId();
+		tuples = new ArrayList<ArrayList<Integer>>();
+		hf = SystemTestUtil.createRandomHeapFile(3, 3000, 1000, null, tuples);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * Create a table of an int and a string field, holding n tuples, and
+	 * commit them
+	 */
+	private HeapFile createStrings(int n) throws Exception {
+		File f = File.createTempFile("columns", ".dat");
+		f.deleteOnExit();
+		TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE }, new String[] { "i", "s" });
+		HeapFile strings = new HeapFile(f, td);
+		Database.getCatalog().addTable(strings, UUID.randomUUID().toString());
+		for (int i = 0; i < n; i++)
+			Database.getBufferPool().insertTuple(tid, strings.getId(), stringTuple(td, i));
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+		return strings;
+	}
+
+	private static Tuple stringTuple(TupleDesc td, int i) {
+		Tuple t = new Tuple(td);
+		t.setField(0, new IntField(i));
+		// every tenth string is empty
+		t.setField(1, new StringField(i % 10 == 0 ? "" : "s" + i, Type.STRING_LEN));
+		return t;
+	}
+
+	/**
+	 * Unit test for the int columns of batches read by a scan
+	 */
+	@Test
+	public void scanColumns() throws Exception {
+		SeqScan scan = new SeqScan(tid, hf.getId(), "t");
+		scan.open();
+		TupleBatch batch = new TupleBatch(scan.getTupleDesc(), 100);
+		ArrayList<ArrayList<Integer>> actual = new ArrayList<ArrayList<Integer>>();
+		while (scan.nextBatch(batch)) {
+			int[] sel = batch.selection();
+			for (int i = 0; i < batch.size(); i++) {
+				ArrayList<Integer> row = new ArrayList<Integer>();
+				for (int f = 0; f < 3; f++)
+					row.add(batch.column(f).ints()[sel[i]]);
+				actual.add(row);
+
+				// the tuples made from the columns have the fields and record
+				// ids of the tuples on the pages
+				Tuple t = batch.get(i);
+				assertSame(t, batch.get(i));
+				assertEquals(row, SystemTestUtil.tupleToList(t));
+				HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, t.getRecordId().getPageId(),
+						Permissions.READ_ONLY);
+				Tuple stored = page.getTuple(t.getRecordId().getTupleNumber());
+				assertNotSame(stored, t);
+				assertEquals(row, SystemTestUtil.tupleToList(stored));
+			}
+		}
+		scan.close();
+		SystemTestUtil.matchTuples(actual, tuples);
+	}
+
+	/**
+	 * Unit test for the columns of tuples added to a batch one at a time
+	 */
+	@Test
+	public void tupleColumns() throws Exception {
+		TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE });
+		TupleBatch batch = new TupleBatch(td, 10);
+		for (int i = 0; i < 4; i++)
+			batch.add(stringTuple(td, i));
+		assertEquals(4, batch.column(0).size());
+		assertEquals(3, batch.column(0).ints()[3]);
+
+		// the columns take in the tuples added since they were last read
+		batch.add(stringTuple(td, 4));
+		ColumnVector strings = batch.column(1);
+		assertEquals(5, strings.size());
+		int[] offsets = strings.offsets();
+		assertEquals(0, offsets[1] - offsets[0]);
+		assertEquals("s3", new String(strings.bytes(), offsets[3], offsets[4] - offsets[3]));
+		assertEquals(new StringField("s4", Type.STRING_LEN), strings.getField(4));
+		assertEquals(5, batch.column(0).size());
+		try {
+			strings.ints();
+			fail("read the ints of a string column");
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+
+		batch.clear();
+		assertEquals(0, batch.column(0).size());
+		batch.add(stringTuple(td, 9));
+		assertEquals(9, batch.column(0).ints()[0]);
+	}
+
+	/**
+	 * Unit test for string columns read from pages, and filters on them
+	 */
+	@Test
+	public void strings() throws Exception {
+		HeapFile strings = createStrings(500);
+		SeqScan scan = new SeqScan(tid, strings.getId(), "t");
+		scan.open();
+		TupleBatch batch = new TupleBatch(scan.getTupleDesc(), 64);
+		int n = 0;
+		while (scan.nextBatch(batch)) {
+			int[] sel = batch.selection();
+			ColumnVector column = batch.column(1);
+			for (int i = 0; i < batch.size(); i++) {
+				int key = batch.column(0).ints()[sel[i]];
+				int p = sel[i];
+				String s = new String(column.bytes(), column.offsets()[p], column.offsets()[p + 1] - column.offsets()[p]);
+				assertEquals(((StringField) stringTuple(strings.getTupleDesc(), key).getField(1)).getValue(), s);
+				assertEquals(stringTuple(strings.getTupleDesc(), key).getField(1), batch.get(i).getField(1));
+				n++;
+			}
+		}
+		scan.close();
+		assertEquals(500, n);
+
+		assertEquals(1, count(new Filter(new Predicate(1, Op.EQUALS, new StringField("s42", Type.STRING_LEN)),
+				new SeqScan(tid, strings.getId(), "t"))));
+		// s4, s40 to s49 but s40, and s400 to s499 but every tenth
+		assertEquals(1 + 9 + 90, count(new Filter(new Predicate(1, Op.LIKE, new StringField("s4", Type.STRING_LEN)),
+				new SeqScan(tid, strings.getId(), "t"))));
+		assertEquals(50, count(new Filter(new Predicate(1, Op.EQUALS, new StringField("", Type.STRING_LEN)),
+				new SeqScan(tid, strings.getId(), "t"))));
+	}
+
+	/**
+	 * @return the number of tuples an operator returns, read a batch at a
+	 *         time
+	 */
+	private int count(OpIterator op) throws Exception {
+		op.open();
+		TupleBatch batch = new TupleBatch(op.getTupleDesc());
+		int n = 0;
+		while (op.nextBatch(batch))
+			n += batch.size();
+		op.close();
+		return n;
+	}
+
+	/**
+	 * Unit test for batches of pages a transaction has changed, which are
+	 * read from the tuples of the pages
+	 */
+	@Test
+	public void changedPages() throws Exception {
+		HeapFile strings = createStrings(100);
+		DbFileIterator it = strings.iterator(tid);
+		it.open();
+		Tuple first = it.next();
+		it.close();
+		Database.getBufferPool().deleteTuple(tid, first);
+		Database.getBufferPool().insertTuple(tid, strings.getId(), stringTuple(strings.getTupleDesc(), 1000));
+
+		ArrayList<Integer> keys = new ArrayList<Integer>();
+		SeqScan scan = new SeqScan(tid, strings.getId(), "t");
+		scan.open();
+		TupleBatch batch = new TupleBatch(scan.getTupleDesc(), 30);
+		while (scan.nextBatch(batch)) {
+			for (int i = 0; i < batch.size(); i++)
+				keys.add(batch.column(0).ints()[batch.selection()[i]]);
+		}
+		scan.close();
+		assertEquals(100, keys.size());
+		assertFalse(keys.contains(((IntField) first.getField(0)).getValue()));
+		assertTrue(keys.contains(1000));
+	}
+
+	/**
+	 * Unit test for aggregates without grouping, which read their int
+	 * column in a single pass over each batch
+	 */
+	@Test
+	public void aggregates() throws Exception {
+		int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE, sum = 0;
+		for (ArrayList<Integer> t : tuples) {
+			min = Math.min(min, t.get(1));
+			max = Math.max(max, t.get(1));
+			sum += t.get(1);
+		}
+		int[] expected = { min, max, sum, sum / tuples.size(), tuples.size() };
+		Aggregator.Op[] ops = { Aggregator.Op.MIN, Aggregator.Op.MAX, Aggregator.Op.SUM, Aggregator.Op.AVG,
+				Aggregator.Op.COUNT };
+		for (int i = 0; i < ops.length; i++) {
+			Aggregate agg = new Aggregate(new Filter(new Predicate(0, Op.GREATER_THAN_OR_EQ, new IntField(0)),
+					new SeqScan(tid, hf.getId(), "t")), 1, Aggregator.NO_GROUPING, ops[i]);
+			agg.open();
+			assertEquals(new IntField(expected[i]), agg.next().getField(0));
+			assertFalse(agg.hasNext());
+			agg.close();
+		}
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(ColumnBatchTest.class);
+	}
+}
@@ -0,0 +1,189 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.Predicate.Op;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class HashFileTest extends SimpleDbTestBase {
+	private TransactionId tid;
+	private File f;
+	private HashFile hf;
+	private ArrayList<ArrayList<Integer>> tuples;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		tid = new TransactionId();
+		f = File.createTempFile("hash", ".dat");
+		f.deleteOnExit();
+		// hashed on c0
+		hf = new HashFile(f, 0, Utility.getTupleDesc(3, "c"));
+		Database.getCatalog().addTable(hf, "t");
+		tuples = new ArrayList<ArrayList<Integer>>();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+		BufferPool.resetPageSize();
+	}
+
+	/**
+	 * Insert n tuples whose key is drawn from [0, keys)
+	 */
+	private void insert(int n, int keys) throws Exception {
+		Random rand = new Random(6830);
+		for (int i = 0; i < n; i++)
+			SystemTestUtil.insertTuple(tid, hf, tuples, rand.nextInt(keys), rand.nextInt(100), i);
+	}
+
+	/**
+	 * @return the tuples whose key is c0
+	 */
+	private ArrayList<ArrayList<Integer>> withKey(int c0) {
+		ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+		for (ArrayList<Integer> t : tuples) {
+			if (t.get(0) == c0)
+				result.add(t);
+		}
+		return result;
+	}
+
+	private static IndexPredicate eq(int key) {
+		return new IndexPredicate(Op.EQUALS, new IntField(key));
+	}
+
+	/**
+	 * Unit test for inserting, looking up and deleting tuples in a file whose
+	 * buckets split several times
+	 */
+	@Test
+	public void insertLookupDelete() throws Exception {
+		BufferPool.setPageSize(1024);
+		Database.resetBufferPool(5000);
+		setUp();
+		insert(5000, 2000);
+
+		// the directory doubled, and most keys are in a bucket of one page
+		HashDirectoryPage dir = (HashDirectoryPage) Database.getBufferPool().getPage(tid,
+				new HashPageId(hf.getId(), 0), Permissions.READ_ONLY);
+		assertTrue(dir.getGlobalDepth() >= 6);
+		int chained = 0;
+		for (int key = 0; key < 2000; key++) {
+			if (hf.bucketPages(tid, HashFile.hash(new IntField(key))).size() > 1)
+				chained++;
+		}
+		assertTrue(chained < 100);
+
+		SystemTestUtil.matchTuples(hf.iterator(tid), tuples);
+		for (int key = 0; key < 2000; key += 37)
+			SystemTestUtil.matchTuples(hf.indexIterator(tid, eq(key)), withKey(key));
+
+		// the pages survive being written out and read back
+		Database.getBufferPool().transactionComplete(tid);
+		Database.resetBufferPool(5000);
+		tid = new TransactionId();
+		for (int key = 0; key < 2000; key += 37)
+			SystemTestUtil.matchTuples(hf.indexIterator(tid, eq(key)), withKey(key));
+
+		// a range predicate scans the file
+		ArrayList<ArrayList<Integer>> small = new ArrayList<ArrayList<Integer>>();
+		for (ArrayList<Integer> t : tuples) {
+			if (t.get(0) < 10)
+				small.add(t);
+		}
+		SystemTestUtil.matchTuples(hf.indexIterator(tid, new IndexPredicate(Op.LESS_THAN, new IntField(10))), small);
+
+		// delete every tuple with an odd key
+		for (Tuple t : SystemTestUtil.readTuples(hf.iterator(tid))) {
+			if (((IntField) t.getField(0)).getValue() % 2 == 1) {
+				Database.getBufferPool().deleteTuple(tid, t);
+				tuples.remove(SystemTestUtil.tupleToList(t));
+			}
+		}
+		SystemTestUtil.matchTuples(hf.iterator(tid), tuples);
+		for (int key = 0; key < 2000; key += 37)
+			SystemTestUtil.matchTuples(hf.indexIterator(tid, eq(key)), withKey(key));
+	}
+
+	/**
+	 * Unit test for buckets that cannot split: duplicate keys, and keys of a
+	 * file whose directory fills its page
+	 */
+	@Test
+	public void overflow() throws Exception {
+		BufferPool.setPageSize(256);
+		Database.resetBufferPool(5000);
+		setUp();
+		insert(2000, 1000);
+		// 32 buckets of 20 tuples cannot hold the tuples without chains
+		HashDirectoryPage dir = (HashDirectoryPage) Database.getBufferPool().getPage(tid,
+				new HashPageId(hf.getId(), 0), Permissions.READ_ONLY);
+		assertEquals(HashDirectoryPage.getMaxDepth(), dir.getGlobalDepth());
+		for (int key = 0; key < 1000; key += 13)
+			SystemTestUtil.matchTuples(hf.indexIterator(tid, eq(key)), withKey(key));
+
+		// every copy of a duplicated key goes to the same chain
+		for (int i = 0; i < 100; i++)
+			SystemTestUtil.insertTuple(tid, hf, tuples, 5000, i, -i);
+		assertTrue(hf.bucketPages(tid, HashFile.hash(new IntField(5000))).size() >= 5);
+		SystemTestUtil.matchTuples(hf.indexIterator(tid, eq(5000)), withKey(5000));
+		SystemTestUtil.matchTuples(hf.iterator(tid), tuples);
+	}
+
+	/**
+	 * Unit test for the lookup of equality filters on the key by
+	 * LogicalPlan.physicalPlan()
+	 */
+	@Test
+	public void plan() throws Exception {
+		insert(3000, 1000);
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+		HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+		stats.put("t", new TableStats(hf.getId(), TableStats.IOCOSTPERPAGE));
+
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(hf.getId(), "t");
+		lp.addFilter("t.c0", Op.EQUALS, "42");
+		lp.addProjectField("null.*", null);
+		OpIterator plan = lp.physicalPlan(tid, stats, false);
+		OpIterator scan = ((Operator) plan).getChildren()[0];
+		assertTrue(scan instanceof HashScan);
+		assertEquals(new IntField(42), ((HashScan) scan).getIndexPredicate().getField());
+		SystemTestUtil.matchTuples(plan, withKey(42));
+
+		// a range filter on the key is applied to a full scan
+		lp = new LogicalPlan();
+		lp.addScan(hf.getId(), "t");
+		lp.addFilter("t.c0", Op.LESS_THAN, "3");
+		lp.addProjectField("null.*", null);
+		plan = lp.physicalPlan(tid, stats, false);
+		scan = ((Operator) ((Operator) plan).getChildren()[0]).getChildren()[0];
+		assertTrue(scan instanceof HashScan);
+		assertNull(((HashScan) scan).getIndexPredicate());
+		ArrayList<ArrayList<Integer>> small = withKey(0);
+		small.addAll(withKey(1));
+		small.addAll(withKey(2));
+		SystemTestUtil.matchTuples(plan, small);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(HashFileTest.class);
+	}
+}
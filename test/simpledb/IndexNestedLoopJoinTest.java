@@ -0,0 +1,220 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.Predicate.Op;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class IndexNestedLoopJoinTest extends SimpleDbTestBase {
+	private TransactionId tid;
+	private ArrayList<ArrayList<Integer>> outerTuples;
+	private HeapFile outer;
+	private ArrayList<ArrayList<Integer>> innerTuples;
+	private BTreeFile inner;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		tid = new TransactionId();
+		outerTuples = new ArrayList<ArrayList<Integer>>();
+		outer = SystemTestUtil.createRandomHeapFile(2, 50, 2000, null, outerTuples, "c");
+		Database.getCatalog().addTable(outer, "o");
+		innerTuples = new ArrayList<ArrayList<Integer>>();
+		File f = BTreeUtility.createRandomBTreeFile(2, 20000, 2000, null, innerTuples, 0).getFile();
+		// reopen the file with named fields, so that plans can refer to them
+		inner = new BTreeFile(f, 0, Utility.getTupleDesc(2, "c"));
+		Database.getCatalog().addTable(inner, "i");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * @return the concatenation of each outer tuple with each inner tuple
+	 * whose key is equal to its first field and satisfies the filter
+	 */
+	private ArrayList<ArrayList<Integer>> joined(Op op, int value) {
+		ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+		for (ArrayList<Integer> o : outerTuples) {
+			for (ArrayList<Integer> i : innerTuples) {
+				if (o.get(0).equals(i.get(0)) && new IntField(i.get(0)).compare(op, new IntField(value))) {
+					ArrayList<Integer> t = new ArrayList<Integer>(o);
+					t.addAll(i);
+					result.add(t);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Unit test for IndexNestedLoopJoin
+	 */
+	@Test
+	public void join() throws Exception {
+		JoinPredicate p = new JoinPredicate(0, Op.EQUALS, 0);
+		OpIterator j = new IndexNestedLoopJoin(p, new SeqScan(tid, outer.getId(), "o"),
+				new BTreeScan(tid, inner.getId(), "i", null));
+		SystemTestUtil.matchTuples(j, joined(Op.GREATER_THAN_OR_EQ, 0));
+
+		// the index predicate of the inner scan still applies
+		j = new IndexNestedLoopJoin(p, new SeqScan(tid, outer.getId(), "o"),
+				new BTreeScan(tid, inner.getId(), "i", new IndexPredicate(Op.LESS_THAN, new IntField(1000))));
+		SystemTestUtil.matchTuples(j, joined(Op.LESS_THAN, 1000));
+
+		// rewinding starts over from the first outer tuple
+		j.open();
+		int count = 0;
+		while (j.hasNext()) {
+			j.next();
+			count++;
+		}
+		j.rewind();
+		while (j.hasNext()) {
+			j.next();
+			count--;
+		}
+		j.close();
+		assertEquals(0, count);
+	}
+
+	/**
+	 * A BTreeFile that counts the pages read from disk
+	 */
+	private static class CountingBTreeFile extends BTreeFile {
+		int reads = 0;
+
+		CountingBTreeFile(File f, int keyField, TupleDesc td) {
+			super(f, keyField, td);
+		}
+
+		@Override
+		public Page readPage(PageId pid) {
+			synchronized (this) {
+				reads++;
+			}
+			return super.readPage(pid);
+		}
+	}
+
+	/**
+	 * Unit test for batches of an index join, which an aggregate reads, and
+	 * which probe the index rather than scan the inner table
+	 */
+	@Test
+	public void aggregate() throws Exception {
+		ArrayList<ArrayList<Integer>> bigTuples = new ArrayList<ArrayList<Integer>>();
+		File f = BTreeUtility.createRandomBTreeFile(2, 100000, 2000, null, bigTuples, 0).getFile();
+		CountingBTreeFile big = new CountingBTreeFile(f, 0, Utility.getTupleDesc(2, "c"));
+		Database.getCatalog().addTable(big, "big");
+		ArrayList<ArrayList<Integer>> few = new ArrayList<ArrayList<Integer>>();
+		HeapFile small = SystemTestUtil.createRandomHeapFile(2, 5, 2000, null, few, "c");
+
+		int count = 0, sum = 0;
+		for (ArrayList<Integer> o : few) {
+			for (ArrayList<Integer> i : bigTuples) {
+				if (o.get(0).equals(i.get(0))) {
+					count++;
+					sum += i.get(1);
+				}
+			}
+		}
+
+		// read the inner table from disk again
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		JoinPredicate p = new JoinPredicate(0, Op.EQUALS, 0);
+		Aggregate agg = new Aggregate(new IndexNestedLoopJoin(p, new SeqScan(tid, small.getId(), "o"),
+				new BTreeScan(tid, big.getId(), "i", null)), 3, Aggregator.NO_GROUPING, Aggregator.Op.SUM);
+		agg.open();
+		assertEquals(new IntField(sum), agg.next().getField(0));
+		assertFalse(agg.hasNext());
+		agg.close();
+		// a scan of the inner table would read every page of it
+		assertTrue(big.reads < big.numPages() / 2);
+
+		agg = new Aggregate(new IndexNestedLoopJoin(p, new SeqScan(tid, small.getId(), "o"),
+				new BTreeScan(tid, big.getId(), "i", null)), 2, Aggregator.NO_GROUPING, Aggregator.Op.COUNT);
+		agg.open();
+		assertEquals(new IntField(count), agg.next().getField(0));
+		agg.close();
+	}
+
+	/**
+	 * Unit test for the choice of an index join by the optimizer
+	 */
+	@Test
+	public void plan() throws Exception {
+		HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+		stats.put("o", new TableStats(outer.getId(), TableStats.IOCOSTPERPAGE));
+		stats.put("i", new TableStats(inner.getId(), TableStats.IOCOSTPERPAGE));
+
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(outer.getId(), "o");
+		lp.addScan(inner.getId(), "i");
+		lp.addJoin("o.c0", "i.c0", Op.EQUALS);
+		lp.addFilter("i.c1", Op.GREATER_THAN, "500");
+		lp.addProjectField("null.*", null);
+		OpIterator plan = lp.physicalPlan(tid, stats, false);
+
+		// the filter on the inner table is applied to the output of the join
+		OpIterator filter = ((Operator) plan).getChildren()[0];
+		assertTrue(filter instanceof Filter);
+		OpIterator j = ((Operator) filter).getChildren()[0];
+		assertTrue(j instanceof IndexNestedLoopJoin);
+		assertTrue(((Operator) j).getChildren()[0] instanceof SeqScan);
+
+		ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+		for (ArrayList<Integer> t : joined(Op.GREATER_THAN_OR_EQ, 0)) {
+			if (t.get(3) > 500)
+				expected.add(t);
+		}
+		SystemTestUtil.matchTuples(plan, expected);
+	}
+
+	/**
+	 * Unit test for the cost of an index join
+	 */
+	@Test
+	public void cost() throws Exception {
+		// without orderJoins(), the optimizer uses the global stats
+		TableStats.setTableStats("o", new TableStats(outer.getId(), TableStats.IOCOSTPERPAGE));
+		TableStats.setTableStats("i", new TableStats(inner.getId(), TableStats.IOCOSTPERPAGE));
+		Map<String, TableStats> stats = TableStats.getStatsMap();
+
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(outer.getId(), "o");
+		lp.addScan(inner.getId(), "i");
+		LogicalJoinNode j = new LogicalJoinNode("o", "i", "c0", "c0", Op.EQUALS);
+		JoinOptimizer jo = new JoinOptimizer(lp, new Vector<LogicalJoinNode>());
+		int card1 = stats.get("o").totalTuples();
+		int card2 = stats.get("i").totalTuples();
+		double cost1 = stats.get("o").estimateScanCost();
+		double cost2 = stats.get("i").estimateScanCost();
+
+		// probing is much cheaper than rescanning the inner table
+		assertTrue(jo.estimateJoinCost(j, card1, card2, cost1, cost2) < cost1 + card1 * cost2 / 10);
+		// but only when the inner table is keyed on the join field
+		LogicalJoinNode j2 = new LogicalJoinNode("o", "i", "c0", "c1", Op.EQUALS);
+		assertTrue(jo.estimateJoinCost(j2, card1, card2, cost1, cost2) >= cost1 + card1 * cost2);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(IndexNestedLoopJoinTest.class);
+	}
+}
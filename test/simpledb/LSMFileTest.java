@@ -0,0 +1,256 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.Predicate.Op;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class LSMFileTest extends SimpleDbTestBase {
+	private TransactionId tid;
+	private File f;
+	private LSMFile lf;
+	private ArrayList<ArrayList<Integer>> tuples;
+	private Random rand;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		tid = new TransactionId();
+		f = File.createTempFile("lsm", ".dat");
+		f.deleteOnExit();
+		// keyed on c0
+		lf = new LSMFile(f, 0, Utility.getTupleDesc(3, "c"));
+		Database.getCatalog().addTable(lf, "t");
+		tuples = new ArrayList<ArrayList<Integer>>();
+		rand = new Random(6830);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+		lf.awaitCompaction();
+		// the runs and the logs of the memtable are stored next to f
+		for (File other : f.getAbsoluteFile().getParentFile().listFiles()) {
+			if (other.getName().startsWith(f.getName()))
+				other.delete();
+		}
+	}
+
+	/**
+	 * Insert n tuples whose key is drawn from [0, keys), committing every
+	 * 250 tuples
+	 */
+	private void insert(int n, int keys) throws Exception {
+		for (int i = 0; i < n; i++) {
+			SystemTestUtil.insertTuple(tid, lf, tuples, rand.nextInt(keys), rand.nextInt(100), tuples.size());
+			if (i % 250 == 249)
+				commit();
+		}
+		commit();
+	}
+
+	private void commit() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+	}
+
+	/**
+	 * @return the tuples whose key satisfies a predicate
+	 */
+	private ArrayList<ArrayList<Integer>> matching(Op op, int key) {
+		ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+		for (ArrayList<Integer> t : tuples) {
+			if (new IntField(t.get(0)).compare(op, new IntField(key)))
+				result.add(t);
+		}
+		return result;
+	}
+
+	private void matchAll() throws Exception {
+		SystemTestUtil.matchSortedTuples(lf.iterator(tid), 0, true, tuples);
+		for (int key = 0; key < 2000; key += 37)
+			SystemTestUtil.matchSortedTuples(lf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key))), 0,
+					true, matching(Op.EQUALS, key));
+		for (Op op : new Op[] { Op.LESS_THAN, Op.LESS_THAN_OR_EQ, Op.GREATER_THAN, Op.GREATER_THAN_OR_EQ })
+			SystemTestUtil.matchSortedTuples(lf.indexIterator(tid, new IndexPredicate(op, new IntField(1000))), 0,
+					true, matching(op, 1000));
+	}
+
+	/**
+	 * Unit test for inserts that fill the memtable many times, and the
+	 * background compaction of the runs they write
+	 */
+	@Test
+	public void insertAndCompact() throws Exception {
+		lf.setMemtableSize(500);
+		insert(5000, 2000);
+		lf.awaitCompaction();
+
+		// ten runs of level 0 were written, and eight merged into two of level 1
+		assertTrue(lf.numRuns() < LSMFile.FANOUT * 2);
+		matchAll();
+
+		// a lookup of a key no run holds reads no page of a run
+		commit();
+		SystemTestUtil.matchSortedTuples(lf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(5000))), 0,
+				true, matching(Op.EQUALS, 5000));
+		for (int run = 1; run <= 20; run++) {
+			for (int page = 0; page < 50; page++)
+				assertFalse(Database.getBufferPool().holdsLock(tid, new LSMPageId(lf.getId(), run, page)));
+		}
+	}
+
+	/**
+	 * Unit test for deleting tuples, whose tombstones are merged away by a
+	 * major compaction
+	 */
+	@Test
+	public void deleteAndCompact() throws Exception {
+		lf.setMemtableSize(500);
+		insert(3000, 2000);
+		int pages = lf.numPages();
+
+		// delete every tuple with an odd key
+		for (Tuple t : SystemTestUtil.readTuples(lf.iterator(tid))) {
+			if (((IntField) t.getField(0)).getValue() % 2 == 1) {
+				Database.getBufferPool().deleteTuple(tid, t);
+				tuples.remove(SystemTestUtil.tupleToList(t));
+			}
+		}
+		commit();
+		matchAll();
+
+		lf.compact();
+		assertEquals(1, lf.numRuns());
+		assertTrue(lf.numPages() < pages * 2 / 3);
+		matchAll();
+
+		// a tuple that is not in the file cannot be deleted
+		Tuple t = new Tuple(lf.getTupleDesc());
+		t.setField(0, new IntField(1));
+		t.setField(1, new IntField(1));
+		t.setField(2, new IntField(1));
+		try {
+			lf.deleteTuple(tid, t);
+			fail("deleted a tuple that is not in the file");
+		} catch (DbException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Unit test for the isolation of the writes of a transaction until it
+	 * commits, and their loss when it aborts
+	 */
+	@Test
+	public void transactions() throws Exception {
+		insert(100, 50);
+		IndexPredicate ipred = new IndexPredicate(Op.EQUALS, new IntField(100));
+		Tuple t = new Tuple(lf.getTupleDesc());
+		t.setField(0, new IntField(100));
+		t.setField(1, new IntField(1));
+		t.setField(2, new IntField(2));
+		lf.insertTuple(tid, t);
+
+		// the writer sees its write, another transaction does not
+		assertEquals(1, SystemTestUtil.readTuples(lf.indexIterator(tid, ipred)).size());
+		TransactionId other = new TransactionId();
+		assertEquals(0, SystemTestUtil.readTuples(lf.indexIterator(other, ipred)).size());
+
+		// the deletion of a tuple it inserted leaves nothing to commit
+		lf.deleteTuple(tid, SystemTestUtil.readTuples(lf.indexIterator(tid, ipred)).get(0));
+		assertEquals(0, SystemTestUtil.readTuples(lf.indexIterator(tid, ipred)).size());
+
+		// an aborted delete leaves the tuple in place
+		Tuple first = SystemTestUtil.readTuples(lf.iterator(tid)).get(0);
+		lf.deleteTuple(tid, first);
+		assertEquals(tuples.size() - 1, SystemTestUtil.readTuples(lf.iterator(tid)).size());
+		assertEquals(tuples.size(), SystemTestUtil.readTuples(lf.iterator(other)).size());
+		Database.getBufferPool().transactionComplete(tid, false);
+		Database.getBufferPool().transactionComplete(other);
+		tid = new TransactionId();
+		matchAll();
+	}
+
+	/**
+	 * Unit test for reopening a file, whose memtable is rebuilt from its log
+	 */
+	@Test
+	public void reopen() throws Exception {
+		lf.setMemtableSize(1200);
+		insert(2500, 2000);
+		for (Tuple t : SystemTestUtil.readTuples(lf.indexIterator(tid, new IndexPredicate(Op.LESS_THAN, new IntField(500))))) {
+			Database.getBufferPool().deleteTuple(tid, t);
+			tuples.remove(SystemTestUtil.tupleToList(t));
+		}
+		commit();
+		lf.awaitCompaction();
+
+		// two runs, and a memtable of the remaining records in the log
+		lf = new LSMFile(f, 0, Utility.getTupleDesc(3, "c"));
+		Database.getCatalog().addTable(lf, "t");
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		assertEquals(2, lf.numRuns());
+		matchAll();
+
+		// new records get new sequence numbers
+		insert(500, 2000);
+		matchAll();
+	}
+
+	/**
+	 * Unit test for the scans of LSM tables chosen by LogicalPlan.physicalPlan()
+	 */
+	@Test
+	public void plan() throws Exception {
+		lf.setMemtableSize(500);
+		insert(3000, 1000);
+		lf.awaitCompaction();
+		HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+		stats.put("t", new TableStats(lf.getId(), TableStats.IOCOSTPERPAGE));
+
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(lf.getId(), "t");
+		lp.addFilter("t.c0", Op.LESS_THAN, "10");
+		lp.addProjectField("null.*", null);
+		OpIterator plan = lp.physicalPlan(tid, stats, false);
+		OpIterator scan = ((Operator) plan).getChildren()[0];
+		assertTrue(scan instanceof LSMScan);
+		assertEquals(new IntField(10), ((LSMScan) scan).getIndexPredicate().getField());
+		SystemTestUtil.matchTuples(plan, matching(Op.LESS_THAN, 10));
+
+		// a filter on another field is applied to a full scan
+		lp = new LogicalPlan();
+		lp.addScan(lf.getId(), "t");
+		lp.addFilter("t.c1", Op.EQUALS, "3");
+		lp.addProjectField("null.*", null);
+		plan = lp.physicalPlan(tid, stats, false);
+		scan = ((Operator) ((Operator) plan).getChildren()[0]).getChildren()[0];
+		assertTrue(scan instanceof LSMScan);
+		assertNull(((LSMScan) scan).getIndexPredicate());
+		ArrayList<ArrayList<Integer>> threes = new ArrayList<ArrayList<Integer>>();
+		for (ArrayList<Integer> t : tuples) {
+			if (t.get(1) == 3)
+				threes.add(t);
+		}
+		SystemTestUtil.matchTuples(plan, threes);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(LSMFileTest.class);
+	}
+}
@@ -0,0 +1,115 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LogBufferTest extends SimpleDbTestBase {
+
+    private File f;
+    private LogSegments segments;
+
+    // segments smaller than the ring, so drains cross segment boundaries
+    @Before public void openFile() throws Exception {
+        f = File.createTempFile("logbuffer", ".log");
+        f.deleteOnExit();
+        segments = new LogSegments(f, 1000);
+    }
+
+    @After public void closeFile() throws Exception {
+        segments.reset(0);
+        segments.close();
+        f.delete();
+    }
+
+    private DataInputStream at(long lsn) {
+        return new DataInputStream(segments.openInput(lsn));
+    }
+
+    // a record of the given total length whose payload is (tag, counter)
+    private static byte[] record(int len, int tag, int counter) {
+        ByteBuffer b = ByteBuffer.allocate(len);
+        b.putInt(tag);
+        b.putInt(counter);
+        return b.array();
+    }
+
+    /**
+     * Unit test for LogBuffer.append(): records written concurrently land
+     * at their LSNs, each ending with its own start offset.
+     */
+    @Test public void concurrentAppend() throws Exception {
+        final LogBuffer buf = new LogBuffer(segments, 0, 4096);
+        final int threads = 4, perThread = 500, len = 24;
+        final long[][] lsns = new long[threads][perThread];
+
+        Thread[] producers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final int tag = i;
+            producers[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < perThread; j++)
+                            lsns[tag][j] = buf.append(record(len, tag, j));
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            producers[i].start();
+        }
+        for (Thread p : producers)
+            p.join();
+        buf.drain();
+
+        assertEquals(threads * perThread * len, segments.length());
+        assertEquals(segments.length(), buf.getEndLsn());
+        for (int i = 0; i < threads; i++) {
+            for (int j = 0; j < perThread; j++) {
+                DataInputStream in = at(lsns[i][j]);
+                assertEquals(i, in.readInt());
+                assertEquals(j, in.readInt());
+                in.readLong();
+                assertEquals(lsns[i][j], in.readLong());
+            }
+        }
+    }
+
+    /**
+     * Unit test for LogBuffer.drain(): records that wrap around the ring
+     * are written in order, with few writes.
+     */
+    @Test public void wrapAndDrain() throws Exception {
+        LogBuffer buf = new LogBuffer(segments, 8, 100);
+        for (int i = 0; i < 50; i++)
+            assertEquals(8 + 16 * i, buf.append(record(16, 7, i)));
+        buf.drain();
+
+        assertEquals(8 + 50 * 16, segments.length());
+        assertEquals(segments.length(), buf.getFlushedLsn());
+        assertTrue(buf.getWriteCount() < 50);
+        for (int i = 0; i < 50; i++) {
+            DataInputStream in = at(8 + 16 * i);
+            assertEquals(7, in.readInt());
+            assertEquals(i, in.readInt());
+            assertEquals(8 + 16 * i, in.readLong());
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogBufferTest.class);
+    }
+}
@@ -0,0 +1,113 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LogSegmentsTest extends SimpleDbTestBase {
+
+    private static final int SEGMENT_SIZE = 100;
+
+    private File f;
+    private LogSegments segments;
+
+    @Before public void openFile() throws Exception {
+        f = File.createTempFile("logsegments", ".log");
+        f.deleteOnExit();
+        segments = new LogSegments(f, SEGMENT_SIZE);
+    }
+
+    @After public void closeFile() throws Exception {
+        segments.reset(0);
+        segments.close();
+        f.delete();
+    }
+
+    // append n longs 0 .. n-1 at the end of the log
+    private void writeLongs(int n) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(8 * n);
+        for (int i = 0; i < n; i++)
+            b.putLong(i);
+        b.flip();
+        segments.write(b, segments.length());
+    }
+
+    /**
+     * Unit test for LogSegments.write(): a write spanning several
+     * segments reads back as one sequence, also after reopening.
+     */
+    @Test public void writeAcrossSegments() throws Exception {
+        writeLongs(100);
+        segments.force();
+        assertEquals(800, segments.length());
+        assertEquals(8, segments.getSegmentCount());
+
+        segments.close();
+        segments = new LogSegments(f, SEGMENT_SIZE);
+        assertEquals(800, segments.length());
+        DataInputStream in = new DataInputStream(segments.openInput(0));
+        for (int i = 0; i < 100; i++)
+            assertEquals(i, in.readLong());
+        assertEquals(-1, in.read());
+    }
+
+    /**
+     * Unit test for LogSegments.deleteBefore(): only whole segments
+     * before the LSN are deleted, and the rest can still be read.
+     */
+    @Test public void deleteBefore() throws Exception {
+        writeLongs(100);
+        assertEquals(3, segments.deleteBefore(360));
+        assertEquals(300, segments.getStartLsn());
+        assertEquals(5, segments.getSegmentCount());
+        assertEquals(800, segments.length());
+
+        DataInputStream in = new DataInputStream(segments.openInput(360));
+        assertEquals(45, in.readLong());
+        try {
+            segments.openInput(296).read();
+            fail("read before the start of the log");
+        } catch (IOException e) {
+            // expected
+        }
+
+        segments.close();
+        segments = new LogSegments(f, SEGMENT_SIZE);
+        assertEquals(300, segments.getStartLsn());
+    }
+
+    /**
+     * Unit test for LogSegments.truncate(): the tail of the log is cut
+     * off, deleting the segments after it.
+     */
+    @Test public void truncate() throws Exception {
+        writeLongs(100);
+        segments.truncate(250);
+        assertEquals(250, segments.length());
+        assertEquals(3, segments.getSegmentCount());
+
+        writeLongs(1);
+        DataInputStream in = new DataInputStream(segments.openInput(240));
+        assertEquals(30, in.readLong());
+        in.readShort();
+        assertEquals(0, in.readLong());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogSegmentsTest.class);
+    }
+}
@@ -0,0 +1,75 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PageDeltaTest extends SimpleDbTestBase {
+
+    private HeapPageId pid;
+
+    @Before public void addTable() throws IOException {
+        this.pid = new HeapPageId(-1, -1);
+        Database.getCatalog().addTable(new SkeletonFile(-1, Utility.getTupleDesc(2)), SystemTestUtil.getUUID());
+    }
+
+    /**
+     * Unit test for PageDelta.diff(): inserting one tuple logs only the
+     * header bit and the tuple bytes.
+     */
+    @Test public void diffInsert() throws Exception {
+        HeapPage before = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        HeapPage after = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        after.insertTuple(Utility.getHeapTuple(new int[] { 17, 42 }));
+
+        PageDelta delta = PageDelta.diff(before, after);
+        assertEquals(pid, delta.getPageId());
+        assertTrue(delta.getNumRanges() <= 2);
+        assertTrue(delta.getNumBytes() <= 1 + 8 + PageDelta.MERGE_GAP);
+    }
+
+    /**
+     * Unit test for PageDelta.apply(): redo produces the after image and
+     * undo the before image, also after a trip through the log format.
+     */
+    @Test public void applyRoundTrip() throws Exception {
+        HeapPage before = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        HeapPage after = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        after.insertTuple(Utility.getHeapTuple(new int[] { 17, 42 }));
+        after.deleteTuple(after.iterator().next());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PageDelta.diff(before, after).write(new DataOutputStream(bytes));
+        PageDelta delta = PageDelta.read(new DataInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())));
+        assertTrue(bytes.size() < 100);
+
+        byte[] data = before.getPageData();
+        delta.apply(data, true);
+        assertArrayEquals(after.getPageData(), data);
+        delta.apply(data, false);
+        assertArrayEquals(before.getPageData(), data);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageDeltaTest.class);
+    }
+}
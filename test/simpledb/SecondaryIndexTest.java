@@ -0,0 +1,303 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.Predicate.Op;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class SecondaryIndexTest extends SimpleDbTestBase {
+	private TransactionId tid;
+	private ArrayList<ArrayList<Integer>> tuples;
+	private HeapFile table;
+	private SecondaryIndex index;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		tid = new TransactionId();
+		tuples = new ArrayList<ArrayList<Integer>>();
+		table = SystemTestUtil.createRandomHeapFile(3, 3000, 500, null, tuples, "c");
+		File f = File.createTempFile("index", ".idx");
+		f.deleteOnExit();
+		index = SecondaryIndex.create(tid, table.getId(), 1, f);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	private ArrayList<ArrayList<Integer>> matching(int field, Op op, int value) {
+		ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+		for (ArrayList<Integer> t : tuples) {
+			if (new IntField(t.get(field)).compare(op, new IntField(value)))
+				result.add(t);
+		}
+		return result;
+	}
+
+	private OpIterator lookup(Op op, int value) {
+		return new SecondaryIndexScan(tid, index, "t", new IndexPredicate(op, new IntField(value)));
+	}
+
+	/**
+	 * Unit test for SecondaryIndex.create() and lookups
+	 */
+	@Test
+	public void lookup() throws Exception {
+		assertSame(index, Database.getCatalog().getIndex(table.getId(), 1));
+		BTreeChecker.checkRep(index.getFile(), tid, new HashMap<PageId, Page>(), true);
+
+		int key = tuples.get(0).get(1);
+		SystemTestUtil.matchTuples(lookup(Op.EQUALS, key), matching(1, Op.EQUALS, key));
+		SystemTestUtil.matchTuples(lookup(Op.GREATER_THAN, 400), matching(1, Op.GREATER_THAN, 400));
+		SystemTestUtil.matchTuples(lookup(Op.EQUALS, 1000), matching(1, Op.EQUALS, 1000));
+	}
+
+	/**
+	 * Unit test for index maintenance by BufferPool.insertTuple() and
+	 * BufferPool.deleteTuple()
+	 */
+	@Test
+	public void maintenance() throws Exception {
+		// insert tuples with a new key
+		for (int i = 0; i < 10; i++) {
+			Tuple t = new Tuple(table.getTupleDesc());
+			t.setField(0, new IntField(i));
+			t.setField(1, new IntField(1000));
+			t.setField(2, new IntField(-i));
+			Database.getBufferPool().insertTuple(tid, table.getId(), t);
+			tuples.add(SystemTestUtil.tupleToList(t));
+		}
+		SystemTestUtil.matchTuples(lookup(Op.EQUALS, 1000), matching(1, Op.EQUALS, 1000));
+
+		// delete every tuple with some key
+		int key = tuples.get(0).get(1);
+		OpIterator it = lookup(Op.EQUALS, key);
+		it.open();
+		ArrayList<Tuple> deleted = new ArrayList<Tuple>();
+		while (it.hasNext())
+			deleted.add(it.next());
+		it.close();
+		assertFalse(deleted.isEmpty());
+		for (Tuple t : deleted) {
+			Database.getBufferPool().deleteTuple(tid, t);
+			tuples.remove(SystemTestUtil.tupleToList(t));
+		}
+		SystemTestUtil.matchTuples(lookup(Op.EQUALS, key), matching(1, Op.EQUALS, key));
+		SystemTestUtil.matchTuples(lookup(Op.GREATER_THAN_OR_EQ, 0), tuples);
+		BTreeChecker.checkRep(index.getFile(), tid, new HashMap<PageId, Page>(), true);
+	}
+
+	/**
+	 * Unit test for the use of the index by LogicalPlan.physicalPlan()
+	 */
+	@Test
+	public void plan() throws Exception {
+		// a table large enough that a lookup is cheaper than a scan
+		table = SystemTestUtil.createRandomHeapFile(3, 30000, 5000, null, tuples, "c");
+		File f = File.createTempFile("index", ".idx");
+		f.deleteOnExit();
+		index = SecondaryIndex.create(tid, table.getId(), 1, f);
+		Database.getCatalog().addTable(table, "t");
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(table.getId(), "t");
+		int key = tuples.get(0).get(1);
+		lp.addFilter("t.c1", Op.EQUALS, Integer.toString(key));
+		lp.addFilter("t.c2", Op.GREATER_THAN, "2500");
+		lp.addProjectField("null.*", null);
+		HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+		stats.put("t", new TableStats(table.getId(), TableStats.IOCOSTPERPAGE));
+
+		OpIterator plan = lp.physicalPlan(tid, stats, false);
+		// the remaining predicate filters the index lookup
+		OpIterator filter = ((Operator) plan).getChildren()[0];
+		assertTrue(filter instanceof Filter);
+		assertTrue(((Operator) filter).getChildren()[0] instanceof SecondaryIndexScan);
+
+		ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+		for (ArrayList<Integer> t : matching(1, Op.EQUALS, key)) {
+			if (t.get(2) > 2500)
+				expected.add(t);
+		}
+		SystemTestUtil.matchTuples(plan, expected);
+	}
+
+	/**
+	 * @return the values of fields of some tuples, in order
+	 */
+	private static ArrayList<ArrayList<Integer>> project(ArrayList<ArrayList<Integer>> tuples, int... fields) {
+		ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+		for (ArrayList<Integer> t : tuples) {
+			ArrayList<Integer> p = new ArrayList<Integer>();
+			for (int f : fields)
+				p.add(t.get(f));
+			result.add(p);
+		}
+		return result;
+	}
+
+	/**
+	 * Unit test for IndexOnlyScan over an index with included fields
+	 */
+	@Test
+	public void indexOnlyScan() throws Exception {
+		File f = File.createTempFile("index", ".idx");
+		f.deleteOnExit();
+		index = SecondaryIndex.create(tid, table.getId(), 1, new int[] { 2 }, f);
+		assertTrue(index.covers(Arrays.asList(1, 2)));
+		assertFalse(index.covers(Arrays.asList(0, 1)));
+
+		// inserted tuples carry their included fields into the index
+		Tuple t = new Tuple(table.getTupleDesc());
+		t.setField(0, new IntField(1));
+		t.setField(1, new IntField(1000));
+		t.setField(2, new IntField(-1));
+		Database.getBufferPool().insertTuple(tid, table.getId(), t);
+		tuples.add(SystemTestUtil.tupleToList(t));
+
+		int key = tuples.get(0).get(1);
+		OpIterator it = new IndexOnlyScan(tid, index, "t", new IndexPredicate(Op.EQUALS, new IntField(key)));
+		assertEquals("t.c1", it.getTupleDesc().getFieldName(0));
+		assertEquals("t.c2", it.getTupleDesc().getFieldName(1));
+		SystemTestUtil.matchTuples(it, project(matching(1, Op.EQUALS, key), 1, 2));
+		SystemTestUtil.matchTuples(new IndexOnlyScan(tid, index, "t", null), project(tuples, 1, 2));
+	}
+
+	/**
+	 * Unit test for the choice of an index-only scan by
+	 * LogicalPlan.physicalPlan()
+	 */
+	@Test
+	public void indexOnlyPlan() throws Exception {
+		File f = File.createTempFile("index", ".idx");
+		f.deleteOnExit();
+		index = SecondaryIndex.create(tid, table.getId(), 1, new int[] { 2 }, f);
+		Database.getCatalog().addTable(table, "t");
+		HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+		stats.put("t", new TableStats(table.getId(), TableStats.IOCOSTPERPAGE));
+
+		// the index holds every field the query refers to
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(table.getId(), "t");
+		lp.addFilter("t.c1", Op.LESS_THAN, "100");
+		lp.addProjectField("t.c2", null);
+		OpIterator plan = lp.physicalPlan(tid, stats, false);
+		OpIterator scan = ((Operator) plan).getChildren()[0];
+		assertTrue(scan instanceof IndexOnlyScan);
+		assertNotNull(((IndexOnlyScan) scan).getIndexPredicate());
+		SystemTestUtil.matchTuples(plan, project(matching(1, Op.LESS_THAN, 100), 2));
+
+		// not when the query refers to another field
+		lp = new LogicalPlan();
+		lp.addScan(table.getId(), "t");
+		lp.addFilter("t.c1", Op.LESS_THAN, "100");
+		lp.addProjectField("t.c0", null);
+		plan = lp.physicalPlan(tid, stats, false);
+		assertFalse(((Operator) plan).getChildren()[0] instanceof IndexOnlyScan);
+		SystemTestUtil.matchTuples(plan, project(matching(1, Op.LESS_THAN, 100), 0));
+	}
+
+	/**
+	 * Unit test for SecondaryIndex.create() on a failed load, which leaves no
+	 * index in the catalog and no file
+	 */
+	@Test
+	public void failedCreate() throws Exception {
+		// another transaction holds the first page of a new table, so the
+		// scan is aborted
+		HeapFile other = SystemTestUtil.createRandomHeapFile(3, 3000, 500, null, null, "c");
+		TransactionId writer = new TransactionId();
+		Database.getBufferPool().getPage(writer, new HeapPageId(other.getId(), 0), Permissions.READ_WRITE);
+		File f = File.createTempFile("index", ".idx");
+		f.deleteOnExit();
+		try {
+			SecondaryIndex.create(tid, other.getId(), 1, f);
+			fail("created an index from a table locked by another transaction");
+		} catch (TransactionAbortedException e) {
+			// expected
+		} finally {
+			Database.getBufferPool().transactionComplete(writer);
+		}
+		assertTrue(Database.getCatalog().getIndexes(other.getId()).isEmpty());
+		assertFalse(f.exists());
+	}
+
+	/**
+	 * Unit test for the choice of an index-only scan of every entry
+	 */
+	@Test
+	public void indexOnlyFullScan() throws Exception {
+		// the entries of the index are narrower than the tuples of the table
+		ArrayList<ArrayList<Integer>> wide = new ArrayList<ArrayList<Integer>>();
+		HeapFile w = SystemTestUtil.createRandomHeapFile(10, 3000, 500, null, wide, "c");
+		File f = File.createTempFile("index", ".idx");
+		f.deleteOnExit();
+		index = SecondaryIndex.create(tid, w.getId(), 1, new int[] { 2 }, f);
+		Database.getCatalog().addTable(w, "w");
+		HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+		stats.put("w", new TableStats(w.getId(), TableStats.IOCOSTPERPAGE));
+
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(w.getId(), "w");
+		lp.addFilter("w.c2", Op.GREATER_THAN, "250");
+		lp.addProjectField("w.c1", null);
+		OpIterator plan = lp.physicalPlan(tid, stats, false);
+		OpIterator scan = ((Operator) ((Operator) plan).getChildren()[0]).getChildren()[0];
+		assertTrue(scan instanceof IndexOnlyScan);
+		assertNull(((IndexOnlyScan) scan).getIndexPredicate());
+
+		ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+		for (ArrayList<Integer> t : wide) {
+			if (t.get(2) > 250)
+				expected.add(t);
+		}
+		SystemTestUtil.matchTuples(plan, project(expected, 1));
+	}
+
+	/**
+	 * Unit test for indexes declared in the catalog schema
+	 */
+	@Test
+	public void loadSchema() throws Exception {
+		File schema = File.createTempFile("schema", ".txt");
+		schema.deleteOnExit();
+		String name = "t" + SystemTestUtil.getUUID().replace("-", "");
+		File data = new File(schema.getParentFile(), name + ".dat");
+		File idx = new File(schema.getParentFile(), name + ".b.idx");
+		data.deleteOnExit();
+		idx.deleteOnExit();
+		HeapFileEncoder.convert(tuples, data, BufferPool.getPageSize(), 3);
+		FileWriter w = new FileWriter(schema);
+		w.write(name + " (a int pk, b int index include:c, c int)\n");
+		w.close();
+
+		Database.getCatalog().loadSchema(schema.getAbsolutePath());
+		int tableid = Database.getCatalog().getTableId(name);
+		assertEquals(1, Database.getCatalog().getIndexes(tableid).size());
+		index = Database.getCatalog().getIndex(tableid, 1);
+		assertTrue(idx.length() > 0);
+		assertArrayEquals(new int[] { 2 }, index.getIncludedFields());
+		int key = tuples.get(0).get(1);
+		SystemTestUtil.matchTuples(lookup(Op.EQUALS, key), matching(1, Op.EQUALS, key));
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(SecondaryIndexTest.class);
+	}
+}
@@ -278,6 +278,43 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 		
 	}
 
+	@Test
+	public void testInternalPagesOnlyLatched() throws Exception {
+		// build a two-level tree, inserting the keys in order so that
+		// the right-most leaf is full and the others are half full
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		Database.reset();
+		BTreeFile bf = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0);
+		for (int i = 0; i < 1004; ++i) {
+			bf.insertTuple(tid, BTreeUtility.getBTreeTuple(i, 2));
+		}
+		Database.getBufferPool().transactionComplete(tid);
+
+		// after an insert that does not split, the transaction still
+		// locks the leaf but not the pages on the path to it
+		TransactionId tid1 = new TransactionId();
+		Database.getBufferPool().insertTuple(tid1, bf.getId(), BTreeUtility.getBTreeTuple(0, 2));
+		BTreePageId rootPtrPid = BTreeRootPtrPage.getId(bf.getId());
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid, rootPtrPid, Permissions.READ_ONLY);
+		BTreePageId rootId = rootPtr.getRootId();
+		assertEquals(BTreePageId.INTERNAL, rootId.pgcateg());
+		BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getPage(tid, rootId, Permissions.READ_ONLY);
+		assertFalse(Database.getBufferPool().holdsLock(tid1, rootPtrPid));
+		assertFalse(Database.getBufferPool().holdsLock(tid1, rootId));
+		assertTrue(Database.getBufferPool().holdsLock(tid1, root.findChild(new IntField(0))));
+		Database.getBufferPool().transactionComplete(tid);
+
+		// so another transaction can split the right-most leaf, which
+		// writes the root, while the first one is still running
+		TransactionId tid2 = new TransactionId();
+		int pages = bf.numPages();
+		Database.getBufferPool().insertTuple(tid2, bf.getId(), BTreeUtility.getBTreeTuple(5000, 2));
+		assertEquals(pages + 1, bf.numPages());
+		Database.getBufferPool().transactionComplete(tid2);
+		Database.getBufferPool().transactionComplete(tid1);
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -427,6 +427,140 @@ public class LogTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    @Test public void TestRepeatedCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // T1 inserts and its pages are flushed, but it does not commit
+        // T2 inserts and commits
+        // crash, recover, crash again and recover again
+        // undo is not repeated and T2's data survives both recoveries
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3, 0);
+        insertRow(hf1, t1, 4, 0);
+        Database.getBufferPool().flushAllPages(); // XXX defeat NO-STEAL-based abort
+
+        doInsert(hf2, 5, 6);
+
+        crash();
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, false);
+        look(hf1, t, 4, false);
+        look(hf2, t, 5, true);
+        look(hf2, t, 6, true);
+        t.commit();
+    }
+
+    // replace the log of the current Database with one that has small
+    // segments; later Database instances reopen it with the same size
+    void useSmallSegments(long segmentSize) throws Exception {
+        java.lang.reflect.Field logF = Database.class.getDeclaredField("_logfile");
+        logF.setAccessible(true);
+        java.lang.reflect.Field instanceF = Database.class.getDeclaredField("_instance");
+        instanceF.setAccessible(true);
+        Object db = ((java.util.concurrent.atomic.AtomicReference<?>) instanceF.get(null)).get();
+        logF.set(db, new LogFile(new File("log"), segmentSize));
+    }
+
+    @Test public void TestCheckpointTruncation() throws Exception {
+        setup();
+        useSmallSegments(1024);
+
+        // *** Test:
+        // many transactions commit, filling several log segments
+        // T1 inserts but does not commit
+        // checkpoint: the segments before T1 are deleted, no page is flushed
+        // more transactions commit
+        // crash
+        // the committed data is there and T1's is not
+
+        for (int i = 0; i < 20; i++)
+            doInsert(hf1, 100 + i, -1);
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf2, t1, 3, 0);
+        Database.getBufferPool().flushAllPages(); // XXX defeat NO-STEAL-based abort
+        insertRow(hf2, t1, 4, 0);
+
+        LogFile log = Database.getLogFile();
+        int segmentsBefore = log.getSegmentCount();
+        assertTrue(segmentsBefore > 2);
+        log.logCheckpoint();
+        assertTrue(log.getLogStart() > 0);
+        assertTrue(log.getSegmentCount() < segmentsBefore);
+
+        for (int i = 20; i < 30; i++)
+            doInsert(hf1, 100 + i, -1);
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < 30; i++)
+            look(hf1, t, 100 + i, true);
+        look(hf2, t, 3, false);
+        look(hf2, t, 4, false);
+        t.commit();
+    }
+
+    @Test public void TestGroupCommit()
+            throws IOException, DbException, TransactionAbortedException, InterruptedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // concurrent committers share log forces
+        final LogFile log = Database.getLogFile();
+        log.setGroupCommitWait(5000);
+        log.setGroupCommitMaxBatch(8);
+        long flushesBefore = log.getGroupFlushCount();
+        long commitsBefore = log.getGroupCommitCount();
+
+        final int threads = 8, perThread = 10;
+        Thread[] committers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            committers[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < perThread; j++) {
+                            Transaction t = new Transaction();
+                            t.start();
+                            t.commit();
+                        }
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            committers[i].start();
+        }
+        for (Thread c : committers)
+            c.join();
+
+        long commits = log.getGroupCommitCount() - commitsBefore;
+        long flushes = log.getGroupFlushCount() - flushesBefore;
+        assertEquals(threads * perThread, commits);
+        assertTrue(flushes < commits);
+        assertTrue(log.getMaxGroupCommitBatch() > 1);
+
+        // data committed before the concurrent commits is unaffected
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        t.commit();
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(LogTest.class);
@@ -3,6 +3,8 @@ package simpledb.systemtest;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
@@ -98,6 +100,92 @@ public class SystemTestUtil {
         return list;
     }
 
+    /**
+     * Insert a tuple of ints into a table through the buffer pool, and add
+     * it to a list of the tuples expected in the table.
+     *
+     * @return the tuple inserted
+     */
+    public static Tuple insertTuple(TransactionId tid, DbFile f, List<ArrayList<Integer>> tuples, int... values)
+            throws DbException, TransactionAbortedException, IOException {
+        Tuple t = new Tuple(f.getTupleDesc());
+        for (int i = 0; i < values.length; i++)
+            t.setField(i, new IntField(values[i]));
+        Database.getBufferPool().insertTuple(tid, f.getId(), t);
+        tuples.add(tupleToList(t));
+        return t;
+    }
+
+    /**
+     * @return the tuples of a file iterator, which is opened and closed
+     */
+    public static ArrayList<Tuple> readTuples(DbFileIterator it)
+            throws DbException, TransactionAbortedException {
+        ArrayList<Tuple> result = new ArrayList<Tuple>();
+        it.open();
+        while (it.hasNext())
+            result.add(it.next());
+        it.close();
+        return result;
+    }
+
+    /**
+     * @return the tuples of a list of tuples, as lists of ints
+     */
+    public static ArrayList<ArrayList<Integer>> tuplesToLists(List<Tuple> tuples) {
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        for (Tuple t : tuples)
+            result.add(tupleToList(t));
+        return result;
+    }
+
+    /**
+     * Check that a file iterator returns exactly the expected tuples, in
+     * any order.
+     */
+    public static void matchTuples(DbFileIterator it, List<ArrayList<Integer>> tuples)
+            throws DbException, TransactionAbortedException {
+        matchTuples(tuplesToLists(readTuples(it)), tuples);
+    }
+
+    /**
+     * Check that a file iterator returns exactly the expected tuples, sorted
+     * on an int field.
+     *
+     * @param ascending true if the field should ascend, false if it should
+     *        descend
+     */
+    public static void matchSortedTuples(DbFileIterator it, int field, boolean ascending,
+            List<ArrayList<Integer>> tuples) throws DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> actual = tuplesToLists(readTuples(it));
+        for (int i = 1; i < actual.size(); i++) {
+            int a = actual.get(i - 1).get(field), b = actual.get(i).get(field);
+            Assert.assertTrue("tuples out of order: " + a + ", " + b, ascending ? a <= b : a >= b);
+        }
+        matchTuples(actual, tuples);
+    }
+
+    /**
+     * Check that a list holds exactly the expected tuples, in any order.
+     */
+    public static void matchTuples(List<ArrayList<Integer>> actual, List<ArrayList<Integer>> tuples) {
+        Comparator<ArrayList<Integer>> byValues = new Comparator<ArrayList<Integer>>() {
+            public int compare(ArrayList<Integer> a, ArrayList<Integer> b) {
+                for (int i = 0; i < Math.min(a.size(), b.size()); i++) {
+                    int c = a.get(i).compareTo(b.get(i));
+                    if (c != 0)
+                        return c;
+                }
+                return a.size() - b.size();
+            }
+        };
+        ArrayList<ArrayList<Integer>> sortedActual = new ArrayList<ArrayList<Integer>>(actual);
+        ArrayList<ArrayList<Integer>> sortedExpected = new ArrayList<ArrayList<Integer>>(tuples);
+        Collections.sort(sortedActual, byValues);
+        Collections.sort(sortedExpected, byValues);
+        Assert.assertEquals(sortedExpected, sortedActual);
+    }
+
     public static void matchTuples(DbFile f, List<ArrayList<Integer>> tuples)
             throws DbException, TransactionAbortedException, IOException {
         TransactionId tid = new TransactionId();